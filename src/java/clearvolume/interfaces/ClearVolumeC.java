@@ -351,6 +351,41 @@ public class ClearVolumeC
 
 	}
 
+	/**
+	 * Creates a logical stream on an existing server: volumes sent to the
+	 * given sink ID share the server's port, thread and client connections
+	 * with the server's other streams. destroyServer(pSinkId) removes the
+	 * stream.
+	 *
+	 * @param pServerId
+	 *            server ID
+	 * @param pSinkId
+	 *            sink ID of the stream, also used as stream ID
+	 * @return 0 if no error occurred !=0 if error occurred
+	 */
+	public static int createServerStream(	final int pServerId,
+											final int pSinkId)
+	{
+		try
+		{
+			final ClearVolumeTCPServerSink lClearVolumeTCPServerSink = sIDToServerMap.get(pServerId);
+			if (lClearVolumeTCPServerSink == null)
+				return 2;
+
+			sIDToVolumeManager.put(	pSinkId,
+									new VolumeManager(sMaxAvailableVolumes));
+			sIDToVolumeSink.put(pSinkId,
+								lClearVolumeTCPServerSink.getStreamSink(pSinkId));
+			return 0;
+		}
+		catch (final Throwable e)
+		{
+			e.printStackTrace();
+			sLastThrowableException = e;
+			return 1;
+		}
+	}
+
 	public static int destroyServer(final int pServerId)
 	{
 		try
@@ -0,0 +1,254 @@
+package clearvolume.network.benchmark;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import clearvolume.network.client.ClearVolumeTCPClient;
+import clearvolume.network.metrics.NetworkMetricsSnapshot;
+import clearvolume.network.server.ClearVolumeTCPServerSink;
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+import clearvolume.volume.sink.NullVolumeSink;
+import coremem.enums.NativeTypeEnum;
+
+/**
+ * Loopback benchmark: synthetic volumes are streamed at a given rate through
+ * a server sink and a client to a null sink on localhost, and the throughput,
+ * latency, GC activity and dropped frames of a measurement period following a
+ * warm up period are reported.
+ */
+public class NetworkBenchmark
+{
+	private int mWidth = 256;
+	private int mHeight = 256;
+	private int mDepth = 256;
+	private NativeTypeEnum mType = NativeTypeEnum.UnsignedByte;
+	private int mNumberOfChannels = 1;
+	private double mVolumesPerSecond = 0;
+	private double mWarmUpInSeconds = 1;
+	private double mDurationInSeconds = 5;
+	private int mPort = 9300;
+	private int mNumberOfStripes = 1;
+	private int mServerQueueCapacity = 4;
+
+	/**
+	 * Runs the benchmark.
+	 *
+	 * @return results of the measurement period
+	 * @throws IOException
+	 *             if the server or client can't be opened
+	 */
+	public NetworkBenchmarkResult run() throws IOException
+	{
+		final int lNumberOfVolumesInFlight = mServerQueueCapacity + mNumberOfChannels
+												+ 2;
+		final VolumeManager lSourceVolumeManager = new VolumeManager(lNumberOfVolumesInFlight);
+		final ClearVolumeTCPServerSink lClearVolumeTCPServerSink = new ClearVolumeTCPServerSink(mServerQueueCapacity);
+		lClearVolumeTCPServerSink.setRelaySink(new NullVolumeSink(lSourceVolumeManager));
+		if (!lClearVolumeTCPServerSink.open(new InetSocketAddress(mPort)))
+			throw new IOException("Could not open server on port " + mPort);
+		if (mNumberOfStripes > 1)
+			lClearVolumeTCPServerSink.openStripes(	new InetSocketAddress(0),
+													mNumberOfStripes);
+		lClearVolumeTCPServerSink.start();
+
+		final ClearVolumeTCPClient lClearVolumeTCPClient = new ClearVolumeTCPClient(new NullVolumeSink(new VolumeManager(lNumberOfVolumesInFlight)));
+		lClearVolumeTCPClient.setNumberOfStripes(mNumberOfStripes);
+		try
+		{
+			if (!lClearVolumeTCPClient.open(new InetSocketAddress(	"localhost",
+																	mPort)))
+				throw new IOException("Could not connect to port " + mPort);
+			lClearVolumeTCPClient.start();
+			waitForConnection(lClearVolumeTCPServerSink);
+
+			final Set<Volume> lFilledVolumes = Collections.newSetFromMap(new IdentityHashMap<Volume, Boolean>());
+			final long lStartNanos = System.nanoTime();
+			final long lWarmUpEndNanos = lStartNanos + (long) (mWarmUpInSeconds * 1e9);
+			final long lEndNanos = lWarmUpEndNanos + (long) (mDurationInSeconds * 1e9);
+
+			NetworkMetricsSnapshot lFirstClientSnapshot = null;
+			NetworkMetricsSnapshot lFirstServerSnapshot = null;
+			long lFirstGCCount = 0, lFirstGCTimeMillis = 0;
+			long lNumberOfSentVolumes = 0, lFirstNumberOfSentVolumes = 0;
+
+			long lTimeIndex = 0;
+			long lNowNanos;
+			while ((lNowNanos = System.nanoTime()) < lEndNanos)
+			{
+				if (lFirstClientSnapshot == null && lNowNanos >= lWarmUpEndNanos)
+				{
+					lFirstClientSnapshot = lClearVolumeTCPClient.getNetworkMetrics()
+																.getSnapshot();
+					lFirstServerSnapshot = lClearVolumeTCPServerSink.getNetworkMetrics()
+																	.getSnapshot();
+					lFirstGCCount = getGCCount();
+					lFirstGCTimeMillis = getGCTimeMillis();
+					lFirstNumberOfSentVolumes = lNumberOfSentVolumes;
+				}
+
+				for (int lChannel = 0; lChannel < mNumberOfChannels; lChannel++)
+				{
+					final Volume lVolume = lSourceVolumeManager.requestAndWaitForVolume(1,
+																						TimeUnit.MILLISECONDS,
+																						mType,
+																						1,
+																						mWidth,
+																						mHeight,
+																						mDepth);
+					if (lFilledVolumes.add(lVolume))
+						fillVolume(lVolume);
+					lVolume.setChannelID(lChannel);
+					lVolume.setTimeIndex(lTimeIndex);
+					// wall clock stamp, for the client to measure latency:
+					lVolume.setTimeInSeconds(System.currentTimeMillis() * 1e-3);
+					lClearVolumeTCPServerSink.sendVolume(lVolume);
+					lNumberOfSentVolumes++;
+				}
+				lTimeIndex++;
+
+				if (mVolumesPerSecond > 0)
+				{
+					final long lNextNanos = lStartNanos + (long) (lTimeIndex * 1e9 / mVolumesPerSecond);
+					while (System.nanoTime() < lNextNanos)
+						LockSupport.parkNanos(lNextNanos - System.nanoTime());
+				}
+			}
+
+			final NetworkMetricsSnapshot lLastClientSnapshot = lClearVolumeTCPClient.getNetworkMetrics()
+																					.getSnapshot();
+			final NetworkMetricsSnapshot lLastServerSnapshot = lClearVolumeTCPServerSink.getNetworkMetrics()
+																						.getSnapshot();
+			if (lFirstClientSnapshot == null)
+				throw new IllegalStateException("Measurement period is empty");
+
+			return new NetworkBenchmarkResult(	lLastClientSnapshot,
+												lFirstClientSnapshot,
+												lLastServerSnapshot.getNumberOfDroppedFrames() - lFirstServerSnapshot.getNumberOfDroppedFrames(),
+												lNumberOfSentVolumes - lFirstNumberOfSentVolumes,
+												getGCCount() - lFirstGCCount,
+												getGCTimeMillis() - lFirstGCTimeMillis);
+		}
+		finally
+		{
+			lClearVolumeTCPClient.stop();
+			lClearVolumeTCPClient.close();
+			lClearVolumeTCPServerSink.stop();
+			lClearVolumeTCPServerSink.close();
+		}
+	}
+
+	private static void fillVolume(Volume pVolume)
+	{
+		// deterministic and not trivially compressible:
+		final ByteBuffer lDataBuffer = pVolume.getDataBuffer();
+		int lValue = 0x2545F491;
+		for (int i = 0; i < lDataBuffer.capacity(); i++)
+		{
+			lValue ^= lValue << 13;
+			lValue ^= lValue >>> 17;
+			lValue ^= lValue << 5;
+			lDataBuffer.put(i, (byte) lValue);
+		}
+	}
+
+	private static void waitForConnection(ClearVolumeTCPServerSink pClearVolumeTCPServerSink) throws IOException
+	{
+		for (int i = 0; i < 500 && pClearVolumeTCPServerSink.getNumberOfConnections() == 0; i++)
+			LockSupport.parkNanos(10 * 1000 * 1000);
+		if (pClearVolumeTCPServerSink.getNumberOfConnections() == 0)
+			throw new IOException("Client did not connect");
+	}
+
+	private static long getGCCount()
+	{
+		long lCount = 0;
+		for (final GarbageCollectorMXBean lGarbageCollectorMXBean : ManagementFactory.getGarbageCollectorMXBeans())
+			lCount += Math.max(0, lGarbageCollectorMXBean.getCollectionCount());
+		return lCount;
+	}
+
+	private static long getGCTimeMillis()
+	{
+		long lTimeMillis = 0;
+		for (final GarbageCollectorMXBean lGarbageCollectorMXBean : ManagementFactory.getGarbageCollectorMXBeans())
+			lTimeMillis += Math.max(0,
+									lGarbageCollectorMXBean.getCollectionTime());
+		return lTimeMillis;
+	}
+
+	public void setVolumeDimensions(int pWidth, int pHeight, int pDepth)
+	{
+		mWidth = pWidth;
+		mHeight = pHeight;
+		mDepth = pDepth;
+	}
+
+	public void setType(NativeTypeEnum pType)
+	{
+		mType = pType;
+	}
+
+	public void setNumberOfChannels(int pNumberOfChannels)
+	{
+		mNumberOfChannels = Math.max(1, pNumberOfChannels);
+	}
+
+	/**
+	 * @param pVolumesPerSecond
+	 *            time points per second (one volume per channel each), 0 to
+	 *            send as fast as possible
+	 */
+	public void setVolumesPerSecond(double pVolumesPerSecond)
+	{
+		mVolumesPerSecond = pVolumesPerSecond;
+	}
+
+	public void setWarmUp(double pWarmUpInSeconds)
+	{
+		mWarmUpInSeconds = pWarmUpInSeconds;
+	}
+
+	public void setDuration(double pDurationInSeconds)
+	{
+		mDurationInSeconds = pDurationInSeconds;
+	}
+
+	public void setPort(int pPort)
+	{
+		mPort = pPort;
+	}
+
+	public void setNumberOfStripes(int pNumberOfStripes)
+	{
+		mNumberOfStripes = pNumberOfStripes;
+	}
+
+	public void setServerQueueCapacity(int pServerQueueCapacity)
+	{
+		mServerQueueCapacity = Math.max(1, pServerQueueCapacity);
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format(	"NetworkBenchmark [%dx%dx%d %s, channels=%d, rate=%s/s, stripes=%d]",
+								mWidth,
+								mHeight,
+								mDepth,
+								mType,
+								mNumberOfChannels,
+								mVolumesPerSecond > 0 ? mVolumesPerSecond
+														: "max",
+								mNumberOfStripes);
+	}
+
+}
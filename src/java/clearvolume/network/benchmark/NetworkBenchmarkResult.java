@@ -0,0 +1,123 @@
+package clearvolume.network.benchmark;
+
+import clearvolume.network.metrics.NetworkMetricsSnapshot;
+import clearvolume.utils.LatencyHistogram;
+
+/**
+ * Results of the measurement period of a NetworkBenchmark.
+ */
+public class NetworkBenchmarkResult
+{
+	private final double mDurationInSeconds;
+	private final double mBytesPerSecond;
+	private final long mNumberOfReceivedVolumes;
+	private final long mNumberOfSentVolumes;
+	private final long mNumberOfDroppedVolumes;
+	private final LatencyHistogram mLatency;
+	private final long mGCCount;
+	private final long mGCTimeMillis;
+
+	NetworkBenchmarkResult(	NetworkMetricsSnapshot pClientSnapshot,
+							NetworkMetricsSnapshot pPreviousClientSnapshot,
+							long pNumberOfDroppedVolumes,
+							long pNumberOfSentVolumes,
+							long pGCCount,
+							long pGCTimeMillis)
+	{
+		mDurationInSeconds = (pClientSnapshot.getTimeNanos() - pPreviousClientSnapshot.getTimeNanos()) * 1e-9;
+		mBytesPerSecond = pClientSnapshot.getTotalBytesPerSecond(pPreviousClientSnapshot);
+		long lNumberOfReceivedVolumes = 0;
+		for (final Integer lChannelID : pClientSnapshot.getChannels())
+			lNumberOfReceivedVolumes += pClientSnapshot.getNumberOfFrames(lChannelID) - pPreviousClientSnapshot.getNumberOfFrames(lChannelID);
+		mNumberOfReceivedVolumes = lNumberOfReceivedVolumes;
+		mNumberOfSentVolumes = pNumberOfSentVolumes;
+		mNumberOfDroppedVolumes = pNumberOfDroppedVolumes;
+		mLatency = pClientSnapshot.getLatency()
+									.since(pPreviousClientSnapshot.getLatency());
+		mGCCount = pGCCount;
+		mGCTimeMillis = pGCTimeMillis;
+	}
+
+	public double getDurationInSeconds()
+	{
+		return mDurationInSeconds;
+	}
+
+	/**
+	 * @return sustained throughput received by the client, in bytes per second
+	 */
+	public double getBytesPerSecond()
+	{
+		return mBytesPerSecond;
+	}
+
+	public double getGigaBytesPerSecond()
+	{
+		return mBytesPerSecond * 1e-9;
+	}
+
+	public double getVolumesPerSecond()
+	{
+		return mDurationInSeconds <= 0	? 0
+										: mNumberOfReceivedVolumes / mDurationInSeconds;
+	}
+
+	public long getNumberOfReceivedVolumes()
+	{
+		return mNumberOfReceivedVolumes;
+	}
+
+	public long getNumberOfSentVolumes()
+	{
+		return mNumberOfSentVolumes;
+	}
+
+	/**
+	 * @return volumes dropped by the server, either before serialization or in
+	 *         the client queue
+	 */
+	public long getNumberOfDroppedVolumes()
+	{
+		return mNumberOfDroppedVolumes;
+	}
+
+	/**
+	 * @return latency from the volume being handed to the server to its
+	 *         reception by the client
+	 */
+	public LatencyHistogram getLatency()
+	{
+		return mLatency;
+	}
+
+	public long getGCCount()
+	{
+		return mGCCount;
+	}
+
+	public long getGCTimeMillis()
+	{
+		return mGCTimeMillis;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format(	"%.3f GB/s, %.1f volumes/s over %.1f s (sent=%d, received=%d, dropped=%d)\n"
+										+ "latency p50=%.2f ms, p99=%.2f ms, p99.9=%.2f ms, max=%.2f ms\n"
+										+ "GC: %d collections, %d ms",
+								getGigaBytesPerSecond(),
+								getVolumesPerSecond(),
+								mDurationInSeconds,
+								mNumberOfSentVolumes,
+								mNumberOfReceivedVolumes,
+								mNumberOfDroppedVolumes,
+								mLatency.getPercentileNanos(50) * 1e-6,
+								mLatency.getPercentileNanos(99) * 1e-6,
+								mLatency.getPercentileNanos(99.9) * 1e-6,
+								mLatency.getMaxNanos() * 1e-6,
+								mGCCount,
+								mGCTimeMillis);
+	}
+
+}
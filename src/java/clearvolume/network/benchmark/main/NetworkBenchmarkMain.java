@@ -0,0 +1,110 @@
+package clearvolume.network.benchmark.main;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import clearvolume.network.benchmark.NetworkBenchmark;
+import clearvolume.network.benchmark.NetworkBenchmarkResult;
+import coremem.enums.NativeTypeEnum;
+
+public class NetworkBenchmarkMain
+{
+
+	@Option(name = "-x", aliases =
+	{ "--width" }, usage = "volume width in voxels.")
+	public int mWidth = 256;
+
+	@Option(name = "-y", aliases =
+	{ "--height" }, usage = "volume height in voxels.")
+	public int mHeight = 256;
+
+	@Option(name = "-z", aliases =
+	{ "--depth" }, usage = "volume depth in voxels.")
+	public int mDepth = 256;
+
+	@Option(name = "-t", aliases =
+	{ "--type" }, usage = "voxel type.")
+	public NativeTypeEnum mType = NativeTypeEnum.UnsignedByte;
+
+	@Option(name = "-c", aliases =
+	{ "--channels" }, usage = "number of channels.")
+	public int mNumberOfChannels = 1;
+
+	@Option(name = "-r", aliases =
+	{ "--rate" }, usage = "time points per second, 0 for as fast as possible.")
+	public double mVolumesPerSecond = 0;
+
+	@Option(name = "-w", aliases =
+	{ "--warm-up" }, usage = "warm up duration in seconds.")
+	public double mWarmUpInSeconds = 2;
+
+	@Option(name = "-d", aliases =
+	{ "--duration" }, usage = "measurement duration in seconds.")
+	public double mDurationInSeconds = 10;
+
+	@Option(name = "-p", aliases =
+	{ "--port" }, usage = "loopback port number.")
+	public int mPort = 9300;
+
+	@Option(name = "-s", aliases =
+	{ "--stripes" }, usage = "number of stripes.")
+	public int mNumberOfStripes = 1;
+
+	@Option(name = "-q", aliases =
+	{ "--server-queue" }, usage = "server queue capacity.")
+	public int mServerQueueCapacity = 4;
+
+	/**
+	 * Runs the loopback network benchmark.
+	 *
+	 * @param args
+	 *            command line parameters
+	 */
+	public static void main(String[] args)
+	{
+		final NetworkBenchmarkMain lCommandLineValues = new NetworkBenchmarkMain();
+		final CmdLineParser lCmdLineParser = new CmdLineParser(lCommandLineValues);
+		lCmdLineParser.getProperties().withUsageWidth(80);
+
+		System.err.println("[ClearVolume network benchmark]");
+		try
+		{
+			lCmdLineParser.parseArgument(args);
+		}
+		catch (final CmdLineException e)
+		{
+			System.err.println(e.getMessage());
+			lCmdLineParser.printUsage(System.err);
+			System.err.println();
+			System.exit(1);
+		}
+
+		final NetworkBenchmark lNetworkBenchmark = new NetworkBenchmark();
+		lNetworkBenchmark.setVolumeDimensions(	lCommandLineValues.mWidth,
+												lCommandLineValues.mHeight,
+												lCommandLineValues.mDepth);
+		lNetworkBenchmark.setType(lCommandLineValues.mType);
+		lNetworkBenchmark.setNumberOfChannels(lCommandLineValues.mNumberOfChannels);
+		lNetworkBenchmark.setVolumesPerSecond(lCommandLineValues.mVolumesPerSecond);
+		lNetworkBenchmark.setWarmUp(lCommandLineValues.mWarmUpInSeconds);
+		lNetworkBenchmark.setDuration(lCommandLineValues.mDurationInSeconds);
+		lNetworkBenchmark.setPort(lCommandLineValues.mPort);
+		lNetworkBenchmark.setNumberOfStripes(lCommandLineValues.mNumberOfStripes);
+		lNetworkBenchmark.setServerQueueCapacity(lCommandLineValues.mServerQueueCapacity);
+
+		try
+		{
+			System.out.println(lNetworkBenchmark);
+			final NetworkBenchmarkResult lNetworkBenchmarkResult = lNetworkBenchmark.run();
+			System.out.println(lNetworkBenchmarkResult);
+		}
+		catch (final Throwable e)
+		{
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+}
@@ -0,0 +1,58 @@
+package clearvolume.network.benchmark.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import clearvolume.network.benchmark.NetworkBenchmark;
+import clearvolume.network.benchmark.NetworkBenchmarkResult;
+import coremem.enums.NativeTypeEnum;
+
+public class NetworkBenchmarkTests
+{
+	// conservative default, raise it with -Dclearvolume.benchmark.minmbps on
+	// machines whose loopback throughput is known:
+	private static final double cMinMegaBytesPerSecond = Double.parseDouble(System.getProperty("clearvolume.benchmark.minmbps",
+																								"50"));
+
+	@Test
+	public void testLoopbackThroughput() throws IOException
+	{
+		final NetworkBenchmark lNetworkBenchmark = new NetworkBenchmark();
+		lNetworkBenchmark.setVolumeDimensions(128, 128, 128);
+		lNetworkBenchmark.setType(NativeTypeEnum.UnsignedShort);
+		lNetworkBenchmark.setNumberOfChannels(2);
+		lNetworkBenchmark.setWarmUp(0.5);
+		lNetworkBenchmark.setDuration(2);
+		lNetworkBenchmark.setPort(9300 + (int) (Math.random() * 400));
+
+		final NetworkBenchmarkResult lNetworkBenchmarkResult = lNetworkBenchmark.run();
+		System.out.println(lNetworkBenchmark);
+		System.out.println(lNetworkBenchmarkResult);
+
+		assertTrue(lNetworkBenchmarkResult.getNumberOfReceivedVolumes() > 0);
+		assertTrue(lNetworkBenchmarkResult.getLatency().getCount() > 0);
+		assertTrue(lNetworkBenchmarkResult.getBytesPerSecond() >= cMinMegaBytesPerSecond * 1e6);
+	}
+
+	@Test
+	public void testRateLimited() throws IOException
+	{
+		final NetworkBenchmark lNetworkBenchmark = new NetworkBenchmark();
+		lNetworkBenchmark.setVolumeDimensions(64, 64, 64);
+		lNetworkBenchmark.setVolumesPerSecond(20);
+		lNetworkBenchmark.setWarmUp(0.5);
+		lNetworkBenchmark.setDuration(2);
+		lNetworkBenchmark.setPort(9700 + (int) (Math.random() * 200));
+
+		final NetworkBenchmarkResult lNetworkBenchmarkResult = lNetworkBenchmark.run();
+		System.out.println(lNetworkBenchmarkResult);
+
+		// a light stream goes through without drops, at the requested rate:
+		assertEquals(0, lNetworkBenchmarkResult.getNumberOfDroppedVolumes());
+		assertEquals(20, lNetworkBenchmarkResult.getVolumesPerSecond(), 5);
+	}
+}
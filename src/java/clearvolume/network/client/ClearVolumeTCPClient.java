@@ -2,8 +2,21 @@ package clearvolume.network.client;
 
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
+import clearvolume.network.metrics.ClockSync;
+import clearvolume.network.metrics.NetworkMetrics;
+import clearvolume.network.serialization.BatchFrames;
+import clearvolume.network.serialization.ClearVolumeControlMessages;
+import clearvolume.network.serialization.ClientView;
+import clearvolume.network.serialization.SerializedFrameSinkInterface;
+import clearvolume.network.serialization.keyvalue.KeyValueSlots;
 import clearvolume.volume.sink.VolumeSinkInterface;
 
 public class ClearVolumeTCPClient implements AutoCloseable
@@ -12,51 +25,379 @@ public class ClearVolumeTCPClient implements AutoCloseable
 	public static final int cSocketBufferLength = 64 * 1024 * 1024;
 	private static final int cMaxInUseVolumes = 20;
 	private final VolumeSinkInterface mVolumeSink;
-	private SocketChannel mSocketChannel;
+	private final ConcurrentHashMap<Integer, VolumeSinkInterface> mStreamSinks = new ConcurrentHashMap<>();
+	private final SerializedFrameSinkInterface mSerializedFrameSink;
+	private volatile SocketChannel mSocketChannel;
+	private SocketAddress mSocketAddress;
 
 	private ClearVolumeTCPClientRunnable lRunnable;
 	private Thread mRunnableThread;
 
+	private volatile boolean mAutoReconnect = true;
+	private volatile long mMinReconnectDelayMillis = 100;
+	private volatile long mMaxReconnectDelayMillis = 5000;
+
+	private final CopyOnWriteArrayList<ConnectionStateListener> mConnectionStateListeners = new CopyOnWriteArrayList<>();
+	private volatile ConnectionState mConnectionState = ConnectionState.Disconnected;
+	private volatile long mNumberOfReconnections;
+	private volatile long mDisconnectedSinceNanos;
+	private volatile long mTotalDowntimeNanos;
+
+	private final KeyValueSlots mControlMessageSlots = new KeyValueSlots();
+	private ByteBuffer mControlMessageBuffer;
+
+	private ClientView mClientView = new ClientView();
+	private final KeyValueSlots mClientViewSlots = new KeyValueSlots();
+	private volatile boolean mClientViewSet = false;
+
+	private volatile boolean mBatchFrames = false;
+
+	private StripedFrameReceiver mStripedFrameReceiver;
+
+	private final NetworkMetrics mNetworkMetrics = new NetworkMetrics(ClearVolumeTCPClient.class.getSimpleName());
+	private Timer mClockSyncTimer;
+
 	public ClearVolumeTCPClient(VolumeSinkInterface pVolumeSink)
 	{
 		super();
 		mVolumeSink = pVolumeSink;
+		mSerializedFrameSink = null;
+	}
+
+	/**
+	 * Creates a client that hands the frames received to the given sink as
+	 * they came over the wire, without deserializing them.
+	 *
+	 * @param pSerializedFrameSink
+	 *            serialized frame sink
+	 */
+	public ClearVolumeTCPClient(SerializedFrameSinkInterface pSerializedFrameSink)
+	{
+		super();
+		mVolumeSink = null;
+		mSerializedFrameSink = pSerializedFrameSink;
+	}
+
+	/**
+	 * Sets the sink chain of a logical stream. Volumes of streams without a
+	 * sink of their own go to the sink given at construction.
+	 *
+	 * @param pStreamID
+	 *            stream ID
+	 * @param pVolumeSink
+	 *            sink for the volumes of the stream, null to remove it
+	 */
+	public void setStreamSink(int pStreamID, VolumeSinkInterface pVolumeSink)
+	{
+		if (pVolumeSink == null)
+			mStreamSinks.remove(pStreamID);
+		else
+			mStreamSinks.put(pStreamID, pVolumeSink);
+	}
+
+	VolumeSinkInterface getVolumeSink(int pStreamID)
+	{
+		final VolumeSinkInterface lStreamSink = mStreamSinks.get(pStreamID);
+		return lStreamSink == null ? mVolumeSink : lStreamSink;
 	}
 
 	public boolean open(SocketAddress pSocketAddress) throws IOException
 	{
 		if (mSocketChannel != null && mSocketChannel.isConnected())
 			return false;
-		mSocketChannel = SocketChannel.open();
-		mSocketChannel.configureBlocking(true);
-		mSocketChannel.socket()
-						.setReceiveBufferSize(cSocketBufferLength);
-		final boolean lConnected = mSocketChannel.connect(pSocketAddress);
-
+		mSocketAddress = pSocketAddress;
+		final boolean lConnected = connect();
+		if (lConnected)
+		{
+			if (mClientViewSet)
+				sendClientView();
+			if (mBatchFrames)
+				sendBatchFramesRequest();
+			setConnectionState(ConnectionState.Connected);
+		}
 		return lConnected;
 	}
 
+	private boolean connect() throws IOException
+	{
+		final SocketChannel lSocketChannel = SocketChannel.open();
+		try
+		{
+			lSocketChannel.configureBlocking(true);
+			lSocketChannel.socket()
+							.setReceiveBufferSize(cSocketBufferLength);
+			final boolean lConnected = lSocketChannel.connect(mSocketAddress);
+			mSocketChannel = lSocketChannel;
+			return lConnected;
+		}
+		catch (final IOException e)
+		{
+			lSocketChannel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens a new connection to the last address opened, and asks the server
+	 * for the latest volume of each channel so that the display catches up.
+	 *
+	 * @return true if reconnected
+	 * @throws IOException
+	 *             if the server can't be reached
+	 */
+	boolean reconnect() throws IOException
+	{
+		closeSocketChannel();
+		if (mStripedFrameReceiver != null)
+			mStripedFrameReceiver.close();
+		if (!connect())
+			return false;
+		if (mClientViewSet)
+			sendClientView();
+		if (mBatchFrames)
+			sendBatchFramesRequest();
+		requestSnapshot();
+		mNumberOfReconnections++;
+		setConnectionState(ConnectionState.Connected);
+		return true;
+	}
+
+	/**
+	 * Asks the server to send again the latest volume of each channel.
+	 *
+	 * @throws IOException
+	 *             if the request can't be sent
+	 */
+	public void requestSnapshot() throws IOException
+	{
+		synchronized (mControlMessageSlots)
+		{
+			mControlMessageSlots.clear();
+			mControlMessageSlots.put(	ClearVolumeControlMessages.cRequestKey,
+										ClearVolumeControlMessages.cSnapshotRequest);
+			sendControlMessage(mControlMessageSlots);
+		}
+	}
+
+	/**
+	 * Tells the server which channels, region and resolution to send, and at
+	 * most how often. The view is sent again after reconnections.
+	 *
+	 * @param pClientView
+	 *            view
+	 * @throws IOException
+	 *             if the view can't be sent
+	 */
+	public synchronized void setClientView(ClientView pClientView) throws IOException
+	{
+		mClientView = new ClientView(pClientView);
+		sendClientView();
+	}
+
+	/**
+	 * @return copy of the current view
+	 */
+	public synchronized ClientView getClientView()
+	{
+		return new ClientView(mClientView);
+	}
+
+	public synchronized void subscribe(int pChannelID) throws IOException
+	{
+		mClientView.subscribe(pChannelID);
+		sendClientView();
+	}
+
+	public synchronized void unsubscribe(int pChannelID) throws IOException
+	{
+		mClientView.unsubscribe(pChannelID);
+		sendClientView();
+	}
+
+	/**
+	 * @param pRegionOfInterest
+	 *            {x0, y0, z0, x1, y1, z1} in normalized coordinates, null for
+	 *            whole volumes
+	 */
+	public synchronized void setRegionOfInterest(float... pRegionOfInterest) throws IOException
+	{
+		mClientView.setRegionOfInterest(pRegionOfInterest);
+		sendClientView();
+	}
+
+	/**
+	 * @param pResolutionLevel
+	 *            volumes are downsampled by 2^level, 0 for full resolution
+	 */
+	public synchronized void setResolutionLevel(int pResolutionLevel) throws IOException
+	{
+		mClientView.setResolutionLevel(pResolutionLevel);
+		sendClientView();
+	}
+
+	/**
+	 * @param pMaxFrameRate
+	 *            max volumes per second and channel, 0 for no limit
+	 */
+	public synchronized void setMaxFrameRate(double pMaxFrameRate) throws IOException
+	{
+		mClientView.setMaxFrameRate(pMaxFrameRate);
+		sendClientView();
+	}
+
+	private synchronized void sendClientView() throws IOException
+	{
+		mClientViewSet = true;
+		mClientView.write(mClientViewSlots);
+		sendControlMessage(mClientViewSlots);
+	}
+
+	/**
+	 * Asks the server to send the channels of a time point queued together in
+	 * a single batch frame. The volumes of a batch are handed to the sink one
+	 * after the other once all are received. Servers that don't know about
+	 * batches keep sending one frame per volume.
+	 *
+	 * @param pBatchFrames
+	 *            true for batch frames
+	 * @throws IOException
+	 *             if the request can't be sent
+	 */
+	public void setBatchFrames(boolean pBatchFrames) throws IOException
+	{
+		mBatchFrames = pBatchFrames;
+		sendBatchFramesRequest();
+	}
+
+	public boolean isBatchFrames()
+	{
+		return mBatchFrames;
+	}
+
+	private void sendBatchFramesRequest() throws IOException
+	{
+		synchronized (mControlMessageSlots)
+		{
+			mControlMessageSlots.clear();
+			mControlMessageSlots.put(	ClearVolumeControlMessages.cRequestKey,
+										BatchFrames.cBatchRequest);
+			mControlMessageSlots.put(BatchFrames.cBatchKey)
+								.append(mBatchFrames ? 1 : 0);
+			sendControlMessage(mControlMessageSlots);
+		}
+	}
+
+	/**
+	 * Pings the server periodically to estimate the offset between its clock
+	 * and the local clock, see ClockSync. Once the server answered, the
+	 * metrics hold the one-way network latency of each channel, and latencies
+	 * are measured against the server's clock. Servers that don't know about
+	 * clock sync ignore pings.
+	 *
+	 * @param pPeriod
+	 *            ping period, 0 to stop pinging
+	 * @param pTimeUnit
+	 *            period unit
+	 */
+	public void setClockSyncPeriod(long pPeriod, TimeUnit pTimeUnit)
+	{
+		synchronized (mNetworkMetrics)
+		{
+			if (mClockSyncTimer != null)
+				mClockSyncTimer.cancel();
+			mClockSyncTimer = null;
+			if (pPeriod <= 0)
+				return;
+
+			final long lPeriodMillis = Math.max(1, pTimeUnit.toMillis(pPeriod));
+			mClockSyncTimer = new Timer(ClearVolumeTCPClient.class.getSimpleName() + "ClockSyncTimer",
+										true);
+			mClockSyncTimer.schedule(new TimerTask()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						ping();
+					}
+					catch (final IOException e)
+					{
+						// disconnected, the next ping goes to the next
+						// connection
+					}
+				}
+			}, 0, lPeriodMillis);
+		}
+	}
+
+	/**
+	 * Sends a clock sync ping, answered in the header of the next frame.
+	 *
+	 * @throws IOException
+	 *             if the ping can't be sent
+	 */
+	public void ping() throws IOException
+	{
+		synchronized (mControlMessageSlots)
+		{
+			mControlMessageSlots.clear();
+			mControlMessageSlots.put(	ClearVolumeControlMessages.cRequestKey,
+										ClockSync.cPingRequest);
+			mControlMessageSlots.put(ClockSync.cPingTimeKey)
+								.append(ClockSync.currentTimeNanos());
+			sendControlMessage(mControlMessageSlots);
+		}
+	}
+
+	synchronized void sendControlMessage(KeyValueSlots pKeyValueSlots) throws IOException
+	{
+		final SocketChannel lSocketChannel = mSocketChannel;
+		if (lSocketChannel == null)
+			return;
+		mControlMessageBuffer = ClearVolumeControlMessages.writeControlMessage(	lSocketChannel,
+																				pKeyValueSlots,
+																				mControlMessageBuffer);
+	}
+
 	@Override
 	public void close() throws IOException
+	{
+		if (lRunnable != null)
+			lRunnable.requestStop();
+		setClockSyncPeriod(0, TimeUnit.MILLISECONDS);
+
+		closeSocketChannel();
+		mSocketChannel = null;
+		if (mStripedFrameReceiver != null)
+			mStripedFrameReceiver.close();
+		setConnectionState(ConnectionState.Closed);
+	}
+
+	private void closeSocketChannel()
 	{
 		try
 		{
-			if (mSocketChannel != null && mSocketChannel.isConnected())
-				mSocketChannel.close();
+			final SocketChannel lSocketChannel = mSocketChannel;
+			if (lSocketChannel != null && lSocketChannel.isOpen())
+				lSocketChannel.close();
 		}
 		catch (final Throwable e)
 		{
 			e.printStackTrace();
 		}
-
-		mSocketChannel = null;
 	}
 
 	public boolean start()
 	{
-		lRunnable = new ClearVolumeTCPClientRunnable(	mSocketChannel,
-														mVolumeSink,
-														cMaxInUseVolumes);
+		if (mSerializedFrameSink != null)
+			lRunnable = new ClearVolumeTCPClientRunnable(	this,
+															mSerializedFrameSink,
+															cMaxInUseVolumes);
+		else
+			lRunnable = new ClearVolumeTCPClientRunnable(	this,
+															mVolumeSink,
+															cMaxInUseVolumes);
 		mRunnableThread = new Thread(	lRunnable,
 										ClearVolumeTCPClientRunnable.class.getSimpleName() + "Thread");
 		mRunnableThread.setDaemon(true);
@@ -70,4 +411,142 @@ public class ClearVolumeTCPClient implements AutoCloseable
 		return true;
 	}
 
+	/**
+	 * Asks servers supporting it to send volume data over several sockets in
+	 * parallel, servers that don't keep sending over a single stream. Must be
+	 * called before start().
+	 *
+	 * @param pNumberOfStripes
+	 *            number of stripe sockets, 1 for a single stream
+	 */
+	public void setNumberOfStripes(int pNumberOfStripes)
+	{
+		if (mStripedFrameReceiver != null)
+			mStripedFrameReceiver.close();
+		mStripedFrameReceiver = pNumberOfStripes > 1	? new StripedFrameReceiver(	this,
+																					pNumberOfStripes)
+														: null;
+	}
+
+	/**
+	 * @return number of stripes in use, 1 when on a single stream
+	 */
+	public int getNumberOfStripesInUse()
+	{
+		return mStripedFrameReceiver == null ? 1
+											: mStripedFrameReceiver.getNumberOfStripesInUse();
+	}
+
+	StripedFrameReceiver getStripedFrameReceiver()
+	{
+		return mStripedFrameReceiver;
+	}
+
+	/**
+	 * @return metrics of the volumes received: frames and bytes per channel,
+	 *         read and deserialization times, and latencies
+	 */
+	public NetworkMetrics getNetworkMetrics()
+	{
+		return mNetworkMetrics;
+	}
+
+	SocketChannel getSocketChannel()
+	{
+		return mSocketChannel;
+	}
+
+	void setConnectionState(ConnectionState pConnectionState)
+	{
+		if (mConnectionState == pConnectionState)
+			return;
+
+		final long lNow = System.nanoTime();
+		if (pConnectionState == ConnectionState.Disconnected)
+			mDisconnectedSinceNanos = lNow;
+		else if (pConnectionState == ConnectionState.Connected && mDisconnectedSinceNanos != 0)
+		{
+			mTotalDowntimeNanos += lNow - mDisconnectedSinceNanos;
+			mDisconnectedSinceNanos = 0;
+		}
+
+		mConnectionState = pConnectionState;
+		for (final ConnectionStateListener lConnectionStateListener : mConnectionStateListeners)
+			lConnectionStateListener.connectionStateChanged(this,
+															pConnectionState);
+	}
+
+	public ConnectionState getConnectionState()
+	{
+		return mConnectionState;
+	}
+
+	public void addConnectionStateListener(ConnectionStateListener pConnectionStateListener)
+	{
+		mConnectionStateListeners.add(pConnectionStateListener);
+	}
+
+	public void removeConnectionStateListener(ConnectionStateListener pConnectionStateListener)
+	{
+		mConnectionStateListeners.remove(pConnectionStateListener);
+	}
+
+	public boolean isAutoReconnect()
+	{
+		return mAutoReconnect;
+	}
+
+	public void setAutoReconnect(boolean pAutoReconnect)
+	{
+		mAutoReconnect = pAutoReconnect;
+	}
+
+	/**
+	 * Sets the delays between reconnection attempts, the delay starts at the
+	 * min delay and doubles after each failed attempt up to the max delay.
+	 *
+	 * @param pMinDelay
+	 *            first delay
+	 * @param pMaxDelay
+	 *            max delay
+	 * @param pTimeUnit
+	 *            delay unit
+	 */
+	public void setReconnectDelays(	long pMinDelay,
+									long pMaxDelay,
+									TimeUnit pTimeUnit)
+	{
+		mMinReconnectDelayMillis = Math.max(1, pTimeUnit.toMillis(pMinDelay));
+		mMaxReconnectDelayMillis = Math.max(mMinReconnectDelayMillis,
+											pTimeUnit.toMillis(pMaxDelay));
+	}
+
+	long getMinReconnectDelayMillis()
+	{
+		return mMinReconnectDelayMillis;
+	}
+
+	long getMaxReconnectDelayMillis()
+	{
+		return mMaxReconnectDelayMillis;
+	}
+
+	public long getNumberOfReconnections()
+	{
+		return mNumberOfReconnections;
+	}
+
+	/**
+	 * @return total time spent disconnected, including the current
+	 *         disconnection if any
+	 */
+	public long getTotalDowntime(TimeUnit pTimeUnit)
+	{
+		long lDowntimeNanos = mTotalDowntimeNanos;
+		final long lDisconnectedSinceNanos = mDisconnectedSinceNanos;
+		if (lDisconnectedSinceNanos != 0)
+			lDowntimeNanos += System.nanoTime() - lDisconnectedSinceNanos;
+		return pTimeUnit.convert(lDowntimeNanos, TimeUnit.NANOSECONDS);
+	}
+
 }
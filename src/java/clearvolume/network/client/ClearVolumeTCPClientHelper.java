@@ -18,8 +18,10 @@ import com.apple.eawt.Application;
 import clearvolume.renderer.listeners.VolumeCaptureListener;
 import clearvolume.volume.sink.AsynchronousVolumeSinkAdapter;
 import clearvolume.volume.sink.NullVolumeSink;
+import clearvolume.volume.sink.assembly.TimePointAssemblySink;
 import clearvolume.volume.sink.filter.ChannelFilterSink;
 import clearvolume.volume.sink.filter.gui.ChannelFilterSinkJFrame;
+import clearvolume.volume.sink.jitter.JitterBufferSink;
 import clearvolume.volume.sink.relay.RelaySinkInterface;
 import clearvolume.volume.sink.renderer.ClearVolumeRendererSink;
 import clearvolume.volume.sink.timeshift.TimeShiftingSink;
@@ -34,6 +36,29 @@ public abstract class ClearVolumeTCPClientHelper
 	private static final long cMaxMillisecondsToWaitForCopy = 10;
 	private static final long cSoftHoryzon = 50;
 	private static final long cHardHoryzon = 100;
+	private static final long cMaxPlayoutDelayMillis = 2000;
+	private static final long cClockSyncPeriodMillis = 1000;
+	private static final long cAssemblyTimeOutMillis = 100;
+
+	private volatile long mPlayoutDelayMillis = 0;
+
+	/**
+	 * Sets the target delay of the playout buffer that smooths the cadence of
+	 * volumes arriving in bursts, applies to clients started from now on.
+	 *
+	 * @param pPlayoutDelayMillis
+	 *            target delay in milliseconds, 0 to display volumes as they
+	 *            arrive
+	 */
+	public void setPlayoutDelay(long pPlayoutDelayMillis)
+	{
+		mPlayoutDelayMillis = Math.max(0, pPlayoutDelayMillis);
+	}
+
+	public long getPlayoutDelay()
+	{
+		return mPlayoutDelayMillis;
+	}
 
 	public void startClient(final VolumeCaptureListener pVolumeCaptureListener,
 							final String pServerAddress,
@@ -69,7 +94,17 @@ public abstract class ClearVolumeTCPClientHelper
 				lClearVolumeRendererSink.getClearVolumeRenderer()
 										.addVolumeCaptureListener(pVolumeCaptureListener);
 
-				RelaySinkInterface lSinkAfterAsynchronousVolumeSinkAdapter = lClearVolumeRendererSink;
+				final DisplayLatencySink lDisplayLatencySink = new DisplayLatencySink();
+				lDisplayLatencySink.setRelaySink(lClearVolumeRendererSink);
+
+				// the channels of a time point are displayed together:
+				final TimePointAssemblySink lTimePointAssemblySink = new TimePointAssemblySink(	cMaxQueueLength,
+																								cAssemblyTimeOutMillis,
+																								TimeUnit.MILLISECONDS);
+				lTimePointAssemblySink.setRelaySink(lDisplayLatencySink);
+				lTimePointAssemblySink.start();
+
+				RelaySinkInterface lSinkAfterAsynchronousVolumeSinkAdapter = lTimePointAssemblySink;
 
 				ChannelFilterSink lChannelFilterSink = null;
 				ChannelFilterSinkJFrame lChannelFilterSinkJFrame = null;
@@ -80,7 +115,7 @@ public abstract class ClearVolumeTCPClientHelper
 					lChannelFilterSinkJFrame = new ChannelFilterSinkJFrame(lChannelFilterSink);
 					lChannelFilterSinkJFrame.setVisible(true);
 
-					lChannelFilterSink.setRelaySink(lClearVolumeRendererSink);
+					lChannelFilterSink.setRelaySink(lTimePointAssemblySink);
 
 					lClearVolumeRendererSink.setRelaySink(new NullVolumeSink());
 
@@ -104,12 +139,31 @@ public abstract class ClearVolumeTCPClientHelper
 					lSinkAfterAsynchronousVolumeSinkAdapter = lTimeShiftingSink;
 				}
 
+				JitterBufferSink lJitterBufferSink = null;
+				if (mPlayoutDelayMillis > 0)
+				{
+					lJitterBufferSink = new JitterBufferSink(	cMaxQueueLength,
+																mPlayoutDelayMillis,
+																cMaxPlayoutDelayMillis,
+																TimeUnit.MILLISECONDS);
+					lJitterBufferSink.setRelaySink(lSinkAfterAsynchronousVolumeSinkAdapter);
+					lJitterBufferSink.start();
+
+					lSinkAfterAsynchronousVolumeSinkAdapter = lJitterBufferSink;
+				}
+
+				// without time shifting only the latest volume of each channel
+				// needs to be displayed:
 				final AsynchronousVolumeSinkAdapter lAsynchronousVolumeSinkAdapter = new AsynchronousVolumeSinkAdapter(	lSinkAfterAsynchronousVolumeSinkAdapter,
 																														cMaxQueueLength,
 																														cMaxMillisecondsToWait,
-																														TimeUnit.MILLISECONDS);
+																														TimeUnit.MILLISECONDS,
+																														!pTimeShift);
 
 				final ClearVolumeTCPClient lClearVolumeTCPClient = new ClearVolumeTCPClient(lAsynchronousVolumeSinkAdapter);
+				lDisplayLatencySink.setNetworkMetrics(lClearVolumeTCPClient.getNetworkMetrics());
+				lClearVolumeTCPClient.setClockSyncPeriod(	cClockSyncPeriodMillis,
+															TimeUnit.MILLISECONDS);
 
 				final SocketAddress lClientSocketAddress = new InetSocketAddress(	pServerAddress,
 																					pPortNumber);
@@ -140,6 +194,8 @@ public abstract class ClearVolumeTCPClientHelper
 				}
 
 				lAsynchronousVolumeSinkAdapter.stop();
+				if (lJitterBufferSink != null)
+					lJitterBufferSink.close();
 				if (lTimeShiftingSink != null)
 				{
 					lTimeShiftingSinkJFrame.setVisible(false);
@@ -152,6 +208,7 @@ public abstract class ClearVolumeTCPClientHelper
 					lChannelFilterSinkJFrame.dispose();
 					lChannelFilterSink.close();
 				}
+				lTimePointAssemblySink.close();
 
 				lClearVolumeTCPClient.stop();
 				lClearVolumeTCPClient.close();
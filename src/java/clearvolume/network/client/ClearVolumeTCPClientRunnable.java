@@ -1,10 +1,16 @@
 package clearvolume.network.client;
 
+import java.io.IOException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 import clearvolume.network.serialization.ClearVolumeSerialization;
+import clearvolume.network.serialization.SerializedFrame;
+import clearvolume.network.serialization.SerializedFramePool;
+import clearvolume.network.serialization.SerializedFrameSinkInterface;
 import clearvolume.volume.Volume;
 import clearvolume.volume.VolumeManager;
 import clearvolume.volume.sink.VolumeSinkInterface;
@@ -13,21 +19,37 @@ public class ClearVolumeTCPClientRunnable implements Runnable
 {
 	private static final int cMaxpreAllocatedVolumes = 10;
 
-	private final SocketChannel mSocketChannel;
+	private final ClearVolumeTCPClient mClearVolumeTCPClient;
 	private final VolumeSinkInterface mVolumeSink;
+	private final SerializedFrameSinkInterface mSerializedFrameSink;
+	private final SerializedFramePool mSerializedFramePool;
 
 	private volatile boolean mStopSignal = false;
 	private volatile boolean mStoppedSignal = false;
 
 	private final VolumeManager mVolumeManager;
+	private final ArrayList<Volume> mReceivedVolumes = new ArrayList<>();
 
-	public ClearVolumeTCPClientRunnable(SocketChannel pSocketChannel,
+	public ClearVolumeTCPClientRunnable(ClearVolumeTCPClient pClearVolumeTCPClient,
 										VolumeSinkInterface pVolumeSink,
 										int pMaxInUseVolumes)
 	{
-		mSocketChannel = pSocketChannel;
+		mClearVolumeTCPClient = pClearVolumeTCPClient;
 		mVolumeSink = pVolumeSink;
 		mVolumeManager = mVolumeSink.getManager();
+		mSerializedFrameSink = null;
+		mSerializedFramePool = null;
+	}
+
+	public ClearVolumeTCPClientRunnable(ClearVolumeTCPClient pClearVolumeTCPClient,
+										SerializedFrameSinkInterface pSerializedFrameSink,
+										int pMaxInUseFrames)
+	{
+		mClearVolumeTCPClient = pClearVolumeTCPClient;
+		mVolumeSink = null;
+		mVolumeManager = null;
+		mSerializedFrameSink = pSerializedFrameSink;
+		mSerializedFramePool = new SerializedFramePool(pMaxInUseFrames);
 	}
 
 	public void requestStop()
@@ -40,27 +62,29 @@ public class ClearVolumeTCPClientRunnable implements Runnable
 	{
 		try
 		{
-
 			while (!mStopSignal)
 			{
 				try
 				{
-					Volume lVolume = mVolumeManager.requestAndWaitForNextAvailableVolume(	1,
-																							TimeUnit.MILLISECONDS);
-
-					lVolume = ClearVolumeSerialization.deserialize(	mSocketChannel,
-																	lVolume);
-
-					lVolume.setManager(mVolumeManager);
-
-					mVolumeSink.sendVolume(lVolume);
+					if (mSerializedFrameSink != null)
+						receiveFrames(mClearVolumeTCPClient.getSocketChannel());
+					else
+						receiveVolumes(mClearVolumeTCPClient.getSocketChannel());
 				}
-				catch (final OutOfMemoryError e)
+				catch (final IOException e)
 				{
-					System.gc();
-					e.printStackTrace();
+					if (mStopSignal)
+						break;
+					handleError(e);
 				}
 
+				if (mStopSignal)
+					break;
+
+				mClearVolumeTCPClient.setConnectionState(ConnectionState.Disconnected);
+				if (!mClearVolumeTCPClient.isAutoReconnect())
+					break;
+				reconnectWithBackoff();
 			}
 
 		}
@@ -74,6 +98,125 @@ public class ClearVolumeTCPClientRunnable implements Runnable
 		}
 	}
 
+	private void receiveVolumes(SocketChannel pSocketChannel) throws IOException
+	{
+		if (pSocketChannel == null)
+			throw new ClosedChannelException();
+
+		while (!mStopSignal)
+		{
+			Volume lVolume = null;
+			mReceivedVolumes.clear();
+			try
+			{
+				lVolume = mVolumeManager.requestAndWaitForNextAvailableVolume(	1,
+																				TimeUnit.MILLISECONDS);
+
+				// a batch frame holds several volumes, all received before
+				// any is handed to the sink:
+				ClearVolumeSerialization.deserialize(	pSocketChannel,
+														lVolume,
+														mVolumeManager,
+														mReceivedVolumes,
+														mClearVolumeTCPClient.getStripedFrameReceiver(),
+														mClearVolumeTCPClient.getNetworkMetrics());
+
+				for (final Volume lReceivedVolume : mReceivedVolumes)
+				{
+					mClearVolumeTCPClient.getNetworkMetrics()
+											.recordLatency(lReceivedVolume.getTimeInSeconds());
+					lReceivedVolume.setManager(mVolumeManager);
+				}
+
+				for (final Volume lReceivedVolume : mReceivedVolumes)
+					mClearVolumeTCPClient.getVolumeSink(lReceivedVolume.getStreamID())
+											.sendVolume(lReceivedVolume);
+			}
+			catch (final OutOfMemoryError e)
+			{
+				System.gc();
+				e.printStackTrace();
+			}
+			catch (final IOException e)
+			{
+				if (mReceivedVolumes.isEmpty() && lVolume != null)
+					mVolumeManager.makeAvailable(lVolume);
+				for (final Volume lReceivedVolume : mReceivedVolumes)
+					mVolumeManager.makeAvailable(lReceivedVolume);
+				mReceivedVolumes.clear();
+				throw e;
+			}
+
+		}
+	}
+
+	private void receiveFrames(SocketChannel pSocketChannel) throws IOException
+	{
+		if (pSocketChannel == null)
+			throw new ClosedChannelException();
+
+		while (!mStopSignal)
+		{
+			final SerializedFrame lSerializedFrame = ClearVolumeSerialization.readFrame(pSocketChannel,
+																						mSerializedFramePool,
+																						mClearVolumeTCPClient.getStripedFrameReceiver(),
+																						mClearVolumeTCPClient.getNetworkMetrics());
+			try
+			{
+				mClearVolumeTCPClient.getNetworkMetrics()
+										.recordLatency(lSerializedFrame.getTimeInSeconds());
+				mSerializedFrameSink.sendSerializedFrame(lSerializedFrame);
+			}
+			finally
+			{
+				lSerializedFrame.release();
+			}
+		}
+	}
+
+	private void reconnectWithBackoff()
+	{
+		long lDelayMillis = mClearVolumeTCPClient.getMinReconnectDelayMillis();
+		while (!mStopSignal)
+		{
+			mClearVolumeTCPClient.setConnectionState(ConnectionState.Reconnecting);
+
+			// jitter keeps clients of a restarted server from reconnecting in
+			// lockstep:
+			final long lJitteredDelayMillis = lDelayMillis / 2
+												+ ThreadLocalRandom.current()
+																	.nextLong(lDelayMillis / 2 + 1);
+			sleep(lJitteredDelayMillis);
+			if (mStopSignal)
+				return;
+
+			try
+			{
+				if (mClearVolumeTCPClient.reconnect())
+					return;
+			}
+			catch (final IOException e)
+			{
+				// server not back yet
+			}
+
+			lDelayMillis = Math.min(2 * lDelayMillis,
+									mClearVolumeTCPClient.getMaxReconnectDelayMillis());
+		}
+	}
+
+	private void sleep(long pMillis)
+	{
+		try
+		{
+			Thread.sleep(pMillis);
+		}
+		catch (final InterruptedException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
 	private void handleError(Throwable pE)
 	{
 		if (pE instanceof java.nio.channels.AsynchronousCloseException)
@@ -82,6 +225,9 @@ public class ClearVolumeTCPClientRunnable implements Runnable
 		if (pE instanceof ClosedChannelException)
 			return;
 
+		if (pE instanceof java.io.EOFException)
+			return;
+
 		pE.printStackTrace();
 	}
 
@@ -0,0 +1,9 @@
+package clearvolume.network.client;
+
+/**
+ * States of a ClearVolumeTCPClient connection.
+ */
+public enum ConnectionState
+{
+	Connected, Disconnected, Reconnecting, Closed
+}
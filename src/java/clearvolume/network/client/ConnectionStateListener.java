@@ -0,0 +1,11 @@
+package clearvolume.network.client;
+
+/**
+ * Listener notified when the connection of a ClearVolumeTCPClient changes
+ * state, called from the client's thread.
+ */
+public interface ConnectionStateListener
+{
+	void connectionStateChanged(ClearVolumeTCPClient pClearVolumeTCPClient,
+								ConnectionState pConnectionState);
+}
@@ -0,0 +1,73 @@
+package clearvolume.network.client;
+
+import java.util.List;
+
+import clearvolume.network.metrics.NetworkMetrics;
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+import clearvolume.volume.sink.VolumeGroupSinkInterface;
+import clearvolume.volume.sink.relay.RelaySinkAdapter;
+import clearvolume.volume.sink.relay.RelaySinkInterface;
+
+/**
+ * Records the acquisition to display latency of the volumes it relays, placed
+ * just before the sink that displays them. With the client's metrics the
+ * latency is measured against the server's clock once synchronized.
+ */
+public class DisplayLatencySink extends RelaySinkAdapter	implements
+															RelaySinkInterface,
+															VolumeGroupSinkInterface
+{
+	private volatile NetworkMetrics mNetworkMetrics;
+
+	public DisplayLatencySink()
+	{
+		super();
+	}
+
+	public DisplayLatencySink(NetworkMetrics pNetworkMetrics)
+	{
+		super();
+		mNetworkMetrics = pNetworkMetrics;
+	}
+
+	public void setNetworkMetrics(NetworkMetrics pNetworkMetrics)
+	{
+		mNetworkMetrics = pNetworkMetrics;
+	}
+
+	@Override
+	public void sendVolume(Volume pVolume)
+	{
+		final NetworkMetrics lNetworkMetrics = mNetworkMetrics;
+		if (lNetworkMetrics != null)
+			lNetworkMetrics.recordDisplayLatency(	pVolume.getChannelID(),
+													pVolume.getTimeInSeconds());
+
+		if (getRelaySink() != null)
+			getRelaySink().sendVolume(pVolume);
+		else
+			pVolume.makeAvailableToManager();
+	}
+
+	@Override
+	public void sendVolumes(List<Volume> pVolumes)
+	{
+		final NetworkMetrics lNetworkMetrics = mNetworkMetrics;
+		if (lNetworkMetrics != null)
+			for (final Volume lVolume : pVolumes)
+				lNetworkMetrics.recordDisplayLatency(	lVolume.getChannelID(),
+														lVolume.getTimeInSeconds());
+
+		VolumeGroupSinkInterface.sendVolumes(getRelaySink(), pVolumes);
+	}
+
+	@Override
+	public VolumeManager getManager()
+	{
+		if (getRelaySink() != null)
+			return getRelaySink().getManager();
+		return null;
+	}
+
+}
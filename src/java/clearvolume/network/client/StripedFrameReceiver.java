@@ -0,0 +1,224 @@
+package clearvolume.network.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+
+import clearvolume.network.serialization.ClearVolumeControlMessages;
+import clearvolume.network.serialization.FrameDataReader;
+import clearvolume.network.serialization.StripedTransport;
+import clearvolume.network.serialization.keyvalue.KeyValueSlots;
+
+/**
+ * Client side of the striped transport: negotiates stripes with servers that
+ * advertise a stripe port, and reads the data chunks of striped frames in
+ * parallel, each chunk straight into the volume buffer at its offset.
+ */
+public class StripedFrameReceiver implements FrameDataReader, AutoCloseable
+{
+	private final ClearVolumeTCPClient mClearVolumeTCPClient;
+	private final int mNumberOfStripes;
+
+	private SocketChannel[] mStripeSocketChannels;
+	private ExecutorService mExecutorService;
+	private Future<?>[] mFutures;
+	private boolean mNegotiationAttempted;
+
+	private final KeyValueSlots mControlMessageSlots = new KeyValueSlots();
+	private ByteBuffer mControlMessageBuffer;
+
+	public StripedFrameReceiver(ClearVolumeTCPClient pClearVolumeTCPClient,
+								int pNumberOfStripes)
+	{
+		super();
+		mClearVolumeTCPClient = pClearVolumeTCPClient;
+		mNumberOfStripes = Math.min(pNumberOfStripes,
+									StripedTransport.cMaxNumberOfStripes);
+	}
+
+	@Override
+	public boolean readFrameData(	KeyValueSlots pHeaderSlots,
+									ByteBuffer pDataBuffer) throws IOException
+	{
+		final int lNumberOfStripes = pHeaderSlots.getInt(	StripedTransport.cStripesKey,
+															0);
+		if (lNumberOfStripes > 0)
+		{
+			if (mStripeSocketChannels == null || mStripeSocketChannels.length != lNumberOfStripes)
+				throw new IOException("Striped frame received without matching stripes");
+			readStripes(pDataBuffer);
+			return true;
+		}
+
+		final int lStripePort = pHeaderSlots.getInt(StripedTransport.cStripePortKey,
+													-1);
+		if (lStripePort > 0 && !mNegotiationAttempted)
+		{
+			mNegotiationAttempted = true;
+			try
+			{
+				negotiate(lStripePort);
+			}
+			catch (final IOException e)
+			{
+				// the server stays on a single stream for this client
+				closeStripes();
+			}
+		}
+		return false;
+	}
+
+	private void negotiate(int pStripePort) throws IOException
+	{
+		final SocketChannel lMainSocketChannel = mClearVolumeTCPClient.getSocketChannel();
+		final InetSocketAddress lStripeAddress = new InetSocketAddress(	((InetSocketAddress) lMainSocketChannel.getRemoteAddress()).getAddress(),
+																		pStripePort);
+		final long lSessionID = ThreadLocalRandom.current().nextLong();
+
+		mStripeSocketChannels = new SocketChannel[mNumberOfStripes];
+		for (int i = 0; i < mNumberOfStripes; i++)
+		{
+			final SocketChannel lSocketChannel = SocketChannel.open();
+			mStripeSocketChannels[i] = lSocketChannel;
+			lSocketChannel.configureBlocking(true);
+			lSocketChannel.socket()
+							.setReceiveBufferSize(ClearVolumeTCPClient.cSocketBufferLength);
+			lSocketChannel.connect(lStripeAddress);
+
+			mControlMessageSlots.clear();
+			mControlMessageSlots.put(	ClearVolumeControlMessages.cRequestKey,
+										StripedTransport.cStripeRequest);
+			mControlMessageSlots.put(StripedTransport.cSessionKey).append(lSessionID);
+			mControlMessageSlots.put(StripedTransport.cStripeKey).append(i);
+			mControlMessageSlots.put(StripedTransport.cStripesKey)
+								.append(mNumberOfStripes);
+			mControlMessageBuffer = ClearVolumeControlMessages.writeControlMessage(	lSocketChannel,
+																					mControlMessageSlots,
+																					mControlMessageBuffer);
+		}
+
+		mFutures = new Future<?>[mNumberOfStripes];
+		mExecutorService = Executors.newFixedThreadPool(mNumberOfStripes,
+														new ThreadFactory()
+														{
+															@Override
+															public Thread newThread(Runnable pRunnable)
+															{
+																final Thread lThread = new Thread(	pRunnable,
+																									StripedFrameReceiver.class.getSimpleName() + "Thread");
+																lThread.setDaemon(true);
+																return lThread;
+															}
+														});
+
+		mControlMessageSlots.clear();
+		mControlMessageSlots.put(	ClearVolumeControlMessages.cRequestKey,
+									StripedTransport.cStripesRequest);
+		mControlMessageSlots.put(StripedTransport.cSessionKey).append(lSessionID);
+		mControlMessageSlots.put(StripedTransport.cStripesKey)
+							.append(mNumberOfStripes);
+		mClearVolumeTCPClient.sendControlMessage(mControlMessageSlots);
+	}
+
+	private void readStripes(ByteBuffer pDataBuffer) throws IOException
+	{
+		final int lNumberOfStripes = mStripeSocketChannels.length;
+		final int lDataLength = pDataBuffer.remaining();
+
+		for (int i = 0; i < lNumberOfStripes; i++)
+		{
+			final SocketChannel lSocketChannel = mStripeSocketChannels[i];
+			final ByteBuffer lChunk = pDataBuffer.duplicate();
+			final int lChunkOffset = StripedTransport.getChunkOffset(	lDataLength,
+																		lNumberOfStripes,
+																		i);
+			lChunk.limit(lChunkOffset + StripedTransport.getChunkLength(	lDataLength,
+																			lNumberOfStripes,
+																			i));
+			lChunk.position(lChunkOffset);
+
+			mFutures[i] = mExecutorService.submit(new Callable<Void>()
+			{
+				@Override
+				public Void call() throws IOException
+				{
+					while (lChunk.hasRemaining())
+						if (lSocketChannel.read(lChunk) < 0)
+							throw new java.io.EOFException("Stripe closed by peer");
+					return null;
+				}
+			});
+		}
+
+		IOException lException = null;
+		for (int i = 0; i < lNumberOfStripes; i++)
+		{
+			try
+			{
+				mFutures[i].get();
+			}
+			catch (final ExecutionException e)
+			{
+				if (lException == null)
+					lException = e.getCause() instanceof IOException ? (IOException) e.getCause()
+																	: new IOException(e.getCause());
+			}
+			catch (final InterruptedException e)
+			{
+				if (lException == null)
+					lException = new IOException(e);
+			}
+		}
+		if (lException != null)
+			throw lException;
+	}
+
+	/**
+	 * @return number of stripes in use, 1 when on a single stream
+	 */
+	public int getNumberOfStripesInUse()
+	{
+		final SocketChannel[] lStripeSocketChannels = mStripeSocketChannels;
+		return lStripeSocketChannels == null ? 1
+											: lStripeSocketChannels.length;
+	}
+
+	private void closeStripes()
+	{
+		if (mExecutorService != null)
+			mExecutorService.shutdownNow();
+		mExecutorService = null;
+
+		if (mStripeSocketChannels != null)
+			for (final SocketChannel lSocketChannel : mStripeSocketChannels)
+				if (lSocketChannel != null)
+					try
+					{
+						lSocketChannel.close();
+					}
+					catch (final IOException e)
+					{
+						e.printStackTrace();
+					}
+		mStripeSocketChannels = null;
+	}
+
+	/**
+	 * Drops the stripes, the next server connection negotiates again.
+	 */
+	@Override
+	public void close()
+	{
+		closeStripes();
+		mNegotiationAttempted = false;
+	}
+
+}
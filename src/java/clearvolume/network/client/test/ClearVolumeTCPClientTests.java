@@ -0,0 +1,135 @@
+package clearvolume.network.client.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import clearvolume.network.client.ClearVolumeTCPClient;
+import clearvolume.network.client.ConnectionState;
+import clearvolume.network.client.ConnectionStateListener;
+import clearvolume.network.server.ClearVolumeTCPServerSink;
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+import clearvolume.volume.sink.NullVolumeSink;
+import clearvolume.volume.sink.VolumeSinkAdapter;
+import coremem.enums.NativeTypeEnum;
+
+public class ClearVolumeTCPClientTests
+{
+
+	@Test
+	public void testReconnectAfterServerRestart()	throws IOException,
+													InterruptedException
+	{
+		final int lPort = 9800 + (int) (Math.random() * 500);
+		final VolumeManager lVolumeManager = new VolumeManager(4);
+
+		final AtomicInteger lLastTimeIndex = new AtomicInteger(-1);
+		final ClearVolumeTCPClient lClearVolumeTCPClient = new ClearVolumeTCPClient(new VolumeSinkAdapter(4)
+		{
+			@Override
+			public void sendVolume(Volume pVolume)
+			{
+				lLastTimeIndex.set((int) pVolume.getTimeIndex());
+				pVolume.makeAvailableToManager();
+			}
+		});
+		// room to send a volume to the restarted server before reconnecting:
+		lClearVolumeTCPClient.setReconnectDelays(	300,
+													1000,
+													TimeUnit.MILLISECONDS);
+		final List<ConnectionState> lStates = new CopyOnWriteArrayList<>();
+		lClearVolumeTCPClient.addConnectionStateListener(new ConnectionStateListener()
+		{
+			@Override
+			public void connectionStateChanged(	ClearVolumeTCPClient pClearVolumeTCPClient,
+												ConnectionState pConnectionState)
+			{
+				lStates.add(pConnectionState);
+			}
+		});
+
+		ClearVolumeTCPServerSink lServer = startServer(lPort, lVolumeManager);
+		assertTrue(lClearVolumeTCPClient.open(new InetSocketAddress(	"localhost",
+																		lPort)));
+		lClearVolumeTCPClient.start();
+		waitForClients(lServer);
+		sendVolume(lServer, lVolumeManager, 1);
+		waitForTimeIndex(lLastTimeIndex, 1);
+
+		lServer.stop();
+		lServer.close();
+
+		// a volume sent before the client reconnects is kept as snapshot:
+		lServer = startServer(lPort, lVolumeManager);
+		sendVolume(lServer, lVolumeManager, 2);
+		for (int i = 0; i < 200 && lServer.getSnapshotCache()
+											.getNumberOfChannels() == 0; i++)
+			Thread.sleep(1);
+		assertEquals(1, lServer.getSnapshotCache().getNumberOfChannels());
+		assertEquals(0, lServer.getNumberOfConnections());
+		assertEquals(1, lLastTimeIndex.get());
+
+		// and resumes the client once reconnected:
+		waitForClients(lServer);
+		waitForTimeIndex(lLastTimeIndex, 2);
+
+		assertEquals(2, lLastTimeIndex.get());
+		assertEquals(1, lClearVolumeTCPClient.getNumberOfReconnections());
+		assertEquals(ConnectionState.Connected,
+						lClearVolumeTCPClient.getConnectionState());
+		assertTrue(lStates.contains(ConnectionState.Disconnected));
+		assertTrue(lClearVolumeTCPClient.getTotalDowntime(TimeUnit.NANOSECONDS) > 0);
+
+		lClearVolumeTCPClient.stop();
+		lClearVolumeTCPClient.close();
+		lServer.stop();
+		lServer.close();
+	}
+
+	private static ClearVolumeTCPServerSink startServer(int pPort,
+														VolumeManager pVolumeManager) throws IOException
+	{
+		final ClearVolumeTCPServerSink lServer = new ClearVolumeTCPServerSink(4);
+		lServer.setRelaySink(new NullVolumeSink(pVolumeManager));
+		assertTrue(lServer.open(new InetSocketAddress(pPort)));
+		assertTrue(lServer.start());
+		return lServer;
+	}
+
+	private static void sendVolume(	ClearVolumeTCPServerSink pServer,
+									VolumeManager pVolumeManager,
+									long pTimeIndex)
+	{
+		final Volume lVolume = pVolumeManager.requestAndWaitForVolume(	1,
+																		TimeUnit.MILLISECONDS,
+																		NativeTypeEnum.UnsignedByte,
+																		1,
+																		16,
+																		16,
+																		16);
+		lVolume.setTimeIndex(pTimeIndex);
+		pServer.sendVolume(lVolume);
+	}
+
+	private static void waitForClients(ClearVolumeTCPServerSink pServer) throws InterruptedException
+	{
+		for (int i = 0; i < 500 && pServer.getNumberOfConnections() == 0; i++)
+			Thread.sleep(10);
+	}
+
+	private static void waitForTimeIndex(	AtomicInteger pLastTimeIndex,
+											int pTimeIndex) throws InterruptedException
+	{
+		for (int i = 0; i < 500 && pLastTimeIndex.get() != pTimeIndex; i++)
+			Thread.sleep(10);
+	}
+}
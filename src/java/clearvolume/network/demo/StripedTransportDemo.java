@@ -0,0 +1,109 @@
+package clearvolume.network.demo;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import clearvolume.network.client.ClearVolumeTCPClient;
+import clearvolume.network.server.ClearVolumeTCPServerSink;
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+import clearvolume.volume.sink.NullVolumeSink;
+import clearvolume.volume.sink.VolumeSinkAdapter;
+import coremem.enums.NativeTypeEnum;
+
+/**
+ * Loopback benchmark of the striped transport, prints the throughput reached
+ * for different numbers of stripes.
+ */
+public class StripedTransportDemo
+{
+	private static final int cWidth = 512;
+	private static final int cHeight = 512;
+	private static final int cDepth = 64;
+	private static final int cNumberOfVolumes = 100;
+
+	@Test
+	public void benchmarkStripes() throws IOException, InterruptedException
+	{
+		for (final int lNumberOfStripes : new int[]
+		{ 1, 2, 4, 8 })
+		{
+			measure(lNumberOfStripes);
+		}
+	}
+
+	private void measure(int pNumberOfStripes)	throws IOException,
+													InterruptedException
+	{
+		final int lPort = 9500 + pNumberOfStripes;
+
+		final VolumeManager lVolumeManager = new VolumeManager(4);
+		final ClearVolumeTCPServerSink lClearVolumeTCPServerSink = new ClearVolumeTCPServerSink(4);
+		lClearVolumeTCPServerSink.setRelaySink(new NullVolumeSink(lVolumeManager));
+		assertTrue(lClearVolumeTCPServerSink.open(new InetSocketAddress(lPort)));
+		assertTrue(lClearVolumeTCPServerSink.openStripes(	new InetSocketAddress(0),
+															pNumberOfStripes));
+		assertTrue(lClearVolumeTCPServerSink.start());
+
+		final AtomicLong lReceivedBytes = new AtomicLong();
+		final AtomicLong lReceivedVolumes = new AtomicLong();
+		final ClearVolumeTCPClient lClearVolumeTCPClient = new ClearVolumeTCPClient(new VolumeSinkAdapter(4)
+		{
+			@Override
+			public void sendVolume(Volume pVolume)
+			{
+				lReceivedBytes.addAndGet(pVolume.getDataSizeInBytes());
+				lReceivedVolumes.incrementAndGet();
+				pVolume.makeAvailableToManager();
+			}
+		});
+		lClearVolumeTCPClient.setNumberOfStripes(pNumberOfStripes);
+		assertTrue(lClearVolumeTCPClient.open(new InetSocketAddress(	"localhost",
+																		lPort)));
+		lClearVolumeTCPClient.start();
+
+		// warm up, and lets the stripes get negotiated:
+		while (lReceivedVolumes.get() < 2)
+			sendVolume(lClearVolumeTCPServerSink, lVolumeManager);
+		Thread.sleep(100);
+
+		final long lStartBytes = lReceivedBytes.get();
+		final long lStartVolumes = lReceivedVolumes.get();
+		final long lStart = System.nanoTime();
+		while (lReceivedVolumes.get() - lStartVolumes < cNumberOfVolumes)
+			sendVolume(lClearVolumeTCPServerSink, lVolumeManager);
+		final long lStop = System.nanoTime();
+
+		final double lGigaBytesPerSecond = (lReceivedBytes.get() - lStartBytes) / ((lStop - lStart) * 1e-9)
+											/ 1e9;
+
+		System.out.format(	"stripes requested: %d \t in use: %d \t throughput: %.2f GB/s \n",
+							pNumberOfStripes,
+							lClearVolumeTCPClient.getNumberOfStripesInUse(),
+							lGigaBytesPerSecond);
+
+		lClearVolumeTCPClient.stop();
+		lClearVolumeTCPClient.close();
+		lClearVolumeTCPServerSink.stop();
+		lClearVolumeTCPServerSink.close();
+	}
+
+	private void sendVolume(ClearVolumeTCPServerSink pClearVolumeTCPServerSink,
+							VolumeManager pVolumeManager)
+	{
+		final Volume lVolume = pVolumeManager.requestAndWaitForVolume(	10,
+																		TimeUnit.MILLISECONDS,
+																		NativeTypeEnum.UnsignedShort,
+																		1,
+																		cWidth,
+																		cHeight,
+																		cDepth);
+		pClearVolumeTCPServerSink.sendVolume(lVolume);
+	}
+}
@@ -0,0 +1,72 @@
+package clearvolume.network.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import clearvolume.utils.LatencyHistogram;
+
+/**
+ * Frame and byte counters, and latencies, of one channel.
+ */
+public class ChannelMetrics
+{
+	private final AtomicLong mNumberOfFrames = new AtomicLong();
+	private final AtomicLong mNumberOfBytes = new AtomicLong();
+	private final LatencyHistogram mNetworkLatency;
+	private final LatencyHistogram mDisplayLatency;
+
+	ChannelMetrics()
+	{
+		this(new LatencyHistogram(), new LatencyHistogram());
+	}
+
+	private ChannelMetrics(	LatencyHistogram pNetworkLatency,
+							LatencyHistogram pDisplayLatency)
+	{
+		super();
+		mNetworkLatency = pNetworkLatency;
+		mDisplayLatency = pDisplayLatency;
+	}
+
+	void recordFrame(long pNumberOfBytes)
+	{
+		mNumberOfFrames.incrementAndGet();
+		mNumberOfBytes.addAndGet(pNumberOfBytes);
+	}
+
+	public long getNumberOfFrames()
+	{
+		return mNumberOfFrames.get();
+	}
+
+	public long getNumberOfBytes()
+	{
+		return mNumberOfBytes.get();
+	}
+
+	/**
+	 * @return time from the server starting to send a frame to the client
+	 *         having received it
+	 */
+	public LatencyHistogram getNetworkLatency()
+	{
+		return mNetworkLatency;
+	}
+
+	/**
+	 * @return time from acquisition to display
+	 */
+	public LatencyHistogram getDisplayLatency()
+	{
+		return mDisplayLatency;
+	}
+
+	ChannelMetrics copy()
+	{
+		final ChannelMetrics lCopy = new ChannelMetrics(mNetworkLatency.copy(),
+														mDisplayLatency.copy());
+		lCopy.mNumberOfFrames.set(mNumberOfFrames.get());
+		lCopy.mNumberOfBytes.set(mNumberOfBytes.get());
+		return lCopy;
+	}
+
+}
@@ -0,0 +1,123 @@
+package clearvolume.network.metrics;
+
+/**
+ * Estimates the offset between the clock of a server and the local clock from
+ * ping/pong exchanges, as NTP does. The client sends the control message
+ * {request:ping, pingt0:t0}, the server notes when it received it (t1) and
+ * adds the keys 'pingt0' and 'pingt1' to the header of the next frame it
+ * sends, along with 'sendtime' (t2), the time at which it starts writing the
+ * frame. The client notes when the header arrives (t3). Once a client has
+ * pinged, all frames sent to it carry 'sendtime', which gives the one-way
+ * network latency of each frame. Clients and servers that don't know about
+ * clock sync simply never see or send these keys.
+ *
+ * Times are in nanoseconds of the wall clock, see currentTimeNanos(). Of the
+ * last exchanges, the one with the shortest round trip gives the offset: it is
+ * the least disturbed by queuing on either side.
+ */
+public class ClockSync
+{
+	public static final String cPingRequest = "ping";
+	public static final String cPingTimeKey = "pingt0";
+	public static final String cPingReceiveTimeKey = "pingt1";
+	public static final String cSendTimeKey = "sendtime";
+
+	private static final int cNumberOfSamples = 8;
+
+	private static final long sBaseMillis = System.currentTimeMillis();
+	private static final long sBaseNanos = System.nanoTime();
+
+	private final long[] mOffsetNanos = new long[cNumberOfSamples];
+	private final long[] mRoundTripNanos = new long[cNumberOfSamples];
+	private int mNumberOfSamples;
+	private int mNextSample;
+
+	private volatile boolean mSynchronized;
+	private volatile long mBestOffsetNanos;
+	private volatile long mBestRoundTripNanos;
+
+	/**
+	 * @return wall clock time in nanoseconds, with the resolution of
+	 *         System.nanoTime()
+	 */
+	public static long currentTimeNanos()
+	{
+		return sBaseMillis * 1000000L + (System.nanoTime() - sBaseNanos);
+	}
+
+	/**
+	 * Records a ping/pong exchange.
+	 *
+	 * @param pPingTimeNanos
+	 *            t0, client time at which the ping was sent
+	 * @param pPingReceiveTimeNanos
+	 *            t1, server time at which the ping was received
+	 * @param pSendTimeNanos
+	 *            t2, server time at which the pong was sent
+	 * @param pReceiveTimeNanos
+	 *            t3, client time at which the pong was received
+	 */
+	public synchronized void recordExchange(long pPingTimeNanos,
+											long pPingReceiveTimeNanos,
+											long pSendTimeNanos,
+											long pReceiveTimeNanos)
+	{
+		final long lRoundTripNanos = (pReceiveTimeNanos - pPingTimeNanos) - (pSendTimeNanos - pPingReceiveTimeNanos);
+		final long lOffsetNanos = ((pPingReceiveTimeNanos - pPingTimeNanos) + (pSendTimeNanos - pReceiveTimeNanos)) / 2;
+
+		mOffsetNanos[mNextSample] = lOffsetNanos;
+		mRoundTripNanos[mNextSample] = Math.max(0, lRoundTripNanos);
+		mNextSample = (mNextSample + 1) % cNumberOfSamples;
+		mNumberOfSamples = Math.min(mNumberOfSamples + 1, cNumberOfSamples);
+
+		int lBestSample = 0;
+		for (int i = 1; i < mNumberOfSamples; i++)
+			if (mRoundTripNanos[i] < mRoundTripNanos[lBestSample])
+				lBestSample = i;
+		mBestOffsetNanos = mOffsetNanos[lBestSample];
+		mBestRoundTripNanos = mRoundTripNanos[lBestSample];
+		mSynchronized = true;
+	}
+
+	/**
+	 * @return true once an exchange was recorded
+	 */
+	public boolean isSynchronized()
+	{
+		return mSynchronized;
+	}
+
+	/**
+	 * @return server clock minus local clock, 0 until synchronized
+	 */
+	public long getOffsetNanos()
+	{
+		return mBestOffsetNanos;
+	}
+
+	/**
+	 * @return round trip of the exchange giving the offset
+	 */
+	public long getRoundTripNanos()
+	{
+		return mBestRoundTripNanos;
+	}
+
+	/**
+	 * @return current time of the server clock, as estimated
+	 */
+	public long currentServerTimeNanos()
+	{
+		return currentTimeNanos() + mBestOffsetNanos;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format(	"ClockSync [mSynchronized=%s, mOffset=%.3f ms, mRoundTrip=%.3f ms]",
+								mSynchronized,
+								mBestOffsetNanos * 1e-6,
+								mBestRoundTripNanos * 1e-6);
+	}
+
+}
@@ -0,0 +1,246 @@
+package clearvolume.network.metrics;
+
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import clearvolume.utils.LatencyHistogram;
+
+/**
+ * Throughput and latency metrics of one end of a ClearVolume network link.
+ * Recording is lock-free and cheap enough to be done for every frame. Query
+ * with getSnapshot(), rates are obtained by comparing two snapshots.
+ */
+public class NetworkMetrics
+{
+	private static final double cMaxPlausibleLatencyInSeconds = 3600;
+
+	private final String mName;
+
+	private final ConcurrentHashMap<Integer, ChannelMetrics> mChannelMetrics = new ConcurrentHashMap<>();
+	private final LatencyHistogram mSerializationTime = new LatencyHistogram();
+	private final LatencyHistogram mWriteTime = new LatencyHistogram();
+	private final LatencyHistogram mReadTime = new LatencyHistogram();
+	private final LatencyHistogram mDeserializationTime = new LatencyHistogram();
+	private final LatencyHistogram mLatency = new LatencyHistogram();
+	private final AtomicLong mNumberOfDroppedFrames = new AtomicLong();
+	private volatile int mQueueDepth;
+	private volatile int mMaxQueueDepth;
+	private final ClockSync mClockSync = new ClockSync();
+
+	private Timer mLoggingTimer;
+
+	public NetworkMetrics(String pName)
+	{
+		super();
+		mName = pName;
+	}
+
+	public String getName()
+	{
+		return mName;
+	}
+
+	/**
+	 * Records a frame sent or received.
+	 *
+	 * @param pChannelID
+	 *            channel of the frame
+	 * @param pNumberOfBytes
+	 *            frame length in bytes
+	 */
+	public void recordFrame(int pChannelID, long pNumberOfBytes)
+	{
+		getChannelMetrics(pChannelID).recordFrame(pNumberOfBytes);
+	}
+
+	private ChannelMetrics getChannelMetrics(int pChannelID)
+	{
+		ChannelMetrics lChannelMetrics = mChannelMetrics.get(pChannelID);
+		if (lChannelMetrics == null)
+		{
+			final ChannelMetrics lNewChannelMetrics = new ChannelMetrics();
+			lChannelMetrics = mChannelMetrics.putIfAbsent(	pChannelID,
+															lNewChannelMetrics);
+			if (lChannelMetrics == null)
+				lChannelMetrics = lNewChannelMetrics;
+		}
+		return lChannelMetrics;
+	}
+
+	public void recordSerializationTime(long pNanos)
+	{
+		mSerializationTime.record(pNanos);
+	}
+
+	public void recordWriteTime(long pNanos)
+	{
+		mWriteTime.record(pNanos);
+	}
+
+	public void recordReadTime(long pNanos)
+	{
+		mReadTime.record(pNanos);
+	}
+
+	public void recordDeserializationTime(long pNanos)
+	{
+		mDeserializationTime.record(pNanos);
+	}
+
+	/**
+	 * Records the latency of a volume from its time stamp. Only volumes stamped
+	 * with wall clock time (System.currentTimeMillis() in seconds) are
+	 * recorded, other time stamps can't be compared to the current time. Once
+	 * the clock is synchronized with the server's, the time stamp is compared
+	 * to the server's time.
+	 *
+	 * @param pTimeInSeconds
+	 *            time stamp of the volume, see Volume.getTimeInSeconds()
+	 */
+	public void recordLatency(double pTimeInSeconds)
+	{
+		final long lLatencyNanos = getLatencyNanos(pTimeInSeconds);
+		if (lLatencyNanos >= 0)
+			mLatency.record(lLatencyNanos);
+	}
+
+	/**
+	 * Records the time from the server starting to send a frame to its
+	 * reception, once the clock is synchronized with the server's.
+	 *
+	 * @param pChannelID
+	 *            channel of the frame
+	 * @param pSendTimeNanos
+	 *            server time at which the frame was sent
+	 * @param pReceiveTimeNanos
+	 *            local time at which the frame was received, see
+	 *            ClockSync.currentTimeNanos()
+	 */
+	public void recordNetworkLatency(	int pChannelID,
+										long pSendTimeNanos,
+										long pReceiveTimeNanos)
+	{
+		if (mClockSync.isSynchronized())
+			getChannelMetrics(pChannelID).getNetworkLatency()
+											.record(pReceiveTimeNanos + mClockSync.getOffsetNanos()
+													- pSendTimeNanos);
+	}
+
+	/**
+	 * Records the time from acquisition to display of a volume, see
+	 * recordLatency(double).
+	 *
+	 * @param pChannelID
+	 *            channel of the volume
+	 * @param pTimeInSeconds
+	 *            time stamp of the volume
+	 */
+	public void recordDisplayLatency(int pChannelID, double pTimeInSeconds)
+	{
+		final long lLatencyNanos = getLatencyNanos(pTimeInSeconds);
+		if (lLatencyNanos >= 0)
+			getChannelMetrics(pChannelID).getDisplayLatency()
+											.record(lLatencyNanos);
+	}
+
+	private long getLatencyNanos(double pTimeInSeconds)
+	{
+		final double lLatencyInSeconds = mClockSync.currentServerTimeNanos() * 1e-9
+											- pTimeInSeconds;
+		if (lLatencyInSeconds >= 0 && lLatencyInSeconds < cMaxPlausibleLatencyInSeconds)
+			return (long) (lLatencyInSeconds * 1e9);
+		return -1;
+	}
+
+	public void recordDroppedFrames(long pNumberOfDroppedFrames)
+	{
+		mNumberOfDroppedFrames.addAndGet(pNumberOfDroppedFrames);
+	}
+
+	public void recordQueueDepth(int pQueueDepth)
+	{
+		mQueueDepth = pQueueDepth;
+		if (pQueueDepth > mMaxQueueDepth)
+			mMaxQueueDepth = pQueueDepth;
+	}
+
+	public long getNumberOfDroppedFrames()
+	{
+		return mNumberOfDroppedFrames.get();
+	}
+
+	/**
+	 * @return offset estimate between the server's clock and the local clock,
+	 *         fed by the client
+	 */
+	public ClockSync getClockSync()
+	{
+		return mClockSync;
+	}
+
+	/**
+	 * @return copy of the current metrics
+	 */
+	public NetworkMetricsSnapshot getSnapshot()
+	{
+		final Map<Integer, ChannelMetrics> lChannelMetrics = new TreeMap<>();
+		for (final Map.Entry<Integer, ChannelMetrics> lEntry : mChannelMetrics.entrySet())
+			lChannelMetrics.put(lEntry.getKey(), lEntry.getValue().copy());
+
+		return new NetworkMetricsSnapshot(	mName,
+											System.nanoTime(),
+											lChannelMetrics,
+											mSerializationTime.copy(),
+											mWriteTime.copy(),
+											mReadTime.copy(),
+											mDeserializationTime.copy(),
+											mLatency.copy(),
+											mNumberOfDroppedFrames.get(),
+											mQueueDepth,
+											mMaxQueueDepth);
+	}
+
+	/**
+	 * Prints a report of the metrics of each period to the standard output.
+	 *
+	 * @param pPeriod
+	 *            logging period
+	 * @param pTimeUnit
+	 *            period unit
+	 */
+	public synchronized void startPeriodicLogging(	long pPeriod,
+													TimeUnit pTimeUnit)
+	{
+		stopPeriodicLogging();
+		final long lPeriodMillis = Math.max(1, pTimeUnit.toMillis(pPeriod));
+		mLoggingTimer = new Timer(	NetworkMetrics.class.getSimpleName() + "Timer["
+											+ mName
+											+ "]",
+									true);
+		mLoggingTimer.scheduleAtFixedRate(new TimerTask()
+		{
+			private NetworkMetricsSnapshot mPreviousSnapshot = getSnapshot();
+
+			@Override
+			public void run()
+			{
+				final NetworkMetricsSnapshot lSnapshot = getSnapshot();
+				System.out.println(lSnapshot.toString(mPreviousSnapshot));
+				mPreviousSnapshot = lSnapshot;
+			}
+		}, lPeriodMillis, lPeriodMillis);
+	}
+
+	public synchronized void stopPeriodicLogging()
+	{
+		if (mLoggingTimer != null)
+			mLoggingTimer.cancel();
+		mLoggingTimer = null;
+	}
+
+}
@@ -0,0 +1,237 @@
+package clearvolume.network.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import clearvolume.utils.LatencyHistogram;
+
+/**
+ * Metrics at a point in time. Counters and histograms are cumulative, rates
+ * and per period histograms are obtained relative to an earlier snapshot.
+ */
+public class NetworkMetricsSnapshot
+{
+	private final String mName;
+	private final long mTimeNanos;
+	private final Map<Integer, ChannelMetrics> mChannelMetrics;
+	private final LatencyHistogram mSerializationTime;
+	private final LatencyHistogram mWriteTime;
+	private final LatencyHistogram mReadTime;
+	private final LatencyHistogram mDeserializationTime;
+	private final LatencyHistogram mLatency;
+	private final long mNumberOfDroppedFrames;
+	private final int mQueueDepth;
+	private final int mMaxQueueDepth;
+
+	NetworkMetricsSnapshot(	String pName,
+							long pTimeNanos,
+							Map<Integer, ChannelMetrics> pChannelMetrics,
+							LatencyHistogram pSerializationTime,
+							LatencyHistogram pWriteTime,
+							LatencyHistogram pReadTime,
+							LatencyHistogram pDeserializationTime,
+							LatencyHistogram pLatency,
+							long pNumberOfDroppedFrames,
+							int pQueueDepth,
+							int pMaxQueueDepth)
+	{
+		mName = pName;
+		mTimeNanos = pTimeNanos;
+		mChannelMetrics = pChannelMetrics;
+		mSerializationTime = pSerializationTime;
+		mWriteTime = pWriteTime;
+		mReadTime = pReadTime;
+		mDeserializationTime = pDeserializationTime;
+		mLatency = pLatency;
+		mNumberOfDroppedFrames = pNumberOfDroppedFrames;
+		mQueueDepth = pQueueDepth;
+		mMaxQueueDepth = pMaxQueueDepth;
+	}
+
+	public long getTimeNanos()
+	{
+		return mTimeNanos;
+	}
+
+	public Set<Integer> getChannels()
+	{
+		return Collections.unmodifiableSet(mChannelMetrics.keySet());
+	}
+
+	public long getNumberOfFrames(int pChannelID)
+	{
+		final ChannelMetrics lChannelMetrics = mChannelMetrics.get(pChannelID);
+		return lChannelMetrics == null ? 0
+										: lChannelMetrics.getNumberOfFrames();
+	}
+
+	public long getNumberOfBytes(int pChannelID)
+	{
+		final ChannelMetrics lChannelMetrics = mChannelMetrics.get(pChannelID);
+		return lChannelMetrics == null ? 0 : lChannelMetrics.getNumberOfBytes();
+	}
+
+	/**
+	 * @param pChannelID
+	 *            channel
+	 * @return one-way network latency of the channel, empty if the clocks
+	 *         were not synchronized
+	 */
+	public LatencyHistogram getNetworkLatency(int pChannelID)
+	{
+		final ChannelMetrics lChannelMetrics = mChannelMetrics.get(pChannelID);
+		return lChannelMetrics == null	? new LatencyHistogram()
+										: lChannelMetrics.getNetworkLatency();
+	}
+
+	/**
+	 * @param pChannelID
+	 *            channel
+	 * @return acquisition to display latency of the channel
+	 */
+	public LatencyHistogram getDisplayLatency(int pChannelID)
+	{
+		final ChannelMetrics lChannelMetrics = mChannelMetrics.get(pChannelID);
+		return lChannelMetrics == null	? new LatencyHistogram()
+										: lChannelMetrics.getDisplayLatency();
+	}
+
+	public double getFramesPerSecond(	int pChannelID,
+										NetworkMetricsSnapshot pPrevious)
+	{
+		return perSecond(	getNumberOfFrames(pChannelID) - pPrevious.getNumberOfFrames(pChannelID),
+							pPrevious);
+	}
+
+	public double getBytesPerSecond(int pChannelID,
+									NetworkMetricsSnapshot pPrevious)
+	{
+		return perSecond(	getNumberOfBytes(pChannelID) - pPrevious.getNumberOfBytes(pChannelID),
+							pPrevious);
+	}
+
+	public double getTotalBytesPerSecond(NetworkMetricsSnapshot pPrevious)
+	{
+		long lBytes = 0;
+		for (final Integer lChannelID : mChannelMetrics.keySet())
+			lBytes += getNumberOfBytes(lChannelID) - pPrevious.getNumberOfBytes(lChannelID);
+		return perSecond(lBytes, pPrevious);
+	}
+
+	private double perSecond(long pCount, NetworkMetricsSnapshot pPrevious)
+	{
+		final long lElapsedNanos = mTimeNanos - pPrevious.mTimeNanos;
+		return lElapsedNanos <= 0 ? 0 : pCount * 1e9 / lElapsedNanos;
+	}
+
+	public LatencyHistogram getSerializationTime()
+	{
+		return mSerializationTime;
+	}
+
+	public LatencyHistogram getWriteTime()
+	{
+		return mWriteTime;
+	}
+
+	public LatencyHistogram getReadTime()
+	{
+		return mReadTime;
+	}
+
+	public LatencyHistogram getDeserializationTime()
+	{
+		return mDeserializationTime;
+	}
+
+	public LatencyHistogram getLatency()
+	{
+		return mLatency;
+	}
+
+	public long getNumberOfDroppedFrames()
+	{
+		return mNumberOfDroppedFrames;
+	}
+
+	public int getQueueDepth()
+	{
+		return mQueueDepth;
+	}
+
+	public int getMaxQueueDepth()
+	{
+		return mMaxQueueDepth;
+	}
+
+	/**
+	 * @param pPrevious
+	 *            earlier snapshot
+	 * @return report of the period since the given snapshot
+	 */
+	public String toString(NetworkMetricsSnapshot pPrevious)
+	{
+		final StringBuilder lStringBuilder = new StringBuilder();
+		lStringBuilder.append(String.format("%s: %.1f MB/s, dropped=%d, queue=%d (max %d)\n",
+											mName,
+											getTotalBytesPerSecond(pPrevious) * 1e-6,
+											mNumberOfDroppedFrames - pPrevious.mNumberOfDroppedFrames,
+											mQueueDepth,
+											mMaxQueueDepth));
+		for (final Integer lChannelID : mChannelMetrics.keySet())
+		{
+			lStringBuilder.append(String.format("  channel %d: %.1f frames/s, %.1f MB/s\n",
+												lChannelID,
+												getFramesPerSecond(	lChannelID,
+																	pPrevious),
+												getBytesPerSecond(	lChannelID,
+																	pPrevious) * 1e-6));
+			appendHistogram(lStringBuilder,
+							"  network latency",
+							getNetworkLatency(lChannelID).since(pPrevious.getNetworkLatency(lChannelID)));
+			appendHistogram(lStringBuilder,
+							"  display latency",
+							getDisplayLatency(lChannelID).since(pPrevious.getDisplayLatency(lChannelID)));
+		}
+		appendHistogram(lStringBuilder,
+						"serialization",
+						mSerializationTime.since(pPrevious.mSerializationTime));
+		appendHistogram(lStringBuilder,
+						"write",
+						mWriteTime.since(pPrevious.mWriteTime));
+		appendHistogram(lStringBuilder,
+						"read",
+						mReadTime.since(pPrevious.mReadTime));
+		appendHistogram(lStringBuilder,
+						"deserialization",
+						mDeserializationTime.since(pPrevious.mDeserializationTime));
+		appendHistogram(lStringBuilder,
+						"latency",
+						mLatency.since(pPrevious.mLatency));
+		return lStringBuilder.toString();
+	}
+
+	private static void appendHistogram(StringBuilder pStringBuilder,
+										String pName,
+										LatencyHistogram pLatencyHistogram)
+	{
+		if (pLatencyHistogram.getCount() > 0)
+			pStringBuilder.append("  ")
+							.append(pName)
+							.append(": ")
+							.append(pLatencyHistogram)
+							.append('\n');
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format(	"NetworkMetricsSnapshot [mName=%s, mChannels=%s, mDroppedFrames=%d, mQueueDepth=%d]",
+								mName,
+								mChannelMetrics.keySet(),
+								mNumberOfDroppedFrames,
+								mQueueDepth);
+	}
+
+}
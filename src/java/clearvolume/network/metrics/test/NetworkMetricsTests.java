@@ -0,0 +1,109 @@
+package clearvolume.network.metrics.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import clearvolume.network.metrics.ClockSync;
+import clearvolume.network.metrics.NetworkMetrics;
+import clearvolume.network.metrics.NetworkMetricsSnapshot;
+import clearvolume.utils.LatencyHistogram;
+
+public class NetworkMetricsTests
+{
+
+	@Test
+	public void testLatencyHistogram()
+	{
+		final LatencyHistogram lLatencyHistogram = new LatencyHistogram();
+		for (int i = 1; i <= 1000; i++)
+			lLatencyHistogram.record(i * 1000L);
+
+		assertEquals(1000, lLatencyHistogram.getCount());
+		assertEquals(500500, lLatencyHistogram.getMeanNanos(), 1);
+		assertEquals(	500000,
+						lLatencyHistogram.getPercentileNanos(50),
+						500000 / 16);
+		assertEquals(	990000,
+						lLatencyHistogram.getPercentileNanos(99),
+						990000 / 16);
+		assertEquals(1000000, lLatencyHistogram.getMaxNanos(), 1000000 / 16);
+
+		final LatencyHistogram lCopy = lLatencyHistogram.copy();
+		lLatencyHistogram.record(7);
+		final LatencyHistogram lSince = lLatencyHistogram.since(lCopy);
+		assertEquals(1, lSince.getCount());
+		assertEquals(7, lSince.getMaxNanos());
+	}
+
+	@Test
+	public void testSnapshots()
+	{
+		final NetworkMetrics lNetworkMetrics = new NetworkMetrics("test");
+		final NetworkMetricsSnapshot lFirstSnapshot = lNetworkMetrics.getSnapshot();
+
+		lNetworkMetrics.recordFrame(0, 1000);
+		lNetworkMetrics.recordFrame(0, 1000);
+		lNetworkMetrics.recordFrame(1, 500);
+		lNetworkMetrics.recordDroppedFrames(2);
+		lNetworkMetrics.recordQueueDepth(3);
+		lNetworkMetrics.recordQueueDepth(1);
+		lNetworkMetrics.recordLatency(System.currentTimeMillis() * 1e-3 - 0.1);
+		// not a wall clock time stamp:
+		lNetworkMetrics.recordLatency(12.5);
+
+		final NetworkMetricsSnapshot lSnapshot = lNetworkMetrics.getSnapshot();
+		assertEquals(2, lSnapshot.getChannels().size());
+		assertEquals(2, lSnapshot.getNumberOfFrames(0));
+		assertEquals(2000, lSnapshot.getNumberOfBytes(0));
+		assertEquals(500, lSnapshot.getNumberOfBytes(1));
+		assertEquals(2, lSnapshot.getNumberOfDroppedFrames());
+		assertEquals(1, lSnapshot.getQueueDepth());
+		assertEquals(3, lSnapshot.getMaxQueueDepth());
+		assertEquals(1, lSnapshot.getLatency().getCount());
+		assertTrue(lSnapshot.getLatency().getMaxNanos() >= 90_000_000);
+		assertTrue(lSnapshot.getBytesPerSecond(0, lFirstSnapshot) > 0);
+
+		System.out.println(lSnapshot.toString(lFirstSnapshot));
+	}
+
+	@Test
+	public void testClockSync()
+	{
+		final NetworkMetrics lNetworkMetrics = new NetworkMetrics("test");
+		final ClockSync lClockSync = lNetworkMetrics.getClockSync();
+		assertFalse(lClockSync.isSynchronized());
+
+		// server clock 5 ms ahead, 1 ms each way, the second exchange was
+		// queued for 4 ms on the way back:
+		final long lOffsetNanos = 5000000;
+		lClockSync.recordExchange(	0,
+									1000000 + lOffsetNanos,
+									2000000 + lOffsetNanos,
+									3000000);
+		lClockSync.recordExchange(	10000000,
+									11000000 + lOffsetNanos,
+									12000000 + lOffsetNanos,
+									17000000);
+		assertTrue(lClockSync.isSynchronized());
+		assertEquals(lOffsetNanos, lClockSync.getOffsetNanos());
+		assertEquals(2000000, lClockSync.getRoundTripNanos());
+
+		final long lNowNanos = ClockSync.currentTimeNanos();
+		lNetworkMetrics.recordNetworkLatency(	1,
+												lNowNanos + lOffsetNanos - 1000000,
+												lNowNanos);
+		lNetworkMetrics.recordDisplayLatency(	1,
+												(lNowNanos + lOffsetNanos) * 1e-9 - 0.1);
+		final NetworkMetricsSnapshot lSnapshot = lNetworkMetrics.getSnapshot();
+		assertEquals(	1000000,
+						lSnapshot.getNetworkLatency(1).getMaxNanos(),
+						1000000 / 16);
+		assertEquals(1, lSnapshot.getDisplayLatency(1).getCount());
+		assertTrue(lSnapshot.getDisplayLatency(1).getMaxNanos() >= 90_000_000);
+		assertEquals(0, lSnapshot.getNetworkLatency(0).getCount());
+	}
+
+}
@@ -0,0 +1,86 @@
+package clearvolume.network.relay;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+
+import clearvolume.network.client.ClearVolumeTCPClient;
+import clearvolume.network.serialization.SerializedFrameSinkInterface;
+import clearvolume.network.server.ClearVolumeTCPServerSink;
+
+/**
+ * Headless relay: receives the stream of an upstream server and serves it
+ * again to its own clients. Frames are forwarded byte for byte, never
+ * deserialized nor serialized again, so that relays can be chained or fanned
+ * out at little cost, each one taking the load of its clients off its
+ * upstream server.
+ */
+public class ClearVolumeRelay implements AutoCloseable
+{
+	private final ClearVolumeTCPServerSink mClearVolumeTCPServerSink;
+	private final ClearVolumeTCPClient mClearVolumeTCPClient;
+
+	public ClearVolumeRelay()
+	{
+		super();
+		mClearVolumeTCPServerSink = new ClearVolumeTCPServerSink(1);
+		mClearVolumeTCPClient = new ClearVolumeTCPClient((SerializedFrameSinkInterface) mClearVolumeTCPServerSink);
+	}
+
+	/**
+	 * Opens the downstream server socket first, then connects to the upstream
+	 * server.
+	 *
+	 * @param pUpstreamAddress
+	 *            upstream server address
+	 * @param pListenAddress
+	 *            address to serve the stream on
+	 * @return true if both are open
+	 * @throws IOException
+	 *             if the socket can't be bound or the upstream server can't be
+	 *             reached
+	 */
+	public boolean open(SocketAddress pUpstreamAddress,
+						SocketAddress pListenAddress) throws IOException
+	{
+		if (!mClearVolumeTCPServerSink.open(pListenAddress))
+			return false;
+		return mClearVolumeTCPClient.open(pUpstreamAddress);
+	}
+
+	public boolean start()
+	{
+		return mClearVolumeTCPServerSink.start() && mClearVolumeTCPClient.start();
+	}
+
+	public boolean stop()
+	{
+		mClearVolumeTCPClient.stop();
+		return mClearVolumeTCPServerSink.stop();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		mClearVolumeTCPClient.close();
+		mClearVolumeTCPServerSink.close();
+	}
+
+	/**
+	 * @return client connected upstream, e.g. to set its number of stripes or
+	 *         reconnection delays
+	 */
+	public ClearVolumeTCPClient getUpstreamClient()
+	{
+		return mClearVolumeTCPClient;
+	}
+
+	/**
+	 * @return server serving the downstream clients, e.g. to set their queue
+	 *         capacity or slow client policy
+	 */
+	public ClearVolumeTCPServerSink getServerSink()
+	{
+		return mClearVolumeTCPServerSink;
+	}
+
+}
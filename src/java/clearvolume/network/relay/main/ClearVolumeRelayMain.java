@@ -0,0 +1,110 @@
+package clearvolume.network.relay.main;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import clearvolume.network.relay.ClearVolumeRelay;
+import clearvolume.network.serialization.ClearVolumeSerialization;
+import clearvolume.network.server.SlowClientPolicy;
+
+public class ClearVolumeRelayMain
+{
+
+	@Option(name = "-c", aliases =
+	{ "--connect" }, required = true, usage = "upstream ClearVolume server address.")
+	public String mUpstreamHostName = null;
+
+	@Option(name = "-p", aliases =
+	{ "--port" }, usage = "upstream server port number.")
+	public int mUpstreamPort = ClearVolumeSerialization.cStandardTCPPort;
+
+	@Option(name = "-l", aliases =
+	{ "--listen-port" }, usage = "port number to serve the stream on.")
+	public int mListenPort = ClearVolumeSerialization.cStandardTCPPort;
+
+	@Option(name = "-s", aliases =
+	{ "--stripes" }, usage = "number of stripes to ask the upstream server for.")
+	public int mNumberOfStripes = 1;
+
+	@Option(name = "-q", aliases =
+	{ "--client-queue" }, usage = "max number of frames queued per client.")
+	public int mClientQueueCapacity = 4;
+
+	@Option(name = "-m", aliases =
+	{ "--metrics" }, usage = "period in seconds of the metrics log, 0 for none.")
+	public int mMetricsPeriodInSeconds = 0;
+
+	/**
+	 * Launch the relay.
+	 *
+	 * @param args
+	 *            command line parameters
+	 */
+	public static void main(String[] args)
+	{
+		final ClearVolumeRelayMain lCommandLineValues = new ClearVolumeRelayMain();
+		final CmdLineParser lCmdLineParser = new CmdLineParser(lCommandLineValues);
+		lCmdLineParser.getProperties().withUsageWidth(80);
+
+		System.err.println("[ClearVolume relay]");
+		try
+		{
+			lCmdLineParser.parseArgument(args);
+		}
+		catch (final CmdLineException e)
+		{
+			System.err.println(e.getMessage());
+			lCmdLineParser.printUsage(System.err);
+			System.err.println();
+			System.exit(1);
+		}
+
+		try (final ClearVolumeRelay lClearVolumeRelay = new ClearVolumeRelay())
+		{
+			lClearVolumeRelay.getUpstreamClient()
+								.setNumberOfStripes(lCommandLineValues.mNumberOfStripes);
+			lClearVolumeRelay.getServerSink()
+								.setClientQueueCapacity(lCommandLineValues.mClientQueueCapacity);
+			lClearVolumeRelay.getServerSink()
+								.setSlowClientPolicy(SlowClientPolicy.KeepLatestPerChannel);
+
+			if (!lClearVolumeRelay.open(new InetSocketAddress(	lCommandLineValues.mUpstreamHostName,
+																lCommandLineValues.mUpstreamPort),
+										new InetSocketAddress(lCommandLineValues.mListenPort)))
+			{
+				System.err.println("Could not open relay");
+				System.exit(1);
+			}
+			lClearVolumeRelay.start();
+
+			if (lCommandLineValues.mMetricsPeriodInSeconds > 0)
+			{
+				lClearVolumeRelay.getUpstreamClient()
+									.getNetworkMetrics()
+									.startPeriodicLogging(	lCommandLineValues.mMetricsPeriodInSeconds,
+															TimeUnit.SECONDS);
+				lClearVolumeRelay.getServerSink()
+									.getNetworkMetrics()
+									.startPeriodicLogging(	lCommandLineValues.mMetricsPeriodInSeconds,
+															TimeUnit.SECONDS);
+			}
+
+			System.err.format(	"Relaying %s:%d on port %d\n",
+								lCommandLineValues.mUpstreamHostName,
+								lCommandLineValues.mUpstreamPort,
+								lCommandLineValues.mListenPort);
+			while (true)
+				Thread.sleep(1000);
+		}
+		catch (final Throwable e)
+		{
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+}
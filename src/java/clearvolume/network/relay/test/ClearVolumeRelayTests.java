@@ -0,0 +1,153 @@
+package clearvolume.network.relay.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import clearvolume.network.client.ClearVolumeTCPClient;
+import clearvolume.network.relay.ClearVolumeRelay;
+import clearvolume.network.server.ClearVolumeTCPServerSink;
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+import clearvolume.volume.sink.NullVolumeSink;
+import clearvolume.volume.sink.VolumeSinkAdapter;
+import coremem.enums.NativeTypeEnum;
+
+public class ClearVolumeRelayTests
+{
+
+	@Test
+	public void testRelayForwardsFrames() throws IOException,
+											InterruptedException
+	{
+		final int lUpstreamPort = 9800 + (int) (Math.random() * 500);
+		final int lRelayPort = lUpstreamPort + 1;
+		final VolumeManager lVolumeManager = new VolumeManager(4);
+
+		final ClearVolumeTCPServerSink lServer = new ClearVolumeTCPServerSink(4);
+		lServer.setRelaySink(new NullVolumeSink(lVolumeManager));
+		assertTrue(lServer.open(new InetSocketAddress(lUpstreamPort)));
+		assertTrue(lServer.openStripes(new InetSocketAddress(0), 2));
+		assertTrue(lServer.start());
+
+		final ClearVolumeRelay lClearVolumeRelay = new ClearVolumeRelay();
+		lClearVolumeRelay.getUpstreamClient().setNumberOfStripes(2);
+		assertTrue(lClearVolumeRelay.open(	new InetSocketAddress(	"localhost",
+																	lUpstreamPort),
+											new InetSocketAddress(lRelayPort)));
+		assertTrue(lClearVolumeRelay.start());
+		waitForClients(lServer, 1);
+
+		final AtomicReference<Volume> lFirstReceived = new AtomicReference<>();
+		final ClearVolumeTCPClient lFirstClient = startClient(	lRelayPort,
+																lFirstReceived);
+		waitForClients(lClearVolumeRelay.getServerSink(), 1);
+
+		sendVolume(lServer, lVolumeManager, 1);
+		waitForTimeIndex(lFirstReceived, 1);
+		checkVolume(lFirstReceived.get(), 1);
+
+		sendVolume(lServer, lVolumeManager, 2);
+		waitForTimeIndex(lFirstReceived, 2);
+		checkVolume(lFirstReceived.get(), 2);
+
+		// a client joining late gets the relay's snapshot:
+		final AtomicReference<Volume> lSecondReceived = new AtomicReference<>();
+		final ClearVolumeTCPClient lSecondClient = startClient(	lRelayPort,
+																lSecondReceived);
+		waitForTimeIndex(lSecondReceived, 2);
+		checkVolume(lSecondReceived.get(), 2);
+
+		// the upstream server only ever sees the relay:
+		assertEquals(1, lServer.getNumberOfConnections());
+		assertEquals(2, lClearVolumeRelay.getServerSink()
+											.getNumberOfConnections());
+		assertEquals(2, lClearVolumeRelay.getUpstreamClient()
+											.getNumberOfStripesInUse());
+
+		lFirstClient.stop();
+		lFirstClient.close();
+		lSecondClient.stop();
+		lSecondClient.close();
+		lClearVolumeRelay.stop();
+		lClearVolumeRelay.close();
+		lServer.stop();
+		lServer.close();
+	}
+
+	private static ClearVolumeTCPClient startClient(int pPort,
+													final AtomicReference<Volume> pReceived) throws IOException
+	{
+		final ClearVolumeTCPClient lClearVolumeTCPClient = new ClearVolumeTCPClient(new VolumeSinkAdapter(4)
+		{
+			@Override
+			public void sendVolume(Volume pVolume)
+			{
+				final Volume lPreviousVolume = pReceived.getAndSet(pVolume);
+				if (lPreviousVolume != null)
+					lPreviousVolume.makeAvailableToManager();
+			}
+		});
+		// the relay doesn't offer stripes, the client stays on one stream:
+		lClearVolumeTCPClient.setNumberOfStripes(2);
+		assertTrue(lClearVolumeTCPClient.open(new InetSocketAddress(	"localhost",
+																		pPort)));
+		lClearVolumeTCPClient.start();
+		return lClearVolumeTCPClient;
+	}
+
+	private static void sendVolume(	ClearVolumeTCPServerSink pServer,
+									VolumeManager pVolumeManager,
+									long pTimeIndex)
+	{
+		final Volume lVolume = pVolumeManager.requestAndWaitForVolume(	1,
+																		TimeUnit.MILLISECONDS,
+																		NativeTypeEnum.UnsignedByte,
+																		1,
+																		32,
+																		32,
+																		32);
+		lVolume.setTimeIndex(pTimeIndex);
+		final ByteBuffer lDataBuffer = lVolume.getDataBuffer();
+		lDataBuffer.clear();
+		for (int i = 0; i < lDataBuffer.capacity(); i++)
+			lDataBuffer.put(i, (byte) (i * pTimeIndex));
+		pServer.sendVolume(lVolume);
+	}
+
+	private static void checkVolume(Volume pVolume, long pTimeIndex)
+	{
+		assertEquals(pTimeIndex, pVolume.getTimeIndex());
+		assertEquals(32, pVolume.getWidthInVoxels());
+		final ByteBuffer lDataBuffer = pVolume.getDataBuffer();
+		assertEquals(32 * 32 * 32, lDataBuffer.capacity());
+		for (int i = 0; i < lDataBuffer.capacity(); i++)
+			assertEquals((byte) (i * pTimeIndex), lDataBuffer.get(i));
+	}
+
+	private static void waitForClients(	ClearVolumeTCPServerSink pServer,
+										int pNumberOfClients) throws InterruptedException
+	{
+		for (int i = 0; i < 500 && pServer.getNumberOfConnections() < pNumberOfClients; i++)
+			Thread.sleep(10);
+	}
+
+	private static void waitForTimeIndex(	AtomicReference<Volume> pReceived,
+											long pTimeIndex) throws InterruptedException
+	{
+		for (int i = 0; i < 500; i++)
+		{
+			final Volume lVolume = pReceived.get();
+			if (lVolume != null && lVolume.getTimeIndex() == pTimeIndex)
+				return;
+			Thread.sleep(10);
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package clearvolume.network.serialization;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import clearvolume.network.serialization.keyvalue.KeyValueMaps;
+import clearvolume.network.serialization.keyvalue.KeyValueSlots;
+import clearvolume.utils.ToIntExact;
+
+/**
+ * Batch frames carry several volumes, typically all channels of one time
+ * point, in a single frame. A batch frame is a regular frame whose header is
+ * the header of its first volume plus the key 'batch' (number of volumes), and
+ * whose data part holds the volumes back to back as [long header length]
+ * [header][long data length][data]. The header of each volume only holds the
+ * entries that differ from the batch header (e.g. channel, channel name and
+ * color), the other entries are inherited from it.
+ *
+ * Clients ask for batch frames with the control message {request:batch,
+ * batch:1}, the others keep receiving one frame per volume.
+ *
+ * Instances keep their header slots and are not thread safe.
+ */
+public class BatchFrames
+{
+	public static final String cBatchKey = "batch";
+	public static final String cBatchRequest = "batch";
+
+	private static final int cLongSizeInBytes = 8;
+
+	private final KeyValueSlots mBatchHeaderSlots = new KeyValueSlots();
+	private final KeyValueSlots mMemberHeaderSlots = new KeyValueSlots();
+	private final KeyValueSlots mDeltaHeaderSlots = new KeyValueSlots();
+
+	/**
+	 * Composes a batch frame from serialized frames.
+	 *
+	 * @param pMembers
+	 *            frames of the batch, at least one
+	 * @param pSerializedFramePool
+	 *            pool to take the batch frame from
+	 * @return batch frame with a reference count of one, with the channel and
+	 *         time of the first frame
+	 */
+	public SerializedFrame compose(	List<SerializedFrame> pMembers,
+									SerializedFramePool pSerializedFramePool)
+	{
+		final SerializedFrame lFirstMember = pMembers.get(0);
+		ClearVolumeSerialization.readFrameHeader(	lFirstMember.duplicate(),
+													mBatchHeaderSlots);
+		mBatchHeaderSlots.put(cBatchKey).append(pMembers.size());
+		final int lBatchHeaderLength = KeyValueMaps.getEncodedLength(mBatchHeaderSlots);
+
+		long lDataLength = 0;
+		for (final SerializedFrame lMember : pMembers)
+			lDataLength += 2 * cLongSizeInBytes + KeyValueMaps.getEncodedLength(readDeltaHeader(lMember))
+							+ getDataLength(lMember);
+
+		final SerializedFrame lBatchFrame = pSerializedFramePool.acquire(ToIntExact.toIntExact(3 * cLongSizeInBytes
+																								+ lBatchHeaderLength
+																								+ lDataLength));
+		final ByteBuffer lBatchBuffer = lBatchFrame.getByteBuffer();
+		lBatchBuffer.putLong(3 * cLongSizeInBytes + lBatchHeaderLength
+								+ lDataLength);
+		lBatchBuffer.putLong(lBatchHeaderLength);
+		KeyValueMaps.writeBufferFromSlots(mBatchHeaderSlots, lBatchBuffer);
+		lBatchBuffer.putLong(lDataLength);
+
+		for (final SerializedFrame lMember : pMembers)
+		{
+			final KeyValueSlots lDeltaHeaderSlots = readDeltaHeader(lMember);
+			lBatchBuffer.putLong(KeyValueMaps.getEncodedLength(lDeltaHeaderSlots));
+			KeyValueMaps.writeBufferFromSlots(lDeltaHeaderSlots, lBatchBuffer);
+
+			final ByteBuffer lMemberBuffer = lMember.duplicate();
+			lMemberBuffer.position(StripedTransport.getDataOffset(lMemberBuffer) - cLongSizeInBytes);
+			lBatchBuffer.put(lMemberBuffer);
+		}
+		lBatchBuffer.flip();
+
+		lBatchFrame.setStreamID(lFirstMember.getStreamID());
+		lBatchFrame.setChannelID(lFirstMember.getChannelID());
+		lBatchFrame.setTimeIndex(lFirstMember.getTimeIndex());
+		lBatchFrame.setTimeInSeconds(lFirstMember.getTimeInSeconds());
+		return lBatchFrame;
+	}
+
+	private KeyValueSlots readDeltaHeader(SerializedFrame pMember)
+	{
+		ClearVolumeSerialization.readFrameHeader(	pMember.duplicate(),
+													mMemberHeaderSlots);
+		mDeltaHeaderSlots.clear();
+		for (int i = 0; i < mMemberHeaderSlots.size(); i++)
+		{
+			final CharSequence lKey = mMemberHeaderSlots.getKey(i);
+			final CharSequence lValue = mMemberHeaderSlots.getValue(i);
+			final CharSequence lBatchValue = mBatchHeaderSlots.get(lKey);
+			if (lBatchValue == null || !KeyValueSlots.contentEquals(lBatchValue,
+																	lValue))
+				mDeltaHeaderSlots.put(lKey, lValue);
+		}
+		return mDeltaHeaderSlots;
+	}
+
+	private static long getDataLength(SerializedFrame pMember)
+	{
+		final ByteBuffer lByteBuffer = pMember.getByteBuffer();
+		return lByteBuffer.getLong(StripedTransport.getDataOffset(lByteBuffer) - cLongSizeInBytes);
+	}
+
+}
@@ -0,0 +1,101 @@
+package clearvolume.network.serialization;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+
+import clearvolume.network.serialization.keyvalue.KeyValueMaps;
+import clearvolume.network.serialization.keyvalue.KeyValueSlots;
+import clearvolume.utils.ToIntExact;
+
+/**
+ * Control messages sent by clients to the server, on the same socket the
+ * volumes come from. A message is a key-value map preceded by its length:
+ * [long length][key-value map], the length in native byte order like volume
+ * frames.
+ */
+public class ClearVolumeControlMessages
+{
+	public static final String cRequestKey = "request";
+	public static final String cSnapshotRequest = "snapshot";
+
+	private static final int cLongSizeInBytes = 8;
+	private static final int cMaxMessageLength = 64 * 1024;
+
+	/**
+	 * Writes a control message.
+	 *
+	 * @param pSocketChannel
+	 *            channel to write to
+	 * @param pKeyValueSlots
+	 *            message content
+	 * @param pByteBuffer
+	 *            buffer to reuse, can be null
+	 * @return buffer used, to be passed again next time
+	 * @throws IOException
+	 *             if writing fails
+	 */
+	public static ByteBuffer writeControlMessage(	SocketChannel pSocketChannel,
+													KeyValueSlots pKeyValueSlots,
+													ByteBuffer pByteBuffer) throws IOException
+	{
+		final int lMessageLength = KeyValueMaps.getEncodedLength(pKeyValueSlots);
+		pByteBuffer = ensureCapacity(pByteBuffer, cLongSizeInBytes + lMessageLength);
+		pByteBuffer.clear();
+		pByteBuffer.putLong(lMessageLength);
+		KeyValueMaps.writeBufferFromSlots(pKeyValueSlots, pByteBuffer);
+		pByteBuffer.flip();
+		synchronized (pSocketChannel)
+		{
+			while (pByteBuffer.hasRemaining())
+				pSocketChannel.write(pByteBuffer);
+		}
+		return pByteBuffer;
+	}
+
+	/**
+	 * Reads the next control message, blocking until it arrives.
+	 *
+	 * @param pSocketChannel
+	 *            channel to read from
+	 * @param pKeyValueSlots
+	 *            slots receiving the message content
+	 * @param pByteBuffer
+	 *            buffer to reuse, can be null
+	 * @return buffer used, to be passed again next time
+	 * @throws IOException
+	 *             if reading fails, or the peer closed the connection
+	 */
+	public static ByteBuffer readControlMessage(SocketChannel pSocketChannel,
+												KeyValueSlots pKeyValueSlots,
+												ByteBuffer pByteBuffer) throws IOException
+	{
+		pByteBuffer = ensureCapacity(pByteBuffer, cLongSizeInBytes);
+		pByteBuffer.clear();
+		pByteBuffer.limit(cLongSizeInBytes);
+		ClearVolumeSerialization.readFully(pSocketChannel, pByteBuffer);
+		pByteBuffer.flip();
+		final int lMessageLength = ToIntExact.toIntExact(pByteBuffer.getLong());
+		if (lMessageLength < 0 || lMessageLength > cMaxMessageLength)
+			throw new IOException("Invalid control message length: " + lMessageLength);
+
+		pByteBuffer = ensureCapacity(pByteBuffer, lMessageLength);
+		pByteBuffer.clear();
+		pByteBuffer.limit(lMessageLength);
+		ClearVolumeSerialization.readFully(pSocketChannel, pByteBuffer);
+		pByteBuffer.flip();
+		KeyValueMaps.readSlotsFromBuffer(pByteBuffer, lMessageLength, pKeyValueSlots);
+		return pByteBuffer;
+	}
+
+	private static ByteBuffer ensureCapacity(	ByteBuffer pByteBuffer,
+												int pCapacity)
+	{
+		if (pByteBuffer == null || pByteBuffer.capacity() < pCapacity)
+			pByteBuffer = ByteBuffer.allocateDirect(Math.max(256, pCapacity))
+									.order(ByteOrder.nativeOrder());
+		return pByteBuffer;
+	}
+
+}
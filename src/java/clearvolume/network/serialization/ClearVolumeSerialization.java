@@ -1,34 +1,41 @@
 package clearvolume.network.serialization;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.SocketChannel;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
 
+import clearvolume.network.metrics.ClockSync;
+import clearvolume.network.metrics.NetworkMetrics;
 import clearvolume.network.serialization.keyvalue.KeyValueMaps;
+import clearvolume.network.serialization.keyvalue.KeyValueSlots;
 import clearvolume.utils.ToIntExact;
 import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
 
 public class ClearVolumeSerialization
 {
 	// first 4 digits of the CRC32 of 'ClearVolume' string :-)
 	public static final int cStandardTCPPort = 9140;
+
+	/**
+	 * Header key of the logical stream of a volume, absent for stream 0.
+	 */
+	public static final String cStreamKey = "stream";
+
 	private static final int cLongSizeInBytes = 8;
 
+	private static ThreadLocal<KeyValueSlots> sHeaderSlotsThreadLocal = new ThreadLocal<KeyValueSlots>();
+
 	public static final ByteBuffer serialize(	Volume pVolume,
 												ByteBuffer pByteBuffer)
 	{
-		final StringBuilder lStringBuilder = new StringBuilder();
-		writeVolumeHeader(pVolume, lStringBuilder);
-
-		final int lHeaderLength = lStringBuilder.length();
-
-		final long lDataLength = pVolume.getDataSizeInBytes();
-		final int lNeededBufferLength = ToIntExact.toIntExact(3	* cLongSizeInBytes
-																+ lHeaderLength
-																+ lDataLength);
+		final int lNeededBufferLength = getSerializedLength(pVolume);
 		if (pByteBuffer == null || pByteBuffer.capacity() != lNeededBufferLength)
 		{
 			pByteBuffer = ByteBuffer.allocateDirect(lNeededBufferLength);
@@ -36,71 +43,149 @@ public class ClearVolumeSerialization
 		}
 		pByteBuffer.clear();
 
-		pByteBuffer.putLong(lNeededBufferLength);
+		return serializeInto(pVolume, pByteBuffer);
+	};
+
+	public static final int getSerializedLength(Volume pVolume)
+	{
+		final KeyValueSlots lHeaderSlots = getHeaderSlots();
+		writeVolumeHeader(pVolume, lHeaderSlots);
+
+		final int lHeaderLength = KeyValueMaps.getEncodedLength(lHeaderSlots);
+		final long lDataLength = pVolume.getDataSizeInBytes();
+		return ToIntExact.toIntExact(3 * cLongSizeInBytes
+										+ lHeaderLength
+										+ lDataLength);
+	}
+
+	/**
+	 * Serializes a volume at the current position of the given buffer, which
+	 * must have at least getSerializedLength(pVolume) bytes remaining and be in
+	 * native byte order. The buffer position is advanced past the frame.
+	 *
+	 * @param pVolume
+	 *            volume to serialize
+	 * @param pByteBuffer
+	 *            destination buffer
+	 * @return destination buffer
+	 */
+	public static final ByteBuffer serializeInto(	Volume pVolume,
+													ByteBuffer pByteBuffer)
+	{
+		final KeyValueSlots lHeaderSlots = getHeaderSlots();
+		writeVolumeHeader(pVolume, lHeaderSlots);
+
+		final int lHeaderLength = KeyValueMaps.getEncodedLength(lHeaderSlots);
+		final long lDataLength = pVolume.getDataSizeInBytes();
+		final long lWholeLength = 3 * cLongSizeInBytes
+									+ lHeaderLength
+									+ lDataLength;
+
+		pByteBuffer.putLong(lWholeLength);
 		pByteBuffer.putLong(lHeaderLength);
-		pByteBuffer.put(lStringBuilder.toString().getBytes());
+		KeyValueMaps.writeBufferFromSlots(lHeaderSlots, pByteBuffer);
 		pByteBuffer.putLong(lDataLength);
 		pVolume.writeToByteBuffer(pByteBuffer);
 
 		return pByteBuffer;
-	};
+	}
 
-	private static void writeVolumeHeader(	Volume pVolume,
-											StringBuilder pStringBuilder)
+	/**
+	 * Parses the header of the serialized frame starting at the current
+	 * position of the given buffer, without touching the volume data. The
+	 * buffer position is left after the header.
+	 *
+	 * @param pFrameBuffer
+	 *            buffer positioned at the start of a frame
+	 * @param pHeaderSlots
+	 *            slots to reuse, or null
+	 * @return header slots
+	 */
+	public static final KeyValueSlots readFrameHeader(	ByteBuffer pFrameBuffer,
+														KeyValueSlots pHeaderSlots)
 	{
+		pFrameBuffer.getLong();
+		final int lHeaderLength = ToIntExact.toIntExact(pFrameBuffer.getLong());
+		return KeyValueMaps.readSlotsFromBuffer(pFrameBuffer,
+												lHeaderLength,
+												pHeaderSlots);
+	}
+
+	private static KeyValueSlots getHeaderSlots()
+	{
+		KeyValueSlots lHeaderSlots = sHeaderSlotsThreadLocal.get();
+		if (lHeaderSlots == null)
+		{
+			lHeaderSlots = new KeyValueSlots();
+			sHeaderSlotsThreadLocal.set(lHeaderSlots);
+		}
+		return lHeaderSlots;
+	}
 
-		final LinkedHashMap<String, String> lHeaderMap = new LinkedHashMap<String, String>();
-		lHeaderMap.put("index", "" + pVolume.getTimeIndex());
-		lHeaderMap.put("time", "" + pVolume.getTimeInSeconds());
-		lHeaderMap.put("channel", "" + pVolume.getChannelID());
-		lHeaderMap.put("channelname", pVolume.getChannelName());
-		lHeaderMap.put(	"color",
-						serializeFloatArray(pVolume.getColor()));
-		lHeaderMap.put(	"viewmatrix",
-						serializeFloatArray(pVolume.getViewMatrix()));
-		lHeaderMap.put("dim", "" + pVolume.getDimension());
-		lHeaderMap.put("type", "" + pVolume.getTypeName());
-		lHeaderMap.put(	"bytespervoxel",
-						"" + pVolume.getBytesPerVoxel());
-		lHeaderMap.put("elementsize", "" + pVolume.getElementSize());
-		lHeaderMap.put("width", "" + pVolume.getWidthInVoxels());
-		lHeaderMap.put("height", "" + pVolume.getHeightInVoxels());
-		lHeaderMap.put("depth", "" + pVolume.getDepthInVoxels());
-		lHeaderMap.put(	"voxelwidth",
-						"" + pVolume.getVoxelWidthInRealUnits());
-		lHeaderMap.put(	"voxelheight",
-						"" + pVolume.getVoxelHeightInRealUnits());
-		lHeaderMap.put(	"voxeldepth",
-						"" + pVolume.getVoxelDepthInRealUnits());
-		lHeaderMap.put("realunit", pVolume.getRealUnitName());
-
-		KeyValueMaps.writeStringFromMap(lHeaderMap, pStringBuilder);
+	private static void writeVolumeHeader(	Volume pVolume,
+											KeyValueSlots pHeaderSlots)
+	{
+		pHeaderSlots.clear();
+		pHeaderSlots.put("index").append(pVolume.getTimeIndex());
+		pHeaderSlots.put("time").append(pVolume.getTimeInSeconds());
+		// single stream frames stay as they were:
+		if (pVolume.getStreamID() != 0)
+			pHeaderSlots.put(cStreamKey).append(pVolume.getStreamID());
+		pHeaderSlots.put("channel").append(pVolume.getChannelID());
+		pHeaderSlots.put("channelname").append(pVolume.getChannelName());
+		serializeFloatArray(pVolume.getColor(),
+							pHeaderSlots.put("color"));
+		serializeFloatArray(pVolume.getViewMatrix(),
+							pHeaderSlots.put("viewmatrix"));
+		pHeaderSlots.put("dim").append(pVolume.getDimension());
+		pHeaderSlots.put("type").append(pVolume.getTypeName());
+		pHeaderSlots.put("bytespervoxel")
+					.append(pVolume.getBytesPerVoxel());
+		pHeaderSlots.put("elementsize").append(pVolume.getElementSize());
+		pHeaderSlots.put("width").append(pVolume.getWidthInVoxels());
+		pHeaderSlots.put("height").append(pVolume.getHeightInVoxels());
+		pHeaderSlots.put("depth").append(pVolume.getDepthInVoxels());
+		pHeaderSlots.put("voxelwidth")
+					.append(pVolume.getVoxelWidthInRealUnits());
+		pHeaderSlots.put("voxelheight")
+					.append(pVolume.getVoxelHeightInRealUnits());
+		pHeaderSlots.put("voxeldepth")
+					.append(pVolume.getVoxelDepthInRealUnits());
+		pHeaderSlots.put("realunit").append(pVolume.getRealUnitName());
 	}
 
 	static void readVolumeHeader(	ByteBuffer pByteBuffer,
 									int pHeaderLength,
 									Volume pVolume)
 	{
-
-		final Map<String, String> lHeaderMap = KeyValueMaps.readMapFromBuffer(	pByteBuffer,
+		final KeyValueSlots lHeaderSlots = KeyValueMaps.readSlotsFromBuffer(	pByteBuffer,
 																				pHeaderLength,
-																				null);
-		final long lIndex = parseLong(lHeaderMap.get("index"), 0);
-		final double lTime = parseDouble(lHeaderMap.get("time"), 0);
-		final int lVolumeChannelID = parseInt(	lHeaderMap.get("channel"),
-												0);
-		final String lVolumeChannelName = parseString(	lHeaderMap.get("channelname"),
-														"noname");
-
-		final float[] lColor = lHeaderMap.get("color") == null	? null
-																: parseFloatArray(	lHeaderMap.get("color"),
+																				getHeaderSlots());
+		applyVolumeHeader(lHeaderSlots, pVolume);
+	}
+
+	private static void applyVolumeHeader(	KeyValueSlots lHeaderSlots,
+											Volume pVolume)
+	{
+		final long lIndex = lHeaderSlots.getLong("index", 0);
+		final double lTime = lHeaderSlots.getDouble("time", 0);
+		final int lVolumeStreamID = lHeaderSlots.getInt(cStreamKey, 0);
+		final int lVolumeChannelID = lHeaderSlots.getInt("channel", 0);
+		final String lVolumeChannelName = lHeaderSlots.getString("channelname",
+																pVolume.getChannelName() == null ? "noname"
+																								: pVolume.getChannelName());
+
+		final float[] lColor = lHeaderSlots.get("color") == null ? null
+																: parseFloatArray(	lHeaderSlots.get("color"),
+																					pVolume.getColor(),
 																					new float[]
 																					{	1.f,
 																						1.f,
 																						1.f,
 																						1.f });
 
-		final float[] lViewMatrix = parseFloatArray(lHeaderMap.get("viewmatrix"),
+		final float[] lViewMatrix = parseFloatArray(lHeaderSlots.get("viewmatrix"),
+													pVolume.getViewMatrix(),
 													new float[]
 													{	1.f,
 														0.f,
@@ -119,29 +204,32 @@ public class ClearVolumeSerialization
 														0.f,
 														1.f });
 
-		final int lDim = parseInt(lHeaderMap.get("dim"), 3);
+		final int lDim = lHeaderSlots.getInt("dim", 3);
 
-		final String lType = lHeaderMap.get("type");
+		final CharSequence lType = lHeaderSlots.get("type");
 
-		final long lElementSize = parseLong(lHeaderMap.get("elementsize"),
-											1);
+		final long lElementSize = lHeaderSlots.getLong("elementsize", 1);
 
-		final long lWidth = parseLong(lHeaderMap.get("width"));
-		final long lHeight = parseLong(lHeaderMap.get("height"));
-		final long lDepth = parseLong(lHeaderMap.get("depth"));
+		final long lWidth = lHeaderSlots.getLong("width", 0);
+		final long lHeight = lHeaderSlots.getLong("height", 0);
+		final long lDepth = lHeaderSlots.getLong("depth", 0);
 
-		final String lRealUnitName = parseString(	lHeaderMap.get("realunit"),
-													"1");
-		final double lVoxelWidth = parseDouble(	lHeaderMap.get("voxelwidth"),
-												1.);
-		final double lVoxelHeight = parseDouble(lHeaderMap.get("voxelheight"),
-												1.);
-		final double lVoxelDepth = parseDouble(	lHeaderMap.get("voxeldepth"),
-												1.);
+		final String lRealUnitName = lHeaderSlots.getString("realunit",
+															pVolume.getRealUnitName() == null	? "1"
+																								: pVolume.getRealUnitName());
+		final double lVoxelWidth = lHeaderSlots.getDouble("voxelwidth", 1.);
+		final double lVoxelHeight = lHeaderSlots.getDouble(	"voxelheight",
+															1.);
+		final double lVoxelDepth = lHeaderSlots.getDouble("voxeldepth", 1.);
 
 		pVolume.setTimeIndex(lIndex);
 		pVolume.setTimeInSeconds(lTime);
-		pVolume.setType(lType);
+		if (lType == null || pVolume.getNativeType() == null
+			|| !KeyValueSlots.contentEquals(lType,
+											pVolume.getNativeType()
+													.name()))
+			pVolume.setType(lType == null ? "" : lType.toString());
+		pVolume.setStreamID(lVolumeStreamID);
 		pVolume.setChannelID(lVolumeChannelID);
 		pVolume.setChannelName(lVolumeChannelName);
 		pVolume.setColor(lColor);
@@ -159,95 +247,75 @@ public class ClearVolumeSerialization
 
 	};
 
-	private static float[] parseFloatArray(	String pString,
-											final float[] defaultValue)
+	private static float[] parseFloatArray(	CharSequence pCharSequence,
+											float[] pPreviousArray,
+											final float[] pDefaultValue)
 	{
-		return (pString == null) ? defaultValue
-								: deserializeFloatArray(pString);
+		return (pCharSequence == null) ? pDefaultValue
+										: deserializeFloatArray(pCharSequence,
+																pPreviousArray);
 
 	}
 
-	private static double parseDouble(String pString)
-	{
-		if (pString == null)
-			return 0;
-		return Double.parseDouble(pString);
-	}
-
-	private static String parseString(String pString)
-	{
-		if (pString == null)
-			return "";
-		return pString;
-	}
-
-	private static int parseInt(String pString)
-	{
-		if (pString == null)
-			return 0;
-		return Integer.parseInt(pString);
-	}
-
-	private static long parseLong(String pString)
-	{
-		if (pString == null)
-			return 0;
-		return Long.parseLong(pString);
-	}
-
-	private static double parseDouble(	String pString,
-										double defaultValue)
-	{
-		return (pString == null) ? defaultValue
-								: Double.parseDouble(pString);
-	}
-
-	private static String parseString(	String pString,
-										String defaultValue)
-	{
-		return (pString == null) ? defaultValue : pString;
-	}
-
-	private static int parseInt(String pString, int defaultValue)
-	{
-		return (pString == null) ? defaultValue
-								: Integer.parseInt(pString);
-	}
-
-	private static long parseLong(String pString, long defaultValue)
-	{
-		return (pString == null) ? defaultValue
-								: Long.parseLong(pString);
-	}
-
-	private static String serializeFloatArray(float[] pFloatArray)
+	private static void serializeFloatArray(float[] pFloatArray,
+											StringBuilder pStringBuilder)
 	{
 		if (pFloatArray == null)
-			return "";
-		final StringBuilder lStringBuilder = new StringBuilder();
+			return;
 		for (int i = 0; i < pFloatArray.length; i++)
 		{
 			final float lValue = pFloatArray[i];
-			lStringBuilder.append(lValue);
+			pStringBuilder.append(lValue);
 			if (i != pFloatArray.length - 1)
-				lStringBuilder.append(" ");
+				pStringBuilder.append(' ');
 		}
-		return lStringBuilder.toString();
 	}
 
-	private static float[] deserializeFloatArray(String pString)
+	private static float[] deserializeFloatArray(	CharSequence pCharSequence,
+													float[] pPreviousArray)
 	{
-		if (pString == null || pString.isEmpty())
+		int lStart = 0;
+		int lEnd = pCharSequence.length();
+		while (lStart < lEnd && pCharSequence.charAt(lStart) == ' ')
+			lStart++;
+		while (lEnd > lStart && pCharSequence.charAt(lEnd - 1) == ' ')
+			lEnd--;
+		if (lStart == lEnd)
 			return null;
-		float[] lFloatArray;
+
+		int lNumberOfValues = 1;
+		for (int i = lStart; i < lEnd; i++)
+			if (pCharSequence.charAt(i) == ' ')
+				lNumberOfValues++;
+
 		try
 		{
-			pString = pString.trim();
-			final String[] lSplittedString = pString.split(" ", -1);
-			lFloatArray = new float[lSplittedString.length];
-			for (int i = 0; i < lFloatArray.length; i++)
-				lFloatArray[i] = Float.parseFloat(lSplittedString[i]);
-			return lFloatArray;
+			// the previous array is returned when unchanged: it may be shared,
+			// hence it is never overwritten.
+			final boolean lSameLength = pPreviousArray != null && pPreviousArray.length == lNumberOfValues;
+			boolean lSameValues = lSameLength;
+			float[] lFloatArray = lSameLength ? null
+											: new float[lNumberOfValues];
+			int lValueStart = lStart;
+			int lValueIndex = 0;
+			for (int i = lStart; i <= lEnd; i++)
+				if (i == lEnd || pCharSequence.charAt(i) == ' ')
+				{
+					final float lValue = (float) KeyValueSlots.parseDouble(	pCharSequence,
+																			lValueStart,
+																			i);
+					if (lSameValues && Float.floatToIntBits(lValue) != Float.floatToIntBits(pPreviousArray[lValueIndex]))
+					{
+						lSameValues = false;
+						lFloatArray = Arrays.copyOf(pPreviousArray,
+													lNumberOfValues);
+					}
+					if (lFloatArray != null)
+						lFloatArray[lValueIndex] = lValue;
+					lValueIndex++;
+					lValueStart = i + 1;
+				}
+			return lSameValues ? pPreviousArray : lFloatArray;
 		}
 		catch (final NumberFormatException e)
 		{
@@ -260,6 +328,106 @@ public class ClearVolumeSerialization
 
 	public static final Volume deserialize(	SocketChannel pSocketChannel,
 											Volume pVolume) throws IOException
+	{
+		return deserialize(pSocketChannel, pVolume, null);
+	}
+
+	/**
+	 * Reads a frame from the socket, the volume data is read straight into the
+	 * volume's data buffer, either inline or by the given frame data reader.
+	 *
+	 * @param pSocketChannel
+	 *            channel to read from
+	 * @param pVolume
+	 *            volume to reuse, or null
+	 * @param pFrameDataReader
+	 *            reader for frames whose data is not inline, can be null
+	 * @return volume
+	 * @throws IOException
+	 *             if reading fails, or the peer closed the connection
+	 */
+	public static final Volume deserialize(	SocketChannel pSocketChannel,
+											Volume pVolume,
+											FrameDataReader pFrameDataReader) throws IOException
+	{
+		return deserialize(pSocketChannel, pVolume, pFrameDataReader, null);
+	}
+
+	/**
+	 * Reads a frame from the socket as above, and records the frame, its read
+	 * time (from its first byte on) and its deserialization time.
+	 *
+	 * @param pSocketChannel
+	 *            channel to read from
+	 * @param pVolume
+	 *            volume to reuse, or null
+	 * @param pFrameDataReader
+	 *            reader for frames whose data is not inline, can be null
+	 * @param pNetworkMetrics
+	 *            metrics to record into, can be null
+	 * @return volume
+	 * @throws IOException
+	 *             if reading fails, or the peer closed the connection
+	 */
+	public static final Volume deserialize(	SocketChannel pSocketChannel,
+											Volume pVolume,
+											FrameDataReader pFrameDataReader,
+											NetworkMetrics pNetworkMetrics) throws IOException
+	{
+		return deserialize(	pSocketChannel,
+							pVolume,
+							null,
+							null,
+							pFrameDataReader,
+							pNetworkMetrics,
+							false);
+	}
+
+	/**
+	 * Reads a frame from the socket as above, the frame can also be a batch
+	 * frame (see BatchFrames) in which case its volumes after the first one are
+	 * requested from the given volume manager.
+	 *
+	 * @param pSocketChannel
+	 *            channel to read from
+	 * @param pVolume
+	 *            volume to reuse for the first volume, or null
+	 * @param pVolumeManager
+	 *            manager of the volumes after the first one, can be null
+	 * @param pVolumes
+	 *            list the volumes read are added to
+	 * @param pFrameDataReader
+	 *            reader for frames whose data is not inline, can be null
+	 * @param pNetworkMetrics
+	 *            metrics to record into, can be null
+	 * @return list of the volumes read
+	 * @throws IOException
+	 *             if reading fails, or the peer closed the connection
+	 */
+	public static final List<Volume> deserialize(	SocketChannel pSocketChannel,
+													Volume pVolume,
+													VolumeManager pVolumeManager,
+													List<Volume> pVolumes,
+													FrameDataReader pFrameDataReader,
+													NetworkMetrics pNetworkMetrics) throws IOException
+	{
+		deserialize(pSocketChannel,
+					pVolume,
+					pVolumeManager,
+					pVolumes,
+					pFrameDataReader,
+					pNetworkMetrics,
+					true);
+		return pVolumes;
+	}
+
+	private static final Volume deserialize(SocketChannel pSocketChannel,
+											Volume pVolume,
+											VolumeManager pVolumeManager,
+											List<Volume> pVolumes,
+											FrameDataReader pFrameDataReader,
+											NetworkMetrics pNetworkMetrics,
+											boolean pBatchAllowed) throws IOException
 	{
 		if (pVolume == null)
 		{
@@ -274,48 +442,381 @@ public class ClearVolumeSerialization
 		}
 
 		readPartLength(pSocketChannel, pScratchBuffer);
+		final long lFrameStartNanos = System.nanoTime();
+		final long lReceiveTimeNanos = ClockSync.currentTimeNanos();
 
 		final int lHeaderLength = readPartLength(	pSocketChannel,
 													pScratchBuffer);
 
 		pScratchBuffer = ensureScratchBufferLengthIsEnough(	pScratchBuffer,
 															lHeaderLength);
+		sScratchBufferThreadLocal.set(pScratchBuffer);
 
 		readIntoScratchBuffer(	pSocketChannel,
 								pScratchBuffer,
 								lHeaderLength);
+		final long lHeaderReadNanos = System.nanoTime();
 		readVolumeHeader(pScratchBuffer, lHeaderLength, pVolume);
+		final long lSendTimeNanos = readClockSync(	getHeaderSlots(),
+													lReceiveTimeNanos,
+													pNetworkMetrics);
+		final int lFirstVolumeIndex = pVolumes == null ? 0 : pVolumes.size();
+		final long lHeaderParsedNanos = System.nanoTime();
 
 		final int lDataLength = readPartLength(	pSocketChannel,
 												pScratchBuffer);
 
-		if (pScratchBuffer.capacity() < lDataLength)
+		final long lDataLengthReadNanos = System.nanoTime();
+		final boolean lBatch = getHeaderSlots().containsKey(BatchFrames.cBatchKey);
+		if (lBatch && !pBatchAllowed)
+			throw new IOException("Batch frame received by a single volume reader");
+		final boolean lCompressed = !lBatch && getHeaderSlots().containsKey(FrameCompression.cCompressionKey);
+		ByteBuffer lDataBuffer;
+		if (lCompressed || lBatch)
 		{
-			pScratchBuffer = ByteBuffer.allocateDirect(lDataLength);
+			// compressed data and batches go to the scratch buffer first:
+			pScratchBuffer = ensureScratchBufferLengthIsEnough(	pScratchBuffer,
+																lDataLength);
+			sScratchBufferThreadLocal.set(pScratchBuffer);
+			lDataBuffer = pScratchBuffer;
+		}
+		else
+		{
+			ensureDataBuffer(pVolume, lDataLength);
+			lDataBuffer = pVolume.getDataBuffer();
+		}
+		lDataBuffer.clear();
+		lDataBuffer.limit(lDataLength);
+		long lDataBufferReadyNanos = System.nanoTime();
+		if (pFrameDataReader == null || !pFrameDataReader.readFrameData(getHeaderSlots(),
+																		lDataBuffer))
+			readFully(pSocketChannel, lDataBuffer);
+		lDataBuffer.clear();
+
+		if (lCompressed)
+		{
+			final long lDecompressionStartNanos = System.nanoTime();
+			lDataBuffer.limit(lDataLength);
+			try
+			{
+				readCompressedVolumeData(	getHeaderSlots(),
+											lDataBuffer,
+											pVolume);
+			}
+			catch (final DataFormatException e)
+			{
+				throw new IOException(e);
+			}
+			// decompression counts as deserialization:
+			lDataBufferReadyNanos += System.nanoTime() - lDecompressionStartNanos;
+		}
+
+		if (lBatch)
+		{
+			final long lBatchStartNanos = System.nanoTime();
+			lDataBuffer.limit(lDataLength);
+			readBatchVolumes(	lDataBuffer,
+								pVolume,
+								pVolumeManager,
+								pVolumes,
+								pNetworkMetrics);
+			lDataBufferReadyNanos += System.nanoTime() - lBatchStartNanos;
+		}
+		else if (pVolumes != null)
+			pVolumes.add(pVolume);
+
+		if (pNetworkMetrics != null)
+		{
+			final long lDeserializationNanos = lHeaderParsedNanos - lHeaderReadNanos
+												+ lDataBufferReadyNanos
+												- lDataLengthReadNanos;
+			pNetworkMetrics.recordDeserializationTime(lDeserializationNanos);
+			pNetworkMetrics.recordReadTime(System.nanoTime() - lFrameStartNanos
+											- lDeserializationNanos);
+			if (!lBatch)
+				pNetworkMetrics.recordFrame(pVolume.getChannelID(),
+											3 * cLongSizeInBytes + lHeaderLength
+													+ lDataLength);
+			if (lSendTimeNanos >= 0)
+			{
+				final long lReceivedTimeNanos = ClockSync.currentTimeNanos();
+				if (pVolumes == null)
+					pNetworkMetrics.recordNetworkLatency(	pVolume.getChannelID(),
+															lSendTimeNanos,
+															lReceivedTimeNanos);
+				else
+					for (int i = lFirstVolumeIndex; i < pVolumes.size(); i++)
+						pNetworkMetrics.recordNetworkLatency(	pVolumes.get(i)
+																		.getChannelID(),
+																lSendTimeNanos,
+																lReceivedTimeNanos);
+			}
+		}
+
+		return pVolume;
+	}
+
+	/**
+	 * Feeds the clock sync of the metrics with the pong carried by a frame
+	 * header, if any.
+	 *
+	 * @return send time of the frame, or -1 if the frame has none
+	 */
+	private static long readClockSync(	KeyValueSlots pHeaderSlots,
+										long pReceiveTimeNanos,
+										NetworkMetrics pNetworkMetrics)
+	{
+		final long lSendTimeNanos = pHeaderSlots.getLong(	ClockSync.cSendTimeKey,
+															-1);
+		if (pNetworkMetrics != null && lSendTimeNanos >= 0
+			&& pHeaderSlots.containsKey(ClockSync.cPingTimeKey))
+			pNetworkMetrics.getClockSync()
+							.recordExchange(pHeaderSlots.getLong(	ClockSync.cPingTimeKey,
+																	0),
+											pHeaderSlots.getLong(	ClockSync.cPingReceiveTimeKey,
+																	0),
+											lSendTimeNanos,
+											pReceiveTimeNanos);
+		return lSendTimeNanos;
+	}
+
+	/**
+	 * @return true for the header keys that only concern one connection, and
+	 *         that are not forwarded by relays
+	 */
+	private static boolean isConnectionKey(CharSequence pKey)
+	{
+		return KeyValueSlots.contentEquals(pKey, StripedTransport.cStripePortKey)
+				|| KeyValueSlots.contentEquals(pKey, StripedTransport.cStripesKey)
+				|| KeyValueSlots.contentEquals(pKey, ClockSync.cSendTimeKey)
+				|| KeyValueSlots.contentEquals(pKey, ClockSync.cPingTimeKey)
+				|| KeyValueSlots.contentEquals(pKey, ClockSync.cPingReceiveTimeKey);
+	}
+
+	private static ThreadLocal<KeyValueSlots> sMemberHeaderSlotsThreadLocal = new ThreadLocal<KeyValueSlots>();
+	private static ThreadLocal<KeyValueSlots> sMergedHeaderSlotsThreadLocal = new ThreadLocal<KeyValueSlots>();
+
+	/**
+	 * Reads the volumes of a batch frame, whose header was last read into the
+	 * header slots, from its data part.
+	 */
+	private static void readBatchVolumes(	ByteBuffer pBatchData,
+											Volume pFirstVolume,
+											VolumeManager pVolumeManager,
+											List<Volume> pVolumes,
+											NetworkMetrics pNetworkMetrics) throws IOException
+	{
+		final KeyValueSlots lBatchHeaderSlots = getHeaderSlots();
+		final KeyValueSlots lMemberHeaderSlots = getSlots(sMemberHeaderSlotsThreadLocal);
+		final KeyValueSlots lMergedHeaderSlots = getSlots(sMergedHeaderSlotsThreadLocal);
+		final int lNumberOfVolumes = lBatchHeaderSlots.getInt(	BatchFrames.cBatchKey,
+																0);
+
+		for (int i = 0; i < lNumberOfVolumes; i++)
+		{
+			Volume lVolume = pFirstVolume;
+			if (i > 0)
+			{
+				lVolume = pVolumeManager == null ? null
+												: pVolumeManager.requestAndWaitForNextAvailableVolume(	1,
+																										TimeUnit.MILLISECONDS);
+				if (lVolume == null)
+					lVolume = new Volume();
+			}
+
+			final int lVolumeStart = pBatchData.position();
+			final int lHeaderLength = ToIntExact.toIntExact(pBatchData.getLong());
+			KeyValueMaps.readSlotsFromBuffer(	pBatchData,
+												lHeaderLength,
+												lMemberHeaderSlots);
+			lMergedHeaderSlots.clear();
+			for (int j = 0; j < lBatchHeaderSlots.size(); j++)
+				lMergedHeaderSlots.put(	lBatchHeaderSlots.getKey(j),
+										lBatchHeaderSlots.getValue(j));
+			for (int j = 0; j < lMemberHeaderSlots.size(); j++)
+				lMergedHeaderSlots.put(	lMemberHeaderSlots.getKey(j),
+										lMemberHeaderSlots.getValue(j));
+			applyVolumeHeader(lMergedHeaderSlots, lVolume);
+
+			final int lDataLength = ToIntExact.toIntExact(pBatchData.getLong());
+			final ByteBuffer lData = pBatchData.duplicate();
+			lData.limit(pBatchData.position() + lDataLength);
+			if (lMergedHeaderSlots.containsKey(FrameCompression.cCompressionKey))
+			{
+				try
+				{
+					readCompressedVolumeData(	lMergedHeaderSlots,
+											lData,
+											lVolume);
+				}
+				catch (final DataFormatException e)
+				{
+					throw new IOException(e);
+				}
+			}
+			else
+			{
+				ensureDataBuffer(lVolume, lDataLength);
+				final ByteBuffer lDataBuffer = lVolume.getDataBuffer();
+				lDataBuffer.clear();
+				lDataBuffer.put(lData);
+				lDataBuffer.clear();
+			}
+			pBatchData.position(pBatchData.position() + lDataLength);
+
+			pVolumes.add(lVolume);
+			if (pNetworkMetrics != null)
+				pNetworkMetrics.recordFrame(lVolume.getChannelID(),
+											pBatchData.position() - lVolumeStart);
+		}
+	}
+
+	private static KeyValueSlots getSlots(ThreadLocal<KeyValueSlots> pThreadLocal)
+	{
+		KeyValueSlots lKeyValueSlots = pThreadLocal.get();
+		if (lKeyValueSlots == null)
+		{
+			lKeyValueSlots = new KeyValueSlots();
+			pThreadLocal.set(lKeyValueSlots);
+		}
+		return lKeyValueSlots;
+	}
+
+	/**
+	 * Reads a frame from the socket without deserializing it, into a pooled
+	 * frame ready to be forwarded as is. Only the header is parsed, to fill in
+	 * the frame's channel and time, and to drop the keys of the striped
+	 * transport which only make sense on the link the frame came from.
+	 *
+	 * @param pSocketChannel
+	 *            channel to read from
+	 * @param pSerializedFramePool
+	 *            pool to take the frame from
+	 * @param pFrameDataReader
+	 *            reader for frames whose data is not inline, can be null
+	 * @param pNetworkMetrics
+	 *            metrics to record into, can be null
+	 * @return frame with a reference count of one
+	 * @throws IOException
+	 *             if reading fails, or the peer closed the connection
+	 */
+	public static final SerializedFrame readFrame(	SocketChannel pSocketChannel,
+													SerializedFramePool pSerializedFramePool,
+													FrameDataReader pFrameDataReader,
+													NetworkMetrics pNetworkMetrics) throws IOException
+	{
+		ByteBuffer pScratchBuffer = sScratchBufferThreadLocal.get();
+		if (pScratchBuffer == null || pScratchBuffer.capacity() == 0)
+		{
+			pScratchBuffer = ByteBuffer.allocateDirect(cLongSizeInBytes);
 			pScratchBuffer.order(ByteOrder.nativeOrder());
 		}
 
+		readPartLength(pSocketChannel, pScratchBuffer);
+		final long lFrameStartNanos = System.nanoTime();
+		final long lReceiveTimeNanos = ClockSync.currentTimeNanos();
+
+		final int lHeaderLength = readPartLength(	pSocketChannel,
+													pScratchBuffer);
+
+		// header and data length in one go:
+		pScratchBuffer = ensureScratchBufferLengthIsEnough(	pScratchBuffer,
+															lHeaderLength + cLongSizeInBytes);
+		sScratchBufferThreadLocal.set(pScratchBuffer);
 		readIntoScratchBuffer(	pSocketChannel,
 								pScratchBuffer,
-								lDataLength);
-		readVolumeData(pScratchBuffer, lDataLength, pVolume);
+								lHeaderLength + cLongSizeInBytes);
+		final long lHeaderReadNanos = System.nanoTime();
 
-		sScratchBufferThreadLocal.set(pScratchBuffer);
+		final KeyValueSlots lHeaderSlots = KeyValueMaps.readSlotsFromBuffer(pScratchBuffer,
+																			lHeaderLength,
+																			getHeaderSlots());
+		final int lDataLength = ToIntExact.toIntExact(pScratchBuffer.getLong(lHeaderLength));
 
-		return pVolume;
+		final long lSendTimeNanos = readClockSync(	lHeaderSlots,
+													lReceiveTimeNanos,
+													pNetworkMetrics);
+
+		boolean lHasConnectionKeys = false;
+		for (int i = 0; i < lHeaderSlots.size() && !lHasConnectionKeys; i++)
+			lHasConnectionKeys = isConnectionKey(lHeaderSlots.getKey(i));
+
+		KeyValueSlots lForwardedHeaderSlots = null;
+		int lForwardedHeaderLength = lHeaderLength;
+		if (lHasConnectionKeys)
+		{
+			lForwardedHeaderSlots = getSlots(sForwardedHeaderSlotsThreadLocal);
+			lForwardedHeaderSlots.clear();
+			for (int i = 0; i < lHeaderSlots.size(); i++)
+				if (!isConnectionKey(lHeaderSlots.getKey(i)))
+					lForwardedHeaderSlots.put(	lHeaderSlots.getKey(i),
+												lHeaderSlots.getValue(i));
+			lForwardedHeaderLength = KeyValueMaps.getEncodedLength(lForwardedHeaderSlots);
+		}
+
+		final SerializedFrame lSerializedFrame = pSerializedFramePool.acquire(ToIntExact.toIntExact(3L * cLongSizeInBytes
+																									+ lForwardedHeaderLength
+																									+ lDataLength));
+		try
+		{
+			final ByteBuffer lFrameBuffer = lSerializedFrame.getByteBuffer();
+			lFrameBuffer.putLong(3 * cLongSizeInBytes + lForwardedHeaderLength
+									+ lDataLength);
+			lFrameBuffer.putLong(lForwardedHeaderLength);
+			if (lForwardedHeaderSlots != null)
+				KeyValueMaps.writeBufferFromSlots(	lForwardedHeaderSlots,
+													lFrameBuffer);
+			else
+			{
+				pScratchBuffer.limit(lHeaderLength);
+				pScratchBuffer.rewind();
+				lFrameBuffer.put(pScratchBuffer);
+			}
+			lFrameBuffer.putLong(lDataLength);
+
+			lSerializedFrame.setStreamID(lHeaderSlots.getInt(cStreamKey, 0));
+			lSerializedFrame.setChannelID(lHeaderSlots.getInt("channel", 0));
+			lSerializedFrame.setTimeIndex(lHeaderSlots.getLong("index", 0));
+			lSerializedFrame.setTimeInSeconds(lHeaderSlots.getDouble("time", 0));
+			final long lHeaderParsedNanos = System.nanoTime();
+
+			final ByteBuffer lDataBuffer = lFrameBuffer.slice();
+			if (pFrameDataReader == null || !pFrameDataReader.readFrameData(lHeaderSlots,
+																			lDataBuffer))
+				readFully(pSocketChannel, lDataBuffer);
+			lFrameBuffer.rewind();
+
+			if (pNetworkMetrics != null)
+			{
+				final long lDeserializationNanos = lHeaderParsedNanos - lHeaderReadNanos;
+				pNetworkMetrics.recordDeserializationTime(lDeserializationNanos);
+				pNetworkMetrics.recordReadTime(System.nanoTime() - lFrameStartNanos
+												- lDeserializationNanos);
+				pNetworkMetrics.recordFrame(lSerializedFrame.getChannelID(),
+											lSerializedFrame.getLength());
+				if (lSendTimeNanos >= 0)
+					pNetworkMetrics.recordNetworkLatency(	lSerializedFrame.getChannelID(),
+															lSendTimeNanos,
+															ClockSync.currentTimeNanos());
+			}
+			return lSerializedFrame;
+		}
+		catch (final IOException | RuntimeException e)
+		{
+			lSerializedFrame.release();
+			throw e;
+		}
 	}
 
+	private static ThreadLocal<KeyValueSlots> sForwardedHeaderSlotsThreadLocal = new ThreadLocal<KeyValueSlots>();
+
 	private static void readIntoScratchBuffer(	SocketChannel pSocketChannel,
 												ByteBuffer pScratchBuffer,
 												final int lHeaderLength) throws IOException
 	{
 		pScratchBuffer.clear();
 		pScratchBuffer.limit(lHeaderLength);
-		while (pScratchBuffer.hasRemaining())
-		{
-			pSocketChannel.read(pScratchBuffer);
-			sleep();
-		}
+		readFully(pSocketChannel, pScratchBuffer);
 		pScratchBuffer.rewind();
 	}
 
@@ -335,16 +836,31 @@ public class ClearVolumeSerialization
 	{
 		pScratchBuffer.clear();
 		pScratchBuffer.limit(cLongSizeInBytes);
-		while (pScratchBuffer.hasRemaining())
-		{
-			pSocketChannel.read(pScratchBuffer);
-			sleep();
-		}
+		readFully(pSocketChannel, pScratchBuffer);
 		pScratchBuffer.rewind();
 		final int lHeaderLength = ToIntExact.toIntExact(pScratchBuffer.getLong());
 		return lHeaderLength;
 	};
 
+	/**
+	 * Reads until the buffer is full.
+	 *
+	 * @throws EOFException
+	 *             if the peer closed the connection
+	 */
+	static void readFully(	SocketChannel pSocketChannel,
+							ByteBuffer pByteBuffer) throws IOException
+	{
+		while (pByteBuffer.hasRemaining())
+		{
+			final int lRead = pSocketChannel.read(pByteBuffer);
+			if (lRead < 0)
+				throw new EOFException("Connection closed by peer");
+			if (lRead == 0)
+				sleep();
+		}
+	}
+
 	public static final Volume deserialize(	ByteBuffer pByteBuffer,
 											Volume pVolume)
 	{
@@ -361,7 +877,46 @@ public class ClearVolumeSerialization
 								long pDataLength,
 								Volume pVolume)
 	{
+		if (getHeaderSlots().containsKey(FrameCompression.cCompressionKey))
+		{
+			final ByteBuffer lCompressedData = pByteBuffer.duplicate();
+			lCompressedData.limit(lCompressedData.position() + ToIntExact.toIntExact(pDataLength));
+			try
+			{
+				readCompressedVolumeData(	getHeaderSlots(),
+											lCompressedData,
+											pVolume);
+			}
+			catch (final DataFormatException e)
+			{
+				throw new IllegalArgumentException(e);
+			}
+			pByteBuffer.position(lCompressedData.limit());
+			return;
+		}
 
+		ensureDataBuffer(pVolume, pDataLength);
+		pVolume.readFromByteBuffer(pByteBuffer);
+		pVolume.getDataBuffer().clear();
+	}
+
+	private static void readCompressedVolumeData(	KeyValueSlots pHeaderSlots,
+													ByteBuffer pCompressedData,
+													Volume pVolume) throws DataFormatException
+	{
+		ensureDataBuffer(pVolume, pVolume.getDataSizeInBytes());
+		final ByteBuffer lDataBuffer = pVolume.getDataBuffer();
+		lDataBuffer.clear();
+		FrameCompression.get()
+						.decompress(pCompressedData,
+									lDataBuffer,
+									pHeaderSlots.getInt(FrameCompression.cShuffleKey,
+														1));
+		lDataBuffer.clear();
+	}
+
+	private static void ensureDataBuffer(Volume pVolume, long pDataLength)
+	{
 		if (pVolume.getDataBuffer() == null || pVolume.getDataBuffer()
 														.capacity() != pDataLength)
 		{
@@ -370,8 +925,6 @@ public class ClearVolumeSerialization
 			lByteBuffer.clear();
 			pVolume.setDataBuffer(lByteBuffer);
 		}
-
-		pVolume.readFromByteBuffer(pByteBuffer);
 	}
 
 	private static void sleep()
@@ -0,0 +1,275 @@
+package clearvolume.network.serialization;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import clearvolume.network.serialization.keyvalue.KeyValueSlots;
+
+/**
+ * What a client wants to receive: which channels, which region of the volumes
+ * at which resolution level, and at most how many volumes per second and
+ * channel. Sent by clients as a 'view' control message, the server then crops
+ * and downsamples volumes for that client before sending them.
+ */
+public class ClientView
+{
+	public static final String cViewRequest = "view";
+	public static final String cChannelsKey = "channels";
+	public static final String cExcludedChannelsKey = "excluded";
+	public static final String cRegionOfInterestKey = "roi";
+	public static final String cResolutionLevelKey = "level";
+	public static final String cMaxFrameRateKey = "fps";
+
+	private static final int cMaxResolutionLevel = 16;
+
+	private TreeSet<Integer> mChannels;
+	private final TreeSet<Integer> mExcludedChannels = new TreeSet<>();
+	private float[] mRegionOfInterest;
+	private int mResolutionLevel;
+	private double mMaxFrameRate;
+
+	/**
+	 * Creates a view of all channels, whole volumes at full resolution and
+	 * frame rate.
+	 */
+	public ClientView()
+	{
+		super();
+	}
+
+	public ClientView(ClientView pClientView)
+	{
+		super();
+		if (pClientView.mChannels != null)
+			mChannels = new TreeSet<>(pClientView.mChannels);
+		mExcludedChannels.addAll(pClientView.mExcludedChannels);
+		if (pClientView.mRegionOfInterest != null)
+			mRegionOfInterest = Arrays.copyOf(pClientView.mRegionOfInterest, 6);
+		mResolutionLevel = pClientView.mResolutionLevel;
+		mMaxFrameRate = pClientView.mMaxFrameRate;
+	}
+
+	/**
+	 * Restricts the view to the given channels, none for all channels.
+	 *
+	 * @param pChannelIDs
+	 *            channels
+	 */
+	public void setChannels(int... pChannelIDs)
+	{
+		mExcludedChannels.clear();
+		if (pChannelIDs == null || pChannelIDs.length == 0)
+		{
+			mChannels = null;
+			return;
+		}
+		mChannels = new TreeSet<>();
+		for (final int lChannelID : pChannelIDs)
+			mChannels.add(lChannelID);
+	}
+
+	public void subscribe(int pChannelID)
+	{
+		mExcludedChannels.remove(pChannelID);
+		if (mChannels != null)
+			mChannels.add(pChannelID);
+	}
+
+	public void unsubscribe(int pChannelID)
+	{
+		if (mChannels != null)
+			mChannels.remove(pChannelID);
+		else
+			mExcludedChannels.add(pChannelID);
+	}
+
+	public boolean isChannelAccepted(int pChannelID)
+	{
+		return (mChannels == null || mChannels.contains(pChannelID)) && !mExcludedChannels.contains(pChannelID);
+	}
+
+	/**
+	 * @return subscribed channels, null if all
+	 */
+	public Set<Integer> getChannels()
+	{
+		return mChannels;
+	}
+
+	/**
+	 * Sets the region of interest in normalized coordinates, null for the
+	 * whole volume.
+	 *
+	 * @param pRegionOfInterest
+	 *            {x0, y0, z0, x1, y1, z1} between 0 and 1
+	 */
+	public void setRegionOfInterest(float... pRegionOfInterest)
+	{
+		if (pRegionOfInterest != null && pRegionOfInterest.length != 6)
+			throw new IllegalArgumentException("Region of interest must be {x0, y0, z0, x1, y1, z1}");
+		mRegionOfInterest = pRegionOfInterest == null	? null
+														: Arrays.copyOf(pRegionOfInterest,
+																		6);
+	}
+
+	public float[] getRegionOfInterest()
+	{
+		return mRegionOfInterest;
+	}
+
+	/**
+	 * Sets the resolution level, volumes are downsampled by 2^level along each
+	 * axis.
+	 *
+	 * @param pResolutionLevel
+	 *            resolution level, 0 for full resolution
+	 */
+	public void setResolutionLevel(int pResolutionLevel)
+	{
+		mResolutionLevel = Math.max(0,
+									Math.min(pResolutionLevel, cMaxResolutionLevel));
+	}
+
+	public int getResolutionLevel()
+	{
+		return mResolutionLevel;
+	}
+
+	/**
+	 * Sets the max number of volumes per second and channel, 0 for no limit.
+	 *
+	 * @param pMaxFrameRate
+	 *            max frame rate
+	 */
+	public void setMaxFrameRate(double pMaxFrameRate)
+	{
+		mMaxFrameRate = Math.max(0, pMaxFrameRate);
+	}
+
+	public double getMaxFrameRate()
+	{
+		return mMaxFrameRate;
+	}
+
+	/**
+	 * @return fraction of the volume data kept by the region of interest and
+	 *         resolution level
+	 */
+	public double getSamplingFactor()
+	{
+		double lFactor = 1.0 / (1L << (3 * mResolutionLevel));
+		if (mRegionOfInterest != null)
+			for (int i = 0; i < 3; i++)
+				lFactor *= Math.max(0,
+									Math.min(1, mRegionOfInterest[i + 3]) - Math.max(	0,
+																						mRegionOfInterest[i]));
+		return lFactor;
+	}
+
+	/**
+	 * @return true if volumes are sent whole and at full resolution
+	 */
+	public boolean isFullResolution()
+	{
+		return mRegionOfInterest == null && mResolutionLevel == 0;
+	}
+
+	/**
+	 * Writes this view as a control message.
+	 *
+	 * @param pKeyValueSlots
+	 *            message slots, cleared first
+	 */
+	public void write(KeyValueSlots pKeyValueSlots)
+	{
+		pKeyValueSlots.clear();
+		pKeyValueSlots.put(ClearVolumeControlMessages.cRequestKey, cViewRequest);
+		if (mChannels != null)
+			appendIntegers(pKeyValueSlots.put(cChannelsKey), mChannels);
+		if (!mExcludedChannels.isEmpty())
+			appendIntegers(	pKeyValueSlots.put(cExcludedChannelsKey),
+							mExcludedChannels);
+		if (mRegionOfInterest != null)
+		{
+			final StringBuilder lValue = pKeyValueSlots.put(cRegionOfInterestKey);
+			for (int i = 0; i < 6; i++)
+				lValue.append(i == 0 ? "" : " ").append(mRegionOfInterest[i]);
+		}
+		pKeyValueSlots.put(cResolutionLevelKey).append(mResolutionLevel);
+		pKeyValueSlots.put(cMaxFrameRateKey).append(mMaxFrameRate);
+	}
+
+	/**
+	 * Reads a view from a control message.
+	 *
+	 * @param pKeyValueSlots
+	 *            message slots
+	 * @return view
+	 */
+	public static ClientView read(KeyValueSlots pKeyValueSlots)
+	{
+		final ClientView lClientView = new ClientView();
+		final CharSequence lChannels = pKeyValueSlots.get(cChannelsKey);
+		if (lChannels != null)
+			lClientView.mChannels = parseIntegers(lChannels);
+		final CharSequence lExcludedChannels = pKeyValueSlots.get(cExcludedChannelsKey);
+		if (lExcludedChannels != null)
+			lClientView.mExcludedChannels.addAll(parseIntegers(lExcludedChannels));
+
+		final CharSequence lRegionOfInterest = pKeyValueSlots.get(cRegionOfInterestKey);
+		if (lRegionOfInterest != null)
+		{
+			final String[] lValues = lRegionOfInterest.toString()
+														.trim()
+														.split(" +");
+			if (lValues.length == 6)
+			{
+				final float[] lBox = new float[6];
+				for (int i = 0; i < 6; i++)
+					lBox[i] = Float.parseFloat(lValues[i]);
+				lClientView.mRegionOfInterest = lBox;
+			}
+		}
+
+		lClientView.setResolutionLevel(pKeyValueSlots.getInt(	cResolutionLevelKey,
+																0));
+		lClientView.setMaxFrameRate(pKeyValueSlots.getDouble(	cMaxFrameRateKey,
+																0));
+		return lClientView;
+	}
+
+	private static void appendIntegers(	StringBuilder pStringBuilder,
+										Set<Integer> pIntegers)
+	{
+		boolean lFirst = true;
+		for (final Integer lInteger : pIntegers)
+		{
+			if (!lFirst)
+				pStringBuilder.append(' ');
+			pStringBuilder.append(lInteger.intValue());
+			lFirst = false;
+		}
+	}
+
+	private static TreeSet<Integer> parseIntegers(CharSequence pCharSequence)
+	{
+		final TreeSet<Integer> lIntegers = new TreeSet<>();
+		for (final String lValue : pCharSequence.toString().trim().split(" +"))
+			if (!lValue.isEmpty())
+				lIntegers.add(Integer.parseInt(lValue));
+		return lIntegers;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format(	"ClientView [mChannels=%s, mExcludedChannels=%s, mRegionOfInterest=%s, mResolutionLevel=%s, mMaxFrameRate=%s]",
+								mChannels == null ? "all" : mChannels,
+								mExcludedChannels,
+								Arrays.toString(mRegionOfInterest),
+								mResolutionLevel,
+								mMaxFrameRate);
+	}
+
+}
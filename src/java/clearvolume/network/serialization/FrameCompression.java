@@ -0,0 +1,274 @@
+package clearvolume.network.serialization;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import clearvolume.network.serialization.keyvalue.KeyValueSlots;
+
+/**
+ * Lossless compression of the data of serialized frames. A compressed frame is
+ * a regular frame whose header has the extra key 'compression' (the deflate
+ * level used) and whose data part holds the deflated volume data; its
+ * uncompressed length follows from the volume dimensions in the header.
+ * Readers that see the key inflate the data, frames without it are raw.
+ *
+ * Data of multi-byte voxels can be shuffled before deflating: the first bytes
+ * of all voxels come first, then the second bytes, and so on. The high bytes
+ * of 16 bit images vary little and deflate better grouped together. Such
+ * frames have the extra key 'shuffle' (the voxel size), which readers older
+ * than it don't know about: shuffling is only for frames this code reads back.
+ *
+ * Instances keep their deflater and buffers and are not thread safe.
+ */
+public class FrameCompression
+{
+	public static final String cCompressionKey = "compression";
+	public static final String cShuffleKey = "shuffle";
+
+	private static final int cLongSizeInBytes = 8;
+
+	private static final ThreadLocal<FrameCompression> sFrameCompressionThreadLocal = new ThreadLocal<FrameCompression>();
+
+	private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+	private final Inflater mInflater = new Inflater();
+	private byte[] mInputArray = new byte[0];
+	private byte[] mOutputArray = new byte[0];
+	private byte[] mShuffleArray = new byte[0];
+	private final KeyValueSlots mPrefixSlots = new KeyValueSlots();
+	private ByteBuffer mPrefixBuffer;
+
+	/**
+	 * Compresses the data of a frame into a new frame from the given pool.
+	 *
+	 * @param pSerializedFrame
+	 *            raw frame
+	 * @param pCompressionLevel
+	 *            deflate level from 1 (fastest) to 9 (smallest)
+	 * @param pSerializedFramePool
+	 *            pool for the compressed frame
+	 * @return compressed frame with a reference count of one, or the raw frame
+	 *         retained once more if compression doesn't make it smaller
+	 */
+	public SerializedFrame compress(SerializedFrame pSerializedFrame,
+									int pCompressionLevel,
+									SerializedFramePool pSerializedFramePool)
+	{
+		return compress(pSerializedFrame,
+						pCompressionLevel,
+						1,
+						pSerializedFramePool);
+	}
+
+	/**
+	 * Compresses the data of a frame into a new frame from the given pool,
+	 * shuffling the bytes of its voxels first.
+	 *
+	 * @param pSerializedFrame
+	 *            raw frame
+	 * @param pCompressionLevel
+	 *            deflate level from 1 (fastest) to 9 (smallest)
+	 * @param pBytesPerVoxel
+	 *            voxel size, no shuffling if 1
+	 * @param pSerializedFramePool
+	 *            pool for the compressed frame
+	 * @return compressed frame with a reference count of one, or the raw frame
+	 *         retained once more if compression doesn't make it smaller
+	 */
+	public SerializedFrame compress(SerializedFrame pSerializedFrame,
+									int pCompressionLevel,
+									int pBytesPerVoxel,
+									SerializedFramePool pSerializedFramePool)
+	{
+		final ByteBuffer lFrameBuffer = pSerializedFrame.duplicate();
+		final int lDataOffset = StripedTransport.getDataOffset(lFrameBuffer);
+		final int lDataLength = lFrameBuffer.limit() - lDataOffset;
+
+		mInputArray = ensureLength(mInputArray, lDataLength);
+		lFrameBuffer.position(lDataOffset);
+		lFrameBuffer.get(mInputArray, 0, lDataLength);
+
+		final boolean lShuffle = pBytesPerVoxel > 1;
+		byte[] lDeflaterInput = mInputArray;
+		if (lShuffle)
+		{
+			mShuffleArray = ensureLength(mShuffleArray, lDataLength);
+			shuffle(mInputArray, mShuffleArray, lDataLength, pBytesPerVoxel);
+			lDeflaterInput = mShuffleArray;
+		}
+
+		mDeflater.reset();
+		mDeflater.setLevel(Math.max(1, Math.min(pCompressionLevel, 9)));
+		mDeflater.setInput(lDeflaterInput, 0, lDataLength);
+		mDeflater.finish();
+
+		// no need to go on once the output is as large as the input:
+		mOutputArray = ensureLength(mOutputArray, lDataLength);
+		int lCompressedLength = 0;
+		while (!mDeflater.finished() && lCompressedLength < lDataLength)
+			lCompressedLength += mDeflater.deflate(	mOutputArray,
+													lCompressedLength,
+													lDataLength - lCompressedLength);
+		if (!mDeflater.finished() || lCompressedLength >= lDataLength)
+			return pSerializedFrame.retain();
+
+		if (lShuffle)
+		{
+			mPrefixSlots.clear();
+			mPrefixSlots.put(cCompressionKey).append(pCompressionLevel);
+			mPrefixSlots.put(cShuffleKey).append(pBytesPerVoxel);
+			mPrefixBuffer = StripedTransport.writeFramePrefix(	pSerializedFrame.duplicate(),
+																mPrefixSlots,
+																mPrefixBuffer);
+		}
+		else
+			mPrefixBuffer = StripedTransport.writeFramePrefix(	pSerializedFrame.duplicate(),
+																cCompressionKey,
+																pCompressionLevel,
+																mPrefixBuffer);
+		final int lPrefixLength = mPrefixBuffer.remaining();
+		mPrefixBuffer.putLong(0, lPrefixLength + lCompressedLength);
+		mPrefixBuffer.putLong(lPrefixLength - cLongSizeInBytes,
+								lCompressedLength);
+
+		final SerializedFrame lCompressedFrame = pSerializedFramePool.acquire(lPrefixLength + lCompressedLength);
+		final ByteBuffer lCompressedBuffer = lCompressedFrame.getByteBuffer();
+		lCompressedBuffer.put(mPrefixBuffer);
+		lCompressedBuffer.put(mOutputArray, 0, lCompressedLength);
+		lCompressedBuffer.flip();
+		lCompressedFrame.setStreamID(pSerializedFrame.getStreamID());
+		lCompressedFrame.setChannelID(pSerializedFrame.getChannelID());
+		lCompressedFrame.setTimeIndex(pSerializedFrame.getTimeIndex());
+		lCompressedFrame.setTimeInSeconds(pSerializedFrame.getTimeInSeconds());
+		return lCompressedFrame;
+	}
+
+	/**
+	 * Inflates compressed frame data.
+	 *
+	 * @param pCompressedData
+	 *            compressed data between position and limit
+	 * @param pDestination
+	 *            destination, filled from its position up to its limit
+	 * @throws DataFormatException
+	 *             if the data is corrupt or doesn't fill the destination
+	 */
+	public void decompress(	ByteBuffer pCompressedData,
+							ByteBuffer pDestination) throws DataFormatException
+	{
+		decompress(pCompressedData, pDestination, 1);
+	}
+
+	/**
+	 * Inflates compressed frame data, and unshuffles it.
+	 *
+	 * @param pCompressedData
+	 *            compressed data between position and limit
+	 * @param pDestination
+	 *            destination, filled from its position up to its limit
+	 * @param pBytesPerVoxel
+	 *            value of the 'shuffle' key, 1 if absent
+	 * @throws DataFormatException
+	 *             if the data is corrupt or doesn't fill the destination
+	 */
+	public void decompress(	ByteBuffer pCompressedData,
+							ByteBuffer pDestination,
+							int pBytesPerVoxel) throws DataFormatException
+	{
+		final int lCompressedLength = pCompressedData.remaining();
+		final int lLength = pDestination.remaining();
+
+		mInputArray = ensureLength(mInputArray, lCompressedLength);
+		pCompressedData.get(mInputArray, 0, lCompressedLength);
+		mOutputArray = ensureLength(mOutputArray, lLength);
+
+		mInflater.reset();
+		mInflater.setInput(mInputArray, 0, lCompressedLength);
+		int lInflatedLength = 0;
+		while (lInflatedLength < lLength && !mInflater.finished())
+		{
+			final int lInflated = mInflater.inflate(mOutputArray,
+													lInflatedLength,
+													lLength - lInflatedLength);
+			if (lInflated == 0 && (mInflater.needsInput() || mInflater.needsDictionary()))
+				break;
+			lInflatedLength += lInflated;
+		}
+		if (lInflatedLength != lLength)
+			throw new DataFormatException("Compressed frame data inflates to " + lInflatedLength
+											+ " bytes instead of "
+											+ lLength);
+		if (pBytesPerVoxel > 1)
+		{
+			mShuffleArray = ensureLength(mShuffleArray, lLength);
+			unshuffle(mOutputArray, mShuffleArray, lLength, pBytesPerVoxel);
+			pDestination.put(mShuffleArray, 0, lLength);
+		}
+		else
+			pDestination.put(mOutputArray, 0, lLength);
+	}
+
+	private static void shuffle(byte[] pSource,
+								byte[] pDestination,
+								int pLength,
+								int pBytesPerVoxel)
+	{
+		final int lNumberOfVoxels = pLength / pBytesPerVoxel;
+		for (int b = 0; b < pBytesPerVoxel; b++)
+		{
+			final int lPlaneOffset = b * lNumberOfVoxels;
+			for (int i = 0; i < lNumberOfVoxels; i++)
+				pDestination[lPlaneOffset + i] = pSource[i * pBytesPerVoxel + b];
+		}
+		// trailing bytes that don't make a voxel stay in place:
+		final int lShuffledLength = lNumberOfVoxels * pBytesPerVoxel;
+		System.arraycopy(	pSource,
+							lShuffledLength,
+							pDestination,
+							lShuffledLength,
+							pLength - lShuffledLength);
+	}
+
+	private static void unshuffle(	byte[] pSource,
+									byte[] pDestination,
+									int pLength,
+									int pBytesPerVoxel)
+	{
+		final int lNumberOfVoxels = pLength / pBytesPerVoxel;
+		for (int b = 0; b < pBytesPerVoxel; b++)
+		{
+			final int lPlaneOffset = b * lNumberOfVoxels;
+			for (int i = 0; i < lNumberOfVoxels; i++)
+				pDestination[i * pBytesPerVoxel + b] = pSource[lPlaneOffset + i];
+		}
+		final int lShuffledLength = lNumberOfVoxels * pBytesPerVoxel;
+		System.arraycopy(	pSource,
+							lShuffledLength,
+							pDestination,
+							lShuffledLength,
+							pLength - lShuffledLength);
+	}
+
+	/**
+	 * @return compression instance of the calling thread
+	 */
+	public static FrameCompression get()
+	{
+		FrameCompression lFrameCompression = sFrameCompressionThreadLocal.get();
+		if (lFrameCompression == null)
+		{
+			lFrameCompression = new FrameCompression();
+			sFrameCompressionThreadLocal.set(lFrameCompression);
+		}
+		return lFrameCompression;
+	}
+
+	private static byte[] ensureLength(byte[] pArray, int pLength)
+	{
+		if (pArray.length < pLength)
+			return new byte[pLength];
+		return pArray;
+	}
+
+}
@@ -0,0 +1,27 @@
+package clearvolume.network.serialization;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import clearvolume.network.serialization.keyvalue.KeyValueSlots;
+
+/**
+ * Reads the data of a volume frame from somewhere other than the socket the
+ * frame header came from.
+ */
+public interface FrameDataReader
+{
+	/**
+	 * Called once the frame header is read.
+	 *
+	 * @param pHeaderSlots
+	 *            frame header
+	 * @param pDataBuffer
+	 *            volume data buffer, between 0 and the data length
+	 * @return true if the data was read, false if it follows inline
+	 * @throws IOException
+	 *             if reading fails
+	 */
+	boolean readFrameData(	KeyValueSlots pHeaderSlots,
+							ByteBuffer pDataBuffer) throws IOException;
+}
@@ -0,0 +1,145 @@
+package clearvolume.network.serialization;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A serialized volume frame held in a reference counted buffer, so that one
+ * serialization can be shared by several readers (e.g. the connections of a
+ * server). Each holder calls retain() before keeping the frame and release()
+ * when done with it; the buffer returns to its pool once released by all.
+ */
+public class SerializedFrame
+{
+	private final SerializedFramePool mPool;
+	private final AtomicInteger mReferenceCount = new AtomicInteger();
+	private ByteBuffer mByteBuffer;
+
+	private volatile int mStreamID;
+	private volatile int mChannelID;
+	private volatile long mTimeIndex;
+	private volatile double mTimeInSeconds;
+
+	SerializedFrame(SerializedFramePool pPool)
+	{
+		super();
+		mPool = pPool;
+	}
+
+	void ensureCapacity(int pLength)
+	{
+		if (mByteBuffer == null || mByteBuffer.capacity() < pLength)
+			mByteBuffer = ByteBuffer.allocateDirect(pLength)
+									.order(ByteOrder.nativeOrder());
+		mByteBuffer.clear();
+		mByteBuffer.limit(pLength);
+	}
+
+	void setReferenceCount(int pReferenceCount)
+	{
+		mReferenceCount.set(pReferenceCount);
+	}
+
+	/**
+	 * @return underlying buffer, the frame lies between 0 and limit. Must not
+	 *         be modified once the frame is shared.
+	 */
+	public ByteBuffer getByteBuffer()
+	{
+		return mByteBuffer;
+	}
+
+	/**
+	 * @return independent view of the frame bytes, ready to be read or written
+	 *         to a channel
+	 */
+	public ByteBuffer duplicate()
+	{
+		final ByteBuffer lDuplicate = mByteBuffer.duplicate();
+		lDuplicate.order(mByteBuffer.order());
+		lDuplicate.position(0);
+		return lDuplicate;
+	}
+
+	public int getLength()
+	{
+		return mByteBuffer.limit();
+	}
+
+	public int getStreamID()
+	{
+		return mStreamID;
+	}
+
+	public void setStreamID(int pStreamID)
+	{
+		mStreamID = pStreamID;
+	}
+
+	public int getChannelID()
+	{
+		return mChannelID;
+	}
+
+	public void setChannelID(int pChannelID)
+	{
+		mChannelID = pChannelID;
+	}
+
+	public long getTimeIndex()
+	{
+		return mTimeIndex;
+	}
+
+	public void setTimeIndex(long pTimeIndex)
+	{
+		mTimeIndex = pTimeIndex;
+	}
+
+	public double getTimeInSeconds()
+	{
+		return mTimeInSeconds;
+	}
+
+	public void setTimeInSeconds(double pTimeInSeconds)
+	{
+		mTimeInSeconds = pTimeInSeconds;
+	}
+
+	public SerializedFrame retain()
+	{
+		mReferenceCount.incrementAndGet();
+		return this;
+	}
+
+	public void release()
+	{
+		final int lReferenceCount = mReferenceCount.decrementAndGet();
+		if (lReferenceCount == 0)
+		{
+			if (mPool != null)
+				mPool.recycle(this);
+		}
+		else if (lReferenceCount < 0)
+			throw new IllegalStateException("Serialized frame released too many times");
+	}
+
+	public int getReferenceCount()
+	{
+		return mReferenceCount.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format(	"SerializedFrame [mStreamID=%s, mChannelID=%s, mTimeIndex=%s, mLength=%s, mReferenceCount=%s]",
+								mStreamID,
+								mChannelID,
+								mTimeIndex,
+								mByteBuffer == null ? 0
+													: mByteBuffer.limit(),
+								mReferenceCount.get());
+	}
+
+}
@@ -0,0 +1,71 @@
+package clearvolume.network.serialization;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import clearvolume.volume.Volume;
+
+/**
+ * Pool of serialized frames, recycled frames keep their buffers so that steady
+ * state serialization does not allocate.
+ */
+public class SerializedFramePool
+{
+	private final ArrayBlockingQueue<SerializedFrame> mAvailableFrames;
+
+	public SerializedFramePool(int pMaxAvailableFrames)
+	{
+		super();
+		mAvailableFrames = new ArrayBlockingQueue<SerializedFrame>(pMaxAvailableFrames);
+	}
+
+	/**
+	 * Returns a frame with a buffer of the given length, and a reference count
+	 * of one.
+	 *
+	 * @param pLength
+	 *            frame length in bytes
+	 * @return frame
+	 */
+	public SerializedFrame acquire(int pLength)
+	{
+		SerializedFrame lSerializedFrame = mAvailableFrames.poll();
+		if (lSerializedFrame == null)
+			lSerializedFrame = new SerializedFrame(this);
+		lSerializedFrame.ensureCapacity(pLength);
+		lSerializedFrame.setReferenceCount(1);
+		return lSerializedFrame;
+	}
+
+	/**
+	 * Serializes a volume into a pooled frame with a reference count of one.
+	 *
+	 * @param pVolume
+	 *            volume
+	 * @return frame
+	 */
+	public SerializedFrame serialize(Volume pVolume)
+	{
+		final int lLength = ClearVolumeSerialization.getSerializedLength(pVolume);
+		final SerializedFrame lSerializedFrame = acquire(lLength);
+		final ByteBuffer lByteBuffer = lSerializedFrame.getByteBuffer();
+		ClearVolumeSerialization.serializeInto(pVolume, lByteBuffer);
+		lByteBuffer.flip();
+		lSerializedFrame.setStreamID(pVolume.getStreamID());
+		lSerializedFrame.setChannelID(pVolume.getChannelID());
+		lSerializedFrame.setTimeIndex(pVolume.getTimeIndex());
+		lSerializedFrame.setTimeInSeconds(pVolume.getTimeInSeconds());
+		return lSerializedFrame;
+	}
+
+	void recycle(SerializedFrame pSerializedFrame)
+	{
+		mAvailableFrames.offer(pSerializedFrame);
+	}
+
+	public int getNumberOfAvailableFrames()
+	{
+		return mAvailableFrames.size();
+	}
+
+}
@@ -0,0 +1,17 @@
+package clearvolume.network.serialization;
+
+/**
+ * Receives serialized frames as they came over the wire, for nodes that pass
+ * frames on without deserializing them (e.g. relays).
+ */
+public interface SerializedFrameSinkInterface
+{
+	/**
+	 * Called for each frame received. The frame is only valid during the call,
+	 * sinks that keep it must retain() it.
+	 *
+	 * @param pSerializedFrame
+	 *            frame
+	 */
+	void sendSerializedFrame(SerializedFrame pSerializedFrame);
+}
@@ -0,0 +1,176 @@
+package clearvolume.network.serialization;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import clearvolume.network.serialization.keyvalue.KeyValueMaps;
+import clearvolume.network.serialization.keyvalue.KeyValueSlots;
+
+/**
+ * Striped transport: the data of each volume frame is split in K contiguous
+ * chunks sent over K extra sockets ('stripes') in parallel, while the frame
+ * prefix (lengths and header) still goes over the main socket.
+ *
+ * Negotiation: a server that supports stripes adds the key 'stripeport' to the
+ * headers it sends. A client wanting K stripes opens K sockets to that port,
+ * sends on each a control message {request:stripe, session:S, stripe:i,
+ * stripes:K}, then sends {request:stripes, session:S, stripes:K} on the main
+ * socket. From then on the server sends frames with the key 'stripes' in the
+ * header and without inline data. Clients and servers that don't know about
+ * stripes simply never see or send these keys.
+ */
+public class StripedTransport
+{
+	public static final String cStripePortKey = "stripeport";
+	public static final String cStripesKey = "stripes";
+	public static final String cStripeKey = "stripe";
+	public static final String cSessionKey = "session";
+	public static final String cStripesRequest = "stripes";
+	public static final String cStripeRequest = "stripe";
+
+	public static final int cMaxNumberOfStripes = 64;
+
+	private static final int cLongSizeInBytes = 8;
+
+	public static int getChunkOffset(	int pDataLength,
+										int pNumberOfStripes,
+										int pStripeIndex)
+	{
+		final int lChunkLength = (pDataLength + pNumberOfStripes - 1) / pNumberOfStripes;
+		return (int) Math.min((long) pStripeIndex * lChunkLength, pDataLength);
+	}
+
+	public static int getChunkLength(	int pDataLength,
+										int pNumberOfStripes,
+										int pStripeIndex)
+	{
+		return getChunkOffset(pDataLength, pNumberOfStripes, pStripeIndex + 1) - getChunkOffset(	pDataLength,
+																									pNumberOfStripes,
+																									pStripeIndex);
+	}
+
+	/**
+	 * @return offset of the volume data within a serialized frame
+	 */
+	public static int getDataOffset(ByteBuffer pFrameBuffer)
+	{
+		final int lHeaderLength = (int) pFrameBuffer.getLong(cLongSizeInBytes);
+		return 3 * cLongSizeInBytes + lHeaderLength;
+	}
+
+	/**
+	 * Writes the prefix of a serialized frame (lengths and header, without the
+	 * data) with one extra header entry, without parsing the header. The
+	 * returned buffer is flipped and ready to be written.
+	 *
+	 * @param pFrameBuffer
+	 *            serialized frame, starting at index 0
+	 * @param pKey
+	 *            extra key, must not need escaping
+	 * @param pValue
+	 *            extra value
+	 * @param pPrefixBuffer
+	 *            buffer to reuse, can be null
+	 * @return prefix buffer
+	 */
+	public static ByteBuffer writeFramePrefix(	ByteBuffer pFrameBuffer,
+												String pKey,
+												long pValue,
+												ByteBuffer pPrefixBuffer)
+	{
+		final int lWholeLength = (int) pFrameBuffer.getLong(0);
+		final int lHeaderLength = (int) pFrameBuffer.getLong(cLongSizeInBytes);
+		final long lDataLength = pFrameBuffer.getLong(2 * cLongSizeInBytes
+														+ lHeaderLength);
+
+		final String lValue = Long.toString(pValue);
+		final boolean lEmptyHeader = lHeaderLength <= 2;
+		final int lExtraLength = (lEmptyHeader ? 0 : 1) + pKey.length()
+									+ 1
+									+ lValue.length();
+		final int lPrefixLength = 3 * cLongSizeInBytes + lHeaderLength
+									+ lExtraLength;
+
+		if (pPrefixBuffer == null || pPrefixBuffer.capacity() < lPrefixLength)
+			pPrefixBuffer = ByteBuffer.allocateDirect(Math.max(	1024,
+																2 * lPrefixLength))
+										.order(ByteOrder.nativeOrder());
+		pPrefixBuffer.clear();
+
+		pPrefixBuffer.putLong(lWholeLength + lExtraLength);
+		pPrefixBuffer.putLong(lHeaderLength + lExtraLength);
+
+		// header minus the closing bracket:
+		for (int i = 0; i < lHeaderLength - 1; i++)
+			pPrefixBuffer.put(pFrameBuffer.get(2 * cLongSizeInBytes + i));
+		if (!lEmptyHeader)
+			pPrefixBuffer.put((byte) ',');
+		putAscii(pPrefixBuffer, pKey);
+		pPrefixBuffer.put((byte) ':');
+		putAscii(pPrefixBuffer, lValue);
+		pPrefixBuffer.put((byte) ']');
+
+		pPrefixBuffer.putLong(lDataLength);
+		pPrefixBuffer.flip();
+		return pPrefixBuffer;
+	}
+
+	/**
+	 * Writes the prefix of a serialized frame (lengths and header, without the
+	 * data) with extra header entries, without parsing the header. The
+	 * returned buffer is flipped and ready to be written.
+	 *
+	 * @param pFrameBuffer
+	 *            serialized frame, starting at index 0
+	 * @param pExtraSlots
+	 *            extra entries, at least one
+	 * @param pPrefixBuffer
+	 *            buffer to reuse, can be null
+	 * @return prefix buffer
+	 */
+	public static ByteBuffer writeFramePrefix(	ByteBuffer pFrameBuffer,
+												KeyValueSlots pExtraSlots,
+												ByteBuffer pPrefixBuffer)
+	{
+		final int lWholeLength = (int) pFrameBuffer.getLong(0);
+		final int lHeaderLength = (int) pFrameBuffer.getLong(cLongSizeInBytes);
+		final long lDataLength = pFrameBuffer.getLong(2 * cLongSizeInBytes
+														+ lHeaderLength);
+
+		// the extra entries are encoded as a map whose opening bracket
+		// becomes the separator, or goes away if the header is empty:
+		final boolean lEmptyHeader = lHeaderLength <= 2;
+		final int lCopiedLength = lEmptyHeader ? 0 : lHeaderLength - 1;
+		final int lExtraLength = KeyValueMaps.getEncodedLength(pExtraSlots) - (lEmptyHeader ? 2
+																							: 1);
+		final int lPrefixLength = 3 * cLongSizeInBytes + lHeaderLength
+									+ lExtraLength;
+
+		if (pPrefixBuffer == null || pPrefixBuffer.capacity() < lPrefixLength)
+			pPrefixBuffer = ByteBuffer.allocateDirect(Math.max(	1024,
+																2 * lPrefixLength))
+										.order(ByteOrder.nativeOrder());
+		pPrefixBuffer.clear();
+
+		pPrefixBuffer.putLong(lWholeLength + lExtraLength);
+		pPrefixBuffer.putLong(lHeaderLength + lExtraLength);
+
+		for (int i = 0; i < lCopiedLength; i++)
+			pPrefixBuffer.put(pFrameBuffer.get(2 * cLongSizeInBytes + i));
+		final int lExtraStart = pPrefixBuffer.position();
+		KeyValueMaps.writeBufferFromSlots(pExtraSlots, pPrefixBuffer);
+		if (!lEmptyHeader)
+			pPrefixBuffer.put(lExtraStart, (byte) ',');
+
+		pPrefixBuffer.putLong(lDataLength);
+		pPrefixBuffer.flip();
+		return pPrefixBuffer;
+	}
+
+	private static void putAscii(ByteBuffer pByteBuffer, String pString)
+	{
+		for (int i = 0; i < pString.length(); i++)
+			pByteBuffer.put((byte) pString.charAt(i));
+	}
+
+}
@@ -5,20 +5,33 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+/**
+ * Key-value maps of the form [key1:value1,key2:value2,...] encoded as UTF-8.
+ * Occurrences of ',', ':' and '\' in keys and values are escaped with a
+ * backslash. The slot based methods do not allocate once the slots are warmed
+ * up and are the ones used per frame by the serialization.
+ */
 public class KeyValueMaps
 {
+	private static final char cEscape = '\\';
+	private static final char cEntrySeparator = ',';
+	private static final char cKeyValueSeparator = ':';
+	private static final char cMapStart = '[';
+	private static final char cMapEnd = ']';
+	private static final char cReplacementCharacter = '\uFFFD';
+
+	private static final int cInKey = 0;
+	private static final int cInValue = 1;
+	private static final int cEscaped = 2;
 
 	public static final Map<String, String> readMapFromBuffer(	ByteBuffer pByteBuffer,
 																int pHeaderLength,
 																HashMap<String, String> pDestMap)
 	{
-
-		byte[] lByteArray = new byte[pHeaderLength];
-		pByteBuffer.get(lByteArray);
-
-		String lMapString = new String(lByteArray);
-
-		return readMapFromString(lMapString, pDestMap);
+		final KeyValueSlots lKeyValueSlots = readSlotsFromBuffer(	pByteBuffer,
+																	pHeaderLength,
+																	null);
+		return lKeyValueSlots.toMap(pDestMap);
 	}
 
 	public static final Map<String, String> readMapFromString(	String pMapString,
@@ -26,72 +39,325 @@ public class KeyValueMaps
 	{
 		if (pDestMap == null)
 			pDestMap = new LinkedHashMap<String, String>();
-		pDestMap.clear();
+		final KeyValueSlots lKeyValueSlots = readSlotsFromString(	pMapString,
+																	null);
+		return lKeyValueSlots.toMap(pDestMap);
+	}
+
+	public static final StringBuilder writeStringFromMap(	Map<String, String> pDestMap,
+															StringBuilder pStringBuilder)
+	{
+		return writeStringFromSlots(new KeyValueSlots(pDestMap.size()).fromMap(pDestMap),
+									pStringBuilder);
+	}
 
-		pMapString = pMapString.substring(1, pMapString.length() - 1);
+	public static final ByteBuffer writeBufferFromMap(	Map<String, String> pDestMap,
+														ByteBuffer pByteBuffer)
+	{
+		return writeBufferFromSlots(new KeyValueSlots(pDestMap.size()).fromMap(pDestMap),
+									pByteBuffer);
+	}
 
-		String[] lSplittedHeader = pMapString.split(",");
+	/**
+	 * Reads pLength bytes starting at the buffer's current position and parses
+	 * them into the given slots. The buffer position is advanced by pLength.
+	 *
+	 * @param pByteBuffer
+	 *            buffer to read from
+	 * @param pLength
+	 *            length in bytes of the encoded map
+	 * @param pKeyValueSlots
+	 *            slots to reuse, or null to allocate new ones
+	 * @return filled slots
+	 */
+	public static final KeyValueSlots readSlotsFromBuffer(	ByteBuffer pByteBuffer,
+															int pLength,
+															KeyValueSlots pKeyValueSlots)
+	{
+		if (pKeyValueSlots == null)
+			pKeyValueSlots = new KeyValueSlots();
+		pKeyValueSlots.clear();
+
+		final int lStart = pByteBuffer.position();
+		int lEnd = lStart + pLength;
+		int i = lStart;
 
-		for (String lKeyValueEntry : lSplittedHeader)
+		if (i < lEnd && pByteBuffer.get(i) == cMapStart)
+			i++;
+		if (lEnd > i && pByteBuffer.get(lEnd - 1) == cMapEnd
+			&& !isEscaped(pByteBuffer, i, lEnd - 1))
+			lEnd--;
+
+		int lState = -1;
+		while (i < lEnd)
 		{
-			int lKeyValueSeparatorIndex = lKeyValueEntry.indexOf(':');
-			final String lKey = lKeyValueEntry.substring(	0,
-															lKeyValueSeparatorIndex);
-			final String lValue = lKeyValueEntry.substring(	lKeyValueSeparatorIndex + 1,
-															lKeyValueEntry.length());
-			pDestMap.put(lKey, lValue);
+			final int lByte = pByteBuffer.get(i++) & 0xFF;
+			int lNumberOfContinuationBytes = 0;
+			if (lByte >= 0xF0)
+				lNumberOfContinuationBytes = 3;
+			else if (lByte >= 0xE0)
+				lNumberOfContinuationBytes = 2;
+			else if (lByte >= 0x80)
+				lNumberOfContinuationBytes = 1;
+			if (i + lNumberOfContinuationBytes > lEnd)
+			{
+				// truncated sequence, never read past the map:
+				lState = feed(pKeyValueSlots, lState, cReplacementCharacter);
+				break;
+			}
+
+			if (lNumberOfContinuationBytes == 0)
+			{
+				lState = feed(pKeyValueSlots, lState, (char) lByte);
+			}
+			else if (lNumberOfContinuationBytes == 1)
+			{
+				final int lCodePoint = ((lByte & 0x1F) << 6) | (pByteBuffer.get(i++) & 0x3F);
+				lState = feed(pKeyValueSlots, lState, (char) lCodePoint);
+			}
+			else if (lNumberOfContinuationBytes == 2)
+			{
+				final int lCodePoint = ((lByte & 0x0F) << 12) | ((pByteBuffer.get(i++) & 0x3F) << 6)
+										| (pByteBuffer.get(i++) & 0x3F);
+				lState = feed(pKeyValueSlots, lState, (char) lCodePoint);
+			}
+			else
+			{
+				final int lCodePoint = ((lByte & 0x07) << 18) | ((pByteBuffer.get(i++) & 0x3F) << 12)
+										| ((pByteBuffer.get(i++) & 0x3F) << 6)
+										| (pByteBuffer.get(i++) & 0x3F);
+				lState = feed(	pKeyValueSlots,
+								lState,
+								Character.highSurrogate(lCodePoint));
+				lState = feed(	pKeyValueSlots,
+								lState,
+								Character.lowSurrogate(lCodePoint));
+			}
 		}
 
-		return pDestMap;
+		pByteBuffer.position(lStart + pLength);
+		return pKeyValueSlots;
 	}
 
-	public static final StringBuilder writeStringFromMap(	Map<String, String> pDestMap,
+	public static final KeyValueSlots readSlotsFromString(	CharSequence pMapString,
+															KeyValueSlots pKeyValueSlots)
+	{
+		if (pKeyValueSlots == null)
+			pKeyValueSlots = new KeyValueSlots();
+		pKeyValueSlots.clear();
+
+		int lStart = 0;
+		int lEnd = pMapString.length();
+		if (lStart < lEnd && pMapString.charAt(lStart) == cMapStart)
+			lStart++;
+		if (lEnd > lStart && pMapString.charAt(lEnd - 1) == cMapEnd
+			&& !isEscaped(pMapString, lStart, lEnd - 1))
+			lEnd--;
+
+		int lState = -1;
+		for (int i = lStart; i < lEnd; i++)
+			lState = feed(pKeyValueSlots, lState, pMapString.charAt(i));
+
+		return pKeyValueSlots;
+	}
+
+	public static final StringBuilder writeStringFromSlots(	KeyValueSlots pKeyValueSlots,
 															StringBuilder pStringBuilder)
 	{
 		if (pStringBuilder == null)
 			pStringBuilder = new StringBuilder();
 		pStringBuilder.setLength(0);
 
-		pStringBuilder.append('[');
-
-		boolean isFirst = true;
-		for (Map.Entry<String, String> lKeyValueEntry : pDestMap.entrySet())
+		pStringBuilder.append(cMapStart);
+		for (int i = 0; i < pKeyValueSlots.size(); i++)
 		{
-			final String lKey = lKeyValueEntry.getKey();
-			final String lValue = lKeyValueEntry.getValue();
-			if (!isFirst)
-				pStringBuilder.append(',');
-			pStringBuilder.append(lKey);
-			pStringBuilder.append(':');
-			pStringBuilder.append(lValue);
-			isFirst = false;
+			if (i != 0)
+				pStringBuilder.append(cEntrySeparator);
+			appendEscaped(pStringBuilder, pKeyValueSlots.getKey(i));
+			pStringBuilder.append(cKeyValueSeparator);
+			appendEscaped(pStringBuilder, pKeyValueSlots.getValue(i));
 		}
-
-		pStringBuilder.append(']');
+		pStringBuilder.append(cMapEnd);
 
 		return pStringBuilder;
 	}
 
-	public static final ByteBuffer writeBufferFromMap(	Map<String, String> pDestMap,
+	/**
+	 * Writes the slots as UTF-8 at the buffer's current position. The number of
+	 * bytes written is given by getEncodedLength.
+	 *
+	 * @param pKeyValueSlots
+	 *            slots to write
+	 * @param pByteBuffer
+	 *            destination buffer
+	 * @return destination buffer
+	 */
+	public static final ByteBuffer writeBufferFromSlots(KeyValueSlots pKeyValueSlots,
 														ByteBuffer pByteBuffer)
 	{
-		pByteBuffer.putChar('[');
+		pByteBuffer.put((byte) cMapStart);
+		for (int i = 0; i < pKeyValueSlots.size(); i++)
+		{
+			if (i != 0)
+				pByteBuffer.put((byte) cEntrySeparator);
+			putEscaped(pByteBuffer, pKeyValueSlots.getKey(i));
+			pByteBuffer.put((byte) cKeyValueSeparator);
+			putEscaped(pByteBuffer, pKeyValueSlots.getValue(i));
+		}
+		pByteBuffer.put((byte) cMapEnd);
+
+		return pByteBuffer;
+	}
+
+	public static final int getEncodedLength(KeyValueSlots pKeyValueSlots)
+	{
+		int lLength = 2;
+		for (int i = 0; i < pKeyValueSlots.size(); i++)
+		{
+			if (i != 0)
+				lLength++;
+			lLength += getEscapedLength(pKeyValueSlots.getKey(i));
+			lLength++;
+			lLength += getEscapedLength(pKeyValueSlots.getValue(i));
+		}
+		return lLength;
+	}
 
-		boolean isFirst = true;
-		for (Map.Entry<String, String> lKeyValueEntry : pDestMap.entrySet())
+	private static int feed(KeyValueSlots pKeyValueSlots,
+							int pState,
+							char pChar)
+	{
+		if (pState < 0)
 		{
-			final String lKey = lKeyValueEntry.getKey();
-			final String lValue = lKeyValueEntry.getValue();
-			if (!isFirst)
-				pByteBuffer.putChar(',');
-			pByteBuffer.put(lKey.getBytes());
-			pByteBuffer.putChar(':');
-			pByteBuffer.put(lValue.getBytes());
-			isFirst = false;
+			pKeyValueSlots.nextSlot();
+			pState = cInKey;
 		}
 
-		pByteBuffer.putChar(']');
+		final boolean lInValue = (pState & cInValue) != 0;
+		final StringBuilder lTarget = lInValue	? pKeyValueSlots.lastValue()
+												: pKeyValueSlots.lastKey();
 
-		return pByteBuffer;
+		if ((pState & cEscaped) != 0)
+		{
+			lTarget.append(pChar);
+			return pState & ~cEscaped;
+		}
+
+		if (pChar == cEscape)
+			return pState | cEscaped;
+
+		if (pChar == cEntrySeparator)
+			return -1;
+
+		// only the first unescaped separator splits key from value, this keeps
+		// compatibility with unescaped maps written by older versions:
+		if (pChar == cKeyValueSeparator && !lInValue)
+			return cInValue;
+
+		lTarget.append(pChar);
+		return pState;
+	}
+
+	private static boolean isEscaped(	ByteBuffer pByteBuffer,
+										int pStart,
+										int pIndex)
+	{
+		int lCount = 0;
+		for (int i = pIndex - 1; i >= pStart && pByteBuffer.get(i) == cEscape; i--)
+			lCount++;
+		return (lCount & 1) == 1;
+	}
+
+	private static boolean isEscaped(	CharSequence pCharSequence,
+										int pStart,
+										int pIndex)
+	{
+		int lCount = 0;
+		for (int i = pIndex - 1; i >= pStart && pCharSequence.charAt(i) == cEscape; i--)
+			lCount++;
+		return (lCount & 1) == 1;
+	}
+
+	private static boolean needsEscape(char pChar)
+	{
+		return pChar == cEscape || pChar == cEntrySeparator
+				|| pChar == cKeyValueSeparator;
+	}
+
+	private static void appendEscaped(	StringBuilder pStringBuilder,
+										CharSequence pCharSequence)
+	{
+		for (int i = 0; i < pCharSequence.length(); i++)
+		{
+			final char lChar = pCharSequence.charAt(i);
+			if (needsEscape(lChar))
+				pStringBuilder.append(cEscape);
+			pStringBuilder.append(lChar);
+		}
+	}
+
+	private static int getEscapedLength(CharSequence pCharSequence)
+	{
+		int lLength = 0;
+		final int lCharLength = pCharSequence.length();
+		for (int i = 0; i < lCharLength; i++)
+		{
+			final char lChar = pCharSequence.charAt(i);
+			if (needsEscape(lChar))
+				lLength += 2;
+			else if (lChar < 0x80)
+				lLength += 1;
+			else if (lChar < 0x800)
+				lLength += 2;
+			else if (Character.isHighSurrogate(lChar) && i + 1 < lCharLength
+						&& Character.isLowSurrogate(pCharSequence.charAt(i + 1)))
+			{
+				lLength += 4;
+				i++;
+			}
+			else
+				lLength += 3;
+		}
+		return lLength;
+	}
+
+	private static void putEscaped(	ByteBuffer pByteBuffer,
+									CharSequence pCharSequence)
+	{
+		final int lCharLength = pCharSequence.length();
+		for (int i = 0; i < lCharLength; i++)
+		{
+			final char lChar = pCharSequence.charAt(i);
+			if (needsEscape(lChar))
+			{
+				pByteBuffer.put((byte) cEscape);
+				pByteBuffer.put((byte) lChar);
+			}
+			else if (lChar < 0x80)
+			{
+				pByteBuffer.put((byte) lChar);
+			}
+			else if (lChar < 0x800)
+			{
+				pByteBuffer.put((byte) (0xC0 | (lChar >> 6)));
+				pByteBuffer.put((byte) (0x80 | (lChar & 0x3F)));
+			}
+			else if (Character.isHighSurrogate(lChar) && i + 1 < lCharLength
+						&& Character.isLowSurrogate(pCharSequence.charAt(i + 1)))
+			{
+				final int lCodePoint = Character.toCodePoint(	lChar,
+																pCharSequence.charAt(++i));
+				pByteBuffer.put((byte) (0xF0 | (lCodePoint >> 18)));
+				pByteBuffer.put((byte) (0x80 | ((lCodePoint >> 12) & 0x3F)));
+				pByteBuffer.put((byte) (0x80 | ((lCodePoint >> 6) & 0x3F)));
+				pByteBuffer.put((byte) (0x80 | (lCodePoint & 0x3F)));
+			}
+			else
+			{
+				pByteBuffer.put((byte) (0xE0 | (lChar >> 12)));
+				pByteBuffer.put((byte) (0x80 | ((lChar >> 6) & 0x3F)));
+				pByteBuffer.put((byte) (0x80 | (lChar & 0x3F)));
+			}
+		}
 	}
 }
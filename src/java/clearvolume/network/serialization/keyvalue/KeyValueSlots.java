@@ -0,0 +1,378 @@
+package clearvolume.network.serialization.keyvalue;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reusable, mutable list of key/value slots. Slots are recycled between calls
+ * to clear(), so that once the slots have grown to the size of a typical
+ * header, filling and reading them does not allocate.
+ */
+public class KeyValueSlots
+{
+	private static final int cDefaultCapacity = 32;
+	private static final int cDefaultSlotLength = 32;
+
+	private static final double[] cPowersOfTen =
+	{	1e0,
+		1e1,
+		1e2,
+		1e3,
+		1e4,
+		1e5,
+		1e6,
+		1e7,
+		1e8,
+		1e9,
+		1e10,
+		1e11,
+		1e12,
+		1e13,
+		1e14,
+		1e15,
+		1e16,
+		1e17,
+		1e18,
+		1e19,
+		1e20,
+		1e21,
+		1e22 };
+
+	private StringBuilder[] mKeys;
+	private StringBuilder[] mValues;
+	private int mSize;
+
+	public KeyValueSlots()
+	{
+		this(cDefaultCapacity);
+	}
+
+	public KeyValueSlots(int pInitialCapacity)
+	{
+		super();
+		mKeys = new StringBuilder[Math.max(1, pInitialCapacity)];
+		mValues = new StringBuilder[Math.max(1, pInitialCapacity)];
+	}
+
+	public void clear()
+	{
+		mSize = 0;
+	}
+
+	public int size()
+	{
+		return mSize;
+	}
+
+	public boolean isEmpty()
+	{
+		return mSize == 0;
+	}
+
+	public CharSequence getKey(int pIndex)
+	{
+		checkIndex(pIndex);
+		return mKeys[pIndex];
+	}
+
+	public CharSequence getValue(int pIndex)
+	{
+		checkIndex(pIndex);
+		return mValues[pIndex];
+	}
+
+	/**
+	 * Opens a new slot and returns its (empty) key builder. The value builder of
+	 * that slot is available through lastValue().
+	 *
+	 * @return empty key builder of the new slot
+	 */
+	public StringBuilder nextSlot()
+	{
+		if (mSize == mKeys.length)
+		{
+			final int lNewCapacity = 2 * mKeys.length;
+			mKeys = Arrays.copyOf(mKeys, lNewCapacity);
+			mValues = Arrays.copyOf(mValues, lNewCapacity);
+		}
+		if (mKeys[mSize] == null)
+		{
+			mKeys[mSize] = new StringBuilder(cDefaultSlotLength);
+			mValues[mSize] = new StringBuilder(cDefaultSlotLength);
+		}
+		mKeys[mSize].setLength(0);
+		mValues[mSize].setLength(0);
+		mSize++;
+		return mKeys[mSize - 1];
+	}
+
+	public StringBuilder lastKey()
+	{
+		checkIndex(mSize - 1);
+		return mKeys[mSize - 1];
+	}
+
+	public StringBuilder lastValue()
+	{
+		checkIndex(mSize - 1);
+		return mValues[mSize - 1];
+	}
+
+	/**
+	 * Adds a slot for the given key (or reuses the existing one) and returns its
+	 * cleared value builder, ready to be appended to.
+	 *
+	 * @param pKey
+	 *            key
+	 * @return cleared value builder
+	 */
+	public StringBuilder put(CharSequence pKey)
+	{
+		final int lIndex = indexOf(pKey);
+		if (lIndex >= 0)
+		{
+			mValues[lIndex].setLength(0);
+			return mValues[lIndex];
+		}
+		nextSlot().append(pKey);
+		return lastValue();
+	}
+
+	public void put(CharSequence pKey, CharSequence pValue)
+	{
+		final StringBuilder lValue = put(pKey);
+		if (pValue != null)
+			lValue.append(pValue);
+	}
+
+	public int indexOf(CharSequence pKey)
+	{
+		for (int i = 0; i < mSize; i++)
+			if (contentEquals(mKeys[i], pKey))
+				return i;
+		return -1;
+	}
+
+	public boolean containsKey(CharSequence pKey)
+	{
+		return indexOf(pKey) >= 0;
+	}
+
+	public CharSequence get(CharSequence pKey)
+	{
+		final int lIndex = indexOf(pKey);
+		if (lIndex < 0)
+			return null;
+		return mValues[lIndex];
+	}
+
+	public String getString(CharSequence pKey, String pDefaultValue)
+	{
+		final CharSequence lValue = get(pKey);
+		if (lValue == null)
+			return pDefaultValue;
+		if (pDefaultValue != null && contentEquals(lValue, pDefaultValue))
+			return pDefaultValue;
+		return lValue.toString();
+	}
+
+	public long getLong(CharSequence pKey, long pDefaultValue)
+	{
+		final CharSequence lValue = get(pKey);
+		if (lValue == null)
+			return pDefaultValue;
+		return parseLong(lValue, 0, lValue.length());
+	}
+
+	public int getInt(CharSequence pKey, int pDefaultValue)
+	{
+		final CharSequence lValue = get(pKey);
+		if (lValue == null)
+			return pDefaultValue;
+		final long lLong = parseLong(lValue, 0, lValue.length());
+		if (lLong < Integer.MIN_VALUE || lLong > Integer.MAX_VALUE)
+			throw new NumberFormatException("Value out of int range: " + lValue);
+		return (int) lLong;
+	}
+
+	public double getDouble(CharSequence pKey, double pDefaultValue)
+	{
+		final CharSequence lValue = get(pKey);
+		if (lValue == null)
+			return pDefaultValue;
+		return parseDouble(lValue, 0, lValue.length());
+	}
+
+	public Map<String, String> toMap(Map<String, String> pDestMap)
+	{
+		if (pDestMap == null)
+			pDestMap = new LinkedHashMap<String, String>();
+		pDestMap.clear();
+		for (int i = 0; i < mSize; i++)
+			pDestMap.put(mKeys[i].toString(), mValues[i].toString());
+		return pDestMap;
+	}
+
+	public KeyValueSlots fromMap(Map<String, String> pMap)
+	{
+		clear();
+		for (final Map.Entry<String, String> lEntry : pMap.entrySet())
+		{
+			nextSlot().append(lEntry.getKey());
+			if (lEntry.getValue() != null)
+				lastValue().append(lEntry.getValue());
+		}
+		return this;
+	}
+
+	public static boolean contentEquals(CharSequence pA, CharSequence pB)
+	{
+		final int lLength = pA.length();
+		if (lLength != pB.length())
+			return false;
+		for (int i = 0; i < lLength; i++)
+			if (pA.charAt(i) != pB.charAt(i))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Parses a decimal integer from a char sequence region without allocating.
+	 *
+	 * @param pCharSequence
+	 *            char sequence
+	 * @param pStart
+	 *            start index (inclusive)
+	 * @param pEnd
+	 *            end index (exclusive)
+	 * @return parsed value
+	 */
+	public static long parseLong(	CharSequence pCharSequence,
+									int pStart,
+									int pEnd)
+	{
+		while (pStart < pEnd && pCharSequence.charAt(pStart) == ' ')
+			pStart++;
+		while (pEnd > pStart && pCharSequence.charAt(pEnd - 1) == ' ')
+			pEnd--;
+		if (pStart == pEnd)
+			throw new NumberFormatException("Empty number");
+
+		boolean lNegative = false;
+		char lChar = pCharSequence.charAt(pStart);
+		if (lChar == '-' || lChar == '+')
+		{
+			lNegative = lChar == '-';
+			pStart++;
+			if (pStart == pEnd)
+				throw new NumberFormatException("Sign without digits");
+		}
+
+		long lResult = 0;
+		for (int i = pStart; i < pEnd; i++)
+		{
+			lChar = pCharSequence.charAt(i);
+			if (lChar < '0' || lChar > '9')
+				throw new NumberFormatException("Invalid digit in: " + pCharSequence.subSequence(	pStart,
+																									pEnd));
+			final long lNext = lResult * 10 - (lChar - '0');
+			if (lNext > lResult || lResult < Long.MIN_VALUE / 10)
+				throw new NumberFormatException("Overflow in: " + pCharSequence.subSequence(pStart,
+																							pEnd));
+			lResult = lNext;
+		}
+		if (!lNegative)
+		{
+			if (lResult == Long.MIN_VALUE)
+				throw new NumberFormatException("Overflow in: " + pCharSequence.subSequence(pStart,
+																							pEnd));
+			return -lResult;
+		}
+		return lResult;
+	}
+
+	/**
+	 * Parses a floating point number from a char sequence region. Plain decimals
+	 * with at most 15 significant digits (which covers what the writers produce)
+	 * are parsed exactly without allocating, everything else falls back to
+	 * Double.parseDouble.
+	 *
+	 * @param pCharSequence
+	 *            char sequence
+	 * @param pStart
+	 *            start index (inclusive)
+	 * @param pEnd
+	 *            end index (exclusive)
+	 * @return parsed value
+	 */
+	public static double parseDouble(	CharSequence pCharSequence,
+										int pStart,
+										int pEnd)
+	{
+		while (pStart < pEnd && pCharSequence.charAt(pStart) == ' ')
+			pStart++;
+		while (pEnd > pStart && pCharSequence.charAt(pEnd - 1) == ' ')
+			pEnd--;
+
+		int i = pStart;
+		boolean lNegative = false;
+		if (i < pEnd && (pCharSequence.charAt(i) == '-' || pCharSequence.charAt(i) == '+'))
+		{
+			lNegative = pCharSequence.charAt(i) == '-';
+			i++;
+		}
+
+		long lMantissa = 0;
+		int lSignificantDigits = 0;
+		int lDecimals = 0;
+		boolean lSeenDot = false;
+		boolean lSeenDigit = false;
+		for (; i < pEnd; i++)
+		{
+			final char lChar = pCharSequence.charAt(i);
+			if (lChar >= '0' && lChar <= '9')
+			{
+				lSeenDigit = true;
+				if (lMantissa != 0 || lChar != '0')
+					lSignificantDigits++;
+				if (lSignificantDigits > 15)
+					break;
+				lMantissa = 10 * lMantissa + (lChar - '0');
+				if (lSeenDot)
+					lDecimals++;
+			}
+			else if (lChar == '.' && !lSeenDot)
+				lSeenDot = true;
+			else
+				break;
+		}
+
+		if (i == pEnd && lSeenDigit && lDecimals < cPowersOfTen.length)
+		{
+			// both mantissa and power of ten are exact doubles, hence the
+			// division is correctly rounded:
+			final double lValue = lMantissa / cPowersOfTen[lDecimals];
+			return lNegative ? -lValue : lValue;
+		}
+
+		return Double.parseDouble(pCharSequence.subSequence(pStart, pEnd)
+												.toString());
+	}
+
+	private void checkIndex(int pIndex)
+	{
+		if (pIndex < 0 || pIndex >= mSize)
+			throw new IndexOutOfBoundsException("Slot index " + pIndex
+												+ " out of bounds [0,"
+												+ mSize
+												+ "[");
+	}
+
+	@Override
+	public String toString()
+	{
+		return KeyValueMaps.writeStringFromSlots(this, null).toString();
+	}
+
+}
@@ -2,11 +2,14 @@ package clearvolume.network.serialization.keyvalue.test;
 
 import static org.junit.Assert.assertEquals;
 
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.junit.Test;
 
 import clearvolume.network.serialization.keyvalue.KeyValueMaps;
+import clearvolume.network.serialization.keyvalue.KeyValueSlots;
 
 public class KeyValueMapsTests
 {
@@ -26,4 +29,88 @@ public class KeyValueMapsTests
 		assertEquals(lStringMap, lStringBuilder.toString());
 	}
 
+	@Test
+	public void testEscaping()
+	{
+		final Map<String, String> lMap = new LinkedHashMap<String, String>();
+		lMap.put("channelname", "GFP, 488:nm \\ch1");
+		lMap.put("key:with,separators", "");
+		lMap.put("unit", "\u00b5m");
+
+		final StringBuilder lStringBuilder = KeyValueMaps.writeStringFromMap(	lMap,
+																		null);
+		final Map<String, String> lReadMap = KeyValueMaps.readMapFromString(lStringBuilder.toString(),
+																			null);
+		assertEquals(lMap, lReadMap);
+	}
+
+	@Test
+	public void testBufferRoundTrip()
+	{
+		final KeyValueSlots lSlots = new KeyValueSlots(2);
+		lSlots.put("index").append(123456789L);
+		lSlots.put("time").append(3.3);
+		lSlots.put("channelname").append("a,b:c]");
+		lSlots.put("realunit").append("\u00b5m");
+
+		final int lLength = KeyValueMaps.getEncodedLength(lSlots);
+		final ByteBuffer lByteBuffer = ByteBuffer.allocate(lLength + 4);
+		lByteBuffer.putShort((short) 7);
+		KeyValueMaps.writeBufferFromSlots(lSlots, lByteBuffer);
+		assertEquals(2 + lLength, lByteBuffer.position());
+		lByteBuffer.putShort((short) 8);
+
+		lByteBuffer.flip();
+		assertEquals(7, lByteBuffer.getShort());
+		final KeyValueSlots lReadSlots = KeyValueMaps.readSlotsFromBuffer(	lByteBuffer,
+																			lLength,
+																			new KeyValueSlots());
+		assertEquals(8, lByteBuffer.getShort());
+
+		assertEquals(4, lReadSlots.size());
+		assertEquals(123456789L, lReadSlots.getLong("index", 0));
+		assertEquals(3.3, lReadSlots.getDouble("time", 0), 0);
+		assertEquals("a,b:c]", lReadSlots.getString("channelname", null));
+		assertEquals("\u00b5m", lReadSlots.getString("realunit", null));
+		assertEquals(	lSlots.toString(),
+						lReadSlots.toString());
+	}
+
+	@Test
+	public void testTruncatedBuffer()
+	{
+		// a two byte sequence cut at the end of the buffer:
+		final ByteBuffer lByteBuffer = ByteBuffer.wrap(new byte[]
+		{ '[', 'u', ':', (byte) 0xC2 });
+		final KeyValueSlots lReadSlots = KeyValueMaps.readSlotsFromBuffer(	lByteBuffer,
+																			4,
+																			null);
+		assertEquals("\uFFFD", lReadSlots.getString("u", null));
+		assertEquals(4, lByteBuffer.position());
+
+		// a three byte sequence cut by the end of the map, followed by data:
+		final ByteBuffer lByteBuffer2 = ByteBuffer.wrap(new byte[]
+		{ '[', 'u', ':', (byte) 0xE2, (byte) 0x82, ']', 0, 0 });
+		KeyValueMaps.readSlotsFromBuffer(lByteBuffer2, 6, lReadSlots);
+		assertEquals("\uFFFD", lReadSlots.getString("u", null));
+		assertEquals(6, lByteBuffer2.position());
+	}
+
+	@Test
+	public void testNumberParsing()
+	{
+		assertEquals(-42, KeyValueSlots.parseLong("-42", 0, 3));
+		assertEquals(	Long.MAX_VALUE,
+						KeyValueSlots.parseLong("" + Long.MAX_VALUE,
+												0,
+												19));
+		assertEquals(0.001, KeyValueSlots.parseDouble("0.001", 0, 5), 0);
+		assertEquals(	1.0E-5,
+						KeyValueSlots.parseDouble("1.0E-5", 0, 6),
+						0);
+		assertEquals(	0.1f,
+						(float) KeyValueSlots.parseDouble("0.1", 0, 3),
+						0);
+	}
+
 }
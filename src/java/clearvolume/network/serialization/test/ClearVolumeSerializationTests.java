@@ -1,12 +1,16 @@
 package clearvolume.network.serialization.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.nio.ByteBuffer;
 
 import org.junit.Test;
 
 import clearvolume.network.serialization.ClearVolumeSerialization;
+import clearvolume.network.serialization.FrameCompression;
+import clearvolume.network.serialization.SerializedFrame;
+import clearvolume.network.serialization.SerializedFramePool;
 import clearvolume.volume.Volume;
 import coremem.enums.NativeTypeEnum;
 
@@ -73,4 +77,104 @@ public class ClearVolumeSerializationTests
 
 	}
 
+	@Test
+	public void testSeparatorsInChannelName()
+	{
+		final Volume lVolume = new Volume(	NativeTypeEnum.UnsignedShort,
+											1,
+											16,
+											16,
+											16);
+		lVolume.setChannelName("GFP, 488nm: live]");
+		lVolume.setVoxelSizeInRealUnits("um", 1, 1, 1);
+
+		ByteBuffer lBuffer = ClearVolumeSerialization.serialize(lVolume,
+																null);
+		lBuffer = ClearVolumeSerialization.serialize(lVolume, lBuffer);
+		assertEquals(lBuffer.capacity(), lBuffer.position());
+
+		final Volume lDeserializedVolume = ClearVolumeSerialization.deserialize(lBuffer,
+																				new Volume());
+		assertEquals(	"GFP, 488nm: live]",
+						lDeserializedVolume.getChannelName());
+		assertEquals(	NativeTypeEnum.UnsignedShort,
+						lDeserializedVolume.getNativeType());
+		assertEquals(16, lDeserializedVolume.getDepthInVoxels());
+	}
+
+	@Test
+	public void testCompression()
+	{
+		final Volume lVolume = new Volume(	NativeTypeEnum.UnsignedShort,
+											1,
+											32,
+											32,
+											32);
+		lVolume.setChannelID(3);
+		final ByteBuffer lDataBuffer = lVolume.getDataBuffer();
+		for (int i = 0; lDataBuffer.hasRemaining(); i++)
+			lDataBuffer.putShort((short) (i / 64));
+
+		final SerializedFramePool lSerializedFramePool = new SerializedFramePool(2);
+		final SerializedFrame lRawFrame = lSerializedFramePool.serialize(lVolume);
+		final SerializedFrame lCompressedFrame = new FrameCompression().compress(	lRawFrame,
+																					1,
+																					lSerializedFramePool);
+		assertTrue(lCompressedFrame != lRawFrame);
+		assertTrue(lCompressedFrame.getLength() < lRawFrame.getLength() / 10);
+		assertEquals(3, lCompressedFrame.getChannelID());
+
+		final Volume lDeserializedVolume = ClearVolumeSerialization.deserialize(lCompressedFrame.duplicate(),
+																				new Volume());
+		assertEquals(32, lDeserializedVolume.getDepthInVoxels());
+		final ByteBuffer lDeserializedData = lDeserializedVolume.getDataBuffer();
+		lDataBuffer.rewind();
+		lDeserializedData.rewind();
+		assertEquals(lDataBuffer, lDeserializedData);
+
+		// incompressible data stays raw:
+		final java.util.Random lRandom = new java.util.Random(1);
+		lDataBuffer.rewind();
+		while (lDataBuffer.hasRemaining())
+			lDataBuffer.put((byte) lRandom.nextInt());
+		final SerializedFrame lNoiseFrame = lSerializedFramePool.serialize(lVolume);
+		assertTrue(new FrameCompression().compress(	lNoiseFrame,
+													1,
+													lSerializedFramePool) == lNoiseFrame);
+	}
+
+	@Test
+	public void testShuffledCompression()
+	{
+		final Volume lVolume = new Volume(	NativeTypeEnum.UnsignedShort,
+											1,
+											32,
+											32,
+											32);
+		final ByteBuffer lDataBuffer = lVolume.getDataBuffer();
+		// 12 bit gradient with noise:
+		final java.util.Random lRandom = new java.util.Random(1);
+		for (int i = 0; lDataBuffer.hasRemaining(); i++)
+			lDataBuffer.putShort((short) (i / 8 % 4096 + lRandom.nextInt(32)));
+
+		final SerializedFramePool lSerializedFramePool = new SerializedFramePool(2);
+		final SerializedFrame lRawFrame = lSerializedFramePool.serialize(lVolume);
+		final FrameCompression lFrameCompression = new FrameCompression();
+		final SerializedFrame lCompressedFrame = lFrameCompression.compress(lRawFrame,
+																			1,
+																			lSerializedFramePool);
+		final SerializedFrame lShuffledFrame = lFrameCompression.compress(	lRawFrame,
+																			1,
+																			2,
+																			lSerializedFramePool);
+		assertTrue(lShuffledFrame.getLength() < lCompressedFrame.getLength());
+
+		final Volume lDeserializedVolume = ClearVolumeSerialization.deserialize(lShuffledFrame.duplicate(),
+																				new Volume());
+		final ByteBuffer lDeserializedData = lDeserializedVolume.getDataBuffer();
+		lDataBuffer.rewind();
+		lDeserializedData.rewind();
+		assertEquals(lDataBuffer, lDeserializedData);
+	}
+
 }
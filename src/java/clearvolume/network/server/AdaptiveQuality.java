@@ -0,0 +1,302 @@
+package clearvolume.network.server;
+
+import java.util.Arrays;
+
+/**
+ * Picks the quality at which volumes are sent to one client, from an estimate
+ * of the client's bandwidth and of the rate at which volumes come in.
+ *
+ * Quality steps are: 0 raw, then compressed at each deflate level in turn
+ * (1, 6 and 9 by default, each smaller and slower than the one before), then
+ * compressed at the last level and resolution level n (each level divides the
+ * data by 8). The controller picks the best step whose predicted data rate
+ * fits in the bandwidth with some headroom, and only goes back up to a better
+ * step when it fits comfortably and the previous change is not too recent, so
+ * that the quality doesn't oscillate. The compression ratio is measured per
+ * deflate level, and a level not measured yet is tried before going further
+ * down.
+ *
+ * The bandwidth is estimated as bytes written over time spent writing: while
+ * the link keeps up writes return quickly and the estimate is high, once it
+ * saturates writes block and the estimate converges to the link rate.
+ * Called from the server dispatcher and connection threads.
+ */
+public class AdaptiveQuality
+{
+	private static final long cWindowNanos = 250_000_000L;
+	private static final double cSmoothing = 0.3;
+	private static final double cHeadroom = 0.8;
+	private static final double cUpgradeHeadroom = 0.5;
+	private static final long cMinUpgradePeriodNanos = 2_000_000_000L;
+	private static final int[] cCompressionLevels =
+	{ 1, 6, 9 };
+
+	private final int mMaxResolutionLevel;
+	private final int[] mCompressionLevels;
+
+	private long mWrittenBytes;
+	private long mWriteNanos;
+	private long mOfferedBytes;
+	private long mWindowStartNanos = -1;
+
+	private volatile double mBandwidth = Double.NaN;
+	private volatile double mOfferedRate = Double.NaN;
+	// per deflate level, NaN until measured:
+	private final double[] mCompressionRatios;
+	private volatile int mQualityStep = 0;
+	private long mLastChangeNanos;
+
+	public AdaptiveQuality(int pMaxResolutionLevel)
+	{
+		this(pMaxResolutionLevel, 9);
+	}
+
+	/**
+	 * @param pMaxResolutionLevel
+	 *            coarsest resolution level frames may be downsampled to
+	 * @param pMaxCompressionLevel
+	 *            strongest deflate level frames may be compressed at
+	 */
+	public AdaptiveQuality(int pMaxResolutionLevel, int pMaxCompressionLevel)
+	{
+		super();
+		mMaxResolutionLevel = pMaxResolutionLevel;
+		mCompressionLevels = getCompressionLevels(pMaxCompressionLevel);
+		mCompressionRatios = new double[mCompressionLevels.length];
+		Arrays.fill(mCompressionRatios, Double.NaN);
+	}
+
+	private static int[] getCompressionLevels(int pMaxCompressionLevel)
+	{
+		final int lMaxCompressionLevel = Math.max(1, Math.min(pMaxCompressionLevel, 9));
+		int lNumberOfLevels = 0;
+		while (lNumberOfLevels < cCompressionLevels.length && cCompressionLevels[lNumberOfLevels] < lMaxCompressionLevel)
+			lNumberOfLevels++;
+		final int[] lCompressionLevels = Arrays.copyOf(	cCompressionLevels,
+														lNumberOfLevels + 1);
+		lCompressionLevels[lNumberOfLevels] = lMaxCompressionLevel;
+		return lCompressionLevels;
+	}
+
+	/**
+	 * Records a frame written to the client.
+	 *
+	 * @param pNumberOfBytes
+	 *            frame length
+	 * @param pWriteNanos
+	 *            time spent writing it
+	 */
+	public synchronized void recordWrite(long pNumberOfBytes, long pWriteNanos)
+	{
+		mWrittenBytes += pNumberOfBytes;
+		mWriteNanos += pWriteNanos;
+	}
+
+	/**
+	 * Records a volume offered to the client, before quality reduction.
+	 *
+	 * @param pNumberOfBytes
+	 *            data length at full quality
+	 * @param pNowNanos
+	 *            current time
+	 */
+	public synchronized void recordOffer(long pNumberOfBytes, long pNowNanos)
+	{
+		if (mWindowStartNanos < 0)
+			mWindowStartNanos = pNowNanos;
+		mOfferedBytes += pNumberOfBytes;
+
+		final long lElapsedNanos = pNowNanos - mWindowStartNanos;
+		if (lElapsedNanos < cWindowNanos)
+			return;
+
+		mOfferedRate = smooth(mOfferedRate, mOfferedBytes * 1e9 / lElapsedNanos);
+		if (mWriteNanos > 0)
+			mBandwidth = smooth(mBandwidth, mWrittenBytes * 1e9 / mWriteNanos);
+		mOfferedBytes = 0;
+		mWrittenBytes = 0;
+		mWriteNanos = 0;
+		mWindowStartNanos = pNowNanos;
+
+		update(pNowNanos);
+	}
+
+	/**
+	 * Records the compression ratio observed on a frame.
+	 *
+	 * @param pCompressionLevel
+	 *            deflate level the frame was compressed at
+	 * @param pRawLength
+	 *            raw data length
+	 * @param pCompressedLength
+	 *            compressed data length
+	 */
+	public synchronized void recordCompression(	int pCompressionLevel,
+												long pRawLength,
+												long pCompressedLength)
+	{
+		final int lIndex = Arrays.binarySearch(	mCompressionLevels,
+												pCompressionLevel);
+		if (lIndex >= 0 && pCompressedLength > 0)
+			mCompressionRatios[lIndex] = smooth(mCompressionRatios[lIndex],
+												Math.max(	1,
+															(double) pRawLength / pCompressedLength));
+	}
+
+	/**
+	 * Steps the quality down right away, e.g. when frames for the client pile
+	 * up.
+	 *
+	 * @param pNowNanos
+	 *            current time
+	 */
+	public synchronized void degrade(long pNowNanos)
+	{
+		if (mQualityStep < getMaxQualityStep() && pNowNanos - mLastChangeNanos > cWindowNanos)
+		{
+			mQualityStep++;
+			mLastChangeNanos = pNowNanos;
+		}
+	}
+
+	private void update(long pNowNanos)
+	{
+		if (Double.isNaN(mBandwidth) || Double.isNaN(mOfferedRate))
+			return;
+
+		int lQualityStep = 0;
+		while (lQualityStep < getMaxQualityStep() && getPredictedRate(lQualityStep) > cHeadroom * mBandwidth
+				&& (lQualityStep == 0 || isCompressionRatioMeasured(lQualityStep)))
+			lQualityStep++;
+
+		if (lQualityStep > mQualityStep)
+		{
+			mQualityStep = lQualityStep;
+			mLastChangeNanos = pNowNanos;
+		}
+		else if (lQualityStep < mQualityStep && pNowNanos - mLastChangeNanos > cMinUpgradePeriodNanos
+					&& getPredictedRate(mQualityStep - 1) < cUpgradeHeadroom * mBandwidth)
+		{
+			// one step at a time, measurements at the new step decide further:
+			mQualityStep--;
+			mLastChangeNanos = pNowNanos;
+		}
+	}
+
+	private double getPredictedRate(int pQualityStep)
+	{
+		if (pQualityStep == 0)
+			return mOfferedRate;
+		return mOfferedRate / getCompressionRatio(getCompressionLevelIndex(pQualityStep))
+				/ (1L << (3 * getResolutionLevel(pQualityStep)));
+	}
+
+	private boolean isCompressionRatioMeasured(int pQualityStep)
+	{
+		return !Double.isNaN(mCompressionRatios[getCompressionLevelIndex(pQualityStep)]);
+	}
+
+	private double getCompressionRatio(int pCompressionLevelIndex)
+	{
+		// a stronger level deflates at least as well as a weaker one:
+		double lCompressionRatio = 2;
+		for (int i = 0; i <= pCompressionLevelIndex; i++)
+			if (!Double.isNaN(mCompressionRatios[i]))
+				lCompressionRatio = i == 0	? mCompressionRatios[i]
+											: Math.max(	lCompressionRatio,
+														mCompressionRatios[i]);
+		return lCompressionRatio;
+	}
+
+	private int getMaxQualityStep()
+	{
+		return mCompressionLevels.length + mMaxResolutionLevel;
+	}
+
+	private int getCompressionLevelIndex(int pQualityStep)
+	{
+		return Math.min(pQualityStep, mCompressionLevels.length) - 1;
+	}
+
+	private int getResolutionLevel(int pQualityStep)
+	{
+		return Math.max(0, pQualityStep - mCompressionLevels.length);
+	}
+
+	private static double smooth(double pAverage, double pValue)
+	{
+		if (Double.isNaN(pAverage))
+			return pValue;
+		return pAverage + cSmoothing * (pValue - pAverage);
+	}
+
+	public int getQualityStep()
+	{
+		return mQualityStep;
+	}
+
+	/**
+	 * @return true if frames should be compressed
+	 */
+	public boolean isCompressed()
+	{
+		return mQualityStep >= 1;
+	}
+
+	/**
+	 * @return deflate level frames should be compressed at, 0 for raw frames
+	 */
+	public int getCompressionLevel()
+	{
+		final int lQualityStep = mQualityStep;
+		return lQualityStep == 0 ? 0
+								: mCompressionLevels[getCompressionLevelIndex(lQualityStep)];
+	}
+
+	/**
+	 * @return resolution level frames should be downsampled to
+	 */
+	public int getResolutionLevel()
+	{
+		return getResolutionLevel(mQualityStep);
+	}
+
+	/**
+	 * @return estimated bandwidth in bytes per second, NaN until measured
+	 */
+	public double getBandwidth()
+	{
+		return mBandwidth;
+	}
+
+	/**
+	 * @return estimated rate of offered data at full quality in bytes per
+	 *         second, NaN until measured
+	 */
+	public double getOfferedRate()
+	{
+		return mOfferedRate;
+	}
+
+	/**
+	 * @return estimated compression ratio at the current deflate level, 1 for
+	 *         raw frames
+	 */
+	public synchronized double getCompressionRatio()
+	{
+		return mQualityStep == 0 ? 1
+								: getCompressionRatio(getCompressionLevelIndex(mQualityStep));
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format(	"AdaptiveQuality [mQualityStep=%d, mCompressionLevel=%d, mBandwidth=%.1fMB/s, mOfferedRate=%.1fMB/s, mCompressionRatio=%.2f]",
+								mQualityStep,
+								getCompressionLevel(),
+								mBandwidth * 1e-6,
+								mOfferedRate * 1e-6,
+								getCompressionRatio());
+	}
+
+}
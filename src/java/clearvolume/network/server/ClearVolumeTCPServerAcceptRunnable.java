@@ -0,0 +1,83 @@
+package clearvolume.network.server;
+
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import clearvolume.network.client.ClearVolumeTCPClient;
+
+/**
+ * Accepts incoming client connections for a ClearVolumeTCPServerSink, for as
+ * long as the server socket is open.
+ */
+public class ClearVolumeTCPServerAcceptRunnable implements Runnable
+{
+	private final ClearVolumeTCPServerSink mClearVolumeTCPServerSink;
+	private final ServerSocketChannel mServerSocketChannel;
+
+	private volatile boolean mStopSignal = false;
+	private volatile boolean mStoppedSignal = false;
+
+	public ClearVolumeTCPServerAcceptRunnable(	ClearVolumeTCPServerSink pClearVolumeTCPServerSink,
+												ServerSocketChannel pServerSocketChannel)
+	{
+		mClearVolumeTCPServerSink = pClearVolumeTCPServerSink;
+		mServerSocketChannel = pServerSocketChannel;
+	}
+
+	public void requestStop()
+	{
+		mStopSignal = true;
+	}
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			while (!mStopSignal)
+			{
+				final SocketChannel lSocketChannel = mServerSocketChannel.accept();
+				try
+				{
+					lSocketChannel.setOption(	StandardSocketOptions.SO_SNDBUF,
+												ClearVolumeTCPClient.cSocketBufferLength);
+					lSocketChannel.setOption(	StandardSocketOptions.TCP_NODELAY,
+												true);
+					mClearVolumeTCPServerSink.addConnection(lSocketChannel);
+				}
+				catch (final java.io.IOException e)
+				{
+					lSocketChannel.close();
+				}
+			}
+		}
+		catch (final java.nio.channels.AsynchronousCloseException e)
+		{
+		}
+		catch (final Throwable e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			mStoppedSignal = true;
+		}
+	}
+
+	public void waitForStop()
+	{
+		while (!mStoppedSignal)
+		{
+			try
+			{
+				Thread.sleep(10);
+			}
+			catch (final InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,589 @@
+package clearvolume.network.server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import clearvolume.network.metrics.ClockSync;
+import clearvolume.network.metrics.NetworkMetrics;
+import clearvolume.network.serialization.BatchFrames;
+import clearvolume.network.serialization.ClearVolumeControlMessages;
+import clearvolume.network.serialization.ClientView;
+import clearvolume.network.serialization.SerializedFrame;
+import clearvolume.network.serialization.StripedTransport;
+import clearvolume.network.serialization.keyvalue.KeyValueSlots;
+
+/**
+ * One client connected to a ClearVolumeTCPServerSink. Frames handed to the
+ * connection are queued in a bounded queue and written to the client by the
+ * connection's own thread, so that a slow client never holds back the others.
+ * What happens when the queue is full is decided by the SlowClientPolicy.
+ * Control messages sent by the client are read by a second thread. Clients
+ * that ping for clock sync get their pong, and the send time of each frame,
+ * in the headers of the frames that follow.
+ */
+public class ClearVolumeTCPServerConnection implements Runnable
+{
+	private final ClearVolumeTCPServerSink mClearVolumeTCPServerSink;
+	private final SocketChannel mSocketChannel;
+	private final SocketAddress mRemoteAddress;
+	private final int mQueueCapacity;
+	private final SlowClientPolicy mSlowClientPolicy;
+
+	private final ReentrantLock mLock = new ReentrantLock();
+	private final Condition mNotEmpty = mLock.newCondition();
+	private final ArrayDeque<SerializedFrame> mFrameQueue;
+
+	private final AtomicLong mNumberOfSentFrames = new AtomicLong();
+	private final AtomicLong mNumberOfSentBytes = new AtomicLong();
+	private final AtomicLong mNumberOfDroppedFrames = new AtomicLong();
+
+	private volatile boolean mStopSignal = false;
+	private volatile boolean mStoppedSignal = false;
+	private final AtomicBoolean mClosed = new AtomicBoolean(false);
+	private volatile boolean mSnapshotCurrent = false;
+
+	private volatile ClientView mClientView = new ClientView();
+	private volatile boolean mBatchFrames = false;
+	private final AdaptiveQuality mAdaptiveQuality;
+	private final HashMap<Long, Long> mLastFrameNanos = new HashMap<>();
+
+	private volatile StripedFrameSender mStripedFrameSender;
+	private ByteBuffer mPrefixBuffer;
+	private final KeyValueSlots mPrefixSlots = new KeyValueSlots();
+	private final ByteBuffer[] mGatheringBuffers = new ByteBuffer[2];
+
+	private volatile boolean mClockSync = false;
+	private final AtomicReference<long[]> mPendingPong = new AtomicReference<>();
+
+	public ClearVolumeTCPServerConnection(ClearVolumeTCPServerSink pClearVolumeTCPServerSink,
+											SocketChannel pSocketChannel,
+											int pQueueCapacity,
+											SlowClientPolicy pSlowClientPolicy)
+	{
+		super();
+		mClearVolumeTCPServerSink = pClearVolumeTCPServerSink;
+		mSocketChannel = pSocketChannel;
+		mRemoteAddress = pSocketChannel.socket().getRemoteSocketAddress();
+		mQueueCapacity = Math.max(1, pQueueCapacity);
+		mSlowClientPolicy = pSlowClientPolicy;
+		mFrameQueue = new ArrayDeque<SerializedFrame>(mQueueCapacity);
+		mAdaptiveQuality = new AdaptiveQuality(	pClearVolumeTCPServerSink.getMaxAdaptiveResolutionLevel(),
+												pClearVolumeTCPServerSink.getCompressionLevel());
+	}
+
+	public void start()
+	{
+		final Thread lThread = new Thread(this,
+											ClearVolumeTCPServerConnection.class.getSimpleName() + "Thread["
+													+ mRemoteAddress
+													+ "]");
+		lThread.setDaemon(true);
+		lThread.start();
+
+		final Runnable lControlRunnable = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				readControlMessages();
+			}
+		};
+		final Thread lControlThread = new Thread(	lControlRunnable,
+													ClearVolumeTCPServerConnection.class.getSimpleName() + "ControlThread["
+															+ mRemoteAddress
+															+ "]");
+		lControlThread.setDaemon(true);
+		lControlThread.start();
+	}
+
+	private void readControlMessages()
+	{
+		final KeyValueSlots lKeyValueSlots = new KeyValueSlots();
+		ByteBuffer lByteBuffer = null;
+		try
+		{
+			while (!mStopSignal)
+			{
+				lByteBuffer = ClearVolumeControlMessages.readControlMessage(mSocketChannel,
+																			lKeyValueSlots,
+																			lByteBuffer);
+				final long lReceiveTimeNanos = ClockSync.currentTimeNanos();
+				final CharSequence lRequest = lKeyValueSlots.get(ClearVolumeControlMessages.cRequestKey);
+				if (KeyValueSlots.contentEquals(lRequest,
+												ClockSync.cPingRequest))
+				{
+					// answered with the next frame:
+					mPendingPong.set(new long[]
+					{ lKeyValueSlots.getLong(ClockSync.cPingTimeKey, 0),
+						lReceiveTimeNanos });
+					mClockSync = true;
+				}
+				else if (KeyValueSlots.contentEquals(	lRequest,
+													ClearVolumeControlMessages.cSnapshotRequest))
+					mClearVolumeTCPServerSink.sendSnapshot(this);
+				else if (KeyValueSlots.contentEquals(	lRequest,
+														ClientView.cViewRequest))
+					setClientView(lKeyValueSlots);
+				else if (KeyValueSlots.contentEquals(	lRequest,
+														BatchFrames.cBatchRequest))
+					mBatchFrames = lKeyValueSlots.getInt(BatchFrames.cBatchKey, 0) > 0;
+				else if (KeyValueSlots.contentEquals(	lRequest,
+														StripedTransport.cStripesRequest))
+					mClearVolumeTCPServerSink.attachStripes(this,
+															lKeyValueSlots.getLong(	StripedTransport.cSessionKey,
+																					0),
+															lKeyValueSlots.getInt(	StripedTransport.cStripesKey,
+																					0));
+			}
+		}
+		catch (final IOException e)
+		{
+			// client went away
+		}
+		catch (final Throwable e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			close();
+		}
+	}
+
+	private void setClientView(KeyValueSlots pKeyValueSlots)
+	{
+		try
+		{
+			mClientView = ClientView.read(pKeyValueSlots);
+		}
+		catch (final NumberFormatException e)
+		{
+			// malformed view, the previous one stays
+			return;
+		}
+
+		// the client catches up with the new view right away:
+		mSnapshotCurrent = false;
+		mClearVolumeTCPServerSink.sendSnapshot(this);
+	}
+
+	/**
+	 * @return quality controller of this client, used when the server has
+	 *         adaptive quality enabled
+	 */
+	public AdaptiveQuality getAdaptiveQuality()
+	{
+		return mAdaptiveQuality;
+	}
+
+	/**
+	 * @return true if this client asked for the channels of a time point in
+	 *         batch frames
+	 */
+	public boolean isBatchFrames()
+	{
+		return mBatchFrames;
+	}
+
+	/**
+	 * @return what this client wants to receive
+	 */
+	public ClientView getClientView()
+	{
+		return mClientView;
+	}
+
+	/**
+	 * Tells whether a volume of the given stream and channel should be sent to
+	 * this client now, according to its subscribed channels and max frame
+	 * rate. Subscribed channels apply to all streams, the frame rate to each
+	 * channel of each stream.
+	 *
+	 * @param pStreamID
+	 *            stream of the volume
+	 * @param pChannelID
+	 *            channel of the volume
+	 * @param pNowNanos
+	 *            current time
+	 * @return true if the volume should be sent
+	 */
+	synchronized boolean acceptsFrame(	int pStreamID,
+										int pChannelID,
+										long pNowNanos)
+	{
+		final ClientView lClientView = mClientView;
+		if (!lClientView.isChannelAccepted(pChannelID))
+			return false;
+
+		final double lMaxFrameRate = lClientView.getMaxFrameRate();
+		if (lMaxFrameRate > 0)
+		{
+			final Long lKey = ClearVolumeTCPServerSink.getStreamChannelKey(	pStreamID,
+																			pChannelID);
+			final Long lLastFrameNanos = mLastFrameNanos.get(lKey);
+			if (lLastFrameNanos != null && pNowNanos - lLastFrameNanos < 1e9 / lMaxFrameRate)
+				return false;
+			mLastFrameNanos.put(lKey, pNowNanos);
+		}
+		return true;
+	}
+
+	/**
+	 * Queues a frame for sending. The frame is retained if accepted.
+	 *
+	 * @param pSerializedFrame
+	 *            frame to send
+	 * @return true if the frame was queued
+	 */
+	public boolean offer(SerializedFrame pSerializedFrame)
+	{
+		if (mClosed.get())
+			return false;
+
+		SerializedFrame lDroppedFrame = null;
+		boolean lDisconnect = false;
+		mLock.lock();
+		try
+		{
+			if (mClosed.get())
+				return false;
+
+			if (mFrameQueue.size() >= mQueueCapacity)
+			{
+				switch (mSlowClientPolicy)
+				{
+				case DropOldest:
+					lDroppedFrame = mFrameQueue.pollFirst();
+					break;
+				case KeepLatestPerChannel:
+					lDroppedFrame = removeOldestOfChannel(	pSerializedFrame.getStreamID(),
+															pSerializedFrame.getChannelID());
+					if (lDroppedFrame == null)
+						lDroppedFrame = mFrameQueue.pollFirst();
+					break;
+				case Disconnect:
+					lDisconnect = true;
+					break;
+				}
+			}
+
+			if (!lDisconnect)
+			{
+				mFrameQueue.addLast(pSerializedFrame.retain());
+				mSnapshotCurrent = false;
+				mNotEmpty.signal();
+			}
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+
+		if (lDroppedFrame != null)
+		{
+			mNumberOfDroppedFrames.incrementAndGet();
+			mClearVolumeTCPServerSink.getNetworkMetrics().recordDroppedFrames(1);
+			lDroppedFrame.release();
+		}
+
+		if (lDisconnect)
+		{
+			mNumberOfDroppedFrames.incrementAndGet();
+			mClearVolumeTCPServerSink.getNetworkMetrics().recordDroppedFrames(1);
+			close();
+			return false;
+		}
+		return true;
+	}
+
+	private SerializedFrame removeOldestOfChannel(int pStreamID, int pChannelID)
+	{
+		final Iterator<SerializedFrame> lIterator = mFrameQueue.iterator();
+		while (lIterator.hasNext())
+		{
+			final SerializedFrame lSerializedFrame = lIterator.next();
+			if (lSerializedFrame.getStreamID() == pStreamID && lSerializedFrame.getChannelID() == pChannelID)
+			{
+				lIterator.remove();
+				return lSerializedFrame;
+			}
+		}
+		return null;
+	}
+
+	private SerializedFrame takeFrame(long pTimeOut, TimeUnit pTimeUnit) throws InterruptedException
+	{
+		mLock.lock();
+		try
+		{
+			if (mFrameQueue.isEmpty())
+				mNotEmpty.await(pTimeOut, pTimeUnit);
+			return mFrameQueue.pollFirst();
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			while (!mStopSignal && mSocketChannel.isOpen()
+					&& mSocketChannel.isConnected())
+			{
+				final SerializedFrame lSerializedFrame = takeFrame(	10,
+																	TimeUnit.MILLISECONDS);
+				if (lSerializedFrame == null)
+					continue;
+				try
+				{
+					writeFrame(lSerializedFrame);
+				}
+				finally
+				{
+					lSerializedFrame.release();
+				}
+			}
+		}
+		catch (final IOException e)
+		{
+			// client went away
+		}
+		catch (final Throwable e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			close();
+			mStoppedSignal = true;
+		}
+	}
+
+	private void writeFrame(SerializedFrame pSerializedFrame) throws IOException
+	{
+		final long lStartNanos = System.nanoTime();
+		final ByteBuffer lByteBuffer = pSerializedFrame.duplicate();
+		final StripedFrameSender lStripedFrameSender = mStripedFrameSender;
+		final int lStripePort = mClearVolumeTCPServerSink.getStripePort();
+
+		mPrefixSlots.clear();
+		if (lStripedFrameSender != null)
+			mPrefixSlots.put(StripedTransport.cStripesKey)
+						.append(lStripedFrameSender.getNumberOfStripes());
+		else if (lStripePort > 0)
+			// advertises the stripe port to the client:
+			mPrefixSlots.put(StripedTransport.cStripePortKey)
+						.append(lStripePort);
+		if (mClockSync)
+		{
+			final long[] lPendingPong = mPendingPong.getAndSet(null);
+			if (lPendingPong != null)
+			{
+				mPrefixSlots.put(ClockSync.cPingTimeKey)
+							.append(lPendingPong[0]);
+				mPrefixSlots.put(ClockSync.cPingReceiveTimeKey)
+							.append(lPendingPong[1]);
+			}
+			mPrefixSlots.put(ClockSync.cSendTimeKey)
+						.append(ClockSync.currentTimeNanos());
+		}
+
+		if (mPrefixSlots.isEmpty())
+		{
+			while (lByteBuffer.hasRemaining())
+				mSocketChannel.write(lByteBuffer);
+		}
+		else
+		{
+			mPrefixBuffer = StripedTransport.writeFramePrefix(	lByteBuffer,
+																mPrefixSlots,
+																mPrefixBuffer);
+			lByteBuffer.position(StripedTransport.getDataOffset(lByteBuffer));
+			if (lStripedFrameSender != null)
+			{
+				// prefix on the main socket, data over the stripes:
+				while (mPrefixBuffer.hasRemaining())
+					mSocketChannel.write(mPrefixBuffer);
+				lStripedFrameSender.send(lByteBuffer);
+			}
+			else
+			{
+				mGatheringBuffers[0] = mPrefixBuffer;
+				mGatheringBuffers[1] = lByteBuffer;
+				while (lByteBuffer.hasRemaining())
+					mSocketChannel.write(mGatheringBuffers);
+			}
+		}
+		mNumberOfSentFrames.incrementAndGet();
+		mNumberOfSentBytes.addAndGet(pSerializedFrame.getLength());
+
+		final long lWriteNanos = System.nanoTime() - lStartNanos;
+		mAdaptiveQuality.recordWrite(pSerializedFrame.getLength(), lWriteNanos);
+
+		final NetworkMetrics lNetworkMetrics = mClearVolumeTCPServerSink.getNetworkMetrics();
+		lNetworkMetrics.recordWriteTime(lWriteNanos);
+		lNetworkMetrics.recordFrame(pSerializedFrame.getChannelID(),
+									pSerializedFrame.getLength());
+		lNetworkMetrics.recordLatency(pSerializedFrame.getTimeInSeconds());
+	}
+
+	public void requestStop()
+	{
+		mStopSignal = true;
+	}
+
+	public void waitForStop()
+	{
+		while (!mStoppedSignal)
+		{
+			try
+			{
+				Thread.sleep(10);
+			}
+			catch (final InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public void close()
+	{
+		if (!mClosed.compareAndSet(false, true))
+			return;
+		mStopSignal = true;
+
+		try
+		{
+			if (mSocketChannel.isOpen())
+				mSocketChannel.close();
+		}
+		catch (final Throwable e)
+		{
+			e.printStackTrace();
+		}
+
+		mLock.lock();
+		try
+		{
+			SerializedFrame lSerializedFrame;
+			while ((lSerializedFrame = mFrameQueue.pollFirst()) != null)
+				lSerializedFrame.release();
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+
+		final StripedFrameSender lStripedFrameSender = mStripedFrameSender;
+		if (lStripedFrameSender != null)
+			lStripedFrameSender.close();
+
+		mClearVolumeTCPServerSink.removeConnection(this);
+	}
+
+	/**
+	 * Sends the data of the following frames over the given stripes.
+	 *
+	 * @param pStripedFrameSender
+	 *            striped frame sender
+	 */
+	void setStripedFrameSender(StripedFrameSender pStripedFrameSender)
+	{
+		final StripedFrameSender lPreviousStripedFrameSender = mStripedFrameSender;
+		mStripedFrameSender = pStripedFrameSender;
+		if (lPreviousStripedFrameSender != null)
+			lPreviousStripedFrameSender.close();
+		if (mClosed.get())
+			pStripedFrameSender.close();
+	}
+
+	public int getNumberOfStripes()
+	{
+		final StripedFrameSender lStripedFrameSender = mStripedFrameSender;
+		return lStripedFrameSender == null	? 1
+											: lStripedFrameSender.getNumberOfStripes();
+	}
+
+	/**
+	 * @return true if the last frames queued for this client are the server's
+	 *         snapshot, in which case a new snapshot would be redundant
+	 */
+	boolean isSnapshotCurrent()
+	{
+		return mSnapshotCurrent;
+	}
+
+	void setSnapshotCurrent(boolean pSnapshotCurrent)
+	{
+		mSnapshotCurrent = pSnapshotCurrent;
+	}
+
+	public boolean isOpen()
+	{
+		return !mClosed.get();
+	}
+
+	public SocketAddress getRemoteAddress()
+	{
+		return mRemoteAddress;
+	}
+
+	public int getQueueLength()
+	{
+		mLock.lock();
+		try
+		{
+			return mFrameQueue.size();
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	public int getQueueCapacity()
+	{
+		return mQueueCapacity;
+	}
+
+	public long getNumberOfSentFrames()
+	{
+		return mNumberOfSentFrames.get();
+	}
+
+	public long getNumberOfSentBytes()
+	{
+		return mNumberOfSentBytes.get();
+	}
+
+	public long getNumberOfDroppedFrames()
+	{
+		return mNumberOfDroppedFrames.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format(	"ClearVolumeTCPServerConnection [mRemoteAddress=%s, mSentFrames=%s, mDroppedFrames=%s]",
+								mRemoteAddress,
+								mNumberOfSentFrames.get(),
+								mNumberOfDroppedFrames.get());
+	}
+
+}
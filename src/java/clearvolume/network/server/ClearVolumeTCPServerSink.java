@@ -5,34 +5,106 @@ import java.io.IOException;
 import java.net.SocketAddress;
 import java.net.StandardSocketOptions;
 import java.nio.channels.ServerSocketChannel;
-import java.util.concurrent.TimeUnit;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import clearvolume.network.client.ClearVolumeTCPClient;
+import clearvolume.network.metrics.NetworkMetrics;
+import clearvolume.network.serialization.ClearVolumeSerialization;
+import clearvolume.network.serialization.ClientView;
+import clearvolume.network.serialization.SerializedFrame;
+import clearvolume.network.serialization.SerializedFramePool;
+import clearvolume.network.serialization.SerializedFrameSinkInterface;
+import clearvolume.network.serialization.StripedTransport;
 import clearvolume.volume.Volume;
 import clearvolume.volume.VolumeManager;
+import clearvolume.volume.VolumeResampling;
+import clearvolume.volume.sink.VolumeSinkInterface;
 import clearvolume.volume.sink.relay.RelaySinkAdapter;
 import clearvolume.volume.sink.relay.RelaySinkInterface;
-import clearvolume.volume.source.SourceToSinkBufferedAdapter;
 
 public class ClearVolumeTCPServerSink extends RelaySinkAdapter	implements
 																Closeable,
-																RelaySinkInterface
+																RelaySinkInterface,
+																SerializedFrameSinkInterface
 {
+	private static final int cDefaultClientQueueCapacity = 4;
+	private static final long cStripeConnectionTimeOutMillis = 5000;
+
 	private ServerSocketChannel mServerSocketChannel;
 
 	private ClearVolumeTCPServerSinkRunnable lRunnable;
 	private Thread mRunnableThread;
+	private ClearVolumeTCPServerAcceptRunnable mAcceptRunnable;
+	private Thread mAcceptThread;
+
+	private ServerSocketChannel mStripeServerSocketChannel;
+	private ClearVolumeTCPServerStripeAcceptRunnable mStripeAcceptRunnable;
+	private volatile int mStripePort = -1;
+	private volatile int mMaxNumberOfStripes = 0;
+	private final ConcurrentHashMap<Long, SocketChannel[]> mPendingStripes = new ConcurrentHashMap<>();
+
+	private final StreamQueues mStreamQueues;
+	private final SerializedFramePool mSerializedFramePool;
+	private final CopyOnWriteArrayList<ClearVolumeTCPServerConnection> mConnections = new CopyOnWriteArrayList<>();
 
-	private final SourceToSinkBufferedAdapter mSourceToSinkBufferedAdapter;
+	private volatile int mClientQueueCapacity = cDefaultClientQueueCapacity;
+	private volatile SlowClientPolicy mSlowClientPolicy = SlowClientPolicy.KeepLatestPerChannel;
 
-	private final VolumeManager mManager = new VolumeManager(2);
-	private volatile Volume mLastVolumeSeen;
+	private volatile boolean mAdaptiveQuality = false;
+	private volatile int mMaxAdaptiveResolutionLevel = 3;
+	private volatile int mCompressionLevel = 9;
+
+	private final SnapshotCache mSnapshotCache = new SnapshotCache();
+	private final Volume mResampledVolume = new Volume();
+	private final Volume mSnapshotVolume = new Volume();
+	private final Object mBatchLock = new Object();
+
+	private final NetworkMetrics mNetworkMetrics = new NetworkMetrics(ClearVolumeTCPServerSink.class.getSimpleName());
 
 	public ClearVolumeTCPServerSink(int pBufferMaxCapacity)
+	{
+		this(pBufferMaxCapacity, false);
+	}
+
+	/**
+	 * Creates a server sink, if pLatestPerChannel is true only the latest
+	 * volume of each channel waits to be sent and superseded volumes are
+	 * relayed right away, bounding the latency seen by clients.
+	 *
+	 * @param pBufferMaxCapacity
+	 *            max number of buffered volumes (or channels) per stream
+	 * @param pLatestPerChannel
+	 *            true to only keep the latest volume per channel
+	 */
+	public ClearVolumeTCPServerSink(int pBufferMaxCapacity,
+									boolean pLatestPerChannel)
 	{
 		super();
-		mSourceToSinkBufferedAdapter = new SourceToSinkBufferedAdapter(	getManager(),
-																		pBufferMaxCapacity);
+		final VolumeSinkInterface lSupersededVolumeSink = new VolumeSinkInterface()
+		{
+			@Override
+			public void sendVolume(Volume pVolume)
+			{
+				mNetworkMetrics.recordDroppedFrames(1);
+				releaseVolume(pVolume);
+			}
+
+			@Override
+			public VolumeManager getManager()
+			{
+				return ClearVolumeTCPServerSink.this.getManager();
+			}
+		};
+		// the relay sink, and so the manager, is set after construction:
+		mStreamQueues = new StreamQueues(	pBufferMaxCapacity,
+											pLatestPerChannel,
+											lSupersededVolumeSink);
+		mSerializedFramePool = new SerializedFramePool(pBufferMaxCapacity);
 	}
 
 	public boolean open(SocketAddress pSocketAddress) throws IOException
@@ -43,11 +115,129 @@ public class ClearVolumeTCPServerSink extends RelaySinkAdapter	implements
 		mServerSocketChannel.configureBlocking(true);
 		mServerSocketChannel.setOption(	StandardSocketOptions.SO_RCVBUF,
 										ClearVolumeTCPClient.cSocketBufferLength);
+		// a restarted server rebinds its port while old connections linger:
+		mServerSocketChannel.setOption(	StandardSocketOptions.SO_REUSEADDR,
+										true);
 		mServerSocketChannel.socket().bind(pSocketAddress);
 
 		return mServerSocketChannel.isOpen();
 	}
 
+	/**
+	 * Enables the striped transport: clients that ask for it get the data of
+	 * each volume over several sockets in parallel, connected to the given
+	 * address. Must be called before start().
+	 *
+	 * @param pStripeSocketAddress
+	 *            address for stripe connections, port 0 picks a free port
+	 * @param pMaxNumberOfStripes
+	 *            max number of stripes per client
+	 * @return true if opened
+	 * @throws IOException
+	 *             if the stripe socket can't be bound
+	 */
+	public boolean openStripes(	SocketAddress pStripeSocketAddress,
+								int pMaxNumberOfStripes) throws IOException
+	{
+		if (mStripeServerSocketChannel != null && mStripeServerSocketChannel.isOpen())
+			return false;
+		mStripeServerSocketChannel = ServerSocketChannel.open();
+		mStripeServerSocketChannel.configureBlocking(true);
+		mStripeServerSocketChannel.socket().bind(pStripeSocketAddress);
+		mMaxNumberOfStripes = Math.min(	pMaxNumberOfStripes,
+										StripedTransport.cMaxNumberOfStripes);
+		mStripePort = mStripeServerSocketChannel.socket().getLocalPort();
+		return mStripeServerSocketChannel.isOpen();
+	}
+
+	/**
+	 * @return port for stripe connections, or -1 if stripes are not enabled
+	 */
+	public int getStripePort()
+	{
+		return mStripePort;
+	}
+
+	boolean registerStripe(	long pSessionID,
+							int pStripeIndex,
+							int pNumberOfStripes,
+							SocketChannel pSocketChannel)
+	{
+		if (pNumberOfStripes < 1 || pNumberOfStripes > mMaxNumberOfStripes
+			|| pStripeIndex < 0
+			|| pStripeIndex >= pNumberOfStripes)
+			return false;
+
+		SocketChannel[] lStripes = mPendingStripes.get(pSessionID);
+		if (lStripes == null)
+		{
+			final SocketChannel[] lNewStripes = new SocketChannel[pNumberOfStripes];
+			lStripes = mPendingStripes.putIfAbsent(pSessionID, lNewStripes);
+			if (lStripes == null)
+				lStripes = lNewStripes;
+		}
+
+		synchronized (lStripes)
+		{
+			if (lStripes.length != pNumberOfStripes || lStripes[pStripeIndex] != null)
+				return false;
+			lStripes[pStripeIndex] = pSocketChannel;
+			lStripes.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Waits for the stripes of the given session to connect, and switches the
+	 * client connection to striped transport. If they don't all connect in
+	 * time the client stays on a single stream.
+	 */
+	void attachStripes(	ClearVolumeTCPServerConnection pConnection,
+						long pSessionID,
+						int pNumberOfStripes) throws InterruptedException
+	{
+		final long lDeadline = System.currentTimeMillis() + cStripeConnectionTimeOutMillis;
+		SocketChannel[] lStripes;
+		while ((lStripes = mPendingStripes.get(pSessionID)) == null && System.currentTimeMillis() < lDeadline)
+			Thread.sleep(1);
+		if (lStripes == null)
+			return;
+
+		boolean lComplete = false;
+		synchronized (lStripes)
+		{
+			while (!lComplete && System.currentTimeMillis() < lDeadline)
+			{
+				lComplete = lStripes.length == pNumberOfStripes;
+				for (final SocketChannel lStripe : lStripes)
+					lComplete &= lStripe != null;
+				if (!lComplete)
+					lStripes.wait(Math.max(	1,
+											lDeadline - System.currentTimeMillis()));
+			}
+		}
+		mPendingStripes.remove(pSessionID);
+
+		if (lComplete)
+			pConnection.setStripedFrameSender(new StripedFrameSender(lStripes));
+		else
+			closeStripes(lStripes);
+	}
+
+	private void closeStripes(SocketChannel[] pStripes)
+	{
+		for (final SocketChannel lStripe : pStripes)
+			if (lStripe != null)
+				try
+				{
+					lStripe.close();
+				}
+				catch (final IOException e)
+				{
+					e.printStackTrace();
+				}
+	}
+
 	@Override
 	public void close() throws IOException
 	{
@@ -55,75 +245,449 @@ public class ClearVolumeTCPServerSink extends RelaySinkAdapter	implements
 		{
 			if (mServerSocketChannel != null && mServerSocketChannel.isOpen())
 				mServerSocketChannel.close();
-
+			// the port is only released once the pending accept returns:
+			if (mAcceptRunnable != null)
+				mAcceptRunnable.waitForStop();
+			if (mStripeServerSocketChannel != null && mStripeServerSocketChannel.isOpen())
+				mStripeServerSocketChannel.close();
 		}
 		catch (final Throwable e)
 		{
 			e.printStackTrace();
 		}
 
+		for (final SocketChannel[] lStripes : mPendingStripes.values())
+			closeStripes(lStripes);
+		mPendingStripes.clear();
+		mStripeServerSocketChannel = null;
+		mStripePort = -1;
+
+		for (final ClearVolumeTCPServerConnection lConnection : mConnections)
+			lConnection.close();
+
+		mSnapshotCache.close();
+
 		mServerSocketChannel = null;
 	}
 
 	public boolean start()
 	{
 		lRunnable = new ClearVolumeTCPServerSinkRunnable(	this,
-															mServerSocketChannel,
-															mSourceToSinkBufferedAdapter);
+															mStreamQueues);
 		mRunnableThread = new Thread(	lRunnable,
 										ClearVolumeTCPServerSinkRunnable.class.getSimpleName() + "Thread");
 		mRunnableThread.setDaemon(true);
 		mRunnableThread.start();
+
+		mAcceptRunnable = new ClearVolumeTCPServerAcceptRunnable(	this,
+																	mServerSocketChannel);
+		mAcceptThread = new Thread(	mAcceptRunnable,
+									ClearVolumeTCPServerAcceptRunnable.class.getSimpleName() + "Thread");
+		mAcceptThread.setDaemon(true);
+		mAcceptThread.start();
+
+		if (mStripeServerSocketChannel != null)
+		{
+			mStripeAcceptRunnable = new ClearVolumeTCPServerStripeAcceptRunnable(	this,
+																					mStripeServerSocketChannel);
+			final Thread lStripeAcceptThread = new Thread(	mStripeAcceptRunnable,
+															ClearVolumeTCPServerStripeAcceptRunnable.class.getSimpleName() + "Thread");
+			lStripeAcceptThread.setDaemon(true);
+			lStripeAcceptThread.start();
+		}
 		return true;
 	}
 
 	public boolean stop()
 	{
 		lRunnable.requestStop();
+		mAcceptRunnable.requestStop();
+		if (mStripeAcceptRunnable != null)
+			mStripeAcceptRunnable.requestStop();
+		for (final ClearVolumeTCPServerConnection lConnection : mConnections)
+			lConnection.requestStop();
 		return true;
 	}
 
+	void addConnection(SocketChannel pSocketChannel) throws IOException
+	{
+		final ClearVolumeTCPServerConnection lConnection = new ClearVolumeTCPServerConnection(	this,
+																								pSocketChannel,
+																								mClientQueueCapacity,
+																								mSlowClientPolicy);
+
+		// a newly connected client first receives the last frame seen of each
+		// channel:
+		sendSnapshot(lConnection);
+
+		mConnections.add(lConnection);
+		lConnection.start();
+	}
+
+	/**
+	 * Queues the last frame seen of each channel for the given client, unless
+	 * nothing was queued for that client since its last snapshot. Frames are
+	 * sent as cached to clients viewing whole volumes at full resolution, and
+	 * resampled for the others.
+	 *
+	 * @param pConnection
+	 *            client connection
+	 */
+	void sendSnapshot(ClearVolumeTCPServerConnection pConnection)
+	{
+		if (pConnection.isSnapshotCurrent())
+			return;
+
+		final ClientView lClientView = pConnection.getClientView();
+		final ArrayList<SerializedFrame> lLastFramesSeen = new ArrayList<>();
+		mSnapshotCache.acquireAll(lLastFramesSeen);
+		for (final SerializedFrame lLastFrameSeen : lLastFramesSeen)
+		{
+			try
+			{
+				if (!lClientView.isChannelAccepted(lLastFrameSeen.getChannelID()))
+					continue;
+				if (lClientView.isFullResolution())
+				{
+					pConnection.offer(lLastFrameSeen);
+					continue;
+				}
+
+				final SerializedFrame lSerializedFrame;
+				synchronized (mSnapshotVolume)
+				{
+					ClearVolumeSerialization.deserialize(	lLastFrameSeen.duplicate(),
+															mSnapshotVolume);
+					lSerializedFrame = serialize(mSnapshotVolume, lClientView);
+				}
+				pConnection.offer(lSerializedFrame);
+				lSerializedFrame.release();
+			}
+			finally
+			{
+				lLastFrameSeen.release();
+			}
+		}
+		pConnection.setSnapshotCurrent(true);
+	}
+
+	/**
+	 * @return last frame seen of each channel
+	 */
+	public SnapshotCache getSnapshotCache()
+	{
+		return mSnapshotCache;
+	}
+
+	/**
+	 * Serializes a volume as seen by a client: cropped to its region of
+	 * interest and downsampled to its resolution level.
+	 *
+	 * @param pVolume
+	 *            volume
+	 * @param pClientView
+	 *            client view
+	 * @return frame with a reference count of one
+	 */
+	SerializedFrame serialize(Volume pVolume, ClientView pClientView)
+	{
+		return serialize(	pVolume,
+							pClientView.getRegionOfInterest(),
+							pClientView.getResolutionLevel());
+	}
+
+	/**
+	 * Serializes a region of a volume at a given resolution level.
+	 *
+	 * @param pVolume
+	 *            volume
+	 * @param pRegionOfInterest
+	 *            normalized region, null for the whole volume
+	 * @param pResolutionLevel
+	 *            resolution level
+	 * @return frame with a reference count of one
+	 */
+	SerializedFrame serialize(	Volume pVolume,
+								float[] pRegionOfInterest,
+								int pResolutionLevel)
+	{
+		final long lStartNanos = System.nanoTime();
+		SerializedFrame lSerializedFrame;
+		if (pRegionOfInterest == null && pResolutionLevel == 0)
+			lSerializedFrame = mSerializedFramePool.serialize(pVolume);
+		else
+			synchronized (mResampledVolume)
+			{
+				VolumeResampling.extract(	pVolume,
+											pRegionOfInterest,
+											pResolutionLevel,
+											mResampledVolume);
+				lSerializedFrame = mSerializedFramePool.serialize(mResampledVolume);
+			}
+		mNetworkMetrics.recordSerializationTime(System.nanoTime() - lStartNanos);
+		return lSerializedFrame;
+	}
+
+	void removeConnection(ClearVolumeTCPServerConnection pConnection)
+	{
+		mConnections.remove(pConnection);
+	}
+
+	public List<ClearVolumeTCPServerConnection> getConnections()
+	{
+		return Collections.unmodifiableList(mConnections);
+	}
+
+	public int getNumberOfConnections()
+	{
+		return mConnections.size();
+	}
+
+	/**
+	 * @return metrics of the volumes sent: frames and bytes per channel,
+	 *         serialization and write times, server queue depth, dropped
+	 *         frames and latency
+	 */
+	public NetworkMetrics getNetworkMetrics()
+	{
+		return mNetworkMetrics;
+	}
+
+	SerializedFramePool getSerializedFramePool()
+	{
+		return mSerializedFramePool;
+	}
+
+	/**
+	 * Sets the number of frames that can be queued for each client, applies to
+	 * clients connecting from now on.
+	 *
+	 * @param pClientQueueCapacity
+	 *            max number of queued frames per client
+	 */
+	public void setClientQueueCapacity(int pClientQueueCapacity)
+	{
+		mClientQueueCapacity = pClientQueueCapacity;
+	}
+
+	public int getClientQueueCapacity()
+	{
+		return mClientQueueCapacity;
+	}
+
+	/**
+	 * Sets what to do with clients that cannot keep up, applies to clients
+	 * connecting from now on.
+	 *
+	 * @param pSlowClientPolicy
+	 *            slow client policy
+	 */
+	public void setSlowClientPolicy(SlowClientPolicy pSlowClientPolicy)
+	{
+		mSlowClientPolicy = pSlowClientPolicy;
+	}
+
+	public SlowClientPolicy getSlowClientPolicy()
+	{
+		return mSlowClientPolicy;
+	}
+
+	/**
+	 * Enables adaptive quality: the bandwidth of each client is estimated and
+	 * volumes are compressed, then downsampled, as much as needed for the
+	 * client to keep up with the acquisition. A client's own resolution level
+	 * is a lower bound.
+	 *
+	 * @param pAdaptiveQuality
+	 *            true to enable
+	 */
+	public void setAdaptiveQuality(boolean pAdaptiveQuality)
+	{
+		mAdaptiveQuality = pAdaptiveQuality;
+	}
+
+	public boolean isAdaptiveQuality()
+	{
+		return mAdaptiveQuality;
+	}
+
+	/**
+	 * Sets the lowest resolution adaptive quality may go down to, applies to
+	 * clients connecting from now on.
+	 *
+	 * @param pMaxAdaptiveResolutionLevel
+	 *            max resolution level
+	 */
+	public void setMaxAdaptiveResolutionLevel(int pMaxAdaptiveResolutionLevel)
+	{
+		mMaxAdaptiveResolutionLevel = Math.max(0, pMaxAdaptiveResolutionLevel);
+	}
+
+	public int getMaxAdaptiveResolutionLevel()
+	{
+		return mMaxAdaptiveResolutionLevel;
+	}
+
+	/**
+	 * @param pCompressionLevel
+	 *            strongest deflate level adaptive quality steps down to before
+	 *            downsampling, from 1 (fastest) to 9 (smallest, the default).
+	 *            Applies to clients connecting afterwards.
+	 */
+	public void setCompressionLevel(int pCompressionLevel)
+	{
+		mCompressionLevel = Math.max(1, Math.min(pCompressionLevel, 9));
+	}
+
+	public int getCompressionLevel()
+	{
+		return mCompressionLevel;
+	}
+
 	@Override
 	public void sendVolume(Volume pVolume)
 	{
 		if (pVolume != null)
 		{
-			Volume lNewLastSeenVolume;
-			if (mLastVolumeSeen == null)
+			synchronized (mBatchLock)
+			{
+				queueVolume(pVolume);
+			}
+		}
+	}
+
+	/**
+	 * Returns a sink for one logical stream: volumes sent to it are tagged
+	 * with the stream ID and share the connections of this server with the
+	 * other streams. Each stream has its own queue and its own channels, and
+	 * streams are sent in turn.
+	 *
+	 * @param pStreamID
+	 *            stream ID, 0 is the stream of volumes sent to this sink
+	 *            directly
+	 * @return stream sink
+	 */
+	public VolumeSinkInterface getStreamSink(final int pStreamID)
+	{
+		return new VolumeSinkInterface()
+		{
+			@Override
+			public void sendVolume(Volume pVolume)
+			{
+				if (pVolume != null)
+				{
+					pVolume.setStreamID(pStreamID);
+					ClearVolumeTCPServerSink.this.sendVolume(pVolume);
+				}
+			}
+
+			@Override
+			public VolumeManager getManager()
 			{
-				lNewLastSeenVolume = mManager.requestAndWaitForVolumeLike(	1,
-																			TimeUnit.MILLISECONDS,
-																			pVolume);
+				return ClearVolumeTCPServerSink.this.getManager();
 			}
-			else
-				lNewLastSeenVolume = mLastVolumeSeen;
+		};
+	}
+
+	/**
+	 * Sends the volumes of one time point, typically one per channel. They are
+	 * queued together, so that clients asking for batch frames receive them in
+	 * a single frame.
+	 *
+	 * @param pVolumes
+	 *            volumes of one time point and stream, at most one per
+	 *            channel
+	 */
+	public void sendVolumes(Volume... pVolumes)
+	{
+		synchronized (mBatchLock)
+		{
+			for (final Volume lVolume : pVolumes)
+				queueVolume(lVolume);
+		}
+	}
 
-			lNewLastSeenVolume.copyMetaDataFrom(pVolume);
-			lNewLastSeenVolume.copyDataFrom(pVolume);
+	/**
+	 * Moves the volumes queued right after the given first volume of a batch
+	 * to the batch: volumes of the same stream and time point, and of channels
+	 * not yet in the batch.
+	 *
+	 * @param pBatch
+	 *            batch holding its first volume
+	 */
+	void collectBatch(List<Volume> pBatch)
+	{
+		final int lStreamID = pBatch.get(0).getStreamID();
+		final long lTimeIndex = pBatch.get(0).getTimeIndex();
+		synchronized (mBatchLock)
+		{
+			Volume lNextVolume;
+			while ((lNextVolume = mStreamQueues.peek(lStreamID)) != null && lNextVolume.getTimeIndex() == lTimeIndex
+					&& !containsChannel(pBatch, lNextVolume.getChannelID()))
+				pBatch.add(mStreamQueues.poll(lStreamID));
+		}
+	}
 
-			mLastVolumeSeen = lNewLastSeenVolume;
-			// System.out.println(mLastVolumeSeen);
+	private static boolean containsChannel(List<Volume> pVolumes, int pChannelID)
+	{
+		for (final Volume lVolume : pVolumes)
+			if (lVolume.getChannelID() == pChannelID)
+				return true;
+		return false;
+	}
 
-			final boolean lSucceededInSending = mSourceToSinkBufferedAdapter.sendVolumeWithFeedback(pVolume);
-			if (!lSucceededInSending)
-				if (getRelaySink() != null)
-					getRelaySink().sendVolume(pVolume);
-				else
-					pVolume.makeAvailableToManager();
+	private void queueVolume(Volume pVolume)
+	{
+		final boolean lSucceededInSending = mStreamQueues.offer(pVolume);
+		if (!lSucceededInSending)
+		{
+			mNetworkMetrics.recordDroppedFrames(1);
+			releaseVolume(pVolume);
 		}
 	}
 
+	/**
+	 * Sends an already serialized frame to the clients as is, on the caller's
+	 * thread, e.g. frames received from an upstream server by a relay. Client
+	 * channel subscriptions and frame rate limits apply, but regions of
+	 * interest, resolution levels and adaptive quality don't since the frame
+	 * is not deserialized.
+	 *
+	 * @param pSerializedFrame
+	 *            frame, retained by the clients that queue it
+	 */
 	@Override
-	public VolumeManager getManager()
+	public void sendSerializedFrame(SerializedFrame pSerializedFrame)
+	{
+		mSnapshotCache.put(pSerializedFrame);
+
+		final long lNowNanos = System.nanoTime();
+		for (final ClearVolumeTCPServerConnection lConnection : mConnections)
+			if (lConnection.acceptsFrame(	pSerializedFrame.getStreamID(),
+											pSerializedFrame.getChannelID(),
+											lNowNanos))
+				lConnection.offer(pSerializedFrame);
+	}
+
+	static long getStreamChannelKey(int pStreamID, int pChannelID)
+	{
+		return ((long) pStreamID << 32) | (pChannelID & 0xFFFFFFFFL);
+	}
+
+	void releaseVolume(Volume pVolume)
 	{
 		if (getRelaySink() != null)
-			return getRelaySink().getManager();
-		return null;
+			getRelaySink().sendVolume(pVolume);
+		else
+			pVolume.makeAvailableToManager();
 	}
 
-	public Volume getLastVolumeSeen()
+	@Override
+	public VolumeManager getManager()
 	{
-		return mLastVolumeSeen;
+		if (getRelaySink() != null)
+			return getRelaySink().getManager();
+		return null;
 	}
 
 }
@@ -1,34 +1,42 @@
 package clearvolume.network.server;
 
-import java.io.IOException;
-import java.net.StandardSocketOptions;
-import java.nio.ByteBuffer;
-import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
-import clearvolume.network.client.ClearVolumeTCPClient;
-import clearvolume.network.serialization.ClearVolumeSerialization;
+import clearvolume.network.serialization.BatchFrames;
+import clearvolume.network.serialization.ClientView;
+import clearvolume.network.serialization.FrameCompression;
+import clearvolume.network.serialization.SerializedFrame;
 import clearvolume.volume.Volume;
-import clearvolume.volume.source.SourceToSinkBufferedAdapter;
 
+/**
+ * Takes volumes from the server's stream queues in turn, serializes each volume once per
+ * distinct client sampling and compression, and hands the shared frames to the
+ * connected clients. Volumes of one time point queued together are sent as a
+ * batch, in a single batch frame to the clients that asked for it.
+ */
 public class ClearVolumeTCPServerSinkRunnable implements Runnable
 {
 	private final ClearVolumeTCPServerSink mClearVolumeTCPServerSink;
-	private final ServerSocketChannel mServerSocketChannel;
-	private final SourceToSinkBufferedAdapter mVolumeSource;
+	private final StreamQueues mStreamQueues;
+
+	private final ArrayList<Volume> mBatch = new ArrayList<>();
+	private final ArrayList<SerializedFrame> mConnectionFrames = new ArrayList<>();
+	private final ArrayList<FrameEntry> mFrameEntries = new ArrayList<>();
+	private final ArrayList<BatchEntry> mBatchEntries = new ArrayList<>();
+	private final BatchFrames mBatchFrames = new BatchFrames();
+	private final FrameCompression mFrameCompression = new FrameCompression();
 
 	private volatile boolean mStopSignal = false;
 	private volatile boolean mStoppedSignal = false;
-	private ByteBuffer mByteBuffer;
 
 	public ClearVolumeTCPServerSinkRunnable(ClearVolumeTCPServerSink pClearVolumeTCPServerSink,
-											ServerSocketChannel pSocketChannel,
-											SourceToSinkBufferedAdapter pVolumeSource)
+											StreamQueues pStreamQueues)
 	{
 		mClearVolumeTCPServerSink = pClearVolumeTCPServerSink;
-		mServerSocketChannel = pSocketChannel;
-		mVolumeSource = pVolumeSource;
+		mStreamQueues = pStreamQueues;
 	}
 
 	public void requestStop()
@@ -43,49 +51,30 @@ public class ClearVolumeTCPServerSinkRunnable implements Runnable
 		{
 			while (!mStopSignal)
 			{
-				final SocketChannel lSocketChannel = mServerSocketChannel.accept();
-				// System.out.println("connection accepted");
-				lSocketChannel.setOption(	StandardSocketOptions.SO_SNDBUF,
-											ClearVolumeTCPClient.cSocketBufferLength);
+				final Volume lVolumeToSend = mStreamQueues.poll(10,
+																TimeUnit.MILLISECONDS);
+				mClearVolumeTCPServerSink.getNetworkMetrics()
+											.recordQueueDepth(mStreamQueues.getQueueLength());
+				if (lVolumeToSend == null)
+					continue;
 
+				mBatch.add(lVolumeToSend);
 				try
 				{
-					if (lSocketChannel.isOpen() && lSocketChannel.isConnected()
-						&& mClearVolumeTCPServerSink.getLastVolumeSeen() != null)
-					{
-						// System.out.println("sending last seen volume: " +
-						// mClearVolumeTCPServerSink.getLastVolumeSeen());
-						sendVolumeToClient(	lSocketChannel,
-											mClearVolumeTCPServerSink.getLastVolumeSeen(),
-											false);
-					}
-
-					while (lSocketChannel.isOpen() && lSocketChannel.isConnected()
-							&& !mStopSignal)
-					{
-						final Volume lVolumeToSend = mVolumeSource.requestVolumeAndWait(10,
-																						TimeUnit.MILLISECONDS);
-						if (lVolumeToSend != null)
-							sendVolumeToClient(	lSocketChannel,
-												lVolumeToSend,
-												true);
-
-					}
+					mClearVolumeTCPServerSink.collectBatch(mBatch);
+					sendVolumesToClients(mBatch);
 				}
-				catch (final java.io.IOException e1)
+				catch (final Throwable e)
 				{
-					continue;
+					handleError(e);
 				}
-				catch (final Throwable e)
+				finally
 				{
-					e.printStackTrace();
+					for (final Volume lVolume : mBatch)
+						mClearVolumeTCPServerSink.releaseVolume(lVolume);
+					mBatch.clear();
 				}
-
 			}
-
-		}
-		catch (final java.nio.channels.AsynchronousCloseException e)
-		{
 		}
 		catch (final Throwable e)
 		{
@@ -97,26 +86,210 @@ public class ClearVolumeTCPServerSinkRunnable implements Runnable
 		}
 	}
 
-	private void sendVolumeToClient(SocketChannel lSocketChannel,
-									Volume lVolumeToSend,
-									boolean pReleaseOrForward) throws IOException
+	private void sendVolumesToClients(List<Volume> pVolumesToSend)
 	{
-		mByteBuffer = ClearVolumeSerialization.serialize(	lVolumeToSend,
-															mByteBuffer);
-		mByteBuffer.rewind();
-		if (lSocketChannel.isConnected() && lSocketChannel.isOpen())
+		final long lNowNanos = System.nanoTime();
+		try
 		{
-			while (mByteBuffer.hasRemaining())
-				lSocketChannel.write(mByteBuffer);
-
-			if (pReleaseOrForward)
+			for (final ClearVolumeTCPServerConnection lConnection : mClearVolumeTCPServerSink.getConnections())
 			{
-				if (mClearVolumeTCPServerSink.getRelaySink() == null)
-					lVolumeToSend.makeAvailableToManager();
+				mConnectionFrames.clear();
+				for (final Volume lVolumeToSend : pVolumesToSend)
+				{
+					final SerializedFrame lSerializedFrame = getFrameFor(	lConnection,
+																			lVolumeToSend,
+																			lNowNanos);
+					if (lSerializedFrame != null)
+						mConnectionFrames.add(lSerializedFrame);
+				}
+
+				if (mConnectionFrames.size() > 1 && lConnection.isBatchFrames())
+					lConnection.offer(getBatchFrame(mConnectionFrames));
 				else
-					mClearVolumeTCPServerSink.getRelaySink()
-												.sendVolume(lVolumeToSend);
+					for (final SerializedFrame lSerializedFrame : mConnectionFrames)
+						lConnection.offer(lSerializedFrame);
 			}
+
+			// whole volume frames built for clients double as snapshots for
+			// clients connecting later, the other volumes are serialized for
+			// the snapshot alone:
+			for (final Volume lVolumeToSend : pVolumesToSend)
+			{
+				FrameEntry lFrameEntry = getSnapshotFrame(lVolumeToSend);
+				if (lFrameEntry == null)
+					lFrameEntry = getFrame(lVolumeToSend, null, 0, 0);
+				mClearVolumeTCPServerSink.getSnapshotCache()
+											.put(lFrameEntry.mSerializedFrame);
+			}
+		}
+		finally
+		{
+			mConnectionFrames.clear();
+			for (final FrameEntry lFrameEntry : mFrameEntries)
+				lFrameEntry.mSerializedFrame.release();
+			mFrameEntries.clear();
+			for (final BatchEntry lBatchEntry : mBatchEntries)
+				lBatchEntry.mBatchFrame.release();
+			mBatchEntries.clear();
+		}
+	}
+
+	/**
+	 * Returns the frame of a volume as the given client wants it, or null if
+	 * the client doesn't want the volume.
+	 */
+	private SerializedFrame getFrameFor(ClearVolumeTCPServerConnection pConnection,
+										Volume pVolume,
+										long pNowNanos)
+	{
+		if (!pConnection.acceptsFrame(	pVolume.getStreamID(),
+										pVolume.getChannelID(),
+										pNowNanos))
+			return null;
+
+		final ClientView lClientView = pConnection.getClientView();
+		int lResolutionLevel = lClientView.getResolutionLevel();
+		int lCompressionLevel = 0;
+		AdaptiveQuality lAdaptiveQuality = null;
+		if (mClearVolumeTCPServerSink.isAdaptiveQuality())
+		{
+			lAdaptiveQuality = pConnection.getAdaptiveQuality();
+			lAdaptiveQuality.recordOffer((long) (pVolume.getDataSizeInBytes() * lClientView.getSamplingFactor()),
+											pNowNanos);
+			if (pConnection.getQueueLength() >= pConnection.getQueueCapacity())
+				lAdaptiveQuality.degrade(pNowNanos);
+			lResolutionLevel = Math.max(lResolutionLevel,
+										lAdaptiveQuality.getResolutionLevel());
+			lCompressionLevel = lAdaptiveQuality.getCompressionLevel();
+		}
+
+		final FrameEntry lFrameEntry = getFrame(pVolume,
+												lClientView.getRegionOfInterest(),
+												lResolutionLevel,
+												lCompressionLevel);
+		if (lCompressionLevel > 0)
+			lAdaptiveQuality.recordCompression(	lCompressionLevel,
+												lFrameEntry.mRawLength,
+												lFrameEntry.mSerializedFrame.getLength());
+		return lFrameEntry.mSerializedFrame;
+	}
+
+	/**
+	 * Returns a frame already built of the whole volume at full resolution,
+	 * preferably uncompressed, or null if none.
+	 */
+	private FrameEntry getSnapshotFrame(Volume pVolume)
+	{
+		FrameEntry lSnapshotFrameEntry = null;
+		for (final FrameEntry lFrameEntry : mFrameEntries)
+			if (lFrameEntry.mVolume == pVolume && lFrameEntry.mRegionOfInterest == null
+				&& lFrameEntry.mResolutionLevel == 0
+				&& (lSnapshotFrameEntry == null || lFrameEntry.mCompressionLevel < lSnapshotFrameEntry.mCompressionLevel))
+				lSnapshotFrameEntry = lFrameEntry;
+		return lSnapshotFrameEntry;
+	}
+
+	/**
+	 * Returns the batch frame of the given frames, composed at most once per
+	 * batch.
+	 */
+	private SerializedFrame getBatchFrame(List<SerializedFrame> pSerializedFrames)
+	{
+		for (final BatchEntry lBatchEntry : mBatchEntries)
+			if (lBatchEntry.mMembers.equals(pSerializedFrames))
+				return lBatchEntry.mBatchFrame;
+
+		final SerializedFrame lBatchFrame = mBatchFrames.compose(	pSerializedFrames,
+																	mClearVolumeTCPServerSink.getSerializedFramePool());
+		mBatchEntries.add(new BatchEntry(	new ArrayList<>(pSerializedFrames),
+											lBatchFrame));
+		return lBatchFrame;
+	}
+
+	/**
+	 * Returns the frame of the volume for the given sampling and deflate level
+	 * (0 for none), serialized (and compressed) at most once per volume.
+	 */
+	private FrameEntry getFrame(Volume pVolume,
+								float[] pRegionOfInterest,
+								int pResolutionLevel,
+								int pCompressionLevel)
+	{
+		for (final FrameEntry lFrameEntry : mFrameEntries)
+			if (lFrameEntry.mVolume == pVolume && lFrameEntry.mResolutionLevel == pResolutionLevel
+				&& lFrameEntry.mCompressionLevel == pCompressionLevel
+				&& Arrays.equals(lFrameEntry.mRegionOfInterest, pRegionOfInterest))
+				return lFrameEntry;
+
+		SerializedFrame lSerializedFrame;
+		int lRawLength;
+		if (pCompressionLevel > 0)
+		{
+			final FrameEntry lRawFrameEntry = getFrame(	pVolume,
+														pRegionOfInterest,
+														pResolutionLevel,
+														0);
+			final long lStartNanos = System.nanoTime();
+			lSerializedFrame = mFrameCompression.compress(	lRawFrameEntry.mSerializedFrame,
+															pCompressionLevel,
+															mClearVolumeTCPServerSink.getSerializedFramePool());
+			mClearVolumeTCPServerSink.getNetworkMetrics()
+										.recordSerializationTime(System.nanoTime() - lStartNanos);
+			lRawLength = lRawFrameEntry.mRawLength;
+		}
+		else
+		{
+			lSerializedFrame = mClearVolumeTCPServerSink.serialize(	pVolume,
+																	pRegionOfInterest,
+																	pResolutionLevel);
+			lRawLength = lSerializedFrame.getLength();
+		}
+
+		final FrameEntry lFrameEntry = new FrameEntry(	pVolume,
+														pRegionOfInterest,
+														pResolutionLevel,
+														pCompressionLevel,
+														lSerializedFrame,
+														lRawLength);
+		mFrameEntries.add(lFrameEntry);
+		return lFrameEntry;
+	}
+
+	private static class FrameEntry
+	{
+		private final Volume mVolume;
+		private final float[] mRegionOfInterest;
+		private final int mResolutionLevel;
+		private final int mCompressionLevel;
+		private final SerializedFrame mSerializedFrame;
+		private final int mRawLength;
+
+		private FrameEntry(	Volume pVolume,
+							float[] pRegionOfInterest,
+							int pResolutionLevel,
+							int pCompressionLevel,
+							SerializedFrame pSerializedFrame,
+							int pRawLength)
+		{
+			mVolume = pVolume;
+			mRegionOfInterest = pRegionOfInterest;
+			mResolutionLevel = pResolutionLevel;
+			mCompressionLevel = pCompressionLevel;
+			mSerializedFrame = pSerializedFrame;
+			mRawLength = pRawLength;
+		}
+	}
+
+	private static class BatchEntry
+	{
+		private final List<SerializedFrame> mMembers;
+		private final SerializedFrame mBatchFrame;
+
+		private BatchEntry(	List<SerializedFrame> pMembers,
+							SerializedFrame pBatchFrame)
+		{
+			mMembers = pMembers;
+			mBatchFrame = pBatchFrame;
 		}
 	}
 
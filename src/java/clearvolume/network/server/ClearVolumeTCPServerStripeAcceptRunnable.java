@@ -0,0 +1,103 @@
+package clearvolume.network.server;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import clearvolume.network.client.ClearVolumeTCPClient;
+import clearvolume.network.serialization.ClearVolumeControlMessages;
+import clearvolume.network.serialization.StripedTransport;
+import clearvolume.network.serialization.keyvalue.KeyValueSlots;
+
+/**
+ * Accepts stripe connections for a ClearVolumeTCPServerSink, each stripe
+ * identifies its session and index with a control message before being
+ * attached to its client connection.
+ */
+public class ClearVolumeTCPServerStripeAcceptRunnable implements Runnable
+{
+	private final ClearVolumeTCPServerSink mClearVolumeTCPServerSink;
+	private final ServerSocketChannel mServerSocketChannel;
+
+	private volatile boolean mStopSignal = false;
+	private volatile boolean mStoppedSignal = false;
+
+	public ClearVolumeTCPServerStripeAcceptRunnable(ClearVolumeTCPServerSink pClearVolumeTCPServerSink,
+													ServerSocketChannel pServerSocketChannel)
+	{
+		mClearVolumeTCPServerSink = pClearVolumeTCPServerSink;
+		mServerSocketChannel = pServerSocketChannel;
+	}
+
+	public void requestStop()
+	{
+		mStopSignal = true;
+	}
+
+	@Override
+	public void run()
+	{
+		final KeyValueSlots lKeyValueSlots = new KeyValueSlots();
+		ByteBuffer lByteBuffer = null;
+		try
+		{
+			while (!mStopSignal)
+			{
+				final SocketChannel lSocketChannel = mServerSocketChannel.accept();
+				try
+				{
+					lSocketChannel.setOption(	StandardSocketOptions.SO_SNDBUF,
+												ClearVolumeTCPClient.cSocketBufferLength);
+					lSocketChannel.setOption(	StandardSocketOptions.TCP_NODELAY,
+												true);
+					lByteBuffer = ClearVolumeControlMessages.readControlMessage(lSocketChannel,
+																				lKeyValueSlots,
+																				lByteBuffer);
+					if (!KeyValueSlots.contentEquals(	lKeyValueSlots.get(ClearVolumeControlMessages.cRequestKey),
+														StripedTransport.cStripeRequest)
+						|| !mClearVolumeTCPServerSink.registerStripe(	lKeyValueSlots.getLong(	StripedTransport.cSessionKey,
+																								0),
+																		lKeyValueSlots.getInt(	StripedTransport.cStripeKey,
+																								-1),
+																		lKeyValueSlots.getInt(	StripedTransport.cStripesKey,
+																								0),
+																		lSocketChannel))
+						lSocketChannel.close();
+				}
+				catch (final IOException e)
+				{
+					lSocketChannel.close();
+				}
+			}
+		}
+		catch (final java.nio.channels.AsynchronousCloseException e)
+		{
+		}
+		catch (final Throwable e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			mStoppedSignal = true;
+		}
+	}
+
+	public void waitForStop()
+	{
+		while (!mStoppedSignal)
+		{
+			try
+			{
+				Thread.sleep(10);
+			}
+			catch (final InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+}
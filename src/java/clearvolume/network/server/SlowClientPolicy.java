@@ -0,0 +1,24 @@
+package clearvolume.network.server;
+
+/**
+ * What a server connection does when its client cannot keep up and its queue
+ * of frames to send is full.
+ */
+public enum SlowClientPolicy
+{
+	/**
+	 * The oldest queued frame is dropped to make room for the new one.
+	 */
+	DropOldest,
+
+	/**
+	 * A queued frame of the same channel is replaced by the new one, so that
+	 * the client always receives the most recent volume of each channel.
+	 */
+	KeepLatestPerChannel,
+
+	/**
+	 * The client is disconnected.
+	 */
+	Disconnect
+}
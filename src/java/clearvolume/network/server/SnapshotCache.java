@@ -0,0 +1,95 @@
+package clearvolume.network.server;
+
+import java.util.Collection;
+import java.util.HashMap;
+
+import clearvolume.network.serialization.SerializedFrame;
+
+/**
+ * Last frame seen of each channel of each stream, sent to clients as they
+ * connect. The cache holds references to frames of whole volumes at full
+ * resolution: those serialized for sending to a client anyway, or relayed,
+ * cost no copy. Volumes no client took whole at full resolution, e.g. while no
+ * client is connected, are serialized for the cache alone. A frame is
+ * replaced atomically by the next frame of its channel.
+ */
+public class SnapshotCache implements AutoCloseable
+{
+	private final HashMap<Long, SerializedFrame> mLastFramesSeen = new HashMap<>();
+
+	/**
+	 * Replaces the last frame of the frame's stream and channel.
+	 *
+	 * @param pSerializedFrame
+	 *            frame, retained by the cache
+	 */
+	public void put(SerializedFrame pSerializedFrame)
+	{
+		final SerializedFrame lPreviousFrameSeen;
+		synchronized (mLastFramesSeen)
+		{
+			lPreviousFrameSeen = mLastFramesSeen.put(	ClearVolumeTCPServerSink.getStreamChannelKey(	pSerializedFrame.getStreamID(),
+																											pSerializedFrame.getChannelID()),
+														pSerializedFrame.retain());
+		}
+		if (lPreviousFrameSeen != null)
+			lPreviousFrameSeen.release();
+	}
+
+	/**
+	 * Returns the last frame of a channel of a stream.
+	 *
+	 * @param pStreamID
+	 *            stream
+	 * @param pChannelID
+	 *            channel
+	 * @return frame retained for the caller, or null if none was seen
+	 */
+	public SerializedFrame acquire(int pStreamID, int pChannelID)
+	{
+		synchronized (mLastFramesSeen)
+		{
+			final SerializedFrame lSerializedFrame = mLastFramesSeen.get(ClearVolumeTCPServerSink.getStreamChannelKey(	pStreamID,
+																														pChannelID));
+			return lSerializedFrame == null ? null : lSerializedFrame.retain();
+		}
+	}
+
+	/**
+	 * Adds the last frame of each channel to the given collection.
+	 *
+	 * @param pSerializedFrames
+	 *            collection receiving the frames, each retained for the caller
+	 */
+	public void acquireAll(Collection<SerializedFrame> pSerializedFrames)
+	{
+		synchronized (mLastFramesSeen)
+		{
+			for (final SerializedFrame lSerializedFrame : mLastFramesSeen.values())
+				pSerializedFrames.add(lSerializedFrame.retain());
+		}
+	}
+
+	/**
+	 * @return number of channels seen, over all streams
+	 */
+	public int getNumberOfChannels()
+	{
+		synchronized (mLastFramesSeen)
+		{
+			return mLastFramesSeen.size();
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		synchronized (mLastFramesSeen)
+		{
+			for (final SerializedFrame lSerializedFrame : mLastFramesSeen.values())
+				lSerializedFrame.release();
+			mLastFramesSeen.clear();
+		}
+	}
+
+}
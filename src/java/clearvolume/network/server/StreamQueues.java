@@ -0,0 +1,169 @@
+package clearvolume.network.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+import clearvolume.volume.sink.VolumeSinkInterface;
+import clearvolume.volume.source.SourceToSinkBufferedAdapter;
+
+/**
+ * Volumes waiting to be sent, in one queue per logical stream so that a busy
+ * stream can't crowd out the others: each stream gets the configured capacity,
+ * and streams with waiting volumes are served in turn.
+ */
+public class StreamQueues
+{
+	private final int mCapacityPerStream;
+	private final boolean mLatestPerChannel;
+	private final VolumeSinkInterface mSupersededVolumeSink;
+
+	private final ConcurrentHashMap<Integer, SourceToSinkBufferedAdapter> mStreamQueues = new ConcurrentHashMap<>();
+	private final CopyOnWriteArrayList<SourceToSinkBufferedAdapter> mStreamQueueList = new CopyOnWriteArrayList<>();
+	private final Semaphore mQueuedSignal = new Semaphore(0);
+	private int mNextStreamIndex = 0;
+
+	/**
+	 * @param pCapacityPerStream
+	 *            max number of queued volumes (or channels) per stream
+	 * @param pLatestPerChannel
+	 *            true to only keep the latest volume per channel of each
+	 *            stream
+	 * @param pSupersededVolumeSink
+	 *            sink receiving superseded volumes, its manager is looked up
+	 *            for the queue of each stream as the stream shows up
+	 */
+	public StreamQueues(int pCapacityPerStream,
+						boolean pLatestPerChannel,
+						VolumeSinkInterface pSupersededVolumeSink)
+	{
+		super();
+		mCapacityPerStream = pCapacityPerStream;
+		mLatestPerChannel = pLatestPerChannel;
+		mSupersededVolumeSink = pSupersededVolumeSink;
+	}
+
+	/**
+	 * Queues a volume in the queue of its stream.
+	 *
+	 * @param pVolume
+	 *            volume
+	 * @return false if the stream's queue is full
+	 */
+	public boolean offer(Volume pVolume)
+	{
+		final boolean lQueued = getStreamQueue(pVolume.getStreamID()).sendVolumeWithFeedback(pVolume);
+		if (lQueued)
+			mQueuedSignal.release();
+		return lQueued;
+	}
+
+	/**
+	 * Takes the next volume, from the streams in turn.
+	 *
+	 * @param pTimeOut
+	 *            max time to wait for a volume
+	 * @param pTimeUnit
+	 *            time unit
+	 * @return volume, or null if none came in time
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public Volume poll(long pTimeOut, TimeUnit pTimeUnit) throws InterruptedException
+	{
+		// permits only wake the caller up, the queues tell what is there:
+		mQueuedSignal.drainPermits();
+		Volume lVolume = pollNextStream();
+		if (lVolume == null && mQueuedSignal.tryAcquire(pTimeOut, pTimeUnit))
+			lVolume = pollNextStream();
+		return lVolume;
+	}
+
+	private Volume pollNextStream()
+	{
+		final int lNumberOfStreams = mStreamQueueList.size();
+		for (int i = 0; i < lNumberOfStreams; i++)
+		{
+			final int lStreamIndex = (mNextStreamIndex + i) % lNumberOfStreams;
+			final Volume lVolume = mStreamQueueList.get(lStreamIndex)
+													.requestVolumeAndWait(	0,
+																			TimeUnit.MILLISECONDS);
+			if (lVolume != null)
+			{
+				mNextStreamIndex = lStreamIndex + 1;
+				return lVolume;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param pStreamID
+	 *            stream
+	 * @return next volume of the stream without taking it, or null if none
+	 */
+	public Volume peek(int pStreamID)
+	{
+		final SourceToSinkBufferedAdapter lStreamQueue = mStreamQueues.get(pStreamID);
+		return lStreamQueue == null ? null : lStreamQueue.peekVolume();
+	}
+
+	/**
+	 * @param pStreamID
+	 *            stream
+	 * @return next volume of the stream, or null if none
+	 */
+	public Volume poll(int pStreamID)
+	{
+		final SourceToSinkBufferedAdapter lStreamQueue = mStreamQueues.get(pStreamID);
+		return lStreamQueue == null	? null
+									: lStreamQueue.requestVolumeAndWait(0,
+																		TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return number of volumes waiting, over all streams
+	 */
+	public int getQueueLength()
+	{
+		int lQueueLength = 0;
+		for (final SourceToSinkBufferedAdapter lStreamQueue : mStreamQueueList)
+			lQueueLength += lStreamQueue.getQueueLength();
+		return lQueueLength;
+	}
+
+	public int getNumberOfStreams()
+	{
+		return mStreamQueueList.size();
+	}
+
+	private SourceToSinkBufferedAdapter getStreamQueue(int pStreamID)
+	{
+		SourceToSinkBufferedAdapter lStreamQueue = mStreamQueues.get(pStreamID);
+		if (lStreamQueue == null)
+		{
+			final SourceToSinkBufferedAdapter lNewStreamQueue = new SourceToSinkBufferedAdapter(getManager(),
+																								mCapacityPerStream,
+																								mLatestPerChannel,
+																								mSupersededVolumeSink);
+			lStreamQueue = mStreamQueues.putIfAbsent(pStreamID, lNewStreamQueue);
+			if (lStreamQueue == null)
+			{
+				lStreamQueue = lNewStreamQueue;
+				mStreamQueueList.add(lStreamQueue);
+			}
+		}
+		return lStreamQueue;
+	}
+
+	private VolumeManager getManager()
+	{
+		if (mSupersededVolumeSink != null)
+			return mSupersededVolumeSink.getManager();
+		return null;
+	}
+
+}
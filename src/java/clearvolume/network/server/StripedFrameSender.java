@@ -0,0 +1,127 @@
+package clearvolume.network.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import clearvolume.network.serialization.StripedTransport;
+
+/**
+ * Sends the data of frames over the stripe sockets of one client, each stripe
+ * written by its own thread.
+ */
+public class StripedFrameSender implements AutoCloseable
+{
+	private final SocketChannel[] mStripeSocketChannels;
+	private final ExecutorService mExecutorService;
+	private final Future<?>[] mFutures;
+
+	public StripedFrameSender(SocketChannel[] pStripeSocketChannels)
+	{
+		super();
+		mStripeSocketChannels = pStripeSocketChannels;
+		mFutures = new Future<?>[pStripeSocketChannels.length];
+		mExecutorService = Executors.newFixedThreadPool(pStripeSocketChannels.length,
+														new ThreadFactory()
+														{
+															@Override
+															public Thread newThread(Runnable pRunnable)
+															{
+																final Thread lThread = new Thread(	pRunnable,
+																									StripedFrameSender.class.getSimpleName() + "Thread");
+																lThread.setDaemon(true);
+																return lThread;
+															}
+														});
+	}
+
+	public int getNumberOfStripes()
+	{
+		return mStripeSocketChannels.length;
+	}
+
+	/**
+	 * Writes the data of a frame over all stripes and waits until done.
+	 *
+	 * @param pData
+	 *            data between position and limit
+	 * @throws IOException
+	 *             if a stripe fails
+	 */
+	public void send(final ByteBuffer pData) throws IOException
+	{
+		final int lNumberOfStripes = mStripeSocketChannels.length;
+		final int lDataOffset = pData.position();
+		final int lDataLength = pData.remaining();
+
+		for (int i = 0; i < lNumberOfStripes; i++)
+		{
+			final SocketChannel lSocketChannel = mStripeSocketChannels[i];
+			final ByteBuffer lChunk = pData.duplicate();
+			final int lChunkOffset = lDataOffset + StripedTransport.getChunkOffset(	lDataLength,
+																					lNumberOfStripes,
+																					i);
+			lChunk.limit(lChunkOffset + StripedTransport.getChunkLength(	lDataLength,
+																			lNumberOfStripes,
+																			i));
+			lChunk.position(lChunkOffset);
+
+			mFutures[i] = mExecutorService.submit(new Callable<Void>()
+			{
+				@Override
+				public Void call() throws IOException
+				{
+					while (lChunk.hasRemaining())
+						lSocketChannel.write(lChunk);
+					return null;
+				}
+			});
+		}
+
+		IOException lException = null;
+		for (int i = 0; i < lNumberOfStripes; i++)
+		{
+			try
+			{
+				mFutures[i].get();
+			}
+			catch (final ExecutionException e)
+			{
+				if (lException == null)
+					lException = e.getCause() instanceof IOException ? (IOException) e.getCause()
+																	: new IOException(e.getCause());
+			}
+			catch (final InterruptedException e)
+			{
+				if (lException == null)
+					lException = new IOException(e);
+			}
+		}
+		if (lException != null)
+			throw lException;
+	}
+
+	@Override
+	public void close()
+	{
+		mExecutorService.shutdownNow();
+		for (final SocketChannel lSocketChannel : mStripeSocketChannels)
+		{
+			try
+			{
+				lSocketChannel.close();
+			}
+			catch (final IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+}
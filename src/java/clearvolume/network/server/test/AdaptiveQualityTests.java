@@ -0,0 +1,69 @@
+package clearvolume.network.server.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import clearvolume.network.server.AdaptiveQuality;
+
+public class AdaptiveQualityTests
+{
+
+	@Test
+	public void testDegradeAndRecover()
+	{
+		final AdaptiveQuality lAdaptiveQuality = new AdaptiveQuality(3);
+		long lNowNanos = 0;
+
+		// 100 MB/s of volumes over a 10 MB/s link, deflating by 2 at level 1
+		// and by 2.5 at the stronger levels:
+		for (int i = 0; i < 200; i++)
+		{
+			lNowNanos += 10_000_000L;
+			lAdaptiveQuality.recordOffer(1_000_000, lNowNanos);
+			lAdaptiveQuality.recordWrite(100_000, 10_000_000L);
+			final int lCompressionLevel = lAdaptiveQuality.getCompressionLevel();
+			if (lCompressionLevel > 0)
+				lAdaptiveQuality.recordCompression(	lCompressionLevel,
+													lCompressionLevel == 1 ? 2 : 5,
+													lCompressionLevel == 1 ? 1 : 2);
+		}
+		assertEquals(10e6, lAdaptiveQuality.getBandwidth(), 1e6);
+		assertTrue(lAdaptiveQuality.isCompressed());
+		// each deflate level is tried, then 100 / 2.5 / 8 = 5 MB/s fits in 80%
+		// of 10 MB/s:
+		assertEquals(9, lAdaptiveQuality.getCompressionLevel());
+		assertEquals(1, lAdaptiveQuality.getResolutionLevel());
+		assertEquals(2.5, lAdaptiveQuality.getCompressionRatio(), 0.01);
+
+		// the link gets much faster, quality recovers one step at a time:
+		for (int i = 0; i < 2000; i++)
+		{
+			lNowNanos += 10_000_000L;
+			lAdaptiveQuality.recordOffer(1_000_000, lNowNanos);
+			lAdaptiveQuality.recordWrite(1_000_000, 1_000_000L);
+		}
+		assertFalse(lAdaptiveQuality.isCompressed());
+		assertEquals(0, lAdaptiveQuality.getCompressionLevel());
+		assertEquals(0, lAdaptiveQuality.getResolutionLevel());
+	}
+
+	@Test
+	public void testMaxCompressionLevel()
+	{
+		// the strongest level caps the default ones:
+		final AdaptiveQuality lAdaptiveQuality = new AdaptiveQuality(0, 4);
+		long lNowNanos = 0;
+		for (int i = 0; i < 200; i++)
+		{
+			lNowNanos += 10_000_000L;
+			lAdaptiveQuality.degrade(lNowNanos);
+		}
+		assertEquals(4, lAdaptiveQuality.getCompressionLevel());
+		assertEquals(2, lAdaptiveQuality.getQualityStep());
+		assertEquals(0, lAdaptiveQuality.getResolutionLevel());
+	}
+
+}
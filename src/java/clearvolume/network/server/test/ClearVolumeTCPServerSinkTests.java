@@ -0,0 +1,659 @@
+package clearvolume.network.server.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import clearvolume.network.client.ClearVolumeTCPClient;
+import clearvolume.network.metrics.ClockSync;
+import clearvolume.network.metrics.NetworkMetrics;
+import clearvolume.network.metrics.NetworkMetricsSnapshot;
+import clearvolume.network.serialization.ClientView;
+import clearvolume.network.serialization.SerializedFrame;
+import clearvolume.network.server.AdaptiveQuality;
+import clearvolume.network.server.ClearVolumeTCPServerSink;
+import clearvolume.network.server.SlowClientPolicy;
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+import clearvolume.volume.sink.NullVolumeSink;
+import clearvolume.volume.sink.VolumeSinkAdapter;
+import clearvolume.volume.sink.VolumeSinkInterface;
+import coremem.enums.NativeTypeEnum;
+
+public class ClearVolumeTCPServerSinkTests
+{
+	private static final int cNumberOfVolumesToSend = 20;
+
+	@Test
+	public void testFanOutWithStalledClient()	throws IOException,
+												InterruptedException
+	{
+		final int lPort = 9300 + (int) (Math.random() * 500);
+
+		final VolumeManager lVolumeManager = new VolumeManager(4);
+		final ClearVolumeTCPServerSink lClearVolumeTCPServerSink = new ClearVolumeTCPServerSink(cNumberOfVolumesToSend);
+		lClearVolumeTCPServerSink.setRelaySink(new NullVolumeSink(lVolumeManager));
+		lClearVolumeTCPServerSink.setSlowClientPolicy(SlowClientPolicy.DropOldest);
+		assertTrue(lClearVolumeTCPServerSink.open(new InetSocketAddress(lPort)));
+		assertTrue(lClearVolumeTCPServerSink.start());
+
+		final SocketAddress lClientSocketAddress = new InetSocketAddress(	"localhost",
+																			lPort);
+
+		// a client that connects but never reads:
+		final SocketChannel lStalledClient = SocketChannel.open(lClientSocketAddress);
+
+		final AtomicInteger lCounter1 = new AtomicInteger();
+		final AtomicInteger lCounter2 = new AtomicInteger();
+		final ClearVolumeTCPClient lClient1 = newCountingClient(lCounter1);
+		final ClearVolumeTCPClient lClient2 = newCountingClient(lCounter2);
+		assertTrue(lClient1.open(lClientSocketAddress));
+		assertTrue(lClient2.open(lClientSocketAddress));
+		lClient1.start();
+		lClient2.start();
+
+		while (lClearVolumeTCPServerSink.getNumberOfConnections() < 3)
+			Thread.sleep(10);
+
+		for (int i = 0; i < cNumberOfVolumesToSend; i++)
+		{
+			final Volume lVolume = lVolumeManager.requestAndWaitForVolume(	1,
+																			TimeUnit.SECONDS,
+																			NativeTypeEnum.UnsignedShort,
+																			1,
+																			128,
+																			128,
+																			64);
+			lVolume.setTimeIndex(i);
+			lClearVolumeTCPServerSink.sendVolume(lVolume);
+			Thread.sleep(20);
+		}
+
+		for (int i = 0; i < 200 && (lCounter1.get() < cNumberOfVolumesToSend || lCounter2.get() < cNumberOfVolumesToSend); i++)
+			Thread.sleep(10);
+
+		assertEquals(cNumberOfVolumesToSend, lCounter1.get());
+		assertEquals(cNumberOfVolumesToSend, lCounter2.get());
+
+		lClient1.stop();
+		lClient2.stop();
+		lClient1.close();
+		lClient2.close();
+		lStalledClient.close();
+		lClearVolumeTCPServerSink.stop();
+		lClearVolumeTCPServerSink.close();
+	}
+
+	@Test
+	public void testStripedTransport() throws IOException, InterruptedException
+	{
+		final int lPort = 9300 + (int) (Math.random() * 500);
+		final int lNumberOfStripes = 3;
+
+		final VolumeManager lVolumeManager = new VolumeManager(4);
+		final ClearVolumeTCPServerSink lClearVolumeTCPServerSink = new ClearVolumeTCPServerSink(4);
+		lClearVolumeTCPServerSink.setRelaySink(new NullVolumeSink(lVolumeManager));
+		assertTrue(lClearVolumeTCPServerSink.open(new InetSocketAddress(lPort)));
+		assertTrue(lClearVolumeTCPServerSink.openStripes(	new InetSocketAddress(0),
+															8));
+		assertTrue(lClearVolumeTCPServerSink.start());
+
+		final AtomicReference<byte[]> lLastReceivedData = new AtomicReference<>();
+		final AtomicLong lLastTimeIndex = new AtomicLong(-1);
+		final ClearVolumeTCPClient lClient = new ClearVolumeTCPClient(new VolumeSinkAdapter(4)
+		{
+			@Override
+			public void sendVolume(Volume pVolume)
+			{
+				final ByteBuffer lDataBuffer = pVolume.getDataBuffer();
+				lDataBuffer.rewind();
+				final byte[] lData = new byte[lDataBuffer.remaining()];
+				lDataBuffer.get(lData);
+				lLastReceivedData.set(lData);
+				lLastTimeIndex.set(pVolume.getTimeIndex());
+				pVolume.makeAvailableToManager();
+			}
+		});
+		lClient.setNumberOfStripes(lNumberOfStripes);
+		assertTrue(lClient.open(new InetSocketAddress("localhost", lPort)));
+		lClient.start();
+
+		// the first volume advertises the stripes, then they get negotiated:
+		for (int i = 0; i < 500 && (lClearVolumeTCPServerSink.getConnections()
+																.isEmpty() || lClearVolumeTCPServerSink.getConnections()
+																										.get(0)
+																										.getNumberOfStripes() != lNumberOfStripes); i++)
+		{
+			if (i % 50 == 0)
+				sendPatternVolume(lClearVolumeTCPServerSink, lVolumeManager, i);
+			Thread.sleep(10);
+		}
+		assertEquals(lNumberOfStripes, lClient.getNumberOfStripesInUse());
+
+		final Volume lSentVolume = sendPatternVolume(	lClearVolumeTCPServerSink,
+														lVolumeManager,
+														1000);
+		for (int i = 0; i < 500 && lLastTimeIndex.get() != 1000; i++)
+			Thread.sleep(10);
+		assertEquals(1000, lLastTimeIndex.get());
+		assertArrayEquals(getPattern(lSentVolume.getDataBuffer()
+												.capacity(), 1000),
+							lLastReceivedData.get());
+
+		lClient.stop();
+		lClient.close();
+		lClearVolumeTCPServerSink.stop();
+		lClearVolumeTCPServerSink.close();
+	}
+
+	@Test
+	public void testClientView() throws IOException, InterruptedException
+	{
+		final int lPort = 9300 + (int) (Math.random() * 500);
+
+		final VolumeManager lVolumeManager = new VolumeManager(8);
+		final ClearVolumeTCPServerSink lClearVolumeTCPServerSink = new ClearVolumeTCPServerSink(8);
+		lClearVolumeTCPServerSink.setRelaySink(new NullVolumeSink(lVolumeManager));
+		assertTrue(lClearVolumeTCPServerSink.open(new InetSocketAddress(lPort)));
+		assertTrue(lClearVolumeTCPServerSink.start());
+
+		final AtomicInteger lChannel0Counter = new AtomicInteger();
+		final AtomicInteger lChannel1Counter = new AtomicInteger();
+		final AtomicLong lLastWidth = new AtomicLong();
+		final ClearVolumeTCPClient lClient = new ClearVolumeTCPClient(new VolumeSinkAdapter(4)
+		{
+			@Override
+			public void sendVolume(Volume pVolume)
+			{
+				if (pVolume.getChannelID() == 0)
+					lChannel0Counter.incrementAndGet();
+				else
+				{
+					lChannel1Counter.incrementAndGet();
+					lLastWidth.set(pVolume.getWidthInVoxels());
+				}
+				pVolume.makeAvailableToManager();
+			}
+		});
+		assertTrue(lClient.open(new InetSocketAddress("localhost", lPort)));
+		lClient.start();
+
+		final ClientView lClientView = new ClientView();
+		lClientView.setChannels(1);
+		lClientView.setResolutionLevel(2);
+		lClient.setClientView(lClientView);
+
+		while (lClearVolumeTCPServerSink.getNumberOfConnections() < 1 || lClearVolumeTCPServerSink.getConnections()
+																									.get(0)
+																									.getClientView()
+																									.getResolutionLevel() != 2)
+			Thread.sleep(10);
+
+		for (int i = 0; i < 10; i++)
+		{
+			final Volume lVolume = lVolumeManager.requestAndWaitForVolume(	1,
+																			TimeUnit.SECONDS,
+																			NativeTypeEnum.UnsignedByte,
+																			1,
+																			17,
+																			13,
+																			11);
+			lVolume.setChannelID(i % 2);
+			lClearVolumeTCPServerSink.sendVolume(lVolume);
+			Thread.sleep(10);
+		}
+
+		for (int i = 0; i < 200 && lChannel1Counter.get() < 5; i++)
+			Thread.sleep(10);
+
+		assertEquals(0, lChannel0Counter.get());
+		assertEquals(5, lChannel1Counter.get());
+		// 17 voxels wide, one out of four kept:
+		assertEquals(5, lLastWidth.get());
+
+		lClient.stop();
+		lClient.close();
+		lClearVolumeTCPServerSink.stop();
+		lClearVolumeTCPServerSink.close();
+	}
+
+	@Test
+	public void testCompressedTransport() throws IOException, InterruptedException
+	{
+		final int lPort = 9300 + (int) (Math.random() * 500);
+
+		final VolumeManager lVolumeManager = new VolumeManager(4);
+		final ClearVolumeTCPServerSink lClearVolumeTCPServerSink = new ClearVolumeTCPServerSink(4);
+		lClearVolumeTCPServerSink.setRelaySink(new NullVolumeSink(lVolumeManager));
+		lClearVolumeTCPServerSink.setAdaptiveQuality(true);
+		assertTrue(lClearVolumeTCPServerSink.open(new InetSocketAddress(lPort)));
+		assertTrue(lClearVolumeTCPServerSink.start());
+
+		final AtomicReference<byte[]> lLastReceivedData = new AtomicReference<>();
+		final AtomicLong lLastTimeIndex = new AtomicLong(-1);
+		final ClearVolumeTCPClient lClient = new ClearVolumeTCPClient(new VolumeSinkAdapter(4)
+		{
+			@Override
+			public void sendVolume(Volume pVolume)
+			{
+				final ByteBuffer lDataBuffer = pVolume.getDataBuffer();
+				lDataBuffer.rewind();
+				final byte[] lData = new byte[lDataBuffer.remaining()];
+				lDataBuffer.get(lData);
+				lLastReceivedData.set(lData);
+				lLastTimeIndex.set(pVolume.getTimeIndex());
+				pVolume.makeAvailableToManager();
+			}
+		});
+		assertTrue(lClient.open(new InetSocketAddress("localhost", lPort)));
+		lClient.start();
+
+		while (lClearVolumeTCPServerSink.getNumberOfConnections() < 1)
+			Thread.sleep(10);
+		// one step down: compressed at full resolution
+		final AdaptiveQuality lAdaptiveQuality = lClearVolumeTCPServerSink.getConnections()
+																			.get(0)
+																			.getAdaptiveQuality();
+		lAdaptiveQuality.degrade(System.nanoTime());
+		assertTrue(lAdaptiveQuality.isCompressed());
+		assertEquals(0, lAdaptiveQuality.getResolutionLevel());
+
+		final Volume lSentVolume = sendPatternVolume(	lClearVolumeTCPServerSink,
+														lVolumeManager,
+														7);
+		for (int i = 0; i < 500 && lLastTimeIndex.get() != 7; i++)
+			Thread.sleep(10);
+		assertEquals(7, lLastTimeIndex.get());
+		assertArrayEquals(getPattern(lSentVolume.getDataBuffer()
+												.capacity(), 7),
+							lLastReceivedData.get());
+		assertTrue(lClearVolumeTCPServerSink.getConnections()
+											.get(0)
+											.getNumberOfSentBytes() < lSentVolume.getDataBuffer()
+																					.capacity());
+
+		lClient.stop();
+		lClient.close();
+		lClearVolumeTCPServerSink.stop();
+		lClearVolumeTCPServerSink.close();
+	}
+
+	@Test
+	public void testBatchFrames() throws IOException, InterruptedException
+	{
+		final int lPort = 9300 + (int) (Math.random() * 500);
+		final int lNumberOfChannels = 3;
+
+		final VolumeManager lVolumeManager = new VolumeManager(8);
+		final ClearVolumeTCPServerSink lClearVolumeTCPServerSink = new ClearVolumeTCPServerSink(8);
+		lClearVolumeTCPServerSink.setRelaySink(new NullVolumeSink(lVolumeManager));
+		// room for both time points, so that the single frame client doesn't
+		// drop any:
+		lClearVolumeTCPServerSink.setClientQueueCapacity(2 * lNumberOfChannels);
+		assertTrue(lClearVolumeTCPServerSink.open(new InetSocketAddress(lPort)));
+		assertTrue(lClearVolumeTCPServerSink.start());
+
+		final List<String> lBatchReceived = Collections.synchronizedList(new ArrayList<String>());
+		final List<String> lSingleReceived = Collections.synchronizedList(new ArrayList<String>());
+		final ClearVolumeTCPClient lBatchClient = newRecordingClient(lBatchReceived);
+		lBatchClient.setBatchFrames(true);
+		final ClearVolumeTCPClient lSingleClient = newRecordingClient(lSingleReceived);
+		assertTrue(lBatchClient.open(new InetSocketAddress("localhost", lPort)));
+		assertTrue(lSingleClient.open(new InetSocketAddress("localhost", lPort)));
+		lBatchClient.start();
+		lSingleClient.start();
+
+		while (lClearVolumeTCPServerSink.getNumberOfConnections() < 2)
+			Thread.sleep(10);
+		Thread.sleep(100);
+
+		for (int lTimeIndex = 0; lTimeIndex < 2; lTimeIndex++)
+		{
+			final Volume[] lVolumes = new Volume[lNumberOfChannels];
+			for (int lChannel = 0; lChannel < lNumberOfChannels; lChannel++)
+			{
+				lVolumes[lChannel] = newPatternVolume(	lVolumeManager,
+														lTimeIndex * lNumberOfChannels + lChannel);
+				lVolumes[lChannel].setTimeIndex(lTimeIndex);
+				lVolumes[lChannel].setChannelID(lChannel);
+				lVolumes[lChannel].setChannelName("channel" + lChannel);
+			}
+			lClearVolumeTCPServerSink.sendVolumes(lVolumes);
+		}
+
+		final int lExpected = 2 * lNumberOfChannels;
+		for (int i = 0; i < 500 && (lBatchReceived.size() < lExpected || lSingleReceived.size() < lExpected); i++)
+			Thread.sleep(10);
+
+		// both clients receive the same volumes, in order, with their data
+		// and their own channel metadata:
+		assertEquals(lExpected, lBatchReceived.size());
+		assertEquals(lSingleReceived, lBatchReceived);
+		assertEquals("1:2:channel2:true", lBatchReceived.get(5));
+		assertTrue(lClearVolumeTCPServerSink.getConnections()
+											.get(0)
+											.isBatchFrames() != lClearVolumeTCPServerSink.getConnections()
+																							.get(1)
+																							.isBatchFrames());
+
+		lBatchClient.stop();
+		lBatchClient.close();
+		lSingleClient.stop();
+		lSingleClient.close();
+		lClearVolumeTCPServerSink.stop();
+		lClearVolumeTCPServerSink.close();
+	}
+
+	@Test
+	public void testSnapshotForLateClients() throws IOException,
+											InterruptedException
+	{
+		final int lPort = 9300 + (int) (Math.random() * 500);
+
+		final VolumeManager lVolumeManager = new VolumeManager(4);
+		final ClearVolumeTCPServerSink lClearVolumeTCPServerSink = new ClearVolumeTCPServerSink(4);
+		lClearVolumeTCPServerSink.setRelaySink(new NullVolumeSink(lVolumeManager));
+		assertTrue(lClearVolumeTCPServerSink.open(new InetSocketAddress(lPort)));
+		assertTrue(lClearVolumeTCPServerSink.start());
+
+		// sent before any client connects:
+		for (int lChannel = 0; lChannel < 2; lChannel++)
+		{
+			final Volume lVolume = newPatternVolume(lVolumeManager, lChannel);
+			lVolume.setChannelID(lChannel);
+			lClearVolumeTCPServerSink.sendVolume(lVolume);
+		}
+		for (int i = 0; i < 200 && lClearVolumeTCPServerSink.getSnapshotCache()
+																.getNumberOfChannels() < 2; i++)
+			Thread.sleep(10);
+		assertEquals(2, lClearVolumeTCPServerSink.getSnapshotCache()
+													.getNumberOfChannels());
+
+		final List<String> lReceived = Collections.synchronizedList(new ArrayList<String>());
+		final ClearVolumeTCPClient lClient = newRecordingClient(lReceived);
+		assertTrue(lClient.open(new InetSocketAddress("localhost", lPort)));
+		lClient.start();
+
+		final AtomicLong lLastWidth = new AtomicLong();
+		final ClearVolumeTCPClient lDownsamplingClient = new ClearVolumeTCPClient(new VolumeSinkAdapter(4)
+		{
+			@Override
+			public void sendVolume(Volume pVolume)
+			{
+				lLastWidth.set(pVolume.getWidthInVoxels());
+				pVolume.makeAvailableToManager();
+			}
+		});
+		final ClientView lClientView = new ClientView();
+		lClientView.setResolutionLevel(1);
+		lDownsamplingClient.setClientView(lClientView);
+		assertTrue(lDownsamplingClient.open(new InetSocketAddress(	"localhost",
+																	lPort)));
+		lDownsamplingClient.start();
+
+		// the snapshot may first be sent for the default view:
+		for (int i = 0; i < 200 && (lReceived.size() < 2 || lLastWidth.get() != 9); i++)
+			Thread.sleep(10);
+
+		// a complete picture of all channels, and resampled for the client
+		// that asked for it:
+		assertEquals(2, lReceived.size());
+		assertTrue(lReceived.contains("0:0:noname:true"));
+		assertTrue(lReceived.contains("0:1:noname:true"));
+		assertEquals(9, lLastWidth.get());
+
+		lClient.stop();
+		lClient.close();
+		lDownsamplingClient.stop();
+		lDownsamplingClient.close();
+		lClearVolumeTCPServerSink.stop();
+		lClearVolumeTCPServerSink.close();
+	}
+
+	@Test
+	public void testSnapshotsReuseClientFrames() throws IOException,
+												InterruptedException
+	{
+		final int lPort = 9300 + (int) (Math.random() * 500);
+
+		final VolumeManager lVolumeManager = new VolumeManager(4);
+		final ClearVolumeTCPServerSink lClearVolumeTCPServerSink = new ClearVolumeTCPServerSink(4);
+		lClearVolumeTCPServerSink.setRelaySink(new NullVolumeSink(lVolumeManager));
+		assertTrue(lClearVolumeTCPServerSink.open(new InetSocketAddress(lPort)));
+		assertTrue(lClearVolumeTCPServerSink.start());
+
+		// serialized for the snapshot alone while no client is connected:
+		sendPatternVolume(lClearVolumeTCPServerSink, lVolumeManager, 1);
+		for (int i = 0; i < 200 && lClearVolumeTCPServerSink.getSnapshotCache()
+																.getNumberOfChannels() < 1; i++)
+			Thread.sleep(10);
+		assertEquals(1, lClearVolumeTCPServerSink.getSnapshotCache()
+													.getNumberOfChannels());
+
+		final List<String> lReceived = Collections.synchronizedList(new ArrayList<String>());
+		final ClearVolumeTCPClient lClient = newRecordingClient(lReceived);
+		assertTrue(lClient.open(new InetSocketAddress("localhost", lPort)));
+		lClient.start();
+		while (lClearVolumeTCPServerSink.getNumberOfConnections() < 1)
+			Thread.sleep(10);
+
+		// the frame built for the client is kept as snapshot:
+		sendPatternVolume(lClearVolumeTCPServerSink, lVolumeManager, 2);
+		SerializedFrame lSnapshotFrame = null;
+		for (int i = 0; i < 200; i++)
+		{
+			lSnapshotFrame = lClearVolumeTCPServerSink.getSnapshotCache()
+														.acquire(0, 0);
+			assertNotNull(lSnapshotFrame);
+			if (lSnapshotFrame.getTimeIndex() == 2)
+				break;
+			lSnapshotFrame.release();
+			Thread.sleep(10);
+		}
+		assertEquals(2, lSnapshotFrame.getTimeIndex());
+		lSnapshotFrame.release();
+
+		lClient.stop();
+		lClient.close();
+		lClearVolumeTCPServerSink.stop();
+		lClearVolumeTCPServerSink.close();
+	}
+
+	@Test
+	public void testStreams() throws IOException, InterruptedException
+	{
+		final int lPort = 9300 + (int) (Math.random() * 500);
+
+		final VolumeManager lVolumeManager = new VolumeManager(8);
+		final ClearVolumeTCPServerSink lClearVolumeTCPServerSink = new ClearVolumeTCPServerSink(4);
+		lClearVolumeTCPServerSink.setRelaySink(new NullVolumeSink(lVolumeManager));
+		assertTrue(lClearVolumeTCPServerSink.open(new InetSocketAddress(lPort)));
+		assertTrue(lClearVolumeTCPServerSink.start());
+		final VolumeSinkInterface lStream1Sink = lClearVolumeTCPServerSink.getStreamSink(1);
+		final VolumeSinkInterface lStream2Sink = lClearVolumeTCPServerSink.getStreamSink(2);
+
+		final List<String> lDefaultReceived = Collections.synchronizedList(new ArrayList<String>());
+		final List<String> lStream1Received = Collections.synchronizedList(new ArrayList<String>());
+		final List<String> lStream2Received = Collections.synchronizedList(new ArrayList<String>());
+		final ClearVolumeTCPClient lClient = newRecordingClient(lDefaultReceived);
+		lClient.setStreamSink(1, newRecordingSink(lStream1Received));
+		lClient.setStreamSink(2, newRecordingSink(lStream2Received));
+		assertTrue(lClient.open(new InetSocketAddress("localhost", lPort)));
+		lClient.start();
+		while (lClearVolumeTCPServerSink.getNumberOfConnections() < 1)
+			Thread.sleep(10);
+
+		// same channel on both streams, one connection:
+		for (int lTimeIndex = 0; lTimeIndex < 3; lTimeIndex++)
+		{
+			final Volume lVolume1 = newPatternVolume(lVolumeManager, lTimeIndex * 3);
+			lVolume1.setTimeIndex(lTimeIndex);
+			lStream1Sink.sendVolume(lVolume1);
+			final Volume lVolume2 = newPatternVolume(lVolumeManager, lTimeIndex * 3);
+			lVolume2.setTimeIndex(lTimeIndex);
+			lStream2Sink.sendVolume(lVolume2);
+			Thread.sleep(20);
+		}
+
+		for (int i = 0; i < 200 && (lStream1Received.size() < 3 || lStream2Received.size() < 3); i++)
+			Thread.sleep(10);
+
+		assertEquals(0, lDefaultReceived.size());
+		assertEquals(3, lStream1Received.size());
+		assertEquals(lStream1Received, lStream2Received);
+		assertEquals("2:0:noname:true", lStream2Received.get(2));
+
+		lClient.stop();
+		lClient.close();
+		lClearVolumeTCPServerSink.stop();
+		lClearVolumeTCPServerSink.close();
+	}
+
+	@Test
+	public void testClockSync() throws IOException, InterruptedException
+	{
+		final int lPort = 9300 + (int) (Math.random() * 500);
+
+		final VolumeManager lVolumeManager = new VolumeManager(4);
+		final ClearVolumeTCPServerSink lClearVolumeTCPServerSink = new ClearVolumeTCPServerSink(4);
+		lClearVolumeTCPServerSink.setRelaySink(new NullVolumeSink(lVolumeManager));
+		assertTrue(lClearVolumeTCPServerSink.open(new InetSocketAddress(lPort)));
+		assertTrue(lClearVolumeTCPServerSink.start());
+
+		final List<String> lReceived = Collections.synchronizedList(new ArrayList<String>());
+		final ClearVolumeTCPClient lClient = newRecordingClient(lReceived);
+		lClient.setClockSyncPeriod(20, TimeUnit.MILLISECONDS);
+		assertTrue(lClient.open(new InetSocketAddress("localhost", lPort)));
+		lClient.start();
+		while (lClearVolumeTCPServerSink.getNumberOfConnections() < 1)
+			Thread.sleep(10);
+
+		final NetworkMetrics lNetworkMetrics = lClient.getNetworkMetrics();
+		for (int i = 0; i < 100 && lNetworkMetrics.getSnapshot()
+													.getNetworkLatency(0)
+													.getCount() < 3; i++)
+		{
+			sendPatternVolume(lClearVolumeTCPServerSink, lVolumeManager, i);
+			Thread.sleep(30);
+		}
+
+		// same clock on both ends:
+		final ClockSync lClockSync = lNetworkMetrics.getClockSync();
+		assertTrue(lClockSync.isSynchronized());
+		assertTrue(Math.abs(lClockSync.getOffsetNanos()) <= lClockSync.getRoundTripNanos() + 1000000);
+		final NetworkMetricsSnapshot lSnapshot = lNetworkMetrics.getSnapshot();
+		assertTrue(lSnapshot.getNetworkLatency(0).getCount() >= 3);
+		assertTrue(lSnapshot.getNetworkLatency(0).getPercentileNanos(50) < 1000000000);
+		// the extra header entries don't get in the way of decoding:
+		assertTrue(lReceived.contains("0:0:noname:true"));
+
+		lClient.stop();
+		lClient.close();
+		lClearVolumeTCPServerSink.stop();
+		lClearVolumeTCPServerSink.close();
+	}
+
+	private static Volume newPatternVolume(	VolumeManager pVolumeManager,
+											int pSeed)
+	{
+		final Volume lVolume = pVolumeManager.requestAndWaitForVolume(	1,
+																		TimeUnit.MILLISECONDS,
+																		NativeTypeEnum.UnsignedByte,
+																		1,
+																		17,
+																		13,
+																		11);
+		final ByteBuffer lDataBuffer = lVolume.getDataBuffer();
+		lDataBuffer.clear();
+		lDataBuffer.put(getPattern(lDataBuffer.capacity(), pSeed));
+		return lVolume;
+	}
+
+	private static Volume sendPatternVolume(ClearVolumeTCPServerSink pClearVolumeTCPServerSink,
+											VolumeManager pVolumeManager,
+											int pTimeIndex)
+	{
+		// odd sizes so that chunks don't fall on round offsets:
+		final Volume lVolume = pVolumeManager.requestAndWaitForVolume(	1,
+																		TimeUnit.MILLISECONDS,
+																		NativeTypeEnum.UnsignedByte,
+																		1,
+																		17,
+																		13,
+																		11);
+		lVolume.setTimeIndex(pTimeIndex);
+		final ByteBuffer lDataBuffer = lVolume.getDataBuffer();
+		lDataBuffer.clear();
+		lDataBuffer.put(getPattern(lDataBuffer.capacity(), pTimeIndex));
+		pClearVolumeTCPServerSink.sendVolume(lVolume);
+		return lVolume;
+	}
+
+	private static byte[] getPattern(int pLength, int pSeed)
+	{
+		final byte[] lPattern = new byte[pLength];
+		for (int i = 0; i < pLength; i++)
+			lPattern[i] = (byte) (i * 31 + pSeed);
+		return lPattern;
+	}
+
+	private ClearVolumeTCPClient newRecordingClient(final List<String> pReceived)
+	{
+		return new ClearVolumeTCPClient(newRecordingSink(pReceived));
+	}
+
+	private VolumeSinkInterface newRecordingSink(final List<String> pReceived)
+	{
+		return new VolumeSinkAdapter(8)
+		{
+			@Override
+			public void sendVolume(Volume pVolume)
+			{
+				final ByteBuffer lDataBuffer = pVolume.getDataBuffer();
+				lDataBuffer.rewind();
+				final byte[] lData = new byte[lDataBuffer.remaining()];
+				lDataBuffer.get(lData);
+				final int lSeed = (int) pVolume.getTimeIndex() * 3
+									+ pVolume.getChannelID();
+				pReceived.add(pVolume.getTimeIndex() + ":"
+								+ pVolume.getChannelID()
+								+ ":"
+								+ pVolume.getChannelName()
+								+ ":"
+								+ Arrays.equals(getPattern(lData.length, lSeed),
+												lData));
+				pVolume.makeAvailableToManager();
+			}
+		};
+	}
+
+	private ClearVolumeTCPClient newCountingClient(final AtomicInteger pCounter)
+	{
+		return new ClearVolumeTCPClient(new VolumeSinkAdapter(4)
+		{
+			@Override
+			public void sendVolume(Volume pVolume)
+			{
+				pCounter.incrementAndGet();
+				pVolume.makeAvailableToManager();
+			}
+		});
+	}
+}
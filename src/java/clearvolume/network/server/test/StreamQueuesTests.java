@@ -0,0 +1,45 @@
+package clearvolume.network.server.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import clearvolume.network.server.StreamQueues;
+import clearvolume.volume.Volume;
+
+public class StreamQueuesTests
+{
+
+	@Test
+	public void testStreamsTakeTurns() throws InterruptedException
+	{
+		final StreamQueues lStreamQueues = new StreamQueues(3, false, null);
+
+		for (int i = 0; i < 5; i++)
+		{
+			final Volume lVolume = new Volume();
+			lVolume.setStreamID(i < 4 ? 1 : 2);
+			lVolume.setTimeIndex(i < 4 ? i : 0);
+			// a full stream doesn't block the others:
+			assertEquals(i != 3, lStreamQueues.offer(lVolume));
+		}
+		assertEquals(2, lStreamQueues.getNumberOfStreams());
+		assertEquals(4, lStreamQueues.getQueueLength());
+
+		assertEquals(1, lStreamQueues.poll(1, TimeUnit.MILLISECONDS)
+										.getStreamID());
+		assertEquals(2, lStreamQueues.poll(1, TimeUnit.MILLISECONDS)
+										.getStreamID());
+		final Volume lVolume = lStreamQueues.poll(1, TimeUnit.MILLISECONDS);
+		assertEquals(1, lVolume.getStreamID());
+		assertEquals(1, lVolume.getTimeIndex());
+		assertEquals(1, lStreamQueues.poll(1, TimeUnit.MILLISECONDS)
+										.getStreamID());
+		assertNull(lStreamQueues.poll(1, TimeUnit.MILLISECONDS));
+	}
+
+}
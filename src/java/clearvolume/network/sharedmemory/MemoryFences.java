@@ -0,0 +1,90 @@
+package clearvolume.network.sharedmemory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+
+/**
+ * Store and load fences for memory shared with other processes through a
+ * mapped file. Volatile fields of this process don't order plain accesses to
+ * such memory, and Java 8 has no public fence API (VarHandle fences came with
+ * Java 9), so the fences of sun.misc.Unsafe are used. They are looked up
+ * reflectively and called through method handles, which the JIT inlines, so
+ * that the build does not depend on the internal API.
+ *
+ * Where they can't be found, isAvailable() returns false and the fences must
+ * not be relied upon.
+ */
+final class MemoryFences
+{
+	private static final MethodHandle cStoreFence;
+	private static final MethodHandle cLoadFence;
+
+	static
+	{
+		MethodHandle lStoreFence = null;
+		MethodHandle lLoadFence = null;
+		try
+		{
+			final Class<?> lUnsafeClass = Class.forName("sun.misc.Unsafe");
+			final Field lField = lUnsafeClass.getDeclaredField("theUnsafe");
+			lField.setAccessible(true);
+			final Object lUnsafe = lField.get(null);
+			final MethodHandles.Lookup lLookup = MethodHandles.lookup();
+			lStoreFence = lLookup.unreflect(lUnsafeClass.getMethod("storeFence"))
+									.bindTo(lUnsafe);
+			lLoadFence = lLookup.unreflect(lUnsafeClass.getMethod("loadFence"))
+								.bindTo(lUnsafe);
+		}
+		catch (final Throwable e)
+		{
+			lStoreFence = null;
+			lLoadFence = null;
+		}
+		cStoreFence = lStoreFence;
+		cLoadFence = lLoadFence;
+	}
+
+	private MemoryFences()
+	{
+	}
+
+	/**
+	 * @return true if the fences are available
+	 */
+	static boolean isAvailable()
+	{
+		return cStoreFence != null && cLoadFence != null;
+	}
+
+	/**
+	 * Stores before the fence are not reordered with stores after it.
+	 */
+	static void storeFence()
+	{
+		try
+		{
+			cStoreFence.invokeExact();
+		}
+		catch (final Throwable e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Loads before the fence are not reordered with loads after it.
+	 */
+	static void loadFence()
+	{
+		try
+		{
+			cLoadFence.invokeExact();
+		}
+		catch (final Throwable e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,110 @@
+package clearvolume.network.sharedmemory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import clearvolume.volume.Volume;
+import clearvolume.volume.sink.VolumeSinkInterface;
+
+/**
+ * Pushes the volumes of a shared memory ring into a sink, the same-host
+ * counterpart of ClearVolumeTCPClient.
+ */
+public class SharedMemoryClient implements AutoCloseable
+{
+	private final VolumeSinkInterface mVolumeSink;
+	private SharedMemorySource mSharedMemorySource;
+
+	private volatile boolean mStopSignal = false;
+	private volatile boolean mStoppedSignal = true;
+
+	public SharedMemoryClient(VolumeSinkInterface pVolumeSink)
+	{
+		super();
+		mVolumeSink = pVolumeSink;
+	}
+
+	public boolean open(File pFile) throws IOException
+	{
+		if (mSharedMemorySource != null)
+			return false;
+		mSharedMemorySource = new SharedMemorySource(	pFile,
+														mVolumeSink.getManager());
+		return true;
+	}
+
+	public boolean start()
+	{
+		final Runnable lRunnable = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					while (!mStopSignal)
+					{
+						final Volume lVolume = mSharedMemorySource.requestVolumeAndWait(10,
+																						TimeUnit.MILLISECONDS);
+						if (lVolume != null)
+							mVolumeSink.sendVolume(lVolume);
+					}
+				}
+				catch (final Throwable e)
+				{
+					e.printStackTrace();
+				}
+				finally
+				{
+					mStoppedSignal = true;
+				}
+			}
+		};
+
+		mStopSignal = false;
+		mStoppedSignal = false;
+		final Thread lThread = new Thread(	lRunnable,
+											SharedMemoryClient.class.getSimpleName() + "Thread");
+		lThread.setDaemon(true);
+		lThread.start();
+		return true;
+	}
+
+	public boolean stop()
+	{
+		mStopSignal = true;
+		return true;
+	}
+
+	public void waitForStop()
+	{
+		while (!mStoppedSignal)
+		{
+			try
+			{
+				Thread.sleep(10);
+			}
+			catch (final InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public SharedMemorySource getSharedMemorySource()
+	{
+		return mSharedMemorySource;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		stop();
+		waitForStop();
+		if (mSharedMemorySource != null)
+			mSharedMemorySource.close();
+		mSharedMemorySource = null;
+	}
+
+}
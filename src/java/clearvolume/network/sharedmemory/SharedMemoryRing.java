@@ -0,0 +1,292 @@
+package clearvolume.network.sharedmemory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import clearvolume.network.serialization.ClearVolumeSerialization;
+import clearvolume.volume.Volume;
+
+/**
+ * Ring of fixed size slots in a memory mapped file, shared by one producer and
+ * one consumer that may live in different processes on the same host. Put the
+ * file on a memory backed file system (e.g. /dev/shm) to avoid any disk I/O.
+ *
+ * Layout: a 4096 byte header holding the geometry, the producer sequence
+ * (last published frame) and the consumer sequence (last consumed frame), each
+ * on its own cache line, followed by the slots. Frame n goes into slot n % N
+ * as [long stamp][long frame length][serialized frame]. The stamp is odd while
+ * the producer writes the slot and 2n+2 once frame n is complete, so that the
+ * consumer can detect frames overwritten while it was reading them (seqlock),
+ * and neither side ever takes a lock.
+ */
+public class SharedMemoryRing implements AutoCloseable
+{
+	private static final long cMagic = 0x314d454d48535643L; // 'CVSHMEM1'
+	private static final int cVersion = 1;
+
+	private static final int cHeaderLength = 4096;
+	private static final int cNumberOfSlotsOffset = 12;
+	private static final int cSlotLengthOffset = 16;
+	private static final int cProducerSequenceOffset = 64;
+	private static final int cConsumerSequenceOffset = 128;
+
+	private static final int cSlotHeaderLength = 16;
+	private static final int cSlotAlignment = 64;
+
+	private final RandomAccessFile mRandomAccessFile;
+	private final MappedByteBuffer mHeader;
+	private final MappedByteBuffer[] mSlots;
+	private final int mSlotLength;
+
+	private SharedMemoryRing(	RandomAccessFile pRandomAccessFile,
+								MappedByteBuffer pHeader,
+								int pNumberOfSlots,
+								int pSlotLength) throws IOException
+	{
+		mRandomAccessFile = pRandomAccessFile;
+		mHeader = pHeader;
+		mSlotLength = pSlotLength;
+		mSlots = new MappedByteBuffer[pNumberOfSlots];
+
+		final FileChannel lFileChannel = pRandomAccessFile.getChannel();
+		for (int i = 0; i < pNumberOfSlots; i++)
+		{
+			mSlots[i] = lFileChannel.map(	MapMode.READ_WRITE,
+											cHeaderLength + (long) i * pSlotLength,
+											pSlotLength);
+			mSlots[i].order(ByteOrder.nativeOrder());
+		}
+	}
+
+	/**
+	 * Creates (or recreates) a ring, to be called by the producer.
+	 *
+	 * @param pFile
+	 *            ring file
+	 * @param pNumberOfSlots
+	 *            number of slots
+	 * @param pMaxFrameLength
+	 *            max length of a serialized frame
+	 * @return ring
+	 * @throws IOException
+	 *             if the file can't be created or mapped, or memory fences
+	 *             are not available
+	 */
+	public static SharedMemoryRing create(	File pFile,
+											int pNumberOfSlots,
+											int pMaxFrameLength) throws IOException
+	{
+		checkMemoryFences();
+		final long lSlotLength = (cSlotHeaderLength + (long) pMaxFrameLength + cSlotAlignment - 1) / cSlotAlignment
+									* cSlotAlignment;
+		if (pNumberOfSlots < 1 || lSlotLength > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Invalid ring geometry");
+
+		final RandomAccessFile lRandomAccessFile = new RandomAccessFile(pFile,
+																		"rw");
+		lRandomAccessFile.setLength(0);
+		lRandomAccessFile.setLength(cHeaderLength + pNumberOfSlots * lSlotLength);
+
+		final MappedByteBuffer lHeader = lRandomAccessFile.getChannel()
+															.map(	MapMode.READ_WRITE,
+																	0,
+																	cHeaderLength);
+		lHeader.order(ByteOrder.nativeOrder());
+		lHeader.putInt(8, cVersion);
+		lHeader.putInt(cNumberOfSlotsOffset, pNumberOfSlots);
+		lHeader.putLong(cSlotLengthOffset, lSlotLength);
+		lHeader.putLong(cProducerSequenceOffset, 0);
+		lHeader.putLong(cConsumerSequenceOffset, 0);
+		// the magic goes last, consumers don't open a half initialized ring:
+		MemoryFences.storeFence();
+		lHeader.putLong(0, cMagic);
+
+		return new SharedMemoryRing(lRandomAccessFile,
+									lHeader,
+									pNumberOfSlots,
+									(int) lSlotLength);
+	}
+
+	/**
+	 * Opens an existing ring, to be called by the consumer.
+	 *
+	 * @param pFile
+	 *            ring file
+	 * @return ring
+	 * @throws IOException
+	 *             if the file is not a ring or can't be mapped, or memory
+	 *             fences are not available
+	 */
+	public static SharedMemoryRing open(File pFile) throws IOException
+	{
+		checkMemoryFences();
+		final RandomAccessFile lRandomAccessFile = new RandomAccessFile(pFile,
+																		"rw");
+		try
+		{
+			if (lRandomAccessFile.length() < cHeaderLength)
+				throw new IOException("Not a shared memory ring: " + pFile);
+			final MappedByteBuffer lHeader = lRandomAccessFile.getChannel()
+																.map(	MapMode.READ_WRITE,
+																		0,
+																		cHeaderLength);
+			lHeader.order(ByteOrder.nativeOrder());
+			if (lHeader.getLong(0) != cMagic || lHeader.getInt(8) != cVersion)
+				throw new IOException("Not a shared memory ring: " + pFile);
+			MemoryFences.loadFence();
+
+			final int lNumberOfSlots = lHeader.getInt(cNumberOfSlotsOffset);
+			final long lSlotLength = lHeader.getLong(cSlotLengthOffset);
+			if (lRandomAccessFile.length() < cHeaderLength + lNumberOfSlots * lSlotLength)
+				throw new IOException("Truncated shared memory ring: " + pFile);
+
+			return new SharedMemoryRing(lRandomAccessFile,
+										lHeader,
+										lNumberOfSlots,
+										(int) lSlotLength);
+		}
+		catch (final IOException e)
+		{
+			lRandomAccessFile.close();
+			throw e;
+		}
+	}
+
+	public int getNumberOfSlots()
+	{
+		return mSlots.length;
+	}
+
+	public int getMaxFrameLength()
+	{
+		return mSlotLength - cSlotHeaderLength;
+	}
+
+	/**
+	 * @return sequence number of the last published frame, 0 if none
+	 */
+	public long getProducerSequence()
+	{
+		final long lSequence = mHeader.getLong(cProducerSequenceOffset);
+		MemoryFences.loadFence();
+		return lSequence;
+	}
+
+	/**
+	 * @return sequence number of the last consumed frame, 0 if none
+	 */
+	public long getConsumerSequence()
+	{
+		final long lSequence = mHeader.getLong(cConsumerSequenceOffset);
+		MemoryFences.loadFence();
+		return lSequence;
+	}
+
+	public void setConsumerSequence(long pSequence)
+	{
+		MemoryFences.storeFence();
+		mHeader.putLong(cConsumerSequenceOffset, pSequence);
+	}
+
+	/**
+	 * Serializes a volume straight into the next slot and publishes it.
+	 *
+	 * @param pVolume
+	 *            volume
+	 * @return sequence number of the frame, or -1 if it doesn't fit a slot
+	 */
+	public long write(Volume pVolume)
+	{
+		final int lFrameLength = ClearVolumeSerialization.getSerializedLength(pVolume);
+		if (lFrameLength > getMaxFrameLength())
+			return -1;
+
+		final long lSequence = mHeader.getLong(cProducerSequenceOffset) + 1;
+		final ByteBuffer lSlot = mSlots[(int) (lSequence % mSlots.length)];
+
+		lSlot.putLong(0, 2 * lSequence + 1);
+		MemoryFences.storeFence();
+
+		lSlot.putLong(8, lFrameLength);
+		final ByteBuffer lFrame = lSlot.duplicate().order(lSlot.order());
+		lFrame.clear();
+		lFrame.position(cSlotHeaderLength);
+		ClearVolumeSerialization.serializeInto(pVolume, lFrame);
+
+		MemoryFences.storeFence();
+		lSlot.putLong(0, 2 * lSequence + 2);
+		MemoryFences.storeFence();
+		mHeader.putLong(cProducerSequenceOffset, lSequence);
+		return lSequence;
+	}
+
+	/**
+	 * Reads frame pSequence into the given volume.
+	 *
+	 * @param pSequence
+	 *            sequence number of the frame
+	 * @param pVolume
+	 *            volume to read into, or null
+	 * @return volume, or null if the frame was overwritten before or while
+	 *         being read
+	 */
+	public Volume read(long pSequence, Volume pVolume)
+	{
+		if (pVolume == null)
+			pVolume = new Volume();
+
+		final ByteBuffer lSlot = mSlots[(int) (pSequence % mSlots.length)];
+		final long lExpectedStamp = 2 * pSequence + 2;
+
+		if (lSlot.getLong(0) != lExpectedStamp)
+			return null;
+		MemoryFences.loadFence();
+
+		final int lFrameLength = (int) lSlot.getLong(8);
+		if (lFrameLength < 0 || lFrameLength > getMaxFrameLength())
+			return null;
+
+		final ByteBuffer lFrame = lSlot.duplicate().order(lSlot.order());
+		lFrame.clear();
+		lFrame.position(cSlotHeaderLength);
+		lFrame.limit(cSlotHeaderLength + lFrameLength);
+
+		Volume lVolume;
+		try
+		{
+			lVolume = ClearVolumeSerialization.deserialize(	lFrame.slice()
+																	.order(lSlot.order()),
+															pVolume);
+		}
+		catch (final RuntimeException e)
+		{
+			// torn frame, the stamp check below will tell
+			lVolume = null;
+		}
+
+		MemoryFences.loadFence();
+		if (lSlot.getLong(0) != lExpectedStamp)
+			return null;
+		return lVolume;
+	}
+
+	private static void checkMemoryFences() throws IOException
+	{
+		// without fences the seqlock could hand out torn frames:
+		if (!MemoryFences.isAvailable())
+			throw new IOException("Memory fences are not available on this JVM, shared memory rings can't be used");
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		mRandomAccessFile.close();
+	}
+
+}
@@ -0,0 +1,86 @@
+package clearvolume.network.sharedmemory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+import clearvolume.volume.sink.relay.RelaySinkAdapter;
+import clearvolume.volume.sink.relay.RelaySinkInterface;
+
+/**
+ * Sink publishing volumes to a viewer on the same host through a shared memory
+ * ring, the same-host counterpart of ClearVolumeTCPServerSink. Volumes are
+ * serialized straight into the ring and then relayed, the producer never waits
+ * for the viewer: a viewer that falls more than a ring behind skips frames.
+ */
+public class SharedMemorySink extends RelaySinkAdapter	implements
+														Closeable,
+														RelaySinkInterface
+{
+	private final SharedMemoryRing mSharedMemoryRing;
+	private volatile long mNumberOfDroppedVolumes;
+
+	/**
+	 * Creates the ring file and the sink.
+	 *
+	 * @param pFile
+	 *            ring file, preferably on a memory backed file system
+	 * @param pNumberOfSlots
+	 *            number of slots
+	 * @param pMaxFrameLength
+	 *            max serialized volume length
+	 * @throws IOException
+	 *             if the ring can't be created
+	 */
+	public SharedMemorySink(File pFile,
+							int pNumberOfSlots,
+							int pMaxFrameLength) throws IOException
+	{
+		super();
+		mSharedMemoryRing = SharedMemoryRing.create(pFile,
+													pNumberOfSlots,
+													pMaxFrameLength);
+	}
+
+	@Override
+	public void sendVolume(Volume pVolume)
+	{
+		if (mSharedMemoryRing.write(pVolume) < 0)
+			mNumberOfDroppedVolumes++;
+
+		if (getRelaySink() != null)
+			getRelaySink().sendVolume(pVolume);
+		else
+			pVolume.makeAvailableToManager();
+	}
+
+	@Override
+	public VolumeManager getManager()
+	{
+		if (getRelaySink() != null)
+			return getRelaySink().getManager();
+		return null;
+	}
+
+	/**
+	 * @return number of volumes too large for the ring slots
+	 */
+	public long getNumberOfDroppedVolumes()
+	{
+		return mNumberOfDroppedVolumes;
+	}
+
+	public SharedMemoryRing getSharedMemoryRing()
+	{
+		return mSharedMemoryRing;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		mSharedMemoryRing.close();
+	}
+
+}
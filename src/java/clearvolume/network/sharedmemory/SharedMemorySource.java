@@ -0,0 +1,109 @@
+package clearvolume.network.sharedmemory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+import clearvolume.volume.source.VolumeSourceInterface;
+
+/**
+ * Volume source reading from a shared memory ring written by a
+ * SharedMemorySink. Starts from the latest published volume, and skips the
+ * volumes overwritten before they could be read.
+ */
+public class SharedMemorySource implements VolumeSourceInterface, Closeable
+{
+	private static final long cPollingPeriodNanos = 100_000;
+
+	private final SharedMemoryRing mSharedMemoryRing;
+	private final VolumeManager mVolumeManager;
+	private long mNextSequence = -1;
+	private volatile long mNumberOfSkippedVolumes;
+
+	public SharedMemorySource(File pFile, VolumeManager pVolumeManager) throws IOException
+	{
+		super();
+		mSharedMemoryRing = SharedMemoryRing.open(pFile);
+		mVolumeManager = pVolumeManager;
+	}
+
+	@Override
+	public Volume requestVolume()
+	{
+		Volume lVolume;
+		while ((lVolume = requestVolumeAndWait(1, TimeUnit.SECONDS)) == null)
+			;
+		return lVolume;
+	}
+
+	public Volume requestVolumeAndWait(long pTimeOut, TimeUnit pTimeUnit)
+	{
+		final long lDeadline = System.nanoTime() + pTimeUnit.toNanos(pTimeOut);
+		while (true)
+		{
+			final long lProducerSequence = mSharedMemoryRing.getProducerSequence();
+			if (mNextSequence < 0)
+				mNextSequence = Math.max(1, lProducerSequence);
+
+			if (lProducerSequence >= mNextSequence)
+			{
+				// frames more than a ring behind are gone:
+				final long lOldestAvailable = lProducerSequence - mSharedMemoryRing.getNumberOfSlots()
+												+ 1;
+				if (mNextSequence < lOldestAvailable)
+				{
+					mNumberOfSkippedVolumes += lOldestAvailable - mNextSequence;
+					mNextSequence = lOldestAvailable;
+				}
+
+				Volume lVolume = mVolumeManager == null	? null
+														: mVolumeManager.requestAndWaitForNextAvailableVolume(	0,
+																												TimeUnit.MILLISECONDS);
+				final Volume lReadVolume = mSharedMemoryRing.read(	mNextSequence,
+																	lVolume);
+				if (lReadVolume != null)
+				{
+					mSharedMemoryRing.setConsumerSequence(mNextSequence);
+					mNextSequence++;
+					lReadVolume.setManager(mVolumeManager);
+					return lReadVolume;
+				}
+
+				// overwritten while reading:
+				if (lVolume != null)
+					mVolumeManager.makeAvailable(lVolume);
+				mNumberOfSkippedVolumes++;
+				mNextSequence++;
+				continue;
+			}
+
+			if (System.nanoTime() >= lDeadline)
+				return null;
+			LockSupport.parkNanos(cPollingPeriodNanos);
+		}
+	}
+
+	public VolumeManager getManager()
+	{
+		return mVolumeManager;
+	}
+
+	/**
+	 * @return number of volumes overwritten before they could be read
+	 */
+	public long getNumberOfSkippedVolumes()
+	{
+		return mNumberOfSkippedVolumes;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		mSharedMemoryRing.close();
+	}
+
+}
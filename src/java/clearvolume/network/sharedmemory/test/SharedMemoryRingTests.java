@@ -0,0 +1,110 @@
+package clearvolume.network.sharedmemory.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import clearvolume.network.sharedmemory.SharedMemoryRing;
+import clearvolume.network.sharedmemory.SharedMemorySink;
+import clearvolume.network.sharedmemory.SharedMemorySource;
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+import coremem.enums.NativeTypeEnum;
+
+public class SharedMemoryRingTests
+{
+
+	@Test
+	public void testRoundTrip() throws IOException
+	{
+		final File lFile = File.createTempFile("ClearVolumeRing", ".shm");
+		lFile.deleteOnExit();
+
+		try (final SharedMemoryRing lProducerRing = SharedMemoryRing.create(	lFile,
+																				4,
+																				64 * 1024);
+				final SharedMemoryRing lConsumerRing = SharedMemoryRing.open(lFile))
+		{
+			assertEquals(4, lConsumerRing.getNumberOfSlots());
+			assertEquals(0, lConsumerRing.getProducerSequence());
+
+			final Volume lVolume = newVolume(3, 7);
+			assertEquals(1, lProducerRing.write(lVolume));
+			assertEquals(1, lConsumerRing.getProducerSequence());
+
+			final Volume lReadVolume = lConsumerRing.read(1, null);
+			assertNotNull(lReadVolume);
+			assertEquals(3, lReadVolume.getChannelID());
+			assertEquals(7, lReadVolume.getTimeIndex());
+			assertEquals(123, lReadVolume.getDataBuffer().get(0));
+
+			// frame 1 is overwritten once the ring wrapped around:
+			for (int i = 0; i < 4; i++)
+				lProducerRing.write(newVolume(3, 8 + i));
+			assertNull(lConsumerRing.read(1, new Volume()));
+			assertEquals(11, lConsumerRing.read(5, new Volume())
+											.getTimeIndex());
+
+			// too large for a slot:
+			final Volume lLargeVolume = new Volume(	NativeTypeEnum.UnsignedByte,
+													1,
+													128,
+													128,
+													128);
+			assertEquals(-1, lProducerRing.write(lLargeVolume));
+		}
+	}
+
+	@Test
+	public void testSinkToSource() throws IOException
+	{
+		final File lFile = File.createTempFile("ClearVolumeRing", ".shm");
+		lFile.deleteOnExit();
+
+		try (final SharedMemorySink lSharedMemorySink = new SharedMemorySink(	lFile,
+																				4,
+																				64 * 1024);
+				final SharedMemorySource lSharedMemorySource = new SharedMemorySource(	lFile,
+																						new VolumeManager(4)))
+		{
+			assertNull(lSharedMemorySource.requestVolumeAndWait(	10,
+																	TimeUnit.MILLISECONDS));
+
+			lSharedMemorySink.sendVolume(newVolume(1, 1));
+			assertEquals(1, lSharedMemorySource.requestVolumeAndWait(	1,
+																		TimeUnit.SECONDS)
+												.getTimeIndex());
+
+			// a slow consumer skips what was overwritten:
+			for (int i = 2; i <= 11; i++)
+				lSharedMemorySink.sendVolume(newVolume(1, i));
+			assertEquals(8, lSharedMemorySource.requestVolumeAndWait(	1,
+																		TimeUnit.SECONDS)
+												.getTimeIndex());
+			assertEquals(6, lSharedMemorySource.getNumberOfSkippedVolumes());
+			assertEquals(8, lSharedMemorySink.getSharedMemoryRing()
+												.getConsumerSequence());
+		}
+	}
+
+	private static Volume newVolume(int pChannel, int pTimeIndex)
+	{
+		final Volume lVolume = new Volume(	NativeTypeEnum.UnsignedByte,
+											1,
+											16,
+											16,
+											16);
+		lVolume.setChannelID(pChannel);
+		lVolume.setTimeIndex(pTimeIndex);
+		lVolume.getDataBuffer().put(0, (byte) 123);
+		lVolume.setManager(new VolumeManager(1));
+		return lVolume;
+	}
+
+}
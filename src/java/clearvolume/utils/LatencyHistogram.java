@@ -0,0 +1,135 @@
+package clearvolume.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds. Buckets are powers of two
+ * split in 8 sub-buckets, so that percentiles are within 1/16 of the recorded
+ * values over the whole range while recording stays a single atomic increment.
+ */
+public class LatencyHistogram
+{
+	private static final int cSubBucketBits = 3;
+	private static final int cSubBuckets = 1 << cSubBucketBits;
+	private static final int cNumberOfBuckets = (64 - cSubBucketBits + 1) * cSubBuckets;
+
+	private final AtomicLongArray mCounts = new AtomicLongArray(cNumberOfBuckets);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mSumNanos = new AtomicLong();
+
+	public void record(long pNanos)
+	{
+		if (pNanos < 0)
+			pNanos = 0;
+		mCounts.incrementAndGet(getBucketIndex(pNanos));
+		mSumNanos.addAndGet(pNanos);
+		mCount.incrementAndGet();
+	}
+
+	public long getCount()
+	{
+		return mCount.get();
+	}
+
+	public double getMeanNanos()
+	{
+		final long lCount = mCount.get();
+		return lCount == 0 ? 0 : (double) mSumNanos.get() / lCount;
+	}
+
+	/**
+	 * @param pPercentile
+	 *            percentile between 0 and 100
+	 * @return approximate value at the given percentile, 0 if empty
+	 */
+	public long getPercentileNanos(double pPercentile)
+	{
+		long lTotal = 0;
+		for (int i = 0; i < cNumberOfBuckets; i++)
+			lTotal += mCounts.get(i);
+		if (lTotal == 0)
+			return 0;
+
+		final long lRank = Math.max(1,
+									(long) Math.ceil(pPercentile / 100 * lTotal));
+		long lCumulated = 0;
+		for (int i = 0; i < cNumberOfBuckets; i++)
+		{
+			lCumulated += mCounts.get(i);
+			if (lCumulated >= lRank)
+				return getBucketValue(i);
+		}
+		return getBucketValue(cNumberOfBuckets - 1);
+	}
+
+	public long getMaxNanos()
+	{
+		for (int i = cNumberOfBuckets - 1; i >= 0; i--)
+			if (mCounts.get(i) != 0)
+				return getBucketValue(i);
+		return 0;
+	}
+
+	/**
+	 * @return independent copy of this histogram
+	 */
+	public LatencyHistogram copy()
+	{
+		final LatencyHistogram lCopy = new LatencyHistogram();
+		for (int i = 0; i < cNumberOfBuckets; i++)
+			lCopy.mCounts.set(i, mCounts.get(i));
+		lCopy.mCount.set(mCount.get());
+		lCopy.mSumNanos.set(mSumNanos.get());
+		return lCopy;
+	}
+
+	/**
+	 * @param pPrevious
+	 *            earlier copy of this histogram
+	 * @return histogram of the values recorded since the given copy
+	 */
+	public LatencyHistogram since(LatencyHistogram pPrevious)
+	{
+		final LatencyHistogram lSince = copy();
+		if (pPrevious == null)
+			return lSince;
+		for (int i = 0; i < cNumberOfBuckets; i++)
+			lSince.mCounts.addAndGet(i, -pPrevious.mCounts.get(i));
+		lSince.mCount.addAndGet(-pPrevious.mCount.get());
+		lSince.mSumNanos.addAndGet(-pPrevious.mSumNanos.get());
+		return lSince;
+	}
+
+	private static int getBucketIndex(long pNanos)
+	{
+		if (pNanos < cSubBuckets)
+			return (int) pNanos;
+		final int lExponent = 63 - Long.numberOfLeadingZeros(pNanos);
+		final int lSubBucket = (int) (pNanos >>> (lExponent - cSubBucketBits)) & (cSubBuckets - 1);
+		return (lExponent - cSubBucketBits + 1) * cSubBuckets + lSubBucket;
+	}
+
+	private static long getBucketValue(int pIndex)
+	{
+		if (pIndex < cSubBuckets)
+			return pIndex;
+		final int lExponent = pIndex / cSubBuckets + cSubBucketBits - 1;
+		final int lSubBucket = pIndex % cSubBuckets;
+		final long lLowerBound = (long) (cSubBuckets + lSubBucket) << (lExponent - cSubBucketBits);
+		final long lWidth = 1L << (lExponent - cSubBucketBits);
+		return lLowerBound + lWidth / 2;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format(	"n=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms",
+								getCount(),
+								getMeanNanos() * 1e-6,
+								getPercentileNanos(50) * 1e-6,
+								getPercentileNanos(99) * 1e-6,
+								getMaxNanos() * 1e-6);
+	}
+
+}
@@ -0,0 +1,303 @@
+package clearvolume.volume;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import clearvolume.volume.sink.VolumeSinkInterface;
+
+/**
+ * Conflating volume queue that holds at most one volume per channel of each
+ * stream: a newer volume of a channel replaces the one still waiting, and the
+ * superseded volume is released right away (by default made available to its
+ * manager). Channels are served in the order they became pending, so offers
+ * never block and the consumer always gets the most recent volume of each
+ * channel.
+ */
+public class LatestPerChannelVolumeQueue extends AbstractQueue<Volume>	implements
+																		BlockingQueue<Volume>
+{
+	private final int mMaxNumberOfChannels;
+	private final VolumeSinkInterface mSupersededVolumeSink;
+
+	private final ReentrantLock mLock = new ReentrantLock();
+	private final Condition mNotEmpty = mLock.newCondition();
+	private final LinkedHashMap<Long, Volume> mPendingVolumes = new LinkedHashMap<Long, Volume>();
+
+	private final AtomicLong mNumberOfSupersededVolumes = new AtomicLong();
+
+	/**
+	 * Creates a queue that releases superseded volumes to their manager.
+	 *
+	 * @param pMaxNumberOfChannels
+	 *            max number of channels pending at the same time
+	 */
+	public LatestPerChannelVolumeQueue(int pMaxNumberOfChannels)
+	{
+		this(pMaxNumberOfChannels, null);
+	}
+
+	/**
+	 * Creates a queue that hands superseded volumes to the given sink instead of
+	 * their manager, this lets relaying sinks forward them.
+	 *
+	 * @param pMaxNumberOfChannels
+	 *            max number of channels pending at the same time
+	 * @param pSupersededVolumeSink
+	 *            sink receiving superseded volumes, null to make them available
+	 *            to their manager
+	 */
+	public LatestPerChannelVolumeQueue(	int pMaxNumberOfChannels,
+										VolumeSinkInterface pSupersededVolumeSink)
+	{
+		super();
+		mMaxNumberOfChannels = Math.max(1, pMaxNumberOfChannels);
+		mSupersededVolumeSink = pSupersededVolumeSink;
+	}
+
+	/**
+	 * Queues the volume, replacing any volume of the same stream and channel
+	 * still waiting.
+	 *
+	 * @return false only if the volume belongs to a new channel and the max
+	 *         number of channels are already pending
+	 */
+	@Override
+	public boolean offer(Volume pVolume)
+	{
+		if (pVolume == null)
+			throw new NullPointerException();
+
+		Volume lSupersededVolume;
+		mLock.lock();
+		try
+		{
+			final Long lKey = getKey(pVolume);
+			lSupersededVolume = mPendingVolumes.get(lKey);
+			if (lSupersededVolume == null && mPendingVolumes.size() >= mMaxNumberOfChannels)
+				return false;
+
+			// put keeps the channel's place in the serving order:
+			mPendingVolumes.put(lKey, pVolume);
+			mNotEmpty.signal();
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+
+		if (lSupersededVolume != null && lSupersededVolume != pVolume)
+			releaseSupersededVolume(lSupersededVolume);
+		return true;
+	}
+
+	private static long getKey(Volume pVolume)
+	{
+		return ((long) pVolume.getStreamID() << 32) | (pVolume.getChannelID() & 0xFFFFFFFFL);
+	}
+
+	private void releaseSupersededVolume(Volume pVolume)
+	{
+		mNumberOfSupersededVolumes.incrementAndGet();
+		if (mSupersededVolumeSink != null)
+			mSupersededVolumeSink.sendVolume(pVolume);
+		else
+			pVolume.makeAvailableToManager();
+	}
+
+	@Override
+	public void put(Volume pVolume) throws InterruptedException
+	{
+		offer(pVolume, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public boolean offer(Volume pVolume, long pTimeOut, TimeUnit pTimeUnit) throws InterruptedException
+	{
+		// only a new channel beyond the max number of channels has to wait:
+		long lNanos = pTimeUnit.toNanos(pTimeOut);
+		while (!offer(pVolume))
+		{
+			if (lNanos <= 0)
+				return false;
+			final long lStart = System.nanoTime();
+			Thread.sleep(1);
+			lNanos -= System.nanoTime() - lStart;
+		}
+		return true;
+	}
+
+	@Override
+	public Volume poll()
+	{
+		mLock.lock();
+		try
+		{
+			return removeFirst();
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public Volume poll(long pTimeOut, TimeUnit pTimeUnit) throws InterruptedException
+	{
+		long lNanos = pTimeUnit.toNanos(pTimeOut);
+		mLock.lockInterruptibly();
+		try
+		{
+			while (mPendingVolumes.isEmpty())
+			{
+				if (lNanos <= 0)
+					return null;
+				lNanos = mNotEmpty.awaitNanos(lNanos);
+			}
+			return removeFirst();
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public Volume take() throws InterruptedException
+	{
+		mLock.lockInterruptibly();
+		try
+		{
+			while (mPendingVolumes.isEmpty())
+				mNotEmpty.await();
+			return removeFirst();
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	private Volume removeFirst()
+	{
+		final Iterator<Volume> lIterator = mPendingVolumes.values()
+															.iterator();
+		if (!lIterator.hasNext())
+			return null;
+		final Volume lVolume = lIterator.next();
+		lIterator.remove();
+		return lVolume;
+	}
+
+	@Override
+	public Volume peek()
+	{
+		mLock.lock();
+		try
+		{
+			final Iterator<Volume> lIterator = mPendingVolumes.values()
+																.iterator();
+			return lIterator.hasNext() ? lIterator.next() : null;
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public int size()
+	{
+		mLock.lock();
+		try
+		{
+			return mPendingVolumes.size();
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity()
+	{
+		return mMaxNumberOfChannels - size();
+	}
+
+	@Override
+	public Iterator<Volume> iterator()
+	{
+		mLock.lock();
+		try
+		{
+			return new ArrayList<Volume>(mPendingVolumes.values()).iterator();
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(Object pObject)
+	{
+		if (!(pObject instanceof Volume))
+			return false;
+		mLock.lock();
+		try
+		{
+			final Volume lVolume = (Volume) pObject;
+			return mPendingVolumes.remove(getKey(lVolume), lVolume);
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super Volume> pCollection)
+	{
+		return drainTo(pCollection, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(	Collection<? super Volume> pCollection,
+						int pMaxElements)
+	{
+		mLock.lock();
+		try
+		{
+			int lCount = 0;
+			Volume lVolume;
+			while (lCount < pMaxElements && (lVolume = removeFirst()) != null)
+			{
+				pCollection.add(lVolume);
+				lCount++;
+			}
+			return lCount;
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of volumes replaced by a newer volume of the same channel
+	 *         before being consumed
+	 */
+	public long getNumberOfSupersededVolumes()
+	{
+		return mNumberOfSupersededVolumes.get();
+	}
+
+}
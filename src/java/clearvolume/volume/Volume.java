@@ -21,6 +21,7 @@ public class Volume implements ClearVolumeCloseable
 	private double[] mVoxelSizeInRealUnits;
 	private volatile String mRealUnitName;
 
+	private volatile int mStreamID;
 	private volatile int mChannelID;
 	private volatile String mChannelName = "noname";
 	private float[] mColor = null;
@@ -49,9 +50,16 @@ public class Volume implements ClearVolumeCloseable
 		mVolumeManager = pVolumeManager;
 	}
 
+	public VolumeManager getManager()
+	{
+		return mVolumeManager;
+	}
+
 	public void makeAvailableToManager()
 	{
-		mVolumeManager.makeAvailable(this);
+		// volumes read back from disk have no manager:
+		if (mVolumeManager != null)
+			mVolumeManager.makeAvailable(this);
 	}
 
 	public <LT> boolean isCompatibleWith(	NativeTypeEnum pType,
@@ -257,6 +265,20 @@ public class Volume implements ClearVolumeCloseable
 		mTimeInSeconds = pTimeInSeconds;
 	}
 
+	/**
+	 * @return logical stream this volume belongs to, 0 by default. Streams
+	 *         share a connection, and each has its own channels.
+	 */
+	public int getStreamID()
+	{
+		return mStreamID;
+	}
+
+	public void setStreamID(int pStreamID)
+	{
+		mStreamID = pStreamID;
+	}
+
 	public int getChannelID()
 	{
 		return mChannelID;
@@ -318,6 +340,7 @@ public class Volume implements ClearVolumeCloseable
 	@SuppressWarnings("unchecked")
 	public void copyMetaDataFrom(Volume pVolume)
 	{
+		mStreamID = pVolume.mStreamID;
 		mChannelID = pVolume.mChannelID;
 		if (pVolume.mChannelName != null)
 			mChannelName = new String(pVolume.mChannelName);
@@ -364,9 +387,10 @@ public class Volume implements ClearVolumeCloseable
 	@Override
 	public String toString()
 	{
-		return String.format(	"Volume [mTimeIndex=%s, mTimeInSeconds=%s, mChannelID=%s, mViewMatrix=%s, mColor=%s, mType=%s, mDimensionsInVoxels=%s, mDimensionsInRealUnits=%s, mRealUnitName=%s, mVolumeManager=%s, mDataBuffer=%s]",
+		return String.format(	"Volume [mTimeIndex=%s, mTimeInSeconds=%s, mStreamID=%s, mChannelID=%s, mViewMatrix=%s, mColor=%s, mType=%s, mDimensionsInVoxels=%s, mDimensionsInRealUnits=%s, mRealUnitName=%s, mVolumeManager=%s, mDataBuffer=%s]",
 								mTimeIndex,
 								mTimeInSeconds,
+								mStreamID,
 								mChannelID,
 								Arrays.toString(mViewMatrix),
 								Arrays.toString(mColor),
@@ -0,0 +1,133 @@
+package clearvolume.volume;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import clearvolume.utils.ToIntExact;
+
+/**
+ * Extracts a region of a volume at a lower resolution, e.g. to send a client
+ * only what it looks at.
+ */
+public class VolumeResampling
+{
+
+	/**
+	 * Copies a region of the source volume, keeping one voxel out of 2^level
+	 * along each axis, into the destination volume. The destination gets the
+	 * metadata of the source, its voxel size scaled accordingly, and a data
+	 * buffer reallocated only if the size changes.
+	 *
+	 * @param pSource
+	 *            source volume
+	 * @param pRegionOfInterest
+	 *            region as {x0, y0, z0, x1, y1, z1} in normalized coordinates
+	 *            between 0 and 1, or null for the whole volume
+	 * @param pResolutionLevel
+	 *            resolution level, 0 for full resolution
+	 * @param pDestination
+	 *            destination volume
+	 * @return destination volume
+	 */
+	public static Volume extract(	Volume pSource,
+									float[] pRegionOfInterest,
+									int pResolutionLevel,
+									Volume pDestination)
+	{
+		final long lWidth = pSource.getWidthInVoxels();
+		final long lHeight = pSource.getHeightInVoxels();
+		final long lDepth = pSource.getDepthInVoxels();
+		final int lStep = 1 << Math.max(0, Math.min(pResolutionLevel, 16));
+
+		final long[] lBox = getVoxelBox(pRegionOfInterest,
+										lWidth,
+										lHeight,
+										lDepth);
+		final long lNewWidth = (lBox[3] - lBox[0] + lStep - 1) / lStep;
+		final long lNewHeight = (lBox[4] - lBox[1] + lStep - 1) / lStep;
+		final long lNewDepth = (lBox[5] - lBox[2] + lStep - 1) / lStep;
+
+		pDestination.copyMetaDataFrom(pSource);
+		pDestination.setDimensionsInVoxels(	pSource.getElementSize(),
+											lNewWidth,
+											lNewHeight,
+											lNewDepth);
+		if (pSource.getDimensionsInRealUnits() != null)
+			pDestination.setVoxelSizeInRealUnits(	pSource.getRealUnitName(),
+													pSource.getVoxelWidthInRealUnits() * lStep,
+													pSource.getVoxelHeightInRealUnits() * lStep,
+													pSource.getVoxelDepthInRealUnits() * lStep);
+
+		final int lDataLength = ToIntExact.toIntExact(pDestination.getDataSizeInBytes());
+		if (pDestination.getDataBuffer() == null || pDestination.getDataBuffer()
+																.capacity() != lDataLength)
+			pDestination.setDataBuffer(ByteBuffer.allocateDirect(lDataLength)
+													.order(ByteOrder.nativeOrder()));
+
+		final int lVoxelLength = ToIntExact.toIntExact(pSource.getBytesPerVoxel() * pSource.getElementSize());
+		final ByteBuffer lSourceBuffer = pSource.getDataBuffer().duplicate();
+		final ByteBuffer lDestinationBuffer = pDestination.getDataBuffer();
+		lSourceBuffer.clear();
+		lDestinationBuffer.clear();
+
+		for (long z = lBox[2]; z < lBox[5]; z += lStep)
+			for (long y = lBox[1]; y < lBox[4]; y += lStep)
+			{
+				final int lRowOffset = ToIntExact.toIntExact(((z * lHeight + y) * lWidth + lBox[0]) * lVoxelLength);
+				if (lStep == 1)
+				{
+					// contiguous row, bulk copy:
+					lSourceBuffer.limit(lRowOffset + (int) lNewWidth
+										* lVoxelLength);
+					lSourceBuffer.position(lRowOffset);
+					lDestinationBuffer.put(lSourceBuffer);
+					lSourceBuffer.clear();
+				}
+				else
+				{
+					for (int x = 0; x < lNewWidth; x++)
+					{
+						final int lVoxelOffset = lRowOffset + x * lStep
+													* lVoxelLength;
+						for (int b = 0; b < lVoxelLength; b++)
+							lDestinationBuffer.put(lSourceBuffer.get(lVoxelOffset + b));
+					}
+				}
+			}
+		lDestinationBuffer.clear();
+
+		return pDestination;
+	}
+
+	/**
+	 * Converts a normalized region of interest to voxel coordinates, clamped to
+	 * the volume and at least one voxel wide along each axis.
+	 *
+	 * @return {x0, y0, z0, x1, y1, z1} in voxels, upper bounds excluded
+	 */
+	public static long[] getVoxelBox(	float[] pRegionOfInterest,
+										long pWidth,
+										long pHeight,
+										long pDepth)
+	{
+		final long[] lDimensions = new long[]
+		{ pWidth, pHeight, pDepth };
+		final long[] lBox = new long[6];
+		for (int i = 0; i < 3; i++)
+		{
+			long lMin = 0;
+			long lMax = lDimensions[i];
+			if (pRegionOfInterest != null && pRegionOfInterest.length == 6)
+			{
+				lMin = (long) Math.floor(pRegionOfInterest[i] * lDimensions[i]);
+				lMax = (long) Math.ceil(pRegionOfInterest[i + 3] * lDimensions[i]);
+				lMin = Math.max(0, Math.min(lMin, lDimensions[i] - 1));
+				lMax = Math.max(lMin + 1, Math.min(lMax, lDimensions[i]));
+			}
+			lBox[i] = lMin;
+			lBox[i + 3] = lMax;
+		}
+		return lBox;
+	}
+
+}
@@ -4,6 +4,7 @@ import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 
+import clearvolume.volume.LatestPerChannelVolumeQueue;
 import clearvolume.volume.Volume;
 import clearvolume.volume.VolumeManager;
 
@@ -32,6 +33,39 @@ public class AsynchronousVolumeSinkAdapter	implements
 		mVolumeQueue = new ArrayBlockingQueue<Volume>(pMaxCapacity);
 	}
 
+	/**
+	 * Creates an adapter that optionally only keeps the latest volume of each
+	 * channel, superseded volumes are made available to their manager right
+	 * away and sending never blocks for channels already pending.
+	 *
+	 * @param pDelegatedVolumeSink
+	 *            delegated sink
+	 * @param pMaxCapacity
+	 *            max number of queued volumes, or of pending channels when
+	 *            keeping the latest per channel
+	 * @param pTimeOut
+	 *            time out for queuing
+	 * @param pTimeUnit
+	 *            time out unit
+	 * @param pLatestPerChannel
+	 *            true to only keep the latest volume per channel
+	 */
+	public AsynchronousVolumeSinkAdapter(	VolumeSinkInterface pDelegatedVolumeSink,
+											int pMaxCapacity,
+											long pTimeOut,
+											TimeUnit pTimeUnit,
+											boolean pLatestPerChannel)
+	{
+		super();
+		mDelegatedVolumeSink = pDelegatedVolumeSink;
+		mTimeOut = pTimeOut;
+		mTimeUnit = pTimeUnit;
+		if (pLatestPerChannel)
+			mVolumeQueue = new LatestPerChannelVolumeQueue(pMaxCapacity);
+		else
+			mVolumeQueue = new ArrayBlockingQueue<Volume>(pMaxCapacity);
+	}
+
 	@Override
 	public void sendVolume(Volume pVolume)
 	{
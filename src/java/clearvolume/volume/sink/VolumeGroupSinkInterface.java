@@ -0,0 +1,40 @@
+package clearvolume.volume.sink;
+
+import java.util.List;
+
+import clearvolume.volume.Volume;
+
+/**
+ * Sink able to take the volumes of a time point as one group, e.g. to display
+ * them all at once.
+ */
+public interface VolumeGroupSinkInterface extends VolumeSinkInterface
+{
+	/**
+	 * @param pVolumes
+	 *            volumes of different channels of a time point
+	 */
+	public void sendVolumes(List<Volume> pVolumes);
+
+	/**
+	 * Sends a group of volumes to a sink, as a group if the sink takes groups
+	 * and one by one otherwise.
+	 *
+	 * @param pVolumeSink
+	 *            sink, or null to hand the volumes back to their manager
+	 * @param pVolumes
+	 *            volumes
+	 */
+	public static void sendVolumes(	VolumeSinkInterface pVolumeSink,
+									List<Volume> pVolumes)
+	{
+		if (pVolumeSink instanceof VolumeGroupSinkInterface)
+			((VolumeGroupSinkInterface) pVolumeSink).sendVolumes(pVolumes);
+		else if (pVolumeSink != null)
+			for (final Volume lVolume : pVolumes)
+				pVolumeSink.sendVolume(lVolume);
+		else
+			for (final Volume lVolume : pVolumes)
+				lVolume.makeAvailableToManager();
+	}
+}
@@ -0,0 +1,487 @@
+package clearvolume.volume.sink.assembly;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import clearvolume.ClearVolumeCloseable;
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+import clearvolume.volume.sink.VolumeGroupSinkInterface;
+import clearvolume.volume.sink.relay.RelaySinkAdapter;
+import clearvolume.volume.sink.relay.RelaySinkInterface;
+
+/**
+ * Holds back the volumes of a time point until all channels expected for it
+ * have arrived, or until a timeout, and relays them as one group so that the
+ * display shows them together and redraws once. The expected channels are
+ * either set, or those seen so far on the stream: a channel missing from a
+ * time point that timed out is no longer expected until it shows up again.
+ *
+ * Time points of a stream are relayed in order: when one is complete the
+ * older incomplete ones are relayed first. A volume arriving for a time point
+ * already relayed, a straggler or a volume sent again e.g. when seeking back
+ * in time, is relayed alone right away.
+ *
+ * Time points ready to be relayed wait for the relay sink in a bounded queue.
+ * When the relay sink falls behind, the oldest of them is dropped and its
+ * volumes go back to their manager.
+ */
+public class TimePointAssemblySink extends RelaySinkAdapter	implements
+															RelaySinkInterface,
+															ClearVolumeCloseable
+{
+	private static final long cMaxWaitNanos = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final int cDefaultMaxReadyGroups = 2;
+
+	private static class Group
+	{
+		private final int mStreamID;
+		private final long mTimeIndex;
+		private final long mDeadlineNanos;
+		private final TreeMap<Integer, Volume> mVolumes = new TreeMap<>();
+
+		private Group(int pStreamID, long pTimeIndex, long pDeadlineNanos)
+		{
+			mStreamID = pStreamID;
+			mTimeIndex = pTimeIndex;
+			mDeadlineNanos = pDeadlineNanos;
+		}
+	}
+
+	private final ReentrantLock mLock = new ReentrantLock();
+	private final Condition mChanged = mLock.newCondition();
+	private final HashMap<Integer, TreeMap<Long, Group>> mPendingGroups = new HashMap<>();
+	private final HashMap<Integer, TreeSet<Integer>> mSeenChannels = new HashMap<>();
+	private final HashMap<Integer, Long> mLastRelayedTimeIndices = new HashMap<>();
+	private final ArrayDeque<List<Volume>> mReadyGroups = new ArrayDeque<>();
+	private final int mMaxPendingGroups;
+	private final int mMaxReadyGroups;
+	private int mNumberOfPendingGroups;
+
+	private volatile long mTimeOutNanos;
+	private volatile int[] mExpectedChannels;
+
+	private final AtomicLong mNumberOfCompleteGroups = new AtomicLong();
+	private final AtomicLong mNumberOfPartialGroups = new AtomicLong();
+	private final AtomicLong mNumberOfLateVolumes = new AtomicLong();
+	private final AtomicLong mNumberOfDroppedVolumes = new AtomicLong();
+
+	private Thread mRelayThread;
+	private volatile boolean mStopSignal;
+	private volatile boolean mStoppedSignal;
+
+	/**
+	 * @param pMaxPendingGroups
+	 *            max number of time points held back, the oldest is relayed
+	 *            incomplete beyond that
+	 * @param pTimeOut
+	 *            max time a time point is held back after its first volume
+	 * @param pTimeUnit
+	 *            time out unit
+	 */
+	public TimePointAssemblySink(	int pMaxPendingGroups,
+									long pTimeOut,
+									TimeUnit pTimeUnit)
+	{
+		this(	pMaxPendingGroups,
+				cDefaultMaxReadyGroups,
+				pTimeOut,
+				pTimeUnit);
+	}
+
+	/**
+	 * @param pMaxPendingGroups
+	 *            max number of time points held back, the oldest is relayed
+	 *            incomplete beyond that
+	 * @param pMaxReadyGroups
+	 *            max number of time points waiting for the relay sink, the
+	 *            oldest is dropped beyond that
+	 * @param pTimeOut
+	 *            max time a time point is held back after its first volume
+	 * @param pTimeUnit
+	 *            time out unit
+	 */
+	public TimePointAssemblySink(	int pMaxPendingGroups,
+									int pMaxReadyGroups,
+									long pTimeOut,
+									TimeUnit pTimeUnit)
+	{
+		super();
+		mMaxPendingGroups = pMaxPendingGroups;
+		mMaxReadyGroups = pMaxReadyGroups;
+		mTimeOutNanos = pTimeUnit.toNanos(pTimeOut);
+	}
+
+	/**
+	 * @param pExpectedChannels
+	 *            channels making a complete time point, or null to expect the
+	 *            channels seen so far
+	 */
+	public void setExpectedChannels(int... pExpectedChannels)
+	{
+		mExpectedChannels = pExpectedChannels;
+	}
+
+	public void setTimeOut(long pTimeOut, TimeUnit pTimeUnit)
+	{
+		mTimeOutNanos = pTimeUnit.toNanos(pTimeOut);
+	}
+
+	public long getTimeOut(TimeUnit pTimeUnit)
+	{
+		return pTimeUnit.convert(mTimeOutNanos, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public void sendVolume(Volume pVolume)
+	{
+		final int lStreamID = pVolume.getStreamID();
+		final int lChannelID = pVolume.getChannelID();
+		final long lTimeIndex = pVolume.getTimeIndex();
+
+		Volume lDroppedVolume = null;
+		mLock.lock();
+		try
+		{
+			getSeenChannels(lStreamID).add(lChannelID);
+			final Long lLastRelayedTimeIndex = mLastRelayedTimeIndices.get(lStreamID);
+			if (lLastRelayedTimeIndex != null && lTimeIndex <= lLastRelayedTimeIndex)
+			{
+				mNumberOfLateVolumes.incrementAndGet();
+				ready(Collections.singletonList(pVolume));
+				return;
+			}
+
+			final TreeMap<Long, Group> lStreamGroups = getStreamGroups(lStreamID);
+			Group lGroup = lStreamGroups.get(lTimeIndex);
+			if (lGroup == null)
+			{
+				lGroup = new Group(	lStreamID,
+									lTimeIndex,
+									System.nanoTime() + mTimeOutNanos);
+				lStreamGroups.put(lTimeIndex, lGroup);
+				mNumberOfPendingGroups++;
+			}
+			lDroppedVolume = lGroup.mVolumes.put(lChannelID, pVolume);
+			if (lDroppedVolume == pVolume)
+				lDroppedVolume = null;
+
+			if (isComplete(lGroup))
+				relayUpTo(lStreamGroups, lTimeIndex, true);
+			else if (mNumberOfPendingGroups > mMaxPendingGroups)
+				relayOldest();
+		}
+		finally
+		{
+			mLock.unlock();
+			if (lDroppedVolume != null)
+				drop(lDroppedVolume);
+		}
+	}
+
+	private boolean isComplete(Group pGroup)
+	{
+		final int[] lExpectedChannels = mExpectedChannels;
+		if (lExpectedChannels == null)
+			return pGroup.mVolumes.keySet()
+									.containsAll(getSeenChannels(pGroup.mStreamID));
+		for (final int lChannel : lExpectedChannels)
+			if (!pGroup.mVolumes.containsKey(lChannel))
+				return false;
+		return true;
+	}
+
+	private TreeSet<Integer> getSeenChannels(int pStreamID)
+	{
+		TreeSet<Integer> lSeenChannels = mSeenChannels.get(pStreamID);
+		if (lSeenChannels == null)
+		{
+			lSeenChannels = new TreeSet<>();
+			mSeenChannels.put(pStreamID, lSeenChannels);
+		}
+		return lSeenChannels;
+	}
+
+	private TreeMap<Long, Group> getStreamGroups(int pStreamID)
+	{
+		TreeMap<Long, Group> lStreamGroups = mPendingGroups.get(pStreamID);
+		if (lStreamGroups == null)
+		{
+			lStreamGroups = new TreeMap<>();
+			mPendingGroups.put(pStreamID, lStreamGroups);
+		}
+		return lStreamGroups;
+	}
+
+	private void relayUpTo(	TreeMap<Long, Group> pStreamGroups,
+							long pTimeIndex,
+							boolean pComplete)
+	{
+		final Iterator<Group> lIterator = pStreamGroups.headMap(pTimeIndex,
+																true)
+														.values()
+														.iterator();
+		while (lIterator.hasNext())
+		{
+			final Group lGroup = lIterator.next();
+			lIterator.remove();
+			mNumberOfPendingGroups--;
+			if (pComplete && lGroup.mTimeIndex == pTimeIndex)
+				mNumberOfCompleteGroups.incrementAndGet();
+			else
+				partial(lGroup);
+			mLastRelayedTimeIndices.put(lGroup.mStreamID, lGroup.mTimeIndex);
+			ready(new ArrayList<>(lGroup.mVolumes.values()));
+		}
+	}
+
+	private void partial(Group pGroup)
+	{
+		mNumberOfPartialGroups.incrementAndGet();
+		// channels that stopped coming are no longer waited for:
+		if (mExpectedChannels == null && System.nanoTime() >= pGroup.mDeadlineNanos)
+			getSeenChannels(pGroup.mStreamID).retainAll(pGroup.mVolumes.keySet());
+	}
+
+	private void relayOldest()
+	{
+		Group lOldestGroup = null;
+		for (final TreeMap<Long, Group> lStreamGroups : mPendingGroups.values())
+			if (!lStreamGroups.isEmpty())
+			{
+				final Group lGroup = lStreamGroups.firstEntry().getValue();
+				if (lOldestGroup == null || lGroup.mDeadlineNanos < lOldestGroup.mDeadlineNanos)
+					lOldestGroup = lGroup;
+			}
+		if (lOldestGroup != null)
+			relayUpTo(	mPendingGroups.get(lOldestGroup.mStreamID),
+						lOldestGroup.mTimeIndex,
+						false);
+	}
+
+	private void relayDue(long pNowNanos)
+	{
+		for (final TreeMap<Long, Group> lStreamGroups : mPendingGroups.values())
+		{
+			// deadlines grow with time indices, save for out of order arrivals:
+			long lDueTimeIndex = Long.MIN_VALUE;
+			for (final Map.Entry<Long, Group> lEntry : lStreamGroups.entrySet())
+				if (lEntry.getValue().mDeadlineNanos <= pNowNanos)
+					lDueTimeIndex = lEntry.getKey();
+			if (lDueTimeIndex != Long.MIN_VALUE)
+				relayUpTo(lStreamGroups, lDueTimeIndex, false);
+		}
+	}
+
+	private long getNextDeadlineNanos()
+	{
+		long lNextDeadlineNanos = Long.MAX_VALUE;
+		for (final TreeMap<Long, Group> lStreamGroups : mPendingGroups.values())
+			for (final Group lGroup : lStreamGroups.values())
+				lNextDeadlineNanos = Math.min(	lNextDeadlineNanos,
+												lGroup.mDeadlineNanos);
+		return lNextDeadlineNanos;
+	}
+
+	private void ready(List<Volume> pVolumes)
+	{
+		// the relay sink is behind, the oldest time point is skipped:
+		if (mReadyGroups.size() >= mMaxReadyGroups)
+			for (final Volume lVolume : mReadyGroups.pollFirst())
+				drop(lVolume);
+		mReadyGroups.addLast(pVolumes);
+		mChanged.signalAll();
+	}
+
+	public boolean start()
+	{
+		final Runnable lRunnable = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					while (!mStopSignal)
+					{
+						try
+						{
+							final List<Volume> lVolumes = takeReadyGroup();
+							if (lVolumes != null)
+								VolumeGroupSinkInterface.sendVolumes(	getRelaySink(),
+																		lVolumes);
+						}
+						catch (final InterruptedException e)
+						{
+						}
+						catch (final Throwable e)
+						{
+							e.printStackTrace();
+						}
+					}
+				}
+				finally
+				{
+					mStoppedSignal = true;
+				}
+			}
+		};
+
+		mRelayThread = new Thread(	lRunnable,
+									TimePointAssemblySink.class.getSimpleName() + "Thread");
+		mRelayThread.setDaemon(true);
+		mRelayThread.start();
+		return true;
+	}
+
+	private List<Volume> takeReadyGroup() throws InterruptedException
+	{
+		mLock.lock();
+		try
+		{
+			final long lNowNanos = System.nanoTime();
+			if (mReadyGroups.isEmpty())
+			{
+				relayDue(lNowNanos);
+				if (mReadyGroups.isEmpty())
+				{
+					final long lNextDeadlineNanos = getNextDeadlineNanos();
+					mChanged.awaitNanos(Math.max(	0,
+													Math.min(	cMaxWaitNanos,
+																lNextDeadlineNanos - lNowNanos)));
+					return null;
+				}
+			}
+			return mReadyGroups.pollFirst();
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	private void drop(Volume pVolume)
+	{
+		mNumberOfDroppedVolumes.incrementAndGet();
+		pVolume.makeAvailableToManager();
+	}
+
+	public boolean stop()
+	{
+		mStopSignal = true;
+		return true;
+	}
+
+	public boolean waitForStop()
+	{
+		while (mRelayThread != null && !mStoppedSignal)
+		{
+			try
+			{
+				Thread.sleep(10);
+			}
+			catch (final InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stops relaying and hands the volumes held back to their manager.
+	 */
+	@Override
+	public void close()
+	{
+		stop();
+		waitForStop();
+		mLock.lock();
+		try
+		{
+			for (final TreeMap<Long, Group> lStreamGroups : mPendingGroups.values())
+				for (final Group lGroup : lStreamGroups.values())
+					for (final Volume lVolume : lGroup.mVolumes.values())
+						lVolume.makeAvailableToManager();
+			mPendingGroups.clear();
+			mNumberOfPendingGroups = 0;
+			for (final List<Volume> lVolumes : mReadyGroups)
+				for (final Volume lVolume : lVolumes)
+					lVolume.makeAvailableToManager();
+			mReadyGroups.clear();
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	public int getNumberOfPendingGroups()
+	{
+		mLock.lock();
+		try
+		{
+			return mNumberOfPendingGroups;
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * @return time points relayed with all expected channels
+	 */
+	public long getNumberOfCompleteGroups()
+	{
+		return mNumberOfCompleteGroups.get();
+	}
+
+	/**
+	 * @return time points relayed incomplete, after a time out or to keep
+	 *         the order of time points
+	 */
+	public long getNumberOfPartialGroups()
+	{
+		return mNumberOfPartialGroups.get();
+	}
+
+	/**
+	 * @return volumes relayed alone because their time point was relayed
+	 *         already
+	 */
+	public long getNumberOfLateVolumes()
+	{
+		return mNumberOfLateVolumes.get();
+	}
+
+	/**
+	 * @return volumes replaced by a volume of the same channel and time point
+	 *         before being relayed, or dropped with their time point because
+	 *         the relay sink fell behind
+	 */
+	public long getNumberOfDroppedVolumes()
+	{
+		return mNumberOfDroppedVolumes.get();
+	}
+
+	@Override
+	public VolumeManager getManager()
+	{
+		if (getRelaySink() != null)
+			return getRelaySink().getManager();
+		return null;
+	}
+
+}
@@ -0,0 +1,204 @@
+package clearvolume.volume.sink.assembly.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+import clearvolume.volume.sink.VolumeGroupSinkInterface;
+import clearvolume.volume.sink.VolumeSinkAdapter;
+import clearvolume.volume.sink.assembly.TimePointAssemblySink;
+import coremem.enums.NativeTypeEnum;
+
+public class TimePointAssemblySinkTests
+{
+
+	@Test
+	public void testChannelsAreRelayedTogether() throws InterruptedException
+	{
+		final List<Integer> lGroupSizes = new CopyOnWriteArrayList<>();
+		final TimePointAssemblySink lTimePointAssemblySink = newTimePointAssemblySink(	lGroupSizes,
+																						1000);
+		lTimePointAssemblySink.setExpectedChannels(0, 1);
+		final VolumeManager lVolumeManager = lTimePointAssemblySink.getManager();
+
+		for (int t = 0; t < 4; t++)
+			for (int c = 1; c >= 0; c--)
+			{
+				final Volume lVolume = lVolumeManager.requestAndWaitForVolume(	1,
+																				TimeUnit.MILLISECONDS,
+																				NativeTypeEnum.UnsignedByte,
+																				1,
+																				4,
+																				4,
+																				4);
+				lVolume.setTimeIndex(t);
+				lVolume.setChannelID(c);
+				lTimePointAssemblySink.sendVolume(lVolume);
+			}
+
+		waitForGroups(lGroupSizes, 4);
+		assertEquals(4, lGroupSizes.size());
+		for (final int lGroupSize : lGroupSizes)
+			assertEquals(2, lGroupSize);
+		assertEquals(4, lTimePointAssemblySink.getNumberOfCompleteGroups());
+		assertEquals(0, lTimePointAssemblySink.getNumberOfPartialGroups());
+
+		lTimePointAssemblySink.close();
+	}
+
+	@Test
+	public void testTimeOutRelaysPartialGroup() throws InterruptedException
+	{
+		final List<Integer> lGroupSizes = new CopyOnWriteArrayList<>();
+		final TimePointAssemblySink lTimePointAssemblySink = newTimePointAssemblySink(	lGroupSizes,
+																						50);
+		lTimePointAssemblySink.setExpectedChannels(0, 1);
+		final VolumeManager lVolumeManager = lTimePointAssemblySink.getManager();
+
+		final Volume lVolume0 = lVolumeManager.requestAndWaitForVolume(	1,
+																		TimeUnit.MILLISECONDS,
+																		NativeTypeEnum.UnsignedByte,
+																		1,
+																		4,
+																		4,
+																		4);
+		lVolume0.setChannelID(0);
+		final Volume lVolume1 = lVolumeManager.requestAndWaitForVolume(	1,
+																		TimeUnit.MILLISECONDS,
+																		NativeTypeEnum.UnsignedByte,
+																		1,
+																		4,
+																		4,
+																		4);
+		lVolume1.setChannelID(1);
+
+		lTimePointAssemblySink.sendVolume(lVolume0);
+		waitForGroups(lGroupSizes, 1);
+
+		assertEquals(1, lGroupSizes.size());
+		assertEquals(1, (int) lGroupSizes.get(0));
+		assertEquals(1, lTimePointAssemblySink.getNumberOfPartialGroups());
+
+		// the missing channel arrives too late, and is relayed alone:
+		lTimePointAssemblySink.sendVolume(lVolume1);
+		waitForGroups(lGroupSizes, 2);
+
+		assertEquals(2, lGroupSizes.size());
+		assertEquals(1, lTimePointAssemblySink.getNumberOfLateVolumes());
+		assertEquals(0, lTimePointAssemblySink.getNumberOfPendingGroups());
+
+		lTimePointAssemblySink.close();
+	}
+
+	@Test
+	public void testOldestReadyGroupIsDropped() throws InterruptedException
+	{
+		final List<Integer> lGroupSizes = new CopyOnWriteArrayList<>();
+		final CountDownLatch lRelaying = new CountDownLatch(1);
+		final CountDownLatch lResume = new CountDownLatch(1);
+		final TimePointAssemblySink lTimePointAssemblySink = new TimePointAssemblySink(	16,
+																						2,
+																						1000,
+																						TimeUnit.MILLISECONDS);
+		lTimePointAssemblySink.setExpectedChannels(0);
+		// the relay sink is stuck on the first time point:
+		lTimePointAssemblySink.setRelaySink(new GroupRecordingSink(lGroupSizes)
+		{
+			@Override
+			public void sendVolumes(List<Volume> pVolumes)
+			{
+				lRelaying.countDown();
+				try
+				{
+					lResume.await();
+				}
+				catch (final InterruptedException e)
+				{
+				}
+				super.sendVolumes(pVolumes);
+			}
+		});
+		lTimePointAssemblySink.start();
+		final VolumeManager lVolumeManager = lTimePointAssemblySink.getManager();
+
+		for (int t = 0; t < 6; t++)
+		{
+			final Volume lVolume = lVolumeManager.requestAndWaitForVolume(	1,
+																			TimeUnit.MILLISECONDS,
+																			NativeTypeEnum.UnsignedByte,
+																			1,
+																			4,
+																			4,
+																			4);
+			lVolume.setTimeIndex(t);
+			lTimePointAssemblySink.sendVolume(lVolume);
+			if (t == 0)
+				assertTrue(lRelaying.await(2, TimeUnit.SECONDS));
+		}
+
+		// 1 to 3 made room for 4 and 5, and went back to the manager:
+		assertEquals(3, lTimePointAssemblySink.getNumberOfDroppedVolumes());
+		lResume.countDown();
+		waitForGroups(lGroupSizes, 3);
+		Thread.sleep(50);
+		assertEquals(3, lGroupSizes.size());
+		assertEquals(6, lTimePointAssemblySink.getNumberOfCompleteGroups());
+
+		lTimePointAssemblySink.close();
+	}
+
+	private static void waitForGroups(	List<Integer> pGroupSizes,
+										int pNumberOfGroups) throws InterruptedException
+	{
+		for (int i = 0; i < 200 && pGroupSizes.size() < pNumberOfGroups; i++)
+			Thread.sleep(10);
+	}
+
+	private static TimePointAssemblySink newTimePointAssemblySink(	final List<Integer> pGroupSizes,
+																	long pTimeOutMillis)
+	{
+		final TimePointAssemblySink lTimePointAssemblySink = new TimePointAssemblySink(	16,
+																						16,
+																						pTimeOutMillis,
+																						TimeUnit.MILLISECONDS);
+		lTimePointAssemblySink.setRelaySink(new GroupRecordingSink(pGroupSizes));
+		lTimePointAssemblySink.start();
+		return lTimePointAssemblySink;
+	}
+
+	private static class GroupRecordingSink extends VolumeSinkAdapter	implements
+																		VolumeGroupSinkInterface
+	{
+		private final List<Integer> mGroupSizes;
+
+		public GroupRecordingSink(List<Integer> pGroupSizes)
+		{
+			super(8);
+			mGroupSizes = pGroupSizes;
+		}
+
+		@Override
+		public void sendVolume(Volume pVolume)
+		{
+			mGroupSizes.add(1);
+			pVolume.makeAvailableToManager();
+		}
+
+		@Override
+		public void sendVolumes(List<Volume> pVolumes)
+		{
+			mGroupSizes.add(pVolumes.size());
+			for (final Volume lVolume : pVolumes)
+				lVolume.makeAvailableToManager();
+		}
+	}
+
+}
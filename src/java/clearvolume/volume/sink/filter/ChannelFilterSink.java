@@ -4,8 +4,6 @@ import java.util.ArrayList;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import javax.swing.AbstractListModel;
@@ -21,12 +19,13 @@ import clearvolume.volume.sink.NullVolumeSink;
 import clearvolume.volume.sink.VolumeSinkInterface;
 import clearvolume.volume.sink.relay.RelaySinkAdapter;
 import clearvolume.volume.sink.relay.RelaySinkInterface;
+import clearvolume.volume.sink.seek.SeekScheduler;
 
 public class ChannelFilterSink extends RelaySinkAdapter	implements
 														RelaySinkInterface,
 														ClearVolumeCloseable
 {
-	private static final ExecutorService mSeekingExecutor = Executors.newSingleThreadExecutor();
+	private final SeekScheduler mSeekScheduler = new SeekScheduler(ChannelFilterSink.class.getSimpleName() + "SeekThread");
 
 	private final Object mLock = new Object();
 	private final ConcurrentHashMap<Integer, String> mSeenChannelIdToNameMap = new ConcurrentHashMap<Integer, String>();
@@ -82,7 +81,8 @@ public class ChannelFilterSink extends RelaySinkAdapter	implements
 
 	public void setActiveChannels(final int[] pActiveChannels)
 	{
-		mSeekingExecutor.execute(new Runnable()
+		// only the latest selection pending is applied:
+		mSeekScheduler.seek(new Runnable()
 		{
 
 			@Override
@@ -201,9 +201,18 @@ public class ChannelFilterSink extends RelaySinkAdapter	implements
 		return mChannelListModel;
 	}
 
+	/**
+	 * @return scheduler applying the channel selections, with their latency
+	 */
+	public SeekScheduler getSeekScheduler()
+	{
+		return mSeekScheduler;
+	}
+
 	@Override
 	public void close()
 	{
+		mSeekScheduler.close();
 		synchronized (mLock)
 		{
 			mSeenChannelIdToNameMap.clear();
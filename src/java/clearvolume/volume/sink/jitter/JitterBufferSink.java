@@ -0,0 +1,401 @@
+package clearvolume.volume.sink.jitter;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import clearvolume.ClearVolumeCloseable;
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+import clearvolume.volume.sink.relay.RelaySinkAdapter;
+import clearvolume.volume.sink.relay.RelaySinkInterface;
+
+/**
+ * Playout buffer smoothing the cadence of volumes arriving in bursts: each
+ * volume is relayed at its time in seconds, shifted by the smallest transit
+ * time seen plus a delay. The delay is the target delay, raised to a multiple
+ * of the measured jitter when arrivals are more irregular than that. Volumes
+ * that arrive after a newer volume of their channel was relayed, or that
+ * become due while a newer volume of their channel is due too, are dropped
+ * and go back to their manager right away. Volumes without a time in seconds
+ * are relayed after the delay, and are left out of the transit time and
+ * jitter estimates.
+ */
+public class JitterBufferSink extends RelaySinkAdapter	implements
+														RelaySinkInterface,
+														ClearVolumeCloseable
+{
+	private static final double cJitterMultiplier = 4;
+	private static final long cMaxWaitNanos = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final ReentrantLock mLock = new ReentrantLock();
+	private final Condition mChanged = mLock.newCondition();
+	private final PriorityQueue<Entry> mEntries = new PriorityQueue<>();
+	private final HashMap<Long, Long> mLastTransitNanos = new HashMap<>();
+	private final HashMap<Long, Double> mLastRelayedTimeInSeconds = new HashMap<>();
+	private final int mMaxCapacity;
+	private long mSequence;
+
+	private volatile long mTargetDelayNanos;
+	private volatile long mMaxDelayNanos;
+	private volatile long mDelayNanos;
+	private volatile double mJitterNanos;
+	private boolean mBaseTransitSet = false;
+	private long mBaseTransitNanos;
+
+	private final AtomicLong mNumberOfRelayedVolumes = new AtomicLong();
+	private final AtomicLong mNumberOfDroppedVolumes = new AtomicLong();
+
+	private Thread mPlayoutThread;
+	private volatile boolean mStopSignal;
+	private volatile boolean mStoppedSignal;
+
+	/**
+	 * @param pMaxCapacity
+	 *            max number of buffered volumes, the earliest is dropped when
+	 *            full
+	 * @param pTargetDelay
+	 *            target delay
+	 * @param pMaxDelay
+	 *            max delay, however large the jitter
+	 * @param pTimeUnit
+	 *            delay unit
+	 */
+	public JitterBufferSink(int pMaxCapacity,
+							long pTargetDelay,
+							long pMaxDelay,
+							TimeUnit pTimeUnit)
+	{
+		super();
+		mMaxCapacity = pMaxCapacity;
+		mTargetDelayNanos = pTimeUnit.toNanos(pTargetDelay);
+		mMaxDelayNanos = pTimeUnit.toNanos(pMaxDelay);
+		mDelayNanos = mTargetDelayNanos;
+	}
+
+	@Override
+	public void sendVolume(Volume pVolume)
+	{
+		final long lNowNanos = System.nanoTime();
+		final long lKey = getKey(pVolume);
+		final boolean lTimed = pVolume.getTimeInSeconds() > 0;
+
+		Volume lDroppedVolume = null;
+		boolean lLate = false;
+		mLock.lock();
+		try
+		{
+			final Double lLastRelayedTime = mLastRelayedTimeInSeconds.get(lKey);
+			if (lTimed && lLastRelayedTime != null
+				&& pVolume.getTimeInSeconds() <= lLastRelayedTime)
+				lLate = true;
+			else
+			{
+				// volumes without a time are only delayed, and tell nothing
+				// about transit times:
+				final long lDueNanos;
+				if (lTimed)
+				{
+					final long lSourceNanos = (long) (pVolume.getTimeInSeconds() * 1e9);
+					updateDelay(lKey, lNowNanos - lSourceNanos);
+					lDueNanos = lSourceNanos + mBaseTransitNanos + mDelayNanos;
+				}
+				else
+					lDueNanos = lNowNanos + mDelayNanos;
+
+				if (mEntries.size() >= mMaxCapacity)
+					lDroppedVolume = mEntries.poll().mVolume;
+				mEntries.add(new Entry(	pVolume,
+										lKey,
+										lDueNanos,
+										mSequence++));
+				mChanged.signalAll();
+			}
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+
+		if (lLate)
+			drop(pVolume);
+		if (lDroppedVolume != null)
+			drop(lDroppedVolume);
+	}
+
+	private void updateDelay(long pKey, long pTransitNanos)
+	{
+		// the smallest transit is the network and clock offset, it creeps up
+		// slowly to follow clock drift:
+		if (!mBaseTransitSet || pTransitNanos < mBaseTransitNanos)
+		{
+			mBaseTransitNanos = pTransitNanos;
+			mBaseTransitSet = true;
+		}
+		else
+			mBaseTransitNanos += (pTransitNanos - mBaseTransitNanos) >> 10;
+
+		// jitter as in RFC 3550, per channel so that the channels of a time
+		// point arriving one after the other don't count:
+		final Long lLastTransitNanos = mLastTransitNanos.put(	pKey,
+																pTransitNanos);
+		if (lLastTransitNanos != null)
+			mJitterNanos += (Math.abs(pTransitNanos - lLastTransitNanos) - mJitterNanos) / 16;
+
+		mDelayNanos = Math.min(	mMaxDelayNanos,
+								Math.max(	mTargetDelayNanos,
+											(long) (cJitterMultiplier * mJitterNanos)));
+	}
+
+	public boolean start()
+	{
+		final Runnable lRunnable = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					while (!mStopSignal)
+					{
+						try
+						{
+							final Volume lVolume = takeDueVolume();
+							if (lVolume != null)
+								relay(lVolume);
+						}
+						catch (final InterruptedException e)
+						{
+						}
+						catch (final Throwable e)
+						{
+							e.printStackTrace();
+						}
+					}
+				}
+				finally
+				{
+					mStoppedSignal = true;
+				}
+			}
+		};
+
+		mPlayoutThread = new Thread(lRunnable,
+									JitterBufferSink.class.getSimpleName() + "Thread");
+		mPlayoutThread.setDaemon(true);
+		mPlayoutThread.start();
+		return true;
+	}
+
+	private Volume takeDueVolume() throws InterruptedException
+	{
+		Volume lDroppedVolume = null;
+		mLock.lock();
+		try
+		{
+			final Entry lEntry = mEntries.peek();
+			if (lEntry == null)
+			{
+				mChanged.awaitNanos(cMaxWaitNanos);
+				return null;
+			}
+
+			final long lNowNanos = System.nanoTime();
+			if (lEntry.mPresentationNanos > lNowNanos)
+			{
+				mChanged.awaitNanos(Math.min(	cMaxWaitNanos,
+												lEntry.mPresentationNanos - lNowNanos));
+				return null;
+			}
+
+			mEntries.poll();
+			if (isSupersededAt(lEntry, lNowNanos))
+			{
+				lDroppedVolume = lEntry.mVolume;
+				return null;
+			}
+			mLastRelayedTimeInSeconds.put(	lEntry.mKey,
+											lEntry.mVolume.getTimeInSeconds());
+			return lEntry.mVolume;
+		}
+		finally
+		{
+			mLock.unlock();
+			if (lDroppedVolume != null)
+				drop(lDroppedVolume);
+		}
+	}
+
+	private boolean isSupersededAt(Entry pEntry, long pNowNanos)
+	{
+		for (final Entry lEntry : mEntries)
+			if (lEntry.mKey == pEntry.mKey && lEntry.mPresentationNanos <= pNowNanos)
+				return true;
+		return false;
+	}
+
+	private void relay(Volume pVolume)
+	{
+		mNumberOfRelayedVolumes.incrementAndGet();
+		if (getRelaySink() != null)
+			getRelaySink().sendVolume(pVolume);
+		else
+			pVolume.makeAvailableToManager();
+	}
+
+	private void drop(Volume pVolume)
+	{
+		mNumberOfDroppedVolumes.incrementAndGet();
+		pVolume.makeAvailableToManager();
+	}
+
+	public boolean stop()
+	{
+		mStopSignal = true;
+		return true;
+	}
+
+	public boolean waitForStop()
+	{
+		while (mPlayoutThread != null && !mStoppedSignal)
+		{
+			try
+			{
+				Thread.sleep(10);
+			}
+			catch (final InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Stops relaying and hands the buffered volumes back to their manager.
+	 */
+	@Override
+	public void close()
+	{
+		stop();
+		waitForStop();
+		mLock.lock();
+		try
+		{
+			final Iterator<Entry> lIterator = mEntries.iterator();
+			while (lIterator.hasNext())
+			{
+				lIterator.next().mVolume.makeAvailableToManager();
+				lIterator.remove();
+			}
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	public void setTargetDelay(long pTargetDelay, TimeUnit pTimeUnit)
+	{
+		mTargetDelayNanos = pTimeUnit.toNanos(pTargetDelay);
+	}
+
+	public long getTargetDelay(TimeUnit pTimeUnit)
+	{
+		return pTimeUnit.convert(mTargetDelayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	public void setMaxDelay(long pMaxDelay, TimeUnit pTimeUnit)
+	{
+		mMaxDelayNanos = pTimeUnit.toNanos(pMaxDelay);
+	}
+
+	/**
+	 * @return delay currently applied: target delay or jitter based
+	 */
+	public long getDelay(TimeUnit pTimeUnit)
+	{
+		return pTimeUnit.convert(mDelayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return smoothed variation of transit times between consecutive volumes
+	 *         of a channel
+	 */
+	public double getJitter(TimeUnit pTimeUnit)
+	{
+		return mJitterNanos / pTimeUnit.toNanos(1);
+	}
+
+	public int getNumberOfBufferedVolumes()
+	{
+		mLock.lock();
+		try
+		{
+			return mEntries.size();
+		}
+		finally
+		{
+			mLock.unlock();
+		}
+	}
+
+	public long getNumberOfRelayedVolumes()
+	{
+		return mNumberOfRelayedVolumes.get();
+	}
+
+	/**
+	 * @return volumes dropped because late, superseded, or the buffer was full
+	 */
+	public long getNumberOfDroppedVolumes()
+	{
+		return mNumberOfDroppedVolumes.get();
+	}
+
+	@Override
+	public VolumeManager getManager()
+	{
+		if (getRelaySink() != null)
+			return getRelaySink().getManager();
+		return null;
+	}
+
+	private static long getKey(Volume pVolume)
+	{
+		return ((long) pVolume.getStreamID() << 32) | (pVolume.getChannelID() & 0xFFFFFFFFL);
+	}
+
+	private static class Entry implements Comparable<Entry>
+	{
+		private final Volume mVolume;
+		private final long mKey;
+		private final long mPresentationNanos;
+		private final long mSequence;
+
+		private Entry(	Volume pVolume,
+						long pKey,
+						long pPresentationNanos,
+						long pSequence)
+		{
+			mVolume = pVolume;
+			mKey = pKey;
+			mPresentationNanos = pPresentationNanos;
+			mSequence = pSequence;
+		}
+
+		@Override
+		public int compareTo(Entry pOther)
+		{
+			final int lComparison = Long.compare(	mPresentationNanos,
+													pOther.mPresentationNanos);
+			return lComparison != 0	? lComparison
+									: Long.compare(mSequence, pOther.mSequence);
+		}
+	}
+
+}
@@ -0,0 +1,151 @@
+package clearvolume.volume.sink.jitter.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+import clearvolume.volume.sink.VolumeSinkAdapter;
+import clearvolume.volume.sink.jitter.JitterBufferSink;
+import coremem.enums.NativeTypeEnum;
+
+public class JitterBufferSinkTests
+{
+
+	@Test
+	public void testBurstIsSpreadOut() throws InterruptedException
+	{
+		final List<Long> lRelayedNanos = new CopyOnWriteArrayList<>();
+		final JitterBufferSink lJitterBufferSink = newJitterBufferSink(	lRelayedNanos,
+																		500);
+		final VolumeManager lVolumeManager = lJitterBufferSink.getManager();
+
+		// volumes taken 100 ms apart, the first arrives on time and the next
+		// four together, held up by the network:
+		for (int i = 0; i < 5; i++)
+		{
+			if (i == 1)
+				Thread.sleep(450);
+			final Volume lVolume = lVolumeManager.requestAndWaitForVolume(	1,
+																			TimeUnit.MILLISECONDS,
+																			NativeTypeEnum.UnsignedByte,
+																			1,
+																			4,
+																			4,
+																			4);
+			lVolume.setTimeIndex(i);
+			lVolume.setTimeInSeconds(1 + 0.1 * i);
+			lJitterBufferSink.sendVolume(lVolume);
+		}
+
+		for (int i = 0; i < 200 && lRelayedNanos.size() < 5; i++)
+			Thread.sleep(10);
+		assertEquals(5, lRelayedNanos.size());
+		for (int i = 1; i < 5; i++)
+		{
+			final double lIntervalMillis = (lRelayedNanos.get(i) - lRelayedNanos.get(i - 1)) * 1e-6;
+			assertEquals(100, lIntervalMillis, 30);
+		}
+		assertEquals(0, lJitterBufferSink.getNumberOfDroppedVolumes());
+		assertTrue(lJitterBufferSink.getJitter(TimeUnit.MILLISECONDS) > 0);
+
+		lJitterBufferSink.close();
+	}
+
+	@Test
+	public void testLateVolumesAreDropped() throws InterruptedException
+	{
+		final List<Long> lRelayedNanos = new CopyOnWriteArrayList<>();
+		final JitterBufferSink lJitterBufferSink = newJitterBufferSink(	lRelayedNanos,
+																		20);
+		final VolumeManager lVolumeManager = lJitterBufferSink.getManager();
+
+		// the second volume is older than the first, already relayed:
+		for (int t = 1; t >= 0; t--)
+		{
+			final Volume lVolume = lVolumeManager.requestAndWaitForVolume(	1,
+																			TimeUnit.MILLISECONDS,
+																			NativeTypeEnum.UnsignedByte,
+																			1,
+																			4,
+																			4,
+																			4);
+			lVolume.setTimeIndex(t);
+			lVolume.setTimeInSeconds(1 + t);
+			lJitterBufferSink.sendVolume(lVolume);
+			for (int i = 0; i < 200 && lRelayedNanos.size() < 1; i++)
+				Thread.sleep(10);
+		}
+		Thread.sleep(100);
+
+		assertEquals(1, lRelayedNanos.size());
+		assertEquals(1, lJitterBufferSink.getNumberOfDroppedVolumes());
+		assertTrue(lJitterBufferSink.getDelay(TimeUnit.MILLISECONDS) >= 20);
+
+		lJitterBufferSink.close();
+	}
+
+	@Test
+	public void testUntimedVolumesAreDelayed() throws InterruptedException
+	{
+		final List<Long> lRelayedNanos = new CopyOnWriteArrayList<>();
+		final JitterBufferSink lJitterBufferSink = newJitterBufferSink(	lRelayedNanos,
+																		50);
+		final VolumeManager lVolumeManager = lJitterBufferSink.getManager();
+
+		// irregular arrivals without a time in seconds:
+		final long lStartNanos = System.nanoTime();
+		for (int i = 0; i < 3; i++)
+		{
+			if (i == 1)
+				Thread.sleep(30);
+			final Volume lVolume = lVolumeManager.requestAndWaitForVolume(	1,
+																			TimeUnit.MILLISECONDS,
+																			NativeTypeEnum.UnsignedByte,
+																			1,
+																			4,
+																			4,
+																			4);
+			lVolume.setTimeIndex(i);
+			lVolume.setTimeInSeconds(0);
+			lJitterBufferSink.sendVolume(lVolume);
+		}
+
+		for (int i = 0; i < 200 && lRelayedNanos.size() < 3; i++)
+			Thread.sleep(10);
+		assertEquals(3, lRelayedNanos.size());
+		assertTrue(lRelayedNanos.get(0) - lStartNanos >= TimeUnit.MILLISECONDS.toNanos(50));
+		// they don't count as jitter:
+		assertEquals(0, lJitterBufferSink.getJitter(TimeUnit.MILLISECONDS), 0);
+		assertEquals(50, lJitterBufferSink.getDelay(TimeUnit.MILLISECONDS));
+
+		lJitterBufferSink.close();
+	}
+
+	private static JitterBufferSink newJitterBufferSink(final List<Long> pRelayedNanos,
+														long pTargetDelayMillis)
+	{
+		final JitterBufferSink lJitterBufferSink = new JitterBufferSink(16,
+																		pTargetDelayMillis,
+																		1000,
+																		TimeUnit.MILLISECONDS);
+		lJitterBufferSink.setRelaySink(new VolumeSinkAdapter(8)
+		{
+			@Override
+			public void sendVolume(Volume pVolume)
+			{
+				pRelayedNanos.add(System.nanoTime());
+				pVolume.makeAvailableToManager();
+			}
+		});
+		lJitterBufferSink.start();
+		return lJitterBufferSink;
+	}
+
+}
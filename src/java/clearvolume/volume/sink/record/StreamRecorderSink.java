@@ -0,0 +1,77 @@
+package clearvolume.volume.sink.record;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import clearvolume.ClearVolumeCloseable;
+import clearvolume.exceptions.ClearVolumeException;
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+import clearvolume.volume.sink.relay.RelaySinkAdapter;
+import clearvolume.volume.sink.relay.RelaySinkInterface;
+
+/**
+ * Relay sink that records every volume passing through it into a stream
+ * recording, and then forwards it unchanged.
+ */
+public class StreamRecorderSink extends RelaySinkAdapter	implements
+															RelaySinkInterface,
+															ClearVolumeCloseable
+{
+	private final StreamRecordingWriter mStreamRecordingWriter;
+	private final long mTimeOut;
+	private final TimeUnit mTimeUnit;
+
+	public StreamRecorderSink(	File pRecordingFile,
+								int pMaxPendingFrames,
+								long pTimeOut,
+								TimeUnit pTimeUnit) throws IOException
+	{
+		super();
+		mTimeOut = pTimeOut;
+		mTimeUnit = pTimeUnit;
+		mStreamRecordingWriter = new StreamRecordingWriter(	pRecordingFile,
+															pMaxPendingFrames);
+		mStreamRecordingWriter.open();
+		mStreamRecordingWriter.start();
+	}
+
+	@Override
+	public void sendVolume(Volume pVolume)
+	{
+		mStreamRecordingWriter.write(pVolume, mTimeOut, mTimeUnit);
+
+		if (getRelaySink() != null)
+			getRelaySink().sendVolume(pVolume);
+		else
+			pVolume.makeAvailableToManager();
+	}
+
+	@Override
+	public VolumeManager getManager()
+	{
+		if (getRelaySink() != null)
+			return getRelaySink().getManager();
+		return null;
+	}
+
+	public StreamRecordingWriter getStreamRecordingWriter()
+	{
+		return mStreamRecordingWriter;
+	}
+
+	@Override
+	public void close() throws ClearVolumeException
+	{
+		try
+		{
+			mStreamRecordingWriter.close();
+		}
+		catch (final IOException e)
+		{
+			throw new ClearVolumeException("Could not close stream recording", e);
+		}
+	}
+
+}
@@ -0,0 +1,380 @@
+package clearvolume.volume.sink.record;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import clearvolume.network.serialization.ClearVolumeSerialization;
+import clearvolume.network.serialization.keyvalue.KeyValueSlots;
+import clearvolume.utils.ToIntExact;
+
+/**
+ * Index of a stream recording: maps (timepoint, channel) to the offset and
+ * length of the corresponding frame in the recording file. The index is kept
+ * in a side file next to the recording, and can always be rebuilt from the
+ * recording itself by a linear scan over the frames.
+ */
+public class StreamRecordingIndex
+{
+	public static final String cIndexFileExtension = ".index";
+
+	private static final long cMagic = 0x4356494E44455831L; // 'CVINDEX1'
+	static final int cEntryLengthInBytes = 8 + 4 + 8 + 8;
+	private static final int cFramePrefixLengthInBytes = 2 * 8;
+	private static final int cDataLengthFieldInBytes = 8;
+
+	public static class Entry
+	{
+		private final long mTimePoint;
+		private final int mChannel;
+		private final long mOffset;
+		private final long mLength;
+
+		public Entry(long pTimePoint, int pChannel, long pOffset, long pLength)
+		{
+			super();
+			mTimePoint = pTimePoint;
+			mChannel = pChannel;
+			mOffset = pOffset;
+			mLength = pLength;
+		}
+
+		public long getTimePoint()
+		{
+			return mTimePoint;
+		}
+
+		public int getChannel()
+		{
+			return mChannel;
+		}
+
+		public long getOffset()
+		{
+			return mOffset;
+		}
+
+		public long getLength()
+		{
+			return mLength;
+		}
+
+		public long getEnd()
+		{
+			return mOffset + mLength;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format(	"Entry [mTimePoint=%s, mChannel=%s, mOffset=%s, mLength=%s]",
+									mTimePoint,
+									mChannel,
+									mOffset,
+									mLength);
+		}
+	}
+
+	private final ConcurrentHashMap<Integer, ConcurrentHashMap<Long, Entry>> mChannelToTimePointMap = new ConcurrentHashMap<>();
+	private final ConcurrentSkipListSet<Integer> mChannels = new ConcurrentSkipListSet<>();
+	private final CopyOnWriteArrayList<Entry> mEntries = new CopyOnWriteArrayList<>();
+	private volatile long mEnd = 0;
+	private volatile long mHighestTimePoint = -1;
+
+	public StreamRecordingIndex()
+	{
+		super();
+	}
+
+	public static File getIndexFile(File pRecordingFile)
+	{
+		return new File(pRecordingFile.getPath() + cIndexFileExtension);
+	}
+
+	public void add(Entry pEntry)
+	{
+		ConcurrentHashMap<Long, Entry> lTimePointMap = mChannelToTimePointMap.get(pEntry.getChannel());
+		if (lTimePointMap == null)
+		{
+			mChannelToTimePointMap.putIfAbsent(	pEntry.getChannel(),
+												new ConcurrentHashMap<Long, Entry>());
+			lTimePointMap = mChannelToTimePointMap.get(pEntry.getChannel());
+			mChannels.add(pEntry.getChannel());
+		}
+		lTimePointMap.put(pEntry.getTimePoint(), pEntry);
+		mEntries.add(pEntry);
+		mEnd = Math.max(mEnd, pEntry.getEnd());
+		mHighestTimePoint = Math.max(mHighestTimePoint, pEntry.getTimePoint());
+	}
+
+	public Entry get(long pTimePoint, int pChannel)
+	{
+		final ConcurrentHashMap<Long, Entry> lTimePointMap = mChannelToTimePointMap.get(pChannel);
+		if (lTimePointMap == null)
+			return null;
+		return lTimePointMap.get(pTimePoint);
+	}
+
+	public List<Entry> getEntries()
+	{
+		return Collections.unmodifiableList(mEntries);
+	}
+
+	public int size()
+	{
+		return mEntries.size();
+	}
+
+	public List<Integer> getChannels()
+	{
+		return new ArrayList<Integer>(mChannels);
+	}
+
+	public long getHighestTimePoint()
+	{
+		return mHighestTimePoint;
+	}
+
+	/**
+	 * @return offset just past the last indexed frame
+	 */
+	public long getEnd()
+	{
+		return mEnd;
+	}
+
+	public void clear()
+	{
+		mChannelToTimePointMap.clear();
+		mChannels.clear();
+		mEntries.clear();
+		mEnd = 0;
+		mHighestTimePoint = -1;
+	}
+
+	static void writeIndexFileHeader(FileChannel pIndexFileChannel) throws IOException
+	{
+		final ByteBuffer lByteBuffer = ByteBuffer.allocate(8)
+													.order(ByteOrder.nativeOrder());
+		lByteBuffer.putLong(cMagic);
+		lByteBuffer.flip();
+		while (lByteBuffer.hasRemaining())
+			pIndexFileChannel.write(lByteBuffer);
+	}
+
+	static void putEntry(ByteBuffer pByteBuffer, Entry pEntry)
+	{
+		pByteBuffer.putLong(pEntry.getTimePoint());
+		pByteBuffer.putInt(pEntry.getChannel());
+		pByteBuffer.putLong(pEntry.getOffset());
+		pByteBuffer.putLong(pEntry.getLength());
+	}
+
+	/**
+	 * Loads the index for the given recording. Index entries are only trusted
+	 * as long as they describe contiguous frames that lie within the recording
+	 * file; the remainder of the recording (if any) is then recovered by
+	 * scanning the frames that follow the last trusted entry.
+	 *
+	 * @param pRecordingFile
+	 *            recording file
+	 * @return index
+	 * @throws IOException
+	 *             if the recording cannot be read
+	 */
+	public static StreamRecordingIndex load(File pRecordingFile) throws IOException
+	{
+		final StreamRecordingIndex lIndex = new StreamRecordingIndex();
+		try (FileChannel lRecordingChannel = FileChannel.open(pRecordingFile.toPath(),
+																StandardOpenOption.READ))
+		{
+			final long lRecordingSize = lRecordingChannel.size();
+			final File lIndexFile = getIndexFile(pRecordingFile);
+			if (lIndexFile.exists())
+				lIndex.readIndexFile(lIndexFile, lRecordingSize);
+
+			lIndex.scan(lRecordingChannel, lIndex.getEnd());
+		}
+		return lIndex;
+	}
+
+	/**
+	 * Rebuilds the index of a recording from scratch by a linear scan, and
+	 * rewrites the side index file.
+	 *
+	 * @param pRecordingFile
+	 *            recording file
+	 * @return rebuilt index
+	 * @throws IOException
+	 *             if the recording cannot be read or the index written
+	 */
+	public static StreamRecordingIndex rebuild(File pRecordingFile) throws IOException
+	{
+		final StreamRecordingIndex lIndex = new StreamRecordingIndex();
+		try (FileChannel lRecordingChannel = FileChannel.open(pRecordingFile.toPath(),
+																StandardOpenOption.READ))
+		{
+			lIndex.scan(lRecordingChannel, 0);
+		}
+		lIndex.writeIndexFile(getIndexFile(pRecordingFile));
+		return lIndex;
+	}
+
+	public void writeIndexFile(File pIndexFile) throws IOException
+	{
+		try (FileChannel lIndexChannel = FileChannel.open(pIndexFile.toPath(),
+															StandardOpenOption.CREATE,
+															StandardOpenOption.WRITE,
+															StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			writeIndexFileHeader(lIndexChannel);
+			final ByteBuffer lByteBuffer = ByteBuffer.allocate(cEntryLengthInBytes * 1024)
+														.order(ByteOrder.nativeOrder());
+			for (final Entry lEntry : mEntries)
+			{
+				if (lByteBuffer.remaining() < cEntryLengthInBytes)
+					drain(lIndexChannel, lByteBuffer);
+				putEntry(lByteBuffer, lEntry);
+			}
+			drain(lIndexChannel, lByteBuffer);
+		}
+	}
+
+	private static void drain(FileChannel pFileChannel,
+								ByteBuffer pByteBuffer) throws IOException
+	{
+		pByteBuffer.flip();
+		while (pByteBuffer.hasRemaining())
+			pFileChannel.write(pByteBuffer);
+		pByteBuffer.clear();
+	}
+
+	private void readIndexFile(File pIndexFile, long pRecordingSize) throws IOException
+	{
+		try (FileChannel lIndexChannel = FileChannel.open(pIndexFile.toPath(),
+															StandardOpenOption.READ))
+		{
+			final long lIndexFileSize = lIndexChannel.size();
+			if (lIndexFileSize < 8)
+				return;
+
+			final ByteBuffer lByteBuffer = ByteBuffer.allocate(ToIntExact.toIntExact(lIndexFileSize))
+														.order(ByteOrder.nativeOrder());
+			while (lByteBuffer.hasRemaining() && lIndexChannel.read(lByteBuffer) >= 0)
+				;
+			lByteBuffer.flip();
+
+			if (lByteBuffer.getLong() != cMagic)
+				return;
+
+			long lExpectedOffset = 0;
+			while (lByteBuffer.remaining() >= cEntryLengthInBytes)
+			{
+				final long lTimePoint = lByteBuffer.getLong();
+				final int lChannel = lByteBuffer.getInt();
+				final long lOffset = lByteBuffer.getLong();
+				final long lLength = lByteBuffer.getLong();
+
+				// frames are appended back to back, anything else is garbage
+				// from a crash and ends the trusted part of the index:
+				if (lOffset != lExpectedOffset || lLength <= 0
+					|| lOffset + lLength > pRecordingSize)
+					break;
+
+				add(new Entry(lTimePoint, lChannel, lOffset, lLength));
+				lExpectedOffset = lOffset + lLength;
+			}
+		}
+	}
+
+	/**
+	 * Scans the frames of a recording starting at a given offset and adds them
+	 * to this index. The scan stops at the first incomplete or inconsistent
+	 * frame, e.g. one that was only partially written before a crash.
+	 *
+	 * @param pRecordingChannel
+	 *            recording file channel
+	 * @param pStartOffset
+	 *            offset of the first frame to scan
+	 * @return offset just past the last complete frame
+	 * @throws IOException
+	 *             if the recording cannot be read
+	 */
+	public long scan(FileChannel pRecordingChannel, long pStartOffset) throws IOException
+	{
+		final long lRecordingSize = pRecordingChannel.size();
+		ByteBuffer lByteBuffer = ByteBuffer.allocate(4096)
+											.order(ByteOrder.nativeOrder());
+		KeyValueSlots lHeaderSlots = new KeyValueSlots();
+
+		long lOffset = pStartOffset;
+		while (lOffset + cFramePrefixLengthInBytes <= lRecordingSize)
+		{
+			lByteBuffer.clear();
+			lByteBuffer.limit(cFramePrefixLengthInBytes);
+			readFully(pRecordingChannel, lByteBuffer, lOffset);
+			lByteBuffer.flip();
+			final long lWholeLength = lByteBuffer.getLong();
+			final long lHeaderLength = lByteBuffer.getLong();
+
+			if (lHeaderLength < 0 || lHeaderLength > Integer.MAX_VALUE - cFramePrefixLengthInBytes
+																		- cDataLengthFieldInBytes
+				|| lWholeLength < cFramePrefixLengthInBytes + lHeaderLength
+									+ cDataLengthFieldInBytes
+				|| lOffset + lWholeLength > lRecordingSize)
+				break;
+
+			final int lPrefixAndHeaderLength = (int) (cFramePrefixLengthInBytes + lHeaderLength + cDataLengthFieldInBytes);
+			if (lByteBuffer.capacity() < lPrefixAndHeaderLength)
+				lByteBuffer = ByteBuffer.allocate(lPrefixAndHeaderLength)
+										.order(ByteOrder.nativeOrder());
+			lByteBuffer.clear();
+			lByteBuffer.limit(lPrefixAndHeaderLength);
+			readFully(pRecordingChannel, lByteBuffer, lOffset);
+			lByteBuffer.flip();
+
+			final long lDataLength = lByteBuffer.getLong(lPrefixAndHeaderLength - cDataLengthFieldInBytes);
+			if (lDataLength != lWholeLength - lPrefixAndHeaderLength)
+				break;
+
+			try
+			{
+				lHeaderSlots = ClearVolumeSerialization.readFrameHeader(	lByteBuffer,
+																		lHeaderSlots);
+				final long lTimePoint = lHeaderSlots.getLong("index", 0);
+				final int lChannel = lHeaderSlots.getInt("channel", 0);
+				add(new Entry(lTimePoint, lChannel, lOffset, lWholeLength));
+			}
+			catch (final RuntimeException e)
+			{
+				break;
+			}
+
+			lOffset += lWholeLength;
+		}
+		return lOffset;
+	}
+
+	static void readFully(	FileChannel pFileChannel,
+							ByteBuffer pByteBuffer,
+							long pPosition) throws IOException
+	{
+		while (pByteBuffer.hasRemaining())
+		{
+			final int lRead = pFileChannel.read(pByteBuffer, pPosition);
+			if (lRead < 0)
+				throw new IOException("Unexpected end of recording at offset " + pPosition);
+			pPosition += lRead;
+		}
+	}
+
+}
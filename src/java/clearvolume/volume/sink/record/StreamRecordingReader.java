@@ -0,0 +1,117 @@
+package clearvolume.volume.sink.record;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import clearvolume.network.serialization.ClearVolumeSerialization;
+import clearvolume.utils.ToIntExact;
+import clearvolume.volume.Volume;
+import clearvolume.volume.sink.record.StreamRecordingIndex.Entry;
+
+/**
+ * Random access to the frames of a stream recording through its index.
+ */
+public class StreamRecordingReader implements Closeable
+{
+	private final File mRecordingFile;
+	private FileChannel mRecordingChannel;
+	private StreamRecordingIndex mIndex;
+
+	public StreamRecordingReader(File pRecordingFile)
+	{
+		super();
+		mRecordingFile = pRecordingFile;
+	}
+
+	public boolean open() throws IOException
+	{
+		if (mRecordingChannel != null)
+			return false;
+		mIndex = StreamRecordingIndex.load(mRecordingFile);
+		mRecordingChannel = FileChannel.open(	mRecordingFile.toPath(),
+												StandardOpenOption.READ);
+		return true;
+	}
+
+	/**
+	 * Picks up frames appended to the recording since the index was loaded.
+	 *
+	 * @throws IOException
+	 *             if the recording cannot be read
+	 */
+	public void refresh() throws IOException
+	{
+		mIndex.scan(mRecordingChannel, mIndex.getEnd());
+	}
+
+	public StreamRecordingIndex getIndex()
+	{
+		return mIndex;
+	}
+
+	/**
+	 * Reads the serialized frame for a given time point and channel.
+	 *
+	 * @param pTimePoint
+	 *            time point index
+	 * @param pChannel
+	 *            channel
+	 * @param pByteBuffer
+	 *            buffer to reuse if large enough, or null
+	 * @return buffer holding the frame between position and limit, or null if
+	 *         there is no such frame
+	 * @throws IOException
+	 *             if the recording cannot be read
+	 */
+	public ByteBuffer readFrame(long pTimePoint,
+								int pChannel,
+								ByteBuffer pByteBuffer) throws IOException
+	{
+		final Entry lEntry = mIndex.get(pTimePoint, pChannel);
+		if (lEntry == null)
+			return null;
+
+		final int lLength = ToIntExact.toIntExact(lEntry.getLength());
+		if (pByteBuffer == null || pByteBuffer.capacity() < lLength)
+			pByteBuffer = ByteBuffer.allocateDirect(lLength)
+									.order(ByteOrder.nativeOrder());
+		pByteBuffer.clear();
+		pByteBuffer.limit(lLength);
+		StreamRecordingIndex.readFully(	mRecordingChannel,
+										pByteBuffer,
+										lEntry.getOffset());
+		pByteBuffer.flip();
+		return pByteBuffer;
+	}
+
+	private ByteBuffer mScratchBuffer;
+
+	public Volume readVolume(	long pTimePoint,
+								int pChannel,
+								Volume pVolume) throws IOException
+	{
+		mScratchBuffer = readFrame(pTimePoint, pChannel, mScratchBuffer);
+		if (mScratchBuffer == null)
+			return null;
+		if (pVolume == null)
+			pVolume = new Volume();
+		return ClearVolumeSerialization.deserialize(mScratchBuffer,
+													pVolume);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (mRecordingChannel != null)
+		{
+			mRecordingChannel.close();
+			mRecordingChannel = null;
+		}
+	}
+
+}
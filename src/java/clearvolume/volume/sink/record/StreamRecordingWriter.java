@@ -0,0 +1,468 @@
+package clearvolume.volume.sink.record;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import clearvolume.network.serialization.ClearVolumeSerialization;
+import clearvolume.volume.Volume;
+import clearvolume.volume.sink.record.StreamRecordingIndex.Entry;
+
+/**
+ * Writes a stream recording: frames exactly as produced by
+ * ClearVolumeSerialization, appended back to back to a single file. Frames are
+ * serialized on the caller's thread into pooled buffers and written by a
+ * dedicated thread. The writing thread coalesces frames into a large staging
+ * buffer and only issues writes of whole multiples of the alignment at aligned
+ * file offsets; large frames are written straight from their buffer with a
+ * gathering write. The side index is appended as frames reach the file.
+ */
+public class StreamRecordingWriter implements Closeable
+{
+	public static final int cDefaultAlignment = 4096;
+	public static final int cDefaultStagingBufferLength = 64 * 1024 * 1024;
+	private static final int cIndexBufferEntries = 1024;
+
+	private static class PendingFrame
+	{
+		ByteBuffer mByteBuffer;
+		long mTimePoint;
+		int mChannel;
+		CountDownLatch mFlushLatch;
+	}
+
+	private final File mRecordingFile;
+	private final int mAlignment;
+	private final int mMaxPendingFrames;
+
+	private final ArrayBlockingQueue<PendingFrame> mPendingFrames;
+	private final ArrayBlockingQueue<PendingFrame> mFreeFrames;
+	private final AtomicInteger mNumberOfAllocatedFrames = new AtomicInteger();
+
+	private final StreamRecordingIndex mIndex = new StreamRecordingIndex();
+	private final ArrayDeque<Entry> mUnwrittenEntries = new ArrayDeque<>();
+
+	private FileChannel mRecordingChannel;
+	private FileChannel mIndexChannel;
+	private final ByteBuffer mStagingBuffer;
+	private final ByteBuffer mIndexBuffer;
+	private final ByteBuffer[] mGatherArray = new ByteBuffer[2];
+	private final ByteBuffer mEmptyBuffer = ByteBuffer.allocate(0);
+
+	private long mAlignedFilePosition = 0;
+	private long mLogicalPosition = 0;
+
+	private final AtomicLong mNumberOfDroppedFrames = new AtomicLong();
+	private final AtomicLong mNumberOfWrittenBytes = new AtomicLong();
+	private volatile Throwable mLastError;
+
+	private Thread mWriterThread;
+	private volatile boolean mStopSignal;
+	private volatile boolean mStoppedSignal;
+
+	public StreamRecordingWriter(File pRecordingFile, int pMaxPendingFrames)
+	{
+		this(	pRecordingFile,
+				pMaxPendingFrames,
+				cDefaultStagingBufferLength,
+				cDefaultAlignment);
+	}
+
+	public StreamRecordingWriter(	File pRecordingFile,
+									int pMaxPendingFrames,
+									int pStagingBufferLength,
+									int pAlignment)
+	{
+		super();
+		if (pAlignment <= 0 || pStagingBufferLength < pAlignment
+			|| pStagingBufferLength % pAlignment != 0)
+			throw new IllegalArgumentException("Staging buffer length must be a positive multiple of the alignment");
+		mRecordingFile = pRecordingFile;
+		mAlignment = pAlignment;
+		mMaxPendingFrames = pMaxPendingFrames;
+		mPendingFrames = new ArrayBlockingQueue<>(pMaxPendingFrames + 1);
+		mFreeFrames = new ArrayBlockingQueue<>(pMaxPendingFrames);
+		mStagingBuffer = ByteBuffer.allocateDirect(pStagingBufferLength)
+									.order(ByteOrder.nativeOrder());
+		mIndexBuffer = ByteBuffer.allocateDirect(cIndexBufferEntries * StreamRecordingIndex.cEntryLengthInBytes)
+									.order(ByteOrder.nativeOrder());
+	}
+
+	public File getRecordingFile()
+	{
+		return mRecordingFile;
+	}
+
+	public StreamRecordingIndex getIndex()
+	{
+		return mIndex;
+	}
+
+	public long getNumberOfDroppedFrames()
+	{
+		return mNumberOfDroppedFrames.get();
+	}
+
+	public long getNumberOfWrittenBytes()
+	{
+		return mNumberOfWrittenBytes.get();
+	}
+
+	public Throwable getLastError()
+	{
+		return mLastError;
+	}
+
+	public boolean open() throws IOException
+	{
+		if (mRecordingChannel != null)
+			return false;
+		mRecordingChannel = FileChannel.open(	mRecordingFile.toPath(),
+												StandardOpenOption.CREATE,
+												StandardOpenOption.WRITE,
+												StandardOpenOption.TRUNCATE_EXISTING);
+		mIndexChannel = FileChannel.open(	StreamRecordingIndex.getIndexFile(mRecordingFile)
+																.toPath(),
+											StandardOpenOption.CREATE,
+											StandardOpenOption.WRITE,
+											StandardOpenOption.TRUNCATE_EXISTING);
+		StreamRecordingIndex.writeIndexFileHeader(mIndexChannel);
+		return true;
+	}
+
+	public boolean start()
+	{
+		final Runnable lRunnable = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					while (!mStopSignal || !mPendingFrames.isEmpty())
+					{
+						final PendingFrame lPendingFrame = mPendingFrames.poll(	10,
+																				TimeUnit.MILLISECONDS);
+						if (lPendingFrame == null)
+							continue;
+						try
+						{
+							if (lPendingFrame.mByteBuffer != null)
+								append(lPendingFrame);
+							else
+								flushStaging();
+						}
+						catch (final Throwable e)
+						{
+							mLastError = e;
+							e.printStackTrace();
+						}
+						finally
+						{
+							if (lPendingFrame.mFlushLatch != null)
+								lPendingFrame.mFlushLatch.countDown();
+							else
+								mFreeFrames.offer(lPendingFrame);
+						}
+					}
+					flushStaging();
+				}
+				catch (final Throwable e)
+				{
+					mLastError = e;
+					e.printStackTrace();
+				}
+				finally
+				{
+					mStoppedSignal = true;
+				}
+			}
+		};
+
+		mWriterThread = new Thread(	lRunnable,
+									StreamRecordingWriter.class.getSimpleName() + "Thread");
+		mWriterThread.setDaemon(true);
+		mWriterThread.start();
+		return true;
+	}
+
+	/**
+	 * Serializes the given volume into a pooled buffer and queues it for
+	 * writing. The volume can be reused as soon as this method returns.
+	 *
+	 * @param pVolume
+	 *            volume to record
+	 * @param pTimeOut
+	 *            max time to wait for a free buffer
+	 * @param pTimeUnit
+	 *            time unit
+	 * @return true if queued, false if the frame had to be dropped
+	 */
+	public boolean write(	Volume pVolume,
+							long pTimeOut,
+							TimeUnit pTimeUnit)
+	{
+		final PendingFrame lPendingFrame = acquireFrame(pTimeOut, pTimeUnit);
+		if (lPendingFrame == null)
+		{
+			mNumberOfDroppedFrames.incrementAndGet();
+			return false;
+		}
+
+		final int lLength = ClearVolumeSerialization.getSerializedLength(pVolume);
+		ensureCapacity(lPendingFrame, lLength);
+		ClearVolumeSerialization.serializeInto(	pVolume,
+												lPendingFrame.mByteBuffer);
+		lPendingFrame.mByteBuffer.flip();
+		lPendingFrame.mTimePoint = pVolume.getTimeIndex();
+		lPendingFrame.mChannel = pVolume.getChannelID();
+		mPendingFrames.offer(lPendingFrame);
+		return true;
+	}
+
+	/**
+	 * Queues an already serialized frame for writing, the frame bytes between
+	 * position and limit are copied.
+	 *
+	 * @param pFrame
+	 *            serialized frame
+	 * @param pTimePoint
+	 *            time point index of the frame
+	 * @param pChannel
+	 *            channel of the frame
+	 * @param pTimeOut
+	 *            max time to wait for a free buffer
+	 * @param pTimeUnit
+	 *            time unit
+	 * @return true if queued, false if the frame had to be dropped
+	 */
+	public boolean writeFrame(	ByteBuffer pFrame,
+								long pTimePoint,
+								int pChannel,
+								long pTimeOut,
+								TimeUnit pTimeUnit)
+	{
+		final PendingFrame lPendingFrame = acquireFrame(pTimeOut, pTimeUnit);
+		if (lPendingFrame == null)
+		{
+			mNumberOfDroppedFrames.incrementAndGet();
+			return false;
+		}
+
+		ensureCapacity(lPendingFrame, pFrame.remaining());
+		lPendingFrame.mByteBuffer.put(pFrame.duplicate());
+		lPendingFrame.mByteBuffer.flip();
+		lPendingFrame.mTimePoint = pTimePoint;
+		lPendingFrame.mChannel = pChannel;
+		mPendingFrames.offer(lPendingFrame);
+		return true;
+	}
+
+	/**
+	 * Waits until all frames queued so far are written to the file and
+	 * indexed.
+	 *
+	 * @param pTimeOut
+	 *            max time to wait
+	 * @param pTimeUnit
+	 *            time unit
+	 * @return true if flushed within the given time
+	 */
+	public boolean flush(long pTimeOut, TimeUnit pTimeUnit)
+	{
+		final PendingFrame lFlushRequest = new PendingFrame();
+		lFlushRequest.mFlushLatch = new CountDownLatch(1);
+		try
+		{
+			mPendingFrames.put(lFlushRequest);
+			return lFlushRequest.mFlushLatch.await(pTimeOut, pTimeUnit);
+		}
+		catch (final InterruptedException e)
+		{
+			return false;
+		}
+	}
+
+	public boolean stop()
+	{
+		mStopSignal = true;
+		return true;
+	}
+
+	public void waitForStop()
+	{
+		while (mWriterThread != null && !mStoppedSignal)
+		{
+			try
+			{
+				Thread.sleep(10);
+			}
+			catch (final InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		stop();
+		waitForStop();
+		if (mWriterThread == null && mRecordingChannel != null)
+			flushStaging();
+
+		if (mRecordingChannel != null)
+		{
+			mRecordingChannel.close();
+			mRecordingChannel = null;
+		}
+		if (mIndexChannel != null)
+		{
+			mIndexChannel.close();
+			mIndexChannel = null;
+		}
+	}
+
+	private PendingFrame acquireFrame(long pTimeOut, TimeUnit pTimeUnit)
+	{
+		PendingFrame lPendingFrame = mFreeFrames.poll();
+		if (lPendingFrame != null)
+			return lPendingFrame;
+
+		if (mNumberOfAllocatedFrames.incrementAndGet() <= mMaxPendingFrames)
+			return new PendingFrame();
+		mNumberOfAllocatedFrames.decrementAndGet();
+
+		try
+		{
+			lPendingFrame = mFreeFrames.poll(pTimeOut, pTimeUnit);
+		}
+		catch (final InterruptedException e)
+		{
+			lPendingFrame = null;
+		}
+		return lPendingFrame;
+	}
+
+	private static void ensureCapacity(PendingFrame pPendingFrame, int pLength)
+	{
+		if (pPendingFrame.mByteBuffer == null || pPendingFrame.mByteBuffer.capacity() < pLength)
+			pPendingFrame.mByteBuffer = ByteBuffer.allocateDirect(pLength)
+													.order(ByteOrder.nativeOrder());
+		pPendingFrame.mByteBuffer.clear();
+		pPendingFrame.mByteBuffer.limit(pLength);
+	}
+
+	private void append(PendingFrame pPendingFrame) throws IOException
+	{
+		final ByteBuffer lFrame = pPendingFrame.mByteBuffer;
+		final long lLength = lFrame.remaining();
+		mUnwrittenEntries.add(new Entry(pPendingFrame.mTimePoint,
+										pPendingFrame.mChannel,
+										mLogicalPosition,
+										lLength));
+		mLogicalPosition += lLength;
+
+		if (lLength <= mStagingBuffer.remaining())
+		{
+			mStagingBuffer.put(lFrame);
+			if (!mStagingBuffer.hasRemaining())
+				writeAligned(null);
+		}
+		else
+			writeAligned(lFrame);
+	}
+
+	/**
+	 * Writes the staged bytes followed by as much of the given frame as
+	 * possible while ending on an aligned file offset. Whatever remains of the
+	 * frame (less than the alignment) is moved to the staging buffer.
+	 */
+	private void writeAligned(ByteBuffer pFrame) throws IOException
+	{
+		final long lStaged = mStagingBuffer.position();
+		final long lTotal = lStaged + (pFrame == null ? 0
+													: pFrame.remaining());
+		final long lAlignedTotal = lTotal - lTotal % mAlignment;
+
+		mStagingBuffer.flip();
+		mGatherArray[0] = mStagingBuffer;
+		mGatherArray[1] = mEmptyBuffer;
+		int lFrameLimit = 0;
+		if (pFrame != null)
+		{
+			lFrameLimit = pFrame.limit();
+			pFrame.limit(pFrame.position() + (int) (lAlignedTotal - lStaged));
+			mGatherArray[1] = pFrame;
+		}
+
+		mRecordingChannel.position(mAlignedFilePosition);
+		long lWritten = 0;
+		while (lWritten < lAlignedTotal)
+			lWritten += mRecordingChannel.write(mGatherArray);
+		mAlignedFilePosition += lAlignedTotal;
+		mNumberOfWrittenBytes.addAndGet(lAlignedTotal);
+
+		mStagingBuffer.clear();
+		if (pFrame != null)
+		{
+			pFrame.limit(lFrameLimit);
+			mStagingBuffer.put(pFrame);
+		}
+
+		indexWrittenFrames(mAlignedFilePosition);
+	}
+
+	private void flushStaging() throws IOException
+	{
+		if (mRecordingChannel == null)
+			return;
+
+		// the unaligned tail is written but kept staged, it will be rewritten
+		// at the same aligned offset by the next aligned write:
+		final ByteBuffer lTail = mStagingBuffer.duplicate();
+		lTail.flip();
+		long lPosition = mAlignedFilePosition;
+		while (lTail.hasRemaining())
+			lPosition += mRecordingChannel.write(lTail, lPosition);
+		mRecordingChannel.force(false);
+
+		indexWrittenFrames(mAlignedFilePosition + mStagingBuffer.position());
+		mIndexChannel.force(false);
+	}
+
+	private void indexWrittenFrames(long pWrittenPosition) throws IOException
+	{
+		mIndexBuffer.clear();
+		while (!mUnwrittenEntries.isEmpty() && mUnwrittenEntries.peekFirst()
+																.getEnd() <= pWrittenPosition)
+		{
+			final Entry lEntry = mUnwrittenEntries.pollFirst();
+			if (mIndexBuffer.remaining() < StreamRecordingIndex.cEntryLengthInBytes)
+				drainIndexBuffer();
+			StreamRecordingIndex.putEntry(mIndexBuffer, lEntry);
+			mIndex.add(lEntry);
+		}
+		drainIndexBuffer();
+	}
+
+	private void drainIndexBuffer() throws IOException
+	{
+		mIndexBuffer.flip();
+		while (mIndexBuffer.hasRemaining())
+			mIndexChannel.write(mIndexBuffer);
+		mIndexBuffer.clear();
+	}
+
+}
@@ -0,0 +1,119 @@
+package clearvolume.volume.sink.record.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import clearvolume.volume.Volume;
+import clearvolume.volume.sink.record.StreamRecordingIndex;
+import clearvolume.volume.sink.record.StreamRecordingReader;
+import clearvolume.volume.sink.record.StreamRecordingWriter;
+import coremem.enums.NativeTypeEnum;
+
+public class StreamRecordingTests
+{
+	private static final int cNumberOfTimePoints = 20;
+	private static final int cNumberOfChannels = 3;
+
+	@Test
+	public void testWriteReadAndRecover() throws IOException
+	{
+		final File lRecordingFile = File.createTempFile("StreamRecordingTests",
+														".cvrec");
+		final File lIndexFile = StreamRecordingIndex.getIndexFile(lRecordingFile);
+		lRecordingFile.deleteOnExit();
+		lIndexFile.deleteOnExit();
+
+		// small staging buffer to exercise both staged and direct writes:
+		final StreamRecordingWriter lWriter = new StreamRecordingWriter(lRecordingFile,
+																		4,
+																		16 * 1024,
+																		4096);
+		assertTrue(lWriter.open());
+		assertTrue(lWriter.start());
+
+		for (int t = 0; t < cNumberOfTimePoints; t++)
+			for (int c = 0; c < cNumberOfChannels; c++)
+			{
+				final Volume lVolume = createVolume(t, c);
+				assertTrue(lWriter.write(lVolume, 1, TimeUnit.SECONDS));
+			}
+		assertTrue(lWriter.flush(10, TimeUnit.SECONDS));
+		assertEquals(	cNumberOfTimePoints * cNumberOfChannels,
+						lWriter.getIndex().size());
+		lWriter.close();
+		assertEquals(0, lWriter.getNumberOfDroppedFrames());
+
+		checkRecording(lRecordingFile, cNumberOfTimePoints);
+
+		// index lost:
+		assertTrue(lIndexFile.delete());
+		checkRecording(lRecordingFile, cNumberOfTimePoints);
+
+		// crash in the middle of the last frame:
+		final long lLastFrameOffset = StreamRecordingIndex.rebuild(lRecordingFile)
+															.get(	cNumberOfTimePoints - 1,
+																	cNumberOfChannels - 1)
+															.getOffset();
+		try (RandomAccessFile lRandomAccessFile = new RandomAccessFile(	lRecordingFile,
+																		"rw"))
+		{
+			lRandomAccessFile.setLength(lLastFrameOffset + 100);
+		}
+		final StreamRecordingIndex lIndex = StreamRecordingIndex.load(lRecordingFile);
+		assertEquals(	cNumberOfTimePoints * cNumberOfChannels - 1,
+						lIndex.size());
+		assertNull(lIndex.get(cNumberOfTimePoints - 1, cNumberOfChannels - 1));
+		assertEquals(lLastFrameOffset, lIndex.getEnd());
+	}
+
+	private void checkRecording(File pRecordingFile, int pNumberOfTimePoints) throws IOException
+	{
+		try (StreamRecordingReader lReader = new StreamRecordingReader(pRecordingFile))
+		{
+			assertTrue(lReader.open());
+			assertEquals(	pNumberOfTimePoints * cNumberOfChannels,
+							lReader.getIndex().size());
+
+			for (int t = pNumberOfTimePoints - 1; t >= 0; t--)
+				for (int c = 0; c < cNumberOfChannels; c++)
+				{
+					final Volume lVolume = lReader.readVolume(t, c, null);
+					assertNotNull(lVolume);
+					assertEquals(t, lVolume.getTimeIndex());
+					assertEquals(c, lVolume.getChannelID());
+					final ByteBuffer lData = lVolume.getDataBuffer();
+					lData.rewind();
+					assertEquals((byte) (t + c), lData.get());
+					assertEquals((byte) (t * c), lData.get(lData.capacity() - 1));
+				}
+		}
+	}
+
+	private static Volume createVolume(int pTimePoint, int pChannel)
+	{
+		// channels have different sizes so that frames are not aligned:
+		final Volume lVolume = new Volume(	NativeTypeEnum.UnsignedByte,
+											1,
+											16 + pChannel,
+											17,
+											18 + 5 * pChannel);
+		lVolume.setTimeIndex(pTimePoint);
+		lVolume.setChannelID(pChannel);
+		lVolume.setChannelName("channel " + pChannel);
+		final ByteBuffer lData = lVolume.getDataBuffer();
+		lData.put(0, (byte) (pTimePoint + pChannel));
+		lData.put(lData.capacity() - 1, (byte) (pTimePoint * pChannel));
+		return lVolume;
+	}
+
+}
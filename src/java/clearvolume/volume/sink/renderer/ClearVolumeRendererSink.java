@@ -1,5 +1,6 @@
 package clearvolume.volume.sink.renderer;
 
+import java.util.List;
 import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
@@ -12,6 +13,7 @@ import clearvolume.transferf.TransferFunctions;
 import clearvolume.volume.Volume;
 import clearvolume.volume.VolumeManager;
 import clearvolume.volume.sink.NullVolumeSink;
+import clearvolume.volume.sink.VolumeGroupSinkInterface;
 import clearvolume.volume.sink.relay.RelaySinkAdapter;
 import clearvolume.volume.sink.relay.RelaySinkInterface;
 import coremem.enums.NativeTypeEnum;
@@ -19,6 +21,7 @@ import coremem.util.Size;
 
 public class ClearVolumeRendererSink extends RelaySinkAdapter	implements
 																RelaySinkInterface,
+																VolumeGroupSinkInterface,
 																ClearVolumeCloseable
 {
 
@@ -72,7 +75,31 @@ public class ClearVolumeRendererSink extends RelaySinkAdapter	implements
 	@Override
 	public void sendVolume(Volume pVolume)
 	{
-		final long lTimePointIndex = pVolume.getTimeIndex();
+		setVolumeDataBuffer(pVolume);
+		display();
+
+		if (getRelaySink() != null)
+			getRelaySink().sendVolume(pVolume);
+		else
+			pVolume.makeAvailableToManager();/**/
+
+	}
+
+	/**
+	 * Displays the volumes of a time point with a single redraw.
+	 */
+	@Override
+	public void sendVolumes(List<Volume> pVolumes)
+	{
+		for (final Volume lVolume : pVolumes)
+			setVolumeDataBuffer(lVolume);
+		display();
+
+		VolumeGroupSinkInterface.sendVolumes(getRelaySink(), pVolumes);
+	}
+
+	private void setVolumeDataBuffer(Volume pVolume)
+	{
 		final int lChannelID = pVolume.getChannelID();
 		final String lChannelName = pVolume.getChannelName();
 		mSeenChannelIdToNameMap.put(lChannelID, lChannelName);
@@ -113,17 +140,14 @@ public class ClearVolumeRendererSink extends RelaySinkAdapter	implements
 
 		mClearVolumeRendererInterface.setVolumeDataBuffer(	lRenderLayer,
 															pVolume);
+	}
 
+	private void display()
+	{
 		mClearVolumeRendererInterface.requestDisplay();
 
 		mClearVolumeRendererInterface.waitToFinishAllDataBufferCopy(mWaitForCopyTimeout,
 																	mTimeUnit);
-
-		if (getRelaySink() != null)
-			getRelaySink().sendVolume(pVolume);
-		else
-			pVolume.makeAvailableToManager();/**/
-
 	}
 
 	private void createRenderer(NativeTypeEnum pNativeTypeEnum,
@@ -0,0 +1,214 @@
+package clearvolume.volume.sink.seek;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import clearvolume.ClearVolumeCloseable;
+import clearvolume.utils.LatencyHistogram;
+
+/**
+ * Runs the seeks of a sink one at a time on its own thread. Seeks requested
+ * while one is pending replace it, so that dragging a slider only leads to
+ * seeking to where it is now, and a running seek can tell with isSuperseded()
+ * that a newer one is waiting and stop early. The latency of a seek goes from
+ * its request to its end, cancelled or not.
+ */
+public class SeekScheduler implements ClearVolumeCloseable
+{
+	private final String mName;
+	private final Object mLock = new Object();
+
+	private Runnable mPendingSeek;
+	private long mPendingRequestNanos;
+	private volatile long mLatestGeneration;
+	private volatile long mRunningGeneration;
+
+	private final LatencyHistogram mSeekLatency = new LatencyHistogram();
+	private final AtomicLong mNumberOfRequestedSeeks = new AtomicLong();
+	private final AtomicLong mNumberOfCoalescedSeeks = new AtomicLong();
+	private final AtomicLong mNumberOfCancelledSeeks = new AtomicLong();
+
+	private Thread mSeekThread;
+	private volatile boolean mStopSignal;
+
+	/**
+	 * @param pName
+	 *            name of the seek thread
+	 */
+	public SeekScheduler(String pName)
+	{
+		super();
+		mName = pName;
+	}
+
+	/**
+	 * Schedules a seek, replacing the pending one if any. The seek thread is
+	 * started on the first seek.
+	 *
+	 * @param pSeek
+	 *            seek
+	 */
+	public void seek(Runnable pSeek)
+	{
+		mNumberOfRequestedSeeks.incrementAndGet();
+		synchronized (mLock)
+		{
+			if (mStopSignal)
+				return;
+			if (mPendingSeek != null)
+				mNumberOfCoalescedSeeks.incrementAndGet();
+			mPendingSeek = pSeek;
+			mPendingRequestNanos = System.nanoTime();
+			mLatestGeneration++;
+			if (mSeekThread == null)
+				startSeekThread();
+			mLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Marks the running seek, if any, as superseded without scheduling a new
+	 * one, e.g. when the position is set directly.
+	 */
+	public void cancel()
+	{
+		synchronized (mLock)
+		{
+			if (mPendingSeek != null)
+				mNumberOfCoalescedSeeks.incrementAndGet();
+			mPendingSeek = null;
+			mLatestGeneration++;
+		}
+	}
+
+	/**
+	 * @return true if called from a seek for which a newer seek was requested
+	 *         or that was cancelled: the seek should stop
+	 */
+	public boolean isSuperseded()
+	{
+		return mRunningGeneration != mLatestGeneration;
+	}
+
+	private void startSeekThread()
+	{
+		final Runnable lRunnable = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				while (!mStopSignal)
+				{
+					try
+					{
+						runNextSeek();
+					}
+					catch (final InterruptedException e)
+					{
+					}
+					catch (final Throwable e)
+					{
+						e.printStackTrace();
+					}
+				}
+			}
+		};
+		mSeekThread = new Thread(lRunnable, mName);
+		mSeekThread.setDaemon(true);
+		mSeekThread.start();
+	}
+
+	private void runNextSeek() throws InterruptedException
+	{
+		final Runnable lSeek;
+		final long lRequestNanos;
+		synchronized (mLock)
+		{
+			while (mPendingSeek == null && !mStopSignal)
+				mLock.wait(100);
+			if (mPendingSeek == null)
+				return;
+			lSeek = mPendingSeek;
+			lRequestNanos = mPendingRequestNanos;
+			mPendingSeek = null;
+			mRunningGeneration = mLatestGeneration;
+		}
+
+		try
+		{
+			lSeek.run();
+		}
+		finally
+		{
+			if (isSuperseded())
+				mNumberOfCancelledSeeks.incrementAndGet();
+			mSeekLatency.record(System.nanoTime() - lRequestNanos);
+		}
+	}
+
+	/**
+	 * @return time from request to end of the seeks run
+	 */
+	public LatencyHistogram getSeekLatency()
+	{
+		return mSeekLatency;
+	}
+
+	public long getNumberOfRequestedSeeks()
+	{
+		return mNumberOfRequestedSeeks.get();
+	}
+
+	/**
+	 * @return seeks replaced by a newer one before they started
+	 */
+	public long getNumberOfCoalescedSeeks()
+	{
+		return mNumberOfCoalescedSeeks.get();
+	}
+
+	/**
+	 * @return seeks superseded while running
+	 */
+	public long getNumberOfCancelledSeeks()
+	{
+		return mNumberOfCancelledSeeks.get();
+	}
+
+	/**
+	 * Drops the pending seek and waits for the running one to end.
+	 */
+	@Override
+	public void close()
+	{
+		final Thread lSeekThread;
+		synchronized (mLock)
+		{
+			mStopSignal = true;
+			mPendingSeek = null;
+			mLatestGeneration++;
+			lSeekThread = mSeekThread;
+			mLock.notifyAll();
+		}
+		if (lSeekThread != null && lSeekThread != Thread.currentThread())
+			try
+			{
+				lSeekThread.join();
+			}
+			catch (final InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format(	"SeekScheduler [mName=%s, mRequested=%d, mCoalesced=%d, mCancelled=%d, mLatency=%s]",
+								mName,
+								getNumberOfRequestedSeeks(),
+								getNumberOfCoalescedSeeks(),
+								getNumberOfCancelledSeeks(),
+								mSeekLatency);
+	}
+
+}
@@ -0,0 +1,71 @@
+package clearvolume.volume.sink.seek.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import clearvolume.volume.sink.seek.SeekScheduler;
+
+public class SeekSchedulerTests
+{
+
+	@Test
+	public void testCoalescing() throws InterruptedException
+	{
+		final SeekScheduler lSeekScheduler = new SeekScheduler("SeekSchedulerTests");
+		final CountDownLatch lStarted = new CountDownLatch(1);
+		final CountDownLatch lProceed = new CountDownLatch(1);
+		final AtomicBoolean lSuperseded = new AtomicBoolean();
+		lSeekScheduler.seek(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				lStarted.countDown();
+				try
+				{
+					lProceed.await();
+				}
+				catch (final InterruptedException e)
+				{
+				}
+				lSuperseded.set(lSeekScheduler.isSuperseded());
+			}
+		});
+		assertTrue(lStarted.await(10, TimeUnit.SECONDS));
+
+		// while the first seek runs, only the last of these is kept:
+		final AtomicInteger lLastTarget = new AtomicInteger(-1);
+		final CountDownLatch lDone = new CountDownLatch(1);
+		for (int i = 0; i < 10; i++)
+		{
+			final int lTarget = i;
+			lSeekScheduler.seek(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					lLastTarget.set(lTarget);
+					lDone.countDown();
+				}
+			});
+		}
+		lProceed.countDown();
+		assertTrue(lDone.await(10, TimeUnit.SECONDS));
+
+		assertTrue(lSuperseded.get());
+		assertEquals(9, lLastTarget.get());
+		assertEquals(11, lSeekScheduler.getNumberOfRequestedSeeks());
+		assertEquals(9, lSeekScheduler.getNumberOfCoalescedSeeks());
+		assertEquals(1, lSeekScheduler.getNumberOfCancelledSeeks());
+		lSeekScheduler.close();
+		assertEquals(2, lSeekScheduler.getSeekLatency().getCount());
+	}
+
+}
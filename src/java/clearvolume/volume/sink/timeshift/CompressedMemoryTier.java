@@ -0,0 +1,904 @@
+package clearvolume.volume.sink.timeshift;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import clearvolume.network.serialization.ClearVolumeSerialization;
+import clearvolume.network.serialization.FrameCompression;
+import clearvolume.network.serialization.SerializedFrame;
+import clearvolume.network.serialization.SerializedFramePool;
+import clearvolume.network.serialization.StripedTransport;
+import clearvolume.utils.LatencyHistogram;
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+
+/**
+ * Tier of the time shifting history between the VolumeCache and the disk:
+ * volumes evicted from the cache are compressed by a pool of worker threads,
+ * losslessly and with the bytes of multi-byte voxels shuffled (see
+ * FrameCompression), and kept as off-heap blobs within a budget in bytes.
+ * Blobs are decompressed on request on the tier's loading thread, and stay in
+ * the tier. When over budget, the blobs that came in first go out first, to
+ * the overflow tier if any, still compressed.
+ *
+ * Evicted volumes are only copied on the calling thread. When the workers
+ * can't keep up, they go straight to the overflow tier, or are dropped.
+ *
+ * With a key frame interval above one, the volumes of a channel are encoded
+ * as they arrive: every Nth one as a key frame, the others as the XOR of
+ * their data with that of their predecessor, which is mostly zeros for slowly
+ * evolving samples and deflates to almost nothing. Decompressing such a
+ * volume goes back to its key frame and applies the deltas from there. A key
+ * frame and its deltas make a group, the budget evicts whole groups.
+ */
+public class CompressedMemoryTier implements
+									VolumeTierInterface,
+									VolumeEvictionListener
+{
+	public static final int cDefaultCompressionLevel = 1;
+	private static final int cMaxPendingCompressions = 16;
+	private static final int cMaxPendingLoads = 8;
+	private static final int cMaxPendingPrefetches = 64;
+
+	private static class Blob
+	{
+		private final ByteBuffer mFrameBuffer;
+		private final int mChannelID;
+		private final long mTimeIndex;
+		// time point the blob is a delta against, -1 for a key frame:
+		private final long mReferenceTimeIndex;
+		private final Group mGroup;
+
+		private Blob(	ByteBuffer pFrameBuffer,
+						int pChannelID,
+						long pTimeIndex,
+						long pReferenceTimeIndex,
+						Group pGroup)
+		{
+			mFrameBuffer = pFrameBuffer;
+			mChannelID = pChannelID;
+			mTimeIndex = pTimeIndex;
+			mReferenceTimeIndex = pReferenceTimeIndex;
+			mGroup = pGroup;
+		}
+	}
+
+	// key frame and its deltas, guarded by mGroups:
+	private static class Group
+	{
+		private final ArrayList<Blob> mBlobs = new ArrayList<>();
+		private boolean mQueued;
+		private volatile boolean mEvicted;
+	}
+
+	// delta encoding state of a channel, guarded by itself:
+	private static class ChannelEncoder
+	{
+		private SerializedFrame mPreviousFrame;
+		private Group mGroup;
+		private int mNumberOfDeltas;
+		private final HashSet<Long> mPendingTimeIndices = new HashSet<>();
+	}
+
+	private final int mNumberOfThreads;
+	private final int mCompressionLevel;
+	private volatile long mBudgetInBytes;
+	private volatile int mKeyFrameInterval = 1;
+
+	private final ConcurrentHashMap<Integer, ConcurrentSkipListMap<Long, Blob>> mTimeLines = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Integer, ChannelEncoder> mChannelEncoders = new ConcurrentHashMap<>();
+	// groups in the order they came in, guarded by itself:
+	private final ArrayDeque<Group> mGroups = new ArrayDeque<>();
+	private volatile long mUsedBytes;
+	private volatile int mNumberOfBlobs;
+
+	private final SerializedFramePool mRawFramePool = new SerializedFramePool(cMaxPendingCompressions);
+	private final SerializedFramePool mCompressedFramePool = new SerializedFramePool(cMaxPendingCompressions);
+	// decompressed volumes go back to it once evicted from the VolumeCache:
+	private final VolumeManager mVolumeManager = new VolumeManager(cMaxPendingPrefetches);
+	private ThreadPoolExecutor mCompressionExecutor;
+	private final ArrayDeque<long[]> mPendingLoads = new ArrayDeque<>();
+	private final ArrayDeque<long[]> mPendingPrefetches = new ArrayDeque<>();
+	private volatile VolumeLoadListener mVolumeLoadListener;
+	private volatile DiskSpillTier mOverflowTier;
+
+	private final AtomicLong mNumberOfCompressedVolumes = new AtomicLong();
+	private final AtomicLong mNumberOfDeltas = new AtomicLong();
+	private final AtomicLong mNumberOfDroppedVolumes = new AtomicLong();
+	private final AtomicLong mNumberOfOverflownVolumes = new AtomicLong();
+	private final AtomicLong mNumberOfLoadedVolumes = new AtomicLong();
+	private final AtomicLong mNumberOfPrefetchedVolumes = new AtomicLong();
+	private final AtomicLong mNumberOfRawBytes = new AtomicLong();
+	private final AtomicLong mNumberOfCompressedBytes = new AtomicLong();
+	private final LatencyHistogram mCompressionLatency = new LatencyHistogram();
+	private final LatencyHistogram mDecompressionLatency = new LatencyHistogram();
+
+	private Thread mLoadThread;
+	private volatile boolean mStopSignal;
+
+	/**
+	 * @param pBudgetInBytes
+	 *            max bytes of compressed volumes kept
+	 * @param pNumberOfThreads
+	 *            number of compression threads
+	 * @param pCompressionLevel
+	 *            deflate level from 1 (fastest) to 9 (smallest)
+	 */
+	public CompressedMemoryTier(long pBudgetInBytes,
+								int pNumberOfThreads,
+								int pCompressionLevel)
+	{
+		super();
+		mBudgetInBytes = pBudgetInBytes;
+		mNumberOfThreads = Math.max(1, pNumberOfThreads);
+		mCompressionLevel = pCompressionLevel;
+	}
+
+	/**
+	 * Blobs going over budget are handed to the given tier, and volumes the
+	 * workers can't take go to it uncompressed.
+	 *
+	 * @param pOverflowTier
+	 *            disk spill tier, or null to drop them
+	 */
+	public void setOverflowTier(DiskSpillTier pOverflowTier)
+	{
+		mOverflowTier = pOverflowTier;
+	}
+
+	public DiskSpillTier getOverflowTier()
+	{
+		return mOverflowTier;
+	}
+
+	/**
+	 * @param pKeyFrameInterval
+	 *            one volume in that many is a key frame, the others are
+	 *            deltas: 1 for key frames only, the default. Above one,
+	 *            volumes must be handed to volumeArrived() as they arrive.
+	 */
+	public void setKeyFrameInterval(int pKeyFrameInterval)
+	{
+		mKeyFrameInterval = Math.max(1, pKeyFrameInterval);
+	}
+
+	public int getKeyFrameInterval()
+	{
+		return mKeyFrameInterval;
+	}
+
+	@Override
+	public void setVolumeLoadListener(VolumeLoadListener pVolumeLoadListener)
+	{
+		mVolumeLoadListener = pVolumeLoadListener;
+	}
+
+	public boolean start()
+	{
+		final AtomicInteger lThreadCounter = new AtomicInteger();
+		mCompressionExecutor = new ThreadPoolExecutor(	mNumberOfThreads,
+														mNumberOfThreads,
+														0,
+														TimeUnit.MILLISECONDS,
+														new ArrayBlockingQueue<Runnable>(cMaxPendingCompressions),
+														new ThreadFactory()
+														{
+															@Override
+															public Thread newThread(Runnable pRunnable)
+															{
+																final Thread lThread = new Thread(	pRunnable,
+																									CompressedMemoryTier.class.getSimpleName() + "CompressionThread"
+																											+ lThreadCounter.getAndIncrement());
+																lThread.setDaemon(true);
+																return lThread;
+															}
+														});
+
+		final Runnable lLoadRunnable = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				runLoads();
+			}
+		};
+		mLoadThread = new Thread(	lLoadRunnable,
+									CompressedMemoryTier.class.getSimpleName() + "LoadThread");
+		mLoadThread.setDaemon(true);
+		mLoadThread.start();
+		return true;
+	}
+
+	@Override
+	public void volumeEvicted(VolumeCache pVolumeCache, Volume pVolume)
+	{
+		compress(pVolume);
+	}
+
+	/**
+	 * Encodes an arriving volume against the previous one of its channel, when
+	 * delta encoding is on. Volumes the workers can't take are left to the
+	 * eviction from the cache.
+	 *
+	 * @param pVolume
+	 *            volume, can be reused as soon as this method returns
+	 * @return true if queued
+	 */
+	public boolean volumeArrived(Volume pVolume)
+	{
+		return mKeyFrameInterval > 1 && queue(pVolume, true);
+	}
+
+	/**
+	 * Copies a volume and queues it for compression, unless it is already
+	 * held. The volume can be reused as soon as this method returns.
+	 *
+	 * @param pVolume
+	 *            volume
+	 * @return true if queued
+	 */
+	public boolean compress(Volume pVolume)
+	{
+		return queue(pVolume, false);
+	}
+
+	private boolean queue(Volume pVolume, boolean pArrived)
+	{
+		final ThreadPoolExecutor lCompressionExecutor = mCompressionExecutor;
+		final int lChannelID = pVolume.getChannelID();
+		final long lTimeIndex = pVolume.getTimeIndex();
+		if (mStopSignal || lCompressionExecutor == null
+			|| contains(lChannelID, lTimeIndex))
+			return false;
+
+		final ChannelEncoder lChannelEncoder = getChannelEncoder(lChannelID);
+		synchronized (lChannelEncoder)
+		{
+			if (lChannelEncoder.mPendingTimeIndices.contains(lTimeIndex))
+				return false;
+
+			final SerializedFrame lRawFrame = mRawFramePool.serialize(pVolume);
+			final SerializedFrame lPreviousFrame = lChannelEncoder.mPreviousFrame;
+			// evicted volumes, and those older than the previous one, are key
+			// frames outside of the sequence:
+			final boolean lInSequence = pArrived && (lPreviousFrame == null || lTimeIndex > lPreviousFrame.getTimeIndex());
+			final boolean lDelta = lInSequence && lPreviousFrame != null
+									&& lChannelEncoder.mNumberOfDeltas < mKeyFrameInterval - 1
+									&& !lChannelEncoder.mGroup.mEvicted
+									&& getDataLength(lPreviousFrame) == getDataLength(lRawFrame);
+			final SerializedFrame lReferenceFrame = lDelta ? lPreviousFrame.retain()
+															: null;
+			final Group lGroup = lDelta ? lChannelEncoder.mGroup : new Group();
+			final int lBytesPerVoxel = pVolume.getBytesPerVoxel();
+			// retained before the worker may release it:
+			if (lInSequence)
+				lRawFrame.retain();
+			try
+			{
+				lCompressionExecutor.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						compressAndStore(	lChannelEncoder,
+											lRawFrame,
+											lReferenceFrame,
+											lGroup,
+											lBytesPerVoxel);
+					}
+				});
+			}
+			catch (final RejectedExecutionException e)
+			{
+				lRawFrame.release();
+				if (lInSequence)
+					lRawFrame.release();
+				if (lReferenceFrame != null)
+					lReferenceFrame.release();
+				if (pArrived)
+					return false;
+				final DiskSpillTier lOverflowTier = mOverflowTier;
+				if (lOverflowTier != null && lOverflowTier.spill(pVolume))
+					mNumberOfOverflownVolumes.incrementAndGet();
+				else
+					mNumberOfDroppedVolumes.incrementAndGet();
+				return false;
+			}
+
+			lChannelEncoder.mPendingTimeIndices.add(lTimeIndex);
+			if (lInSequence)
+			{
+				if (lPreviousFrame != null)
+					lPreviousFrame.release();
+				lChannelEncoder.mPreviousFrame = lRawFrame;
+				lChannelEncoder.mGroup = lGroup;
+				lChannelEncoder.mNumberOfDeltas = lDelta ? lChannelEncoder.mNumberOfDeltas + 1
+															: 0;
+			}
+			return true;
+		}
+	}
+
+	private ChannelEncoder getChannelEncoder(int pChannelID)
+	{
+		ChannelEncoder lChannelEncoder = mChannelEncoders.get(pChannelID);
+		if (lChannelEncoder == null)
+		{
+			final ChannelEncoder lNewChannelEncoder = new ChannelEncoder();
+			lChannelEncoder = mChannelEncoders.putIfAbsent(	pChannelID,
+															lNewChannelEncoder);
+			if (lChannelEncoder == null)
+				lChannelEncoder = lNewChannelEncoder;
+		}
+		return lChannelEncoder;
+	}
+
+	private static int getDataLength(SerializedFrame pSerializedFrame)
+	{
+		final ByteBuffer lFrameBuffer = pSerializedFrame.duplicate();
+		return lFrameBuffer.limit() - StripedTransport.getDataOffset(lFrameBuffer);
+	}
+
+	private void compressAndStore(	ChannelEncoder pChannelEncoder,
+									SerializedFrame pRawFrame,
+									SerializedFrame pReferenceFrame,
+									Group pGroup,
+									int pBytesPerVoxel)
+	{
+		final long lStartNanos = System.nanoTime();
+		final int lRawLength = pRawFrame.getLength();
+		final long lTimeIndex = pRawFrame.getTimeIndex();
+		try
+		{
+			final SerializedFrame lInputFrame = pReferenceFrame == null	? pRawFrame.retain()
+																		: newDeltaFrame(pRawFrame,
+																						pReferenceFrame);
+			final SerializedFrame lFrame;
+			try
+			{
+				lFrame = FrameCompression.get().compress(	lInputFrame,
+															mCompressionLevel,
+															pBytesPerVoxel,
+															mCompressedFramePool);
+			}
+			finally
+			{
+				lInputFrame.release();
+			}
+
+			final Blob lBlob;
+			try
+			{
+				// blobs are allocated to size, pooled buffers only grow:
+				final ByteBuffer lFrameBuffer = lFrame.duplicate();
+				final ByteBuffer lBlobBuffer = ByteBuffer.allocateDirect(lFrameBuffer.remaining())
+															.order(ByteOrder.nativeOrder());
+				lBlobBuffer.put(lFrameBuffer);
+				lBlobBuffer.flip();
+				lBlob = new Blob(	lBlobBuffer,
+									pRawFrame.getChannelID(),
+									lTimeIndex,
+									pReferenceFrame == null	? -1
+															: pReferenceFrame.getTimeIndex(),
+									pGroup);
+			}
+			finally
+			{
+				lFrame.release();
+			}
+
+			mCompressionLatency.record(System.nanoTime() - lStartNanos);
+			mNumberOfCompressedVolumes.incrementAndGet();
+			if (pReferenceFrame != null)
+				mNumberOfDeltas.incrementAndGet();
+			mNumberOfRawBytes.addAndGet(lRawLength);
+			mNumberOfCompressedBytes.addAndGet(lBlob.mFrameBuffer.limit());
+			store(lBlob);
+		}
+		finally
+		{
+			pRawFrame.release();
+			if (pReferenceFrame != null)
+				pReferenceFrame.release();
+			synchronized (pChannelEncoder)
+			{
+				pChannelEncoder.mPendingTimeIndices.remove(lTimeIndex);
+			}
+		}
+	}
+
+	private SerializedFrame newDeltaFrame(	SerializedFrame pRawFrame,
+											SerializedFrame pReferenceFrame)
+	{
+		final SerializedFrame lDeltaFrame = mRawFramePool.acquire(pRawFrame.getLength());
+		final ByteBuffer lDeltaBuffer = lDeltaFrame.getByteBuffer();
+		lDeltaBuffer.put(pRawFrame.duplicate());
+		lDeltaBuffer.flip();
+		lDeltaFrame.setStreamID(pRawFrame.getStreamID());
+		lDeltaFrame.setChannelID(pRawFrame.getChannelID());
+		lDeltaFrame.setTimeIndex(pRawFrame.getTimeIndex());
+		lDeltaFrame.setTimeInSeconds(pRawFrame.getTimeInSeconds());
+
+		final ByteBuffer lReferenceBuffer = pReferenceFrame.duplicate();
+		final int lDataOffset = StripedTransport.getDataOffset(lDeltaBuffer);
+		xor(lReferenceBuffer,
+			StripedTransport.getDataOffset(lReferenceBuffer),
+			lDeltaBuffer,
+			lDataOffset,
+			lDeltaBuffer.limit() - lDataOffset);
+		return lDeltaFrame;
+	}
+
+	/**
+	 * XORs bytes of the source into the destination, at absolute offsets.
+	 */
+	private static void xor(ByteBuffer pSource,
+							int pSourceOffset,
+							ByteBuffer pDestination,
+							int pDestinationOffset,
+							int pLength)
+	{
+		int i = 0;
+		for (; i + 8 <= pLength; i += 8)
+			pDestination.putLong(	pDestinationOffset + i,
+									pDestination.getLong(pDestinationOffset + i) ^ pSource.getLong(pSourceOffset + i));
+		for (; i < pLength; i++)
+			pDestination.put(	pDestinationOffset + i,
+								(byte) (pDestination.get(pDestinationOffset + i) ^ pSource.get(pSourceOffset + i)));
+	}
+
+	private void store(Blob pBlob)
+	{
+		final List<Group> lOverflownGroups = new ArrayList<>();
+		synchronized (mGroups)
+		{
+			// deltas of a group evicted meanwhile have nothing to apply to:
+			if (mStopSignal || pBlob.mGroup.mEvicted)
+				return;
+			final Blob lReplacedBlob = getTimeLine(pBlob.mChannelID).put(	pBlob.mTimeIndex,
+																			pBlob);
+			if (lReplacedBlob != null)
+				removeFromGroup(lReplacedBlob);
+			pBlob.mGroup.mBlobs.add(pBlob);
+			if (!pBlob.mGroup.mQueued)
+			{
+				pBlob.mGroup.mQueued = true;
+				mGroups.addLast(pBlob.mGroup);
+			}
+			mUsedBytes += pBlob.mFrameBuffer.limit();
+			mNumberOfBlobs++;
+
+			while (mUsedBytes > mBudgetInBytes && !mGroups.isEmpty())
+			{
+				final Group lOldestGroup = mGroups.pollFirst();
+				lOldestGroup.mEvicted = true;
+				for (final Blob lBlob : lOldestGroup.mBlobs)
+				{
+					getTimeLine(lBlob.mChannelID).remove(lBlob.mTimeIndex, lBlob);
+					mUsedBytes -= lBlob.mFrameBuffer.limit();
+					mNumberOfBlobs--;
+				}
+				lOverflownGroups.add(lOldestGroup);
+			}
+		}
+
+		final DiskSpillTier lOverflowTier = mOverflowTier;
+		if (lOverflowTier != null)
+			for (final Group lGroup : lOverflownGroups)
+				overflow(lGroup, lOverflowTier);
+	}
+
+	private void removeFromGroup(Blob pBlob)
+	{
+		final Group lGroup = pBlob.mGroup;
+		if (!lGroup.mBlobs.remove(pBlob))
+			return;
+		mUsedBytes -= pBlob.mFrameBuffer.limit();
+		mNumberOfBlobs--;
+		if (lGroup.mBlobs.isEmpty() && lGroup.mQueued)
+		{
+			mGroups.remove(lGroup);
+			lGroup.mQueued = false;
+		}
+	}
+
+	private void overflow(Group pGroup, DiskSpillTier pOverflowTier)
+	{
+		// key frames go as they are, deltas are applied first, in time order
+		// as the workers may have stored them in any order:
+		final ArrayList<Blob> lBlobs = new ArrayList<>(pGroup.mBlobs);
+		Collections.sort(lBlobs, new Comparator<Blob>()
+		{
+			@Override
+			public int compare(Blob pBlob1, Blob pBlob2)
+			{
+				return Long.compare(pBlob1.mTimeIndex, pBlob2.mTimeIndex);
+			}
+		});
+
+		Volume lPreviousVolume = null;
+		Volume lScratchVolume = null;
+		for (final Blob lBlob : lBlobs)
+		{
+			boolean lSpilled = false;
+			if (lBlob.mReferenceTimeIndex < 0)
+			{
+				lSpilled = pOverflowTier.spill(	lBlob.mFrameBuffer,
+												lBlob.mChannelID,
+												lBlob.mTimeIndex);
+				if (lBlobs.size() > 1)
+				{
+					final Volume lVolume = decode(	lBlob,
+													lScratchVolume == null	? DiskSpillTier.requestVolume(mVolumeManager)
+																			: lScratchVolume,
+													null);
+					lScratchVolume = lPreviousVolume;
+					lPreviousVolume = lVolume;
+				}
+			}
+			else if (lPreviousVolume != null && lPreviousVolume.getTimeIndex() == lBlob.mReferenceTimeIndex)
+			{
+				final Volume lVolume = decode(	lBlob,
+												lScratchVolume == null	? DiskSpillTier.requestVolume(mVolumeManager)
+																		: lScratchVolume,
+												lPreviousVolume);
+				lSpilled = pOverflowTier.spill(lVolume);
+				lScratchVolume = lPreviousVolume;
+				lPreviousVolume = lVolume;
+			}
+
+			if (lSpilled)
+				mNumberOfOverflownVolumes.incrementAndGet();
+			else
+				mNumberOfDroppedVolumes.incrementAndGet();
+		}
+		// spilling copies the volumes:
+		if (lPreviousVolume != null)
+			lPreviousVolume.makeAvailableToManager();
+		if (lScratchVolume != null)
+			lScratchVolume.makeAvailableToManager();
+	}
+
+	private ConcurrentSkipListMap<Long, Blob> getTimeLine(int pChannelID)
+	{
+		ConcurrentSkipListMap<Long, Blob> lTimeLine = mTimeLines.get(pChannelID);
+		if (lTimeLine == null)
+		{
+			final ConcurrentSkipListMap<Long, Blob> lNewTimeLine = new ConcurrentSkipListMap<>();
+			lTimeLine = mTimeLines.putIfAbsent(pChannelID, lNewTimeLine);
+			if (lTimeLine == null)
+				lTimeLine = lNewTimeLine;
+		}
+		return lTimeLine;
+	}
+
+	@Override
+	public boolean contains(int pChannelID, long pTimeIndex)
+	{
+		final ConcurrentSkipListMap<Long, Blob> lTimeLine = mTimeLines.get(pChannelID);
+		return lTimeLine != null && lTimeLine.containsKey(pTimeIndex);
+	}
+
+	@Override
+	public long getFloorTimeIndex(int pChannelID, long pTimeIndex)
+	{
+		final ConcurrentSkipListMap<Long, Blob> lTimeLine = mTimeLines.get(pChannelID);
+		if (lTimeLine == null)
+			return -1;
+		final Long lFloorTimeIndex = lTimeLine.floorKey(pTimeIndex);
+		return lFloorTimeIndex == null ? -1 : lFloorTimeIndex;
+	}
+
+	@Override
+	public long getOldestTimeIndex()
+	{
+		long lOldestTimeIndex = -1;
+		for (final ConcurrentSkipListMap<Long, Blob> lTimeLine : mTimeLines.values())
+		{
+			final Map.Entry<Long, Blob> lFirstEntry = lTimeLine.firstEntry();
+			if (lFirstEntry != null && (lOldestTimeIndex < 0 || lFirstEntry.getKey() < lOldestTimeIndex))
+				lOldestTimeIndex = lFirstEntry.getKey();
+		}
+		return lOldestTimeIndex;
+	}
+
+	@Override
+	public void requestLoad(int pChannelID, long pTimeIndex)
+	{
+		synchronized (mPendingLoads)
+		{
+			for (final long[] lPendingLoad : mPendingLoads)
+				if (lPendingLoad[0] == pChannelID && lPendingLoad[1] == pTimeIndex)
+					return;
+			if (mPendingLoads.size() >= cMaxPendingLoads)
+				mPendingLoads.pollFirst();
+			mPendingLoads.addLast(new long[]
+			{ pChannelID, pTimeIndex });
+			mPendingLoads.notifyAll();
+		}
+	}
+
+	@Override
+	public void setPrefetches(int[] pChannelIDs, long[] pTimeIndices, int pLength)
+	{
+		synchronized (mPendingLoads)
+		{
+			mPendingPrefetches.clear();
+			for (int i = 0; i < Math.min(pLength, cMaxPendingPrefetches); i++)
+				mPendingPrefetches.addLast(new long[]
+				{ pChannelIDs[i], pTimeIndices[i] });
+			mPendingLoads.notifyAll();
+		}
+	}
+
+	private void runLoads()
+	{
+		while (!mStopSignal)
+		{
+			try
+			{
+				final long[] lPendingLoad;
+				final boolean lPrefetch;
+				synchronized (mPendingLoads)
+				{
+					long[] lNextLoad = mPendingLoads.pollLast();
+					lPrefetch = lNextLoad == null;
+					if (lPrefetch)
+						lNextLoad = mPendingPrefetches.pollFirst();
+					if (lNextLoad == null)
+					{
+						mPendingLoads.wait(10);
+						continue;
+					}
+					lPendingLoad = lNextLoad;
+				}
+
+				final Volume lVolume = decompress(	(int) lPendingLoad[0],
+													lPendingLoad[1]);
+				final VolumeLoadListener lVolumeLoadListener = mVolumeLoadListener;
+				if (lVolume != null && lVolumeLoadListener != null)
+				{
+					mNumberOfLoadedVolumes.incrementAndGet();
+					if (lPrefetch)
+						mNumberOfPrefetchedVolumes.incrementAndGet();
+					lVolumeLoadListener.volumeLoaded(this, lVolume);
+				}
+			}
+			catch (final InterruptedException e)
+			{
+			}
+			catch (final Throwable e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Decompresses a volume held by this tier, which keeps its blob. Deltas
+	 * are applied to their key frame up to the volume.
+	 *
+	 * @param pChannelID
+	 *            channel
+	 * @param pTimeIndex
+	 *            time point index
+	 * @return volume from the tier's manager, or null if not held
+	 */
+	public Volume decompress(int pChannelID, long pTimeIndex)
+	{
+		final ConcurrentSkipListMap<Long, Blob> lTimeLine = mTimeLines.get(pChannelID);
+		Blob lBlob = lTimeLine == null ? null : lTimeLine.get(pTimeIndex);
+		if (lBlob == null)
+			return null;
+
+		final long lStartNanos = System.nanoTime();
+		final ArrayList<Blob> lChain = new ArrayList<>();
+		lChain.add(lBlob);
+		while (lBlob.mReferenceTimeIndex >= 0)
+		{
+			// missing, e.g. a delta stored before the blob it refers to:
+			lBlob = lTimeLine.get(lBlob.mReferenceTimeIndex);
+			if (lBlob == null)
+				return null;
+			lChain.add(lBlob);
+		}
+
+		Volume lVolume = null;
+		Volume lScratchVolume = null;
+		for (int i = lChain.size() - 1; i >= 0; i--)
+		{
+			final Volume lNextVolume = decode(	lChain.get(i),
+												lScratchVolume == null	? DiskSpillTier.requestVolume(mVolumeManager)
+																		: lScratchVolume,
+												lVolume);
+			lScratchVolume = lVolume;
+			lVolume = lNextVolume;
+		}
+		if (lScratchVolume != null)
+			lScratchVolume.makeAvailableToManager();
+		mDecompressionLatency.record(System.nanoTime() - lStartNanos);
+		return lVolume;
+	}
+
+	private static Volume decode(	Blob pBlob,
+									Volume pVolume,
+									Volume pReferenceVolume)
+	{
+		final ByteBuffer lFrameBuffer = pBlob.mFrameBuffer.duplicate()
+															.order(ByteOrder.nativeOrder());
+		ClearVolumeSerialization.deserialize(lFrameBuffer, pVolume);
+		if (pReferenceVolume != null)
+			xor(pReferenceVolume.getDataBuffer(),
+				0,
+				pVolume.getDataBuffer(),
+				0,
+				pVolume.getDataBuffer().capacity());
+		return pVolume;
+	}
+
+	/**
+	 * @param pBudgetInBytes
+	 *            max bytes of compressed volumes kept, applies from the next
+	 *            volume compressed on
+	 */
+	public void setBudget(long pBudgetInBytes)
+	{
+		mBudgetInBytes = pBudgetInBytes;
+	}
+
+	public long getBudget()
+	{
+		return mBudgetInBytes;
+	}
+
+	/**
+	 * @return bytes of the blobs held
+	 */
+	public long getUsedBytes()
+	{
+		return mUsedBytes;
+	}
+
+	public int getNumberOfVolumes()
+	{
+		return mNumberOfBlobs;
+	}
+
+	/**
+	 * @return serialized bytes over compressed bytes of all volumes compressed
+	 *         so far, 0 if none
+	 */
+	public double getCompressionRatio()
+	{
+		final long lNumberOfCompressedBytes = mNumberOfCompressedBytes.get();
+		return lNumberOfCompressedBytes == 0 ? 0
+											: (double) mNumberOfRawBytes.get() / lNumberOfCompressedBytes;
+	}
+
+	/**
+	 * @return time taken by the workers to compress a volume
+	 */
+	public LatencyHistogram getCompressionLatency()
+	{
+		return mCompressionLatency;
+	}
+
+	/**
+	 * @return time taken to decompress a volume when seeking or prefetching
+	 */
+	public LatencyHistogram getDecompressionLatency()
+	{
+		return mDecompressionLatency;
+	}
+
+	public long getNumberOfCompressedVolumes()
+	{
+		return mNumberOfCompressedVolumes.get();
+	}
+
+	/**
+	 * @return volumes compressed as deltas, included in the compressed volumes
+	 */
+	public long getNumberOfDeltas()
+	{
+		return mNumberOfDeltas.get();
+	}
+
+	/**
+	 * @return volumes lost because the workers couldn't keep up and there was
+	 *         no overflow tier to take them
+	 */
+	public long getNumberOfDroppedVolumes()
+	{
+		return mNumberOfDroppedVolumes.get();
+	}
+
+	/**
+	 * @return volumes handed to the overflow tier, compressed or not
+	 */
+	public long getNumberOfOverflownVolumes()
+	{
+		return mNumberOfOverflownVolumes.get();
+	}
+
+	public long getNumberOfLoadedVolumes()
+	{
+		return mNumberOfLoadedVolumes.get();
+	}
+
+	/**
+	 * @return volumes decompressed ahead of time, included in the loaded
+	 *         volumes
+	 */
+	public long getNumberOfPrefetchedVolumes()
+	{
+		return mNumberOfPrefetchedVolumes.get();
+	}
+
+	/**
+	 * Stops the threads and drops the blobs, pending compressions are dropped.
+	 */
+	@Override
+	public void close()
+	{
+		mStopSignal = true;
+		try
+		{
+			if (mCompressionExecutor != null)
+			{
+				mCompressionExecutor.shutdownNow();
+				mCompressionExecutor.awaitTermination(1, TimeUnit.SECONDS);
+			}
+			if (mLoadThread != null)
+				mLoadThread.join();
+		}
+		catch (final InterruptedException e)
+		{
+			e.printStackTrace();
+		}
+
+		synchronized (mGroups)
+		{
+			mGroups.clear();
+			mTimeLines.clear();
+			mUsedBytes = 0;
+			mNumberOfBlobs = 0;
+		}
+		mVolumeManager.close();
+		for (final ChannelEncoder lChannelEncoder : mChannelEncoders.values())
+			synchronized (lChannelEncoder)
+			{
+				if (lChannelEncoder.mPreviousFrame != null)
+					lChannelEncoder.mPreviousFrame.release();
+				lChannelEncoder.mPreviousFrame = null;
+			}
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format(	"CompressedMemoryTier [mVolumes=%d, mUsed=%d bytes, mBudget=%d bytes, mCompressionRatio=%.2f, mDecompressionLatency=%s]",
+								getNumberOfVolumes(),
+								getUsedBytes(),
+								getBudget(),
+								getCompressionRatio(),
+								mDecompressionLatency);
+	}
+
+}
@@ -0,0 +1,853 @@
+package clearvolume.volume.sink.timeshift;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import clearvolume.network.serialization.ClearVolumeSerialization;
+import clearvolume.network.serialization.FrameCompression;
+import clearvolume.network.serialization.SerializedFrame;
+import clearvolume.network.serialization.SerializedFramePool;
+import clearvolume.utils.ToIntExact;
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+import clearvolume.volume.sink.record.StreamRecordingIndex;
+import clearvolume.volume.sink.record.StreamRecordingWriter;
+
+/**
+ * Second tier of the time shifting history: volumes evicted from the
+ * VolumeCache are spilled to segment files in a scratch directory, in the
+ * stream recording format (append-only frames with a side index), optionally
+ * compressed. Volumes are read back through memory mapping on request.
+ * Frames compressed by the CompressedMemoryTier are written as they are.
+ *
+ * Evicted volumes are only copied on the calling thread; compression and
+ * writing happen on the tier's spill thread, and reading on its loading
+ * thread. Both queues are bounded: spills are dropped when the spill thread
+ * can't keep up, and the oldest load requests make room for new ones. The
+ * oldest segments are deleted to stay within the disk budget, once the spills
+ * queued for them are written. Segments are kept to a fraction of the budget
+ * so that it holds even for segment lengths beyond it.
+ */
+public class DiskSpillTier implements
+							VolumeTierInterface,
+							VolumeEvictionListener
+{
+	public static final long cDefaultSegmentLength = 1L << 30;
+	private static final String cSegmentFilePrefix = "spill-";
+	private static final String cSegmentFileExtension = ".cvrec";
+	private static final int cMaxPendingSpills = 16;
+	private static final int cMaxPendingLoads = 8;
+	private static final int cMaxPendingPrefetches = 64;
+	private static final int cStagingBufferLength = 4 * 1024 * 1024;
+	private static final long cFlushTimeOutMillis = 1000;
+	private static final int cMinSegmentsPerBudget = 4;
+
+	private static class Segment
+	{
+		private final File mFile;
+		private long mPlannedBytes;
+		private final AtomicInteger mNumberOfPendingSpills = new AtomicInteger();
+		private volatile StreamRecordingWriter mWriter;
+		private FileChannel mReadChannel;
+
+		private Segment(File pFile)
+		{
+			mFile = pFile;
+		}
+	}
+
+	private static class PendingSpill
+	{
+		// raw frame to compress, or frame buffer written as is:
+		private final SerializedFrame mSerializedFrame;
+		private final ByteBuffer mFrameBuffer;
+		private final int mChannelID;
+		private final long mTimeIndex;
+		private final Segment mSegment;
+
+		private PendingSpill(	SerializedFrame pSerializedFrame,
+								ByteBuffer pFrameBuffer,
+								int pChannelID,
+								long pTimeIndex,
+								Segment pSegment)
+		{
+			mSerializedFrame = pSerializedFrame;
+			mFrameBuffer = pFrameBuffer;
+			mChannelID = pChannelID;
+			mTimeIndex = pTimeIndex;
+			mSegment = pSegment;
+		}
+	}
+
+	private final File mDirectory;
+	private final long mMaxBytes;
+	private final int mCompressionLevel;
+	private volatile long mSegmentLength = cDefaultSegmentLength;
+
+	private final ConcurrentHashMap<Integer, ConcurrentSkipListMap<Long, Segment>> mTimeLines = new ConcurrentHashMap<>();
+	private final ArrayDeque<Segment> mSegments = new ArrayDeque<>();
+	// segments out of the history whose files could not be deleted yet, e.g.
+	// still mapped on Windows, guarded by mSegments:
+	private final ArrayList<Segment> mUndeletedSegments = new ArrayList<>();
+	private int mNextSegmentNumber;
+
+	private final SerializedFramePool mSerializedFramePool = new SerializedFramePool(cMaxPendingSpills);
+	// read back volumes go back to it once evicted from the VolumeCache:
+	private final VolumeManager mVolumeManager = new VolumeManager(cMaxPendingPrefetches);
+	private final FrameCompression mFrameCompression = new FrameCompression();
+	private final ArrayBlockingQueue<PendingSpill> mPendingSpills = new ArrayBlockingQueue<>(cMaxPendingSpills);
+	private final AtomicInteger mNumberOfPendingSpills = new AtomicInteger();
+	private final ArrayDeque<long[]> mPendingLoads = new ArrayDeque<>();
+	private final ArrayDeque<long[]> mPendingPrefetches = new ArrayDeque<>();
+	private volatile VolumeLoadListener mVolumeLoadListener;
+
+	private final AtomicLong mNumberOfSpilledVolumes = new AtomicLong();
+	private final AtomicLong mNumberOfDroppedSpills = new AtomicLong();
+	private final AtomicLong mNumberOfLoadedVolumes = new AtomicLong();
+	private final AtomicLong mNumberOfPrefetchedVolumes = new AtomicLong();
+	private final AtomicLong mNumberOfSpilledBytes = new AtomicLong();
+	private final AtomicLong mNumberOfReadErrors = new AtomicLong();
+
+	private Thread mSpillThread;
+	private Thread mLoadThread;
+	private volatile boolean mStopSignal;
+
+	/**
+	 * @param pDirectory
+	 *            scratch directory, created if needed
+	 * @param pMaxBytes
+	 *            disk budget, the oldest segments are deleted beyond it
+	 * @param pCompressionLevel
+	 *            deflate level from 1 to 9, 0 for no compression
+	 */
+	public DiskSpillTier(File pDirectory, long pMaxBytes, int pCompressionLevel)
+	{
+		super();
+		mDirectory = pDirectory;
+		mMaxBytes = pMaxBytes;
+		mCompressionLevel = pCompressionLevel;
+	}
+
+	/**
+	 * @param pSegmentLength
+	 *            bytes after which spills go to a new segment file, capped at a
+	 *            quarter of the disk budget
+	 */
+	public void setSegmentLength(long pSegmentLength)
+	{
+		mSegmentLength = pSegmentLength;
+	}
+
+	@Override
+	public void setVolumeLoadListener(VolumeLoadListener pVolumeLoadListener)
+	{
+		mVolumeLoadListener = pVolumeLoadListener;
+	}
+
+	public boolean start()
+	{
+		if (!mDirectory.isDirectory() && !mDirectory.mkdirs())
+			return false;
+
+		final Runnable lSpillRunnable = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				runSpills();
+			}
+		};
+		mSpillThread = new Thread(	lSpillRunnable,
+									DiskSpillTier.class.getSimpleName() + "SpillThread");
+		mSpillThread.setDaemon(true);
+		mSpillThread.start();
+
+		final Runnable lLoadRunnable = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				runLoads();
+			}
+		};
+		mLoadThread = new Thread(	lLoadRunnable,
+									DiskSpillTier.class.getSimpleName() + "LoadThread");
+		mLoadThread.setDaemon(true);
+		mLoadThread.start();
+		return true;
+	}
+
+	@Override
+	public void volumeEvicted(VolumeCache pVolumeCache, Volume pVolume)
+	{
+		spill(pVolume);
+	}
+
+	/**
+	 * Copies a volume and queues it for spilling, unless it is already on
+	 * disk. The volume can be reused as soon as this method returns.
+	 *
+	 * @param pVolume
+	 *            volume
+	 * @return true if queued
+	 */
+	public boolean spill(Volume pVolume)
+	{
+		if (mStopSignal || contains(pVolume.getChannelID(),
+									pVolume.getTimeIndex()))
+			return false;
+
+		final SerializedFrame lSerializedFrame = mSerializedFramePool.serialize(pVolume);
+		if (!queue(	lSerializedFrame,
+					null,
+					lSerializedFrame.getLength(),
+					pVolume.getChannelID(),
+					pVolume.getTimeIndex()))
+		{
+			lSerializedFrame.release();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Queues a serialized frame for spilling as is, e.g. one already
+	 * compressed, unless its volume is already on disk. The buffer must not be
+	 * modified afterwards.
+	 *
+	 * @param pFrameBuffer
+	 *            serialized frame between position 0 and limit
+	 * @param pChannelID
+	 *            channel of the volume
+	 * @param pTimeIndex
+	 *            time point index of the volume
+	 * @return true if queued
+	 */
+	public boolean spill(ByteBuffer pFrameBuffer, int pChannelID, long pTimeIndex)
+	{
+		if (mStopSignal || contains(pChannelID, pTimeIndex))
+			return false;
+		return queue(	null,
+						pFrameBuffer,
+						pFrameBuffer.limit(),
+						pChannelID,
+						pTimeIndex);
+	}
+
+	private boolean queue(	SerializedFrame pSerializedFrame,
+							ByteBuffer pFrameBuffer,
+							int pLength,
+							int pChannelID,
+							long pTimeIndex)
+	{
+		final long lSegmentLength = Math.max(	1,
+												Math.min(	mSegmentLength,
+															mMaxBytes / cMinSegmentsPerBudget));
+		final Segment lSegment;
+		synchronized (mSegments)
+		{
+			Segment lLastSegment = mSegments.peekLast();
+			if (lLastSegment == null || (lLastSegment.mPlannedBytes > 0 && lLastSegment.mPlannedBytes + pLength > lSegmentLength))
+			{
+				// files are only created by the spill thread:
+				lLastSegment = new Segment(new File(mDirectory,
+													cSegmentFilePrefix + (mNextSegmentNumber++)
+															+ cSegmentFileExtension));
+				mSegments.addLast(lLastSegment);
+			}
+			lSegment = lLastSegment;
+			lSegment.mPlannedBytes += pLength;
+			lSegment.mNumberOfPendingSpills.incrementAndGet();
+		}
+
+		mNumberOfPendingSpills.incrementAndGet();
+		if (!mPendingSpills.offer(new PendingSpill(	pSerializedFrame,
+													pFrameBuffer,
+													pChannelID,
+													pTimeIndex,
+													lSegment)))
+		{
+			lSegment.mNumberOfPendingSpills.decrementAndGet();
+			mNumberOfPendingSpills.decrementAndGet();
+			mNumberOfDroppedSpills.incrementAndGet();
+			return false;
+		}
+		getTimeLine(pChannelID).put(pTimeIndex, lSegment);
+		return true;
+	}
+
+	private ConcurrentSkipListMap<Long, Segment> getTimeLine(int pChannelID)
+	{
+		ConcurrentSkipListMap<Long, Segment> lTimeLine = mTimeLines.get(pChannelID);
+		if (lTimeLine == null)
+		{
+			final ConcurrentSkipListMap<Long, Segment> lNewTimeLine = new ConcurrentSkipListMap<>();
+			lTimeLine = mTimeLines.putIfAbsent(pChannelID, lNewTimeLine);
+			if (lTimeLine == null)
+				lTimeLine = lNewTimeLine;
+		}
+		return lTimeLine;
+	}
+
+	private void runSpills()
+	{
+		Segment lOpenSegment = null;
+		try
+		{
+			while (!mStopSignal || !mPendingSpills.isEmpty())
+			{
+				final PendingSpill lPendingSpill = mPendingSpills.poll(	10,
+																		TimeUnit.MILLISECONDS);
+				if (lPendingSpill == null)
+					continue;
+
+				final SerializedFrame lRawFrame = lPendingSpill.mSerializedFrame;
+				SerializedFrame lFrame = null;
+				if (lRawFrame != null)
+				{
+					lFrame = mCompressionLevel > 0	? mFrameCompression.compress(	lRawFrame,
+																					mCompressionLevel,
+																					mSerializedFramePool)
+													: lRawFrame.retain();
+					lRawFrame.release();
+				}
+				final ByteBuffer lFrameBuffer = lFrame != null	? lFrame.duplicate()
+																: lPendingSpill.mFrameBuffer.duplicate();
+				try
+				{
+					if (lPendingSpill.mSegment != lOpenSegment)
+					{
+						closeWriter(lOpenSegment);
+						lOpenSegment = lPendingSpill.mSegment;
+						openWriter(lOpenSegment);
+					}
+					final int lLength = lFrameBuffer.remaining();
+					if (lOpenSegment.mWriter != null && lOpenSegment.mWriter.writeFrame(lFrameBuffer,
+																						lPendingSpill.mTimeIndex,
+																						lPendingSpill.mChannelID,
+																						cFlushTimeOutMillis,
+																						TimeUnit.MILLISECONDS))
+					{
+						mNumberOfSpilledVolumes.incrementAndGet();
+						mNumberOfSpilledBytes.addAndGet(lLength);
+					}
+					else
+					{
+						mNumberOfDroppedSpills.incrementAndGet();
+						getTimeLine(lPendingSpill.mChannelID).remove(	lPendingSpill.mTimeIndex,
+																		lOpenSegment);
+					}
+				}
+				finally
+				{
+					if (lFrame != null)
+						lFrame.release();
+					lPendingSpill.mSegment.mNumberOfPendingSpills.decrementAndGet();
+					mNumberOfPendingSpills.decrementAndGet();
+				}
+				deleteSegmentsBeyondBudget();
+			}
+		}
+		catch (final InterruptedException e)
+		{
+		}
+		catch (final Throwable e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			closeWriter(lOpenSegment);
+		}
+	}
+
+	private void openWriter(Segment pSegment)
+	{
+		final StreamRecordingWriter lWriter = new StreamRecordingWriter(pSegment.mFile,
+																		cMaxPendingSpills,
+																		cStagingBufferLength,
+																		StreamRecordingWriter.cDefaultAlignment);
+		try
+		{
+			lWriter.open();
+			lWriter.start();
+			pSegment.mWriter = lWriter;
+		}
+		catch (final IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	private static void closeWriter(Segment pSegment)
+	{
+		if (pSegment == null || pSegment.mWriter == null)
+			return;
+		try
+		{
+			// the index of a closed writer stays available for reading:
+			pSegment.mWriter.close();
+		}
+		catch (final IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	private void deleteSegmentsBeyondBudget()
+	{
+		retryUndeletedSegments();
+		while (true)
+		{
+			final Segment lOldestSegment;
+			synchronized (mSegments)
+			{
+				if (mSegments.size() <= 1 || getSpilledBytesOnDisk() <= mMaxBytes)
+					return;
+				// its queued spills are written first, they come next:
+				if (mSegments.peekFirst().mNumberOfPendingSpills.get() > 0)
+					return;
+				lOldestSegment = mSegments.pollFirst();
+			}
+
+			for (final ConcurrentSkipListMap<Long, Segment> lTimeLine : mTimeLines.values())
+			{
+				final Iterator<Map.Entry<Long, Segment>> lIterator = lTimeLine.entrySet()
+																				.iterator();
+				while (lIterator.hasNext())
+					if (lIterator.next().getValue() == lOldestSegment)
+						lIterator.remove();
+			}
+
+			if (!deleteSegment(lOldestSegment))
+				synchronized (mSegments)
+				{
+					mUndeletedSegments.add(lOldestSegment);
+				}
+		}
+	}
+
+	private void retryUndeletedSegments()
+	{
+		final ArrayList<Segment> lUndeletedSegments;
+		synchronized (mSegments)
+		{
+			if (mUndeletedSegments.isEmpty())
+				return;
+			lUndeletedSegments = new ArrayList<>(mUndeletedSegments);
+		}
+		for (final Segment lSegment : lUndeletedSegments)
+			if (deleteSegment(lSegment))
+				synchronized (mSegments)
+				{
+					mUndeletedSegments.remove(lSegment);
+				}
+	}
+
+	/**
+	 * Closes a segment and deletes its files.
+	 *
+	 * @return true if no file of the segment is left
+	 */
+	private static boolean deleteSegment(Segment pSegment)
+	{
+		closeWriter(pSegment);
+		closeReadChannel(pSegment);
+		final File lIndexFile = StreamRecordingIndex.getIndexFile(pSegment.mFile);
+		final boolean lDataDeleted = pSegment.mFile.delete() || !pSegment.mFile.exists();
+		final boolean lIndexDeleted = lIndexFile.delete() || !lIndexFile.exists();
+		return lDataDeleted && lIndexDeleted;
+	}
+
+	/**
+	 * Bytes of the segments in the history and of those that could not be
+	 * deleted, so that the budget also covers the latter.
+	 */
+	private long getSpilledBytesOnDisk()
+	{
+		long lBytes = 0;
+		for (final Segment lSegment : mSegments)
+			lBytes += getSegmentBytes(lSegment);
+		for (final Segment lSegment : mUndeletedSegments)
+			lBytes += getSegmentBytes(lSegment);
+		return lBytes;
+	}
+
+	private static long getSegmentBytes(Segment pSegment)
+	{
+		return pSegment.mWriter == null ? 0 : pSegment.mWriter.getIndex()
+																.getEnd();
+	}
+
+	/**
+	 * @return true if the volume of the given channel and time point is
+	 *         spilled, or about to be
+	 */
+	@Override
+	public boolean contains(int pChannelID, long pTimeIndex)
+	{
+		final ConcurrentSkipListMap<Long, Segment> lTimeLine = mTimeLines.get(pChannelID);
+		return lTimeLine != null && lTimeLine.containsKey(pTimeIndex);
+	}
+
+	/**
+	 * @return time point index of the spilled volume of the channel at or
+	 *         before the given time point, -1 if none
+	 */
+	@Override
+	public long getFloorTimeIndex(int pChannelID, long pTimeIndex)
+	{
+		final ConcurrentSkipListMap<Long, Segment> lTimeLine = mTimeLines.get(pChannelID);
+		if (lTimeLine == null)
+			return -1;
+		final Long lFloorTimeIndex = lTimeLine.floorKey(pTimeIndex);
+		return lFloorTimeIndex == null ? -1 : lFloorTimeIndex;
+	}
+
+	/**
+	 * @return lowest time point index spilled over all channels, -1 if none
+	 */
+	@Override
+	public long getOldestTimeIndex()
+	{
+		long lOldestTimeIndex = -1;
+		for (final ConcurrentSkipListMap<Long, Segment> lTimeLine : mTimeLines.values())
+		{
+			final Map.Entry<Long, Segment> lFirstEntry = lTimeLine.firstEntry();
+			if (lFirstEntry != null && (lOldestTimeIndex < 0 || lFirstEntry.getKey() < lOldestTimeIndex))
+				lOldestTimeIndex = lFirstEntry.getKey();
+		}
+		return lOldestTimeIndex;
+	}
+
+	/**
+	 * Asks for a spilled volume to be read back, the volume load listener
+	 * receives it. Only the most recent requests are kept.
+	 *
+	 * @param pChannelID
+	 *            channel
+	 * @param pTimeIndex
+	 *            time point index
+	 */
+	@Override
+	public void requestLoad(int pChannelID, long pTimeIndex)
+	{
+		synchronized (mPendingLoads)
+		{
+			for (final long[] lPendingLoad : mPendingLoads)
+				if (lPendingLoad[0] == pChannelID && lPendingLoad[1] == pTimeIndex)
+					return;
+			if (mPendingLoads.size() >= cMaxPendingLoads)
+				mPendingLoads.pollFirst();
+			mPendingLoads.addLast(new long[]
+			{ pChannelID, pTimeIndex });
+			mPendingLoads.notifyAll();
+		}
+	}
+
+	/**
+	 * Replaces the time points to read back ahead of time, served in the given
+	 * order whenever no load is requested.
+	 *
+	 * @param pChannelIDs
+	 *            channel of each time point
+	 * @param pTimeIndices
+	 *            time point indices
+	 * @param pLength
+	 *            number of time points
+	 */
+	@Override
+	public void setPrefetches(int[] pChannelIDs, long[] pTimeIndices, int pLength)
+	{
+		synchronized (mPendingLoads)
+		{
+			mPendingPrefetches.clear();
+			for (int i = 0; i < Math.min(pLength, cMaxPendingPrefetches); i++)
+				mPendingPrefetches.addLast(new long[]
+				{ pChannelIDs[i], pTimeIndices[i] });
+			mPendingLoads.notifyAll();
+		}
+	}
+
+	private void runLoads()
+	{
+		while (!mStopSignal)
+		{
+			try
+			{
+				final long[] lPendingLoad;
+				final boolean lPrefetch;
+				synchronized (mPendingLoads)
+				{
+					// the latest request is the most relevant one:
+					long[] lNextLoad = mPendingLoads.pollLast();
+					lPrefetch = lNextLoad == null;
+					if (lPrefetch)
+						lNextLoad = mPendingPrefetches.pollFirst();
+					if (lNextLoad == null)
+					{
+						mPendingLoads.wait(10);
+						continue;
+					}
+					lPendingLoad = lNextLoad;
+				}
+
+				final Volume lVolume = read((int) lPendingLoad[0],
+											lPendingLoad[1]);
+				final VolumeLoadListener lVolumeLoadListener = mVolumeLoadListener;
+				if (lVolume != null && lVolumeLoadListener != null)
+				{
+					mNumberOfLoadedVolumes.incrementAndGet();
+					if (lPrefetch)
+						mNumberOfPrefetchedVolumes.incrementAndGet();
+					lVolumeLoadListener.volumeLoaded(this, lVolume);
+				}
+			}
+			catch (final InterruptedException e)
+			{
+			}
+			catch (final IOException e)
+			{
+				// e.g. the segment was deleted to stay within budget:
+				mNumberOfReadErrors.incrementAndGet();
+			}
+			catch (final Throwable e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Reads back a spilled volume through a memory mapping of its frame.
+	 *
+	 * @param pChannelID
+	 *            channel
+	 * @param pTimeIndex
+	 *            time point index
+	 * @return volume from the tier's manager, or null if not spilled
+	 * @throws IOException
+	 *             if the segment can't be read, e.g. because it was deleted
+	 */
+	public Volume read(int pChannelID, long pTimeIndex) throws IOException
+	{
+		final ConcurrentSkipListMap<Long, Segment> lTimeLine = mTimeLines.get(pChannelID);
+		final Segment lSegment = lTimeLine == null ? null
+													: lTimeLine.get(pTimeIndex);
+		if (lSegment == null)
+			return null;
+
+		StreamRecordingWriter lWriter = lSegment.mWriter;
+		StreamRecordingIndex.Entry lEntry = lWriter == null	? null
+															: lWriter.getIndex()
+																		.get(	pTimeIndex,
+																				pChannelID);
+		if (lEntry == null)
+		{
+			// still queued or staged:
+			waitForPendingSpills(cFlushTimeOutMillis);
+			lWriter = lSegment.mWriter;
+			if (lWriter == null)
+				return null;
+			lWriter.flush(cFlushTimeOutMillis, TimeUnit.MILLISECONDS);
+			lEntry = lWriter.getIndex().get(pTimeIndex, pChannelID);
+			if (lEntry == null)
+				return null;
+		}
+
+		final MappedByteBuffer lMappedBuffer = getReadChannel(lSegment).map(MapMode.READ_ONLY,
+																			lEntry.getOffset(),
+																			ToIntExact.toIntExact(lEntry.getLength()));
+		final ByteBuffer lFrameBuffer = lMappedBuffer.order(ByteOrder.nativeOrder());
+		return ClearVolumeSerialization.deserialize(lFrameBuffer,
+													requestVolume(mVolumeManager));
+	}
+
+	/**
+	 * Returns a volume made available to the given manager, or a new one
+	 * belonging to it. Read back volumes are recycled this way, their data
+	 * buffer is reused when it has the right size.
+	 *
+	 * @param pVolumeManager
+	 *            manager
+	 * @return volume to deserialize into
+	 */
+	static Volume requestVolume(VolumeManager pVolumeManager)
+	{
+		Volume lVolume = pVolumeManager.requestAndWaitForNextAvailableVolume(	0,
+																				TimeUnit.NANOSECONDS);
+		if (lVolume == null)
+		{
+			lVolume = new Volume();
+			lVolume.setManager(pVolumeManager);
+		}
+		return lVolume;
+	}
+
+	private void waitForPendingSpills(long pTimeOutMillis)
+	{
+		final long lDeadline = System.currentTimeMillis() + pTimeOutMillis;
+		while (mNumberOfPendingSpills.get() > 0 && System.currentTimeMillis() < lDeadline)
+		{
+			try
+			{
+				Thread.sleep(1);
+			}
+			catch (final InterruptedException e)
+			{
+				return;
+			}
+		}
+	}
+
+	private static FileChannel getReadChannel(Segment pSegment) throws IOException
+	{
+		synchronized (pSegment)
+		{
+			if (pSegment.mReadChannel == null)
+				pSegment.mReadChannel = FileChannel.open(	pSegment.mFile.toPath(),
+															StandardOpenOption.READ);
+			return pSegment.mReadChannel;
+		}
+	}
+
+	private static void closeReadChannel(Segment pSegment)
+	{
+		synchronized (pSegment)
+		{
+			try
+			{
+				if (pSegment.mReadChannel != null)
+					pSegment.mReadChannel.close();
+			}
+			catch (final IOException e)
+			{
+				e.printStackTrace();
+			}
+			pSegment.mReadChannel = null;
+		}
+	}
+
+	public long getNumberOfSpilledVolumes()
+	{
+		return mNumberOfSpilledVolumes.get();
+	}
+
+	/**
+	 * @return spills dropped because the spill thread couldn't keep up
+	 */
+	public long getNumberOfDroppedSpills()
+	{
+		return mNumberOfDroppedSpills.get();
+	}
+
+	public long getNumberOfLoadedVolumes()
+	{
+		return mNumberOfLoadedVolumes.get();
+	}
+
+	/**
+	 * @return volumes read back ahead of time, included in the loaded volumes
+	 */
+	public long getNumberOfPrefetchedVolumes()
+	{
+		return mNumberOfPrefetchedVolumes.get();
+	}
+
+	/**
+	 * @return bytes written since the start, compressed if enabled
+	 */
+	public long getNumberOfSpilledBytes()
+	{
+		return mNumberOfSpilledBytes.get();
+	}
+
+	/**
+	 * @return volumes that could not be read back
+	 */
+	public long getNumberOfReadErrors()
+	{
+		return mNumberOfReadErrors.get();
+	}
+
+	public int getNumberOfSegments()
+	{
+		synchronized (mSegments)
+		{
+			return mSegments.size();
+		}
+	}
+
+	/**
+	 * @return segments out of the history whose files could not be deleted
+	 *         yet, their deletion is retried as volumes are spilled
+	 */
+	public int getNumberOfUndeletedSegments()
+	{
+		synchronized (mSegments)
+		{
+			return mUndeletedSegments.size();
+		}
+	}
+
+	/**
+	 * Stops the threads and deletes the segment files.
+	 */
+	@Override
+	public void close()
+	{
+		mStopSignal = true;
+		try
+		{
+			if (mSpillThread != null)
+				mSpillThread.join();
+			if (mLoadThread != null)
+				mLoadThread.join();
+		}
+		catch (final InterruptedException e)
+		{
+			e.printStackTrace();
+		}
+
+		PendingSpill lPendingSpill;
+		while ((lPendingSpill = mPendingSpills.poll()) != null)
+			if (lPendingSpill.mSerializedFrame != null)
+				lPendingSpill.mSerializedFrame.release();
+
+		synchronized (mSegments)
+		{
+			mUndeletedSegments.addAll(mSegments);
+			mSegments.clear();
+		}
+		retryUndeletedSegments();
+		synchronized (mSegments)
+		{
+			// last resort for files still mapped:
+			for (final Segment lSegment : mUndeletedSegments)
+			{
+				lSegment.mFile.deleteOnExit();
+				StreamRecordingIndex.getIndexFile(lSegment.mFile)
+									.deleteOnExit();
+			}
+		}
+		mTimeLines.clear();
+		mVolumeManager.close();
+	}
+
+}
@@ -0,0 +1,223 @@
+package clearvolume.volume.sink.timeshift;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Follows the playhead of a TimeShiftingSink and has the tiers below its cache
+ * read back ahead of time the time points it is heading to, so that playing
+ * and scrubbing through compressed or spilled history doesn't wait for them. The playhead
+ * velocity is smoothed over its moves: the next time points in its direction
+ * are prefetched, spread over the distance it covers within the prefetch
+ * horizon, and those on both sides when it stands still. At most the given
+ * number of time points per channel are prefetched, those already cached are
+ * skipped. Each time point is read back from the first tier holding it.
+ */
+public class TimeShiftPrefetcher
+{
+	public static final int cDefaultNumberOfTimePoints = 8;
+	private static final double cHorizonInSeconds = 0.5;
+	private static final double cMinSpeedInTimePointsPerSecond = 0.5;
+	private static final double cVelocitySmoothing = 0.5;
+	private static final long cIdleNanos = 500000000L;
+
+	private final VolumeCache mVolumeCache;
+	private volatile int mNumberOfTimePoints = cDefaultNumberOfTimePoints;
+
+	private boolean mPlayheadSet;
+	private boolean mPlayheadMoved;
+	private long mLastPlayhead;
+	private long mLastMoveNanos;
+	private double mVelocity;
+
+	private int[] mChannelIDs = new int[0];
+	private long[] mTimeIndices = new long[0];
+	private int[] mTierIndices = new int[0];
+	private int[] mTierChannelIDs = new int[0];
+	private long[] mTierTimeIndices = new long[0];
+	private volatile long mReachBehind;
+
+	/**
+	 * @param pVolumeCache
+	 *            cache whose volumes don't need prefetching
+	 */
+	public TimeShiftPrefetcher(VolumeCache pVolumeCache)
+	{
+		super();
+		mVolumeCache = pVolumeCache;
+	}
+
+	/**
+	 * @param pNumberOfTimePoints
+	 *            max number of time points prefetched per channel, 0 to turn
+	 *            prefetching off
+	 */
+	public void setNumberOfTimePoints(int pNumberOfTimePoints)
+	{
+		mNumberOfTimePoints = pNumberOfTimePoints;
+	}
+
+	public int getNumberOfTimePoints()
+	{
+		return mNumberOfTimePoints;
+	}
+
+	/**
+	 * Records where the playhead is now.
+	 *
+	 * @param pPlayhead
+	 *            time point index displayed
+	 * @param pNowNanos
+	 *            current time in nanoseconds, as given by System.nanoTime()
+	 */
+	public synchronized void playheadMoved(long pPlayhead, long pNowNanos)
+	{
+		if (!mPlayheadSet)
+		{
+			mPlayheadSet = true;
+			mLastPlayhead = pPlayhead;
+			mLastMoveNanos = pNowNanos;
+			return;
+		}
+		if (pPlayhead == mLastPlayhead)
+			return;
+
+		final long lElapsedNanos = pNowNanos - mLastMoveNanos;
+		final double lVelocity = lElapsedNanos <= 0	? mVelocity
+													: (pPlayhead - mLastPlayhead) * 1e9
+														/ lElapsedNanos;
+		// after a pause, the first move alone gives the velocity:
+		mVelocity = !mPlayheadMoved || lElapsedNanos > cIdleNanos	? lVelocity
+																	: mVelocity + cVelocitySmoothing
+																					* (lVelocity - mVelocity);
+		mPlayheadMoved = true;
+		mLastPlayhead = pPlayhead;
+		mLastMoveNanos = pNowNanos;
+	}
+
+	/**
+	 * @param pNowNanos
+	 *            current time in nanoseconds, as given by System.nanoTime()
+	 * @return playhead velocity in time points per second, 0 once it stood
+	 *         still for a while
+	 */
+	public synchronized double getVelocity(long pNowNanos)
+	{
+		return pNowNanos - mLastMoveNanos > cIdleNanos ? 0 : mVelocity;
+	}
+
+	/**
+	 * Has the tiers prefetch the time points ahead of the playhead for the
+	 * given channels, replacing the previous prefetches.
+	 *
+	 * @param pVolumeTiers
+	 *            tiers to read back from, nearest first
+	 * @param pChannelIDs
+	 *            channels displayed
+	 * @param pNowNanos
+	 *            current time in nanoseconds, as given by System.nanoTime()
+	 */
+	public synchronized void prefetch(	List<VolumeTierInterface> pVolumeTiers,
+										Collection<Integer> pChannelIDs,
+										long pNowNanos)
+	{
+		final int lNumberOfTimePoints = mNumberOfTimePoints;
+		if (!mPlayheadSet || lNumberOfTimePoints <= 0)
+		{
+			mReachBehind = 0;
+			for (final VolumeTierInterface lVolumeTier : pVolumeTiers)
+				lVolumeTier.setPrefetches(mChannelIDs, mTimeIndices, 0);
+			return;
+		}
+
+		final double lVelocity = getVelocity(pNowNanos);
+		final boolean lStill = Math.abs(lVelocity) < cMinSpeedInTimePointsPerSecond;
+		final long lStride = lStill	? 1
+									: Math.max(	1,
+												Math.round(Math.abs(lVelocity) * cHorizonInSeconds
+															/ lNumberOfTimePoints));
+		final int lDirection = lVelocity < 0 ? -1 : 1;
+
+		final int lCapacity = lNumberOfTimePoints * pChannelIDs.size();
+		if (mTimeIndices.length < lCapacity)
+		{
+			mChannelIDs = new int[lCapacity];
+			mTimeIndices = new long[lCapacity];
+			mTierIndices = new int[lCapacity];
+			mTierChannelIDs = new int[lCapacity];
+			mTierTimeIndices = new long[lCapacity];
+		}
+
+		// nearest first, over all channels, so that all channels of a time
+		// point come in together:
+		int lLength = 0;
+		long lReachBehind = 0;
+		for (int i = 1; i <= lNumberOfTimePoints; i++)
+		{
+			final long lOffset = lStill	? (i + 1) / 2 * (i % 2 == 0 ? -1 : 1)
+										: lDirection * lStride * i;
+			final long lTarget = mLastPlayhead + lOffset;
+			for (final int lChannelID : pChannelIDs)
+			{
+				// the nearest time point held, by the first tier holding it:
+				long lTimeIndex = -1;
+				int lTierIndex = -1;
+				for (int k = 0; k < pVolumeTiers.size(); k++)
+				{
+					final long lFloorTimeIndex = pVolumeTiers.get(k)
+																.getFloorTimeIndex(	lChannelID,
+																					lTarget);
+					if (lFloorTimeIndex > lTimeIndex)
+					{
+						lTimeIndex = lFloorTimeIndex;
+						lTierIndex = k;
+					}
+				}
+				// ahead, the floor can be behind the playhead, e.g. when live:
+				if (lTimeIndex < 0 || (lOffset > 0 && lTimeIndex <= mLastPlayhead)
+					|| mVolumeCache.contains(lChannelID, lTimeIndex)
+					|| contains(lChannelID, lTimeIndex, lLength))
+					continue;
+				mChannelIDs[lLength] = lChannelID;
+				mTimeIndices[lLength] = lTimeIndex;
+				mTierIndices[lLength] = lTierIndex;
+				lLength++;
+				lReachBehind = Math.max(lReachBehind, mLastPlayhead - lTimeIndex);
+			}
+		}
+		mReachBehind = lReachBehind;
+
+		for (int k = 0; k < pVolumeTiers.size(); k++)
+		{
+			int lTierLength = 0;
+			for (int i = 0; i < lLength; i++)
+				if (mTierIndices[i] == k)
+				{
+					mTierChannelIDs[lTierLength] = mChannelIDs[i];
+					mTierTimeIndices[lTierLength] = mTimeIndices[i];
+					lTierLength++;
+				}
+			pVolumeTiers.get(k).setPrefetches(	mTierChannelIDs,
+												mTierTimeIndices,
+												lTierLength);
+		}
+	}
+
+	private boolean contains(int pChannelID, long pTimeIndex, int pLength)
+	{
+		for (int i = 0; i < pLength; i++)
+			if (mChannelIDs[i] == pChannelID && mTimeIndices[i] == pTimeIndex)
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return how far behind the playhead the last prefetches go, in time
+	 *         points: these must not be evicted right away
+	 */
+	public long getReachBehind()
+	{
+		return mReachBehind;
+	}
+
+}
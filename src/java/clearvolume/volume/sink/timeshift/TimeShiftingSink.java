@@ -1,49 +1,198 @@
 package clearvolume.volume.sink.timeshift;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.TreeMap;
-import java.util.TreeSet;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantLock;
 
 import clearvolume.ClearVolumeCloseable;
 import clearvolume.volume.Volume;
 import clearvolume.volume.VolumeManager;
 import clearvolume.volume.sink.relay.RelaySinkAdapter;
 import clearvolume.volume.sink.relay.RelaySinkInterface;
-
+import clearvolume.volume.sink.seek.SeekScheduler;
+
+/**
+ * Keeps the history of the volumes received in a VolumeCache so that the
+ * display can be shifted back in time. The most recent time points up to the
+ * soft horizon are always kept, older ones up to the hard horizon are kept
+ * within the cache's byte budget, least recently displayed first out, and
+ * time points beyond the hard horizon are dropped. The time points around the
+ * one displayed are never evicted. With a CompressedMemoryTier and/or a
+ * DiskSpillTier, evicted time points are compressed in memory, then go to
+ * disk, and are read back in the background when the display is shifted back
+ * to them, and those the display is heading to are prefetched. With a key
+ * frame interval set on the CompressedMemoryTier, time points are encoded as
+ * they arrive, mostly as deltas against the previous one.
+ *
+ * Volumes are forwarded outside of any shared lock: incoming volumes and seeks
+ * only wait for each other while forwarding the same channel, and a seek is
+ * abandoned as soon as a newer one is requested.
+ */
 public class TimeShiftingSink extends RelaySinkAdapter	implements
 														RelaySinkInterface,
 														ClearVolumeCloseable
 {
-	private static final float cCleanUpRatio = 0.25f;
-
-	private static final ExecutorService mSeekingExecutor = Executors.newSingleThreadExecutor();
-	private final SwitchableSoftReferenceManager<Volume> mSwitchableSoftReferenceManager;
+	private static final long cDefaultMemoryBudgetInBytes = Runtime.getRuntime()
+																	.maxMemory() / 2;
 
+	// guards the playhead only, never held while forwarding:
 	private final Object mLock = new Object();
-	private HashMap<Integer, TreeMap<Long, SwitchableSoftReference<Volume>>> mChannelToVolumeListsMap = new HashMap<>();
-	private final TreeSet<Integer> mAvailableChannels = new TreeSet<>();
+	private final VolumeCache mVolumeCache;
+	private final ConcurrentSkipListSet<Integer> mAvailableChannels = new ConcurrentSkipListSet<>();
+	private final ConcurrentHashMap<Integer, ReentrantLock> mChannelLocks = new ConcurrentHashMap<>();
+	private final SeekScheduler mSeekScheduler = new SeekScheduler(TimeShiftingSink.class.getSimpleName() + "SeekThread");
+	private volatile CompressedMemoryTier mCompressedMemoryTier;
+	private volatile DiskSpillTier mDiskSpillTier;
+	// nearest first:
+	private volatile List<VolumeTierInterface> mVolumeTiers = Collections.emptyList();
+	private final TimeShiftPrefetcher mPrefetcher;
 
 	private volatile long mSoftMemoryHorizonInTimePointIndices;
 	private volatile long mHardMemoryHorizonInTimePointIndices;
-	private volatile long mCleanUpPeriodInTimePoints;
 	private volatile long mHighestTimePointIndexSeen = 0;
 	private volatile long mTimeShift = 0;
 	private volatile boolean mIsPlaying = true;
 
 	public TimeShiftingSink(long pSoftMemoryHoryzonInTimePointIndices,
 							long pHardMemoryHoryzonInTimePointIndices)
+	{
+		this(	pSoftMemoryHoryzonInTimePointIndices,
+				pHardMemoryHoryzonInTimePointIndices,
+				cDefaultMemoryBudgetInBytes);
+	}
+
+	/**
+	 * @param pSoftMemoryHoryzonInTimePointIndices
+	 *            number of most recent time points always kept
+	 * @param pHardMemoryHoryzonInTimePointIndices
+	 *            number of most recent time points kept within the budget
+	 * @param pMemoryBudgetInBytes
+	 *            max bytes of volume data kept beyond the soft horizon
+	 */
+	public TimeShiftingSink(long pSoftMemoryHoryzonInTimePointIndices,
+							long pHardMemoryHoryzonInTimePointIndices,
+							long pMemoryBudgetInBytes)
 	{
 		super();
-		mSwitchableSoftReferenceManager = new SwitchableSoftReferenceManager<>();
 		mSoftMemoryHorizonInTimePointIndices = Math.min(pSoftMemoryHoryzonInTimePointIndices,
 														pHardMemoryHoryzonInTimePointIndices);
 		mHardMemoryHorizonInTimePointIndices = Math.max(pHardMemoryHoryzonInTimePointIndices,
 														pSoftMemoryHoryzonInTimePointIndices);
-		mCleanUpPeriodInTimePoints = (long) (mSoftMemoryHorizonInTimePointIndices * cCleanUpRatio);
+		mVolumeCache = new VolumeCache(	pMemoryBudgetInBytes,
+										mSoftMemoryHorizonInTimePointIndices);
+		mPrefetcher = new TimeShiftPrefetcher(mVolumeCache);
+	}
+
+	/**
+	 * Compresses the volumes evicted from the cache in the given tier, and
+	 * decompresses them from it when seeking. The tier is started by the
+	 * caller, and closed with this sink.
+	 *
+	 * @param pCompressedMemoryTier
+	 *            compressed memory tier, or null for none
+	 */
+	public void setCompressedMemoryTier(CompressedMemoryTier pCompressedMemoryTier)
+	{
+		synchronized (mLock)
+		{
+			mCompressedMemoryTier = pCompressedMemoryTier;
+			connectVolumeTiers();
+		}
+	}
+
+	public CompressedMemoryTier getCompressedMemoryTier()
+	{
+		return mCompressedMemoryTier;
+	}
+
+	/**
+	 * Spills the volumes evicted from the cache, or from the compressed memory
+	 * tier if any, to the given tier, and reads them back from it when
+	 * seeking. The tier is started by the caller, and closed with this sink.
+	 *
+	 * @param pDiskSpillTier
+	 *            disk spill tier, or null for none
+	 */
+	public void setDiskSpillTier(DiskSpillTier pDiskSpillTier)
+	{
+		synchronized (mLock)
+		{
+			mDiskSpillTier = pDiskSpillTier;
+			connectVolumeTiers();
+		}
+	}
+
+	public DiskSpillTier getDiskSpillTier()
+	{
+		return mDiskSpillTier;
+	}
+
+	private void connectVolumeTiers()
+	{
+		for (final VolumeTierInterface lVolumeTier : mVolumeTiers)
+		{
+			mVolumeCache.removeEvictionListener((VolumeEvictionListener) lVolumeTier);
+			lVolumeTier.setVolumeLoadListener(null);
+			if (lVolumeTier instanceof CompressedMemoryTier)
+				((CompressedMemoryTier) lVolumeTier).setOverflowTier(null);
+		}
+
+		final List<VolumeTierInterface> lVolumeTiers = new ArrayList<>();
+		final CompressedMemoryTier lCompressedMemoryTier = mCompressedMemoryTier;
+		final DiskSpillTier lDiskSpillTier = mDiskSpillTier;
+		if (lCompressedMemoryTier != null)
+		{
+			lCompressedMemoryTier.setOverflowTier(lDiskSpillTier);
+			mVolumeCache.addEvictionListener(lCompressedMemoryTier);
+			lVolumeTiers.add(lCompressedMemoryTier);
+		}
+		else if (lDiskSpillTier != null)
+			mVolumeCache.addEvictionListener(lDiskSpillTier);
+		if (lDiskSpillTier != null)
+			lVolumeTiers.add(lDiskSpillTier);
+
+		final VolumeLoadListener lVolumeLoadListener = new VolumeLoadListener()
+		{
+			@Override
+			public void volumeLoaded(	VolumeTierInterface pVolumeTier,
+										Volume pVolume)
+			{
+				volumeLoadedFromTier(pVolume);
+			}
+		};
+		for (final VolumeTierInterface lVolumeTier : lVolumeTiers)
+			lVolumeTier.setVolumeLoadListener(lVolumeLoadListener);
+		mVolumeTiers = Collections.unmodifiableList(lVolumeTiers);
+	}
+
+	private void volumeLoadedFromTier(final Volume pVolume)
+	{
+		mVolumeCache.put(pVolume);
+
+		// prefetched volumes are only sent once displayed:
+		final long lTimeIndex = mHighestTimePointIndexSeen + mTimeShift;
+		if (getTierFloorTimeIndex(pVolume.getChannelID(), lTimeIndex) != pVolume.getTimeIndex())
+			return;
+
+		// sent from the loading thread, a seek would supersede the pending one:
+		sendVolumeInternal(pVolume.getChannelID());
+	}
+
+	/**
+	 * @return the nearest time point index at or before the given one held by
+	 *         the tiers, -1 if none
+	 */
+	private long getTierFloorTimeIndex(int pChannelID, long pTimeIndex)
+	{
+		long lFloorTimeIndex = -1;
+		for (final VolumeTierInterface lVolumeTier : mVolumeTiers)
+			lFloorTimeIndex = Math.max(	lFloorTimeIndex,
+										lVolumeTier.getFloorTimeIndex(	pChannelID,
+																		pTimeIndex));
+		return lFloorTimeIndex;
 	}
 
 	public void setTimeShiftNormalized(final double pTimeShiftNormalized)
@@ -54,31 +203,49 @@ public class TimeShiftingSink extends RelaySinkAdapter	implements
 			@Override
 			public void run()
 			{
+				final long lPreviousTimeShift;
 				synchronized (mLock)
 				{
-					final long lPreviousTimeShift = mTimeShift;
-
-					// find the available data interval to evade invalid indices
-					final long startPos = Math.max(	0,
-													mHighestTimePointIndexSeen - mHardMemoryHorizonInTimePointIndices);
-					final long interval = mHighestTimePointIndexSeen - startPos;
+					lPreviousTimeShift = mTimeShift;
 
-					// System.err.println("interval=[" + startPos +","
-					// +interval+"]");
+					// the available data interval, so that all of it can be
+					// reached and only it:
+					final long interval = getScrubBackDepth();
 					mTimeShift = -Math.round(interval * pTimeShiftNormalized);
-					if (lPreviousTimeShift != mTimeShift)
-						for (final int lChannel : mAvailableChannels)
-							sendVolumeInternal(lChannel);
+					movePlayhead();
 				}
+
+				if (lPreviousTimeShift != mTimeShift)
+					for (final int lChannel : mAvailableChannels)
+					{
+						if (mSeekScheduler.isSuperseded())
+							return;
+						sendVolumeInternal(lChannel);
+					}
 			}
 		};
 
-		mSeekingExecutor.execute(lRunnable);
+		mSeekScheduler.seek(lRunnable);
+	}
+
+	/**
+	 * @return scheduler of the seeks, with their latency and the number of
+	 *         seeks coalesced or cancelled
+	 */
+	public SeekScheduler getSeekScheduler()
+	{
+		return mSeekScheduler;
 	}
 
 	public void setTimeShift(long pTimeShift)
 	{
-		mTimeShift = pTimeShift;
+		// pending seeks would undo this one:
+		mSeekScheduler.cancel();
+		synchronized (mLock)
+		{
+			mTimeShift = pTimeShift;
+			movePlayhead();
+		}
 	}
 
 	public long getTimeShift()
@@ -101,6 +268,32 @@ public class TimeShiftingSink extends RelaySinkAdapter	implements
 		return mHighestTimePointIndexSeen;
 	}
 
+	/**
+	 * @return number of time points the display can be shifted back: up to the
+	 *         oldest time point cached, compressed or spilled to disk
+	 */
+	public long getScrubBackDepth()
+	{
+		long lOldestTimeIndex = mVolumeCache.getOldestTimeIndex();
+		for (final VolumeTierInterface lVolumeTier : mVolumeTiers)
+		{
+			final long lOldestTierTimeIndex = lVolumeTier.getOldestTimeIndex();
+			if (lOldestTierTimeIndex >= 0 && (lOldestTimeIndex < 0 || lOldestTierTimeIndex < lOldestTimeIndex))
+				lOldestTimeIndex = lOldestTierTimeIndex;
+		}
+		return lOldestTimeIndex < 0	? 0
+									: Math.max(0, mHighestTimePointIndexSeen - lOldestTimeIndex);
+	}
+
+	/**
+	 * @return cache holding the history, with its budget and hit and miss
+	 *         counts
+	 */
+	public VolumeCache getVolumeCache()
+	{
+		return mVolumeCache;
+	}
+
 	public int getNumberOfAvailableChannels()
 	{
 		return mAvailableChannels.size();
@@ -114,136 +307,110 @@ public class TimeShiftingSink extends RelaySinkAdapter	implements
 	@Override
 	public void sendVolume(Volume pVolume)
 	{
+		final int lVolumeChannelID = pVolume.getChannelID();
+		mAvailableChannels.add(lVolumeChannelID);
+
+		long lEvictBeforeTimeIndex;
 		synchronized (mLock)
 		{
-			final int lVolumeChannelID = pVolume.getChannelID();
-			mAvailableChannels.add(lVolumeChannelID);
-			TreeMap<Long, SwitchableSoftReference<Volume>> lTimePointIndexToVolumeMapReference = mChannelToVolumeListsMap.get(lVolumeChannelID);
-
-			if (lTimePointIndexToVolumeMapReference == null)
-			{
-				lTimePointIndexToVolumeMapReference = new TreeMap<>();
-				mChannelToVolumeListsMap.put(	lVolumeChannelID,
-												lTimePointIndexToVolumeMapReference);
-			}
-
-			lTimePointIndexToVolumeMapReference.put(pVolume.getTimeIndex(),
-													wrapWithReference(pVolume));
-
 			mHighestTimePointIndexSeen = Math.max(	mHighestTimePointIndexSeen,
 													pVolume.getTimeIndex());
-
-			if (mIsPlaying)
-				sendVolumeInternal(lVolumeChannelID);
-
-			cleanUpOldVolumes(	mHighestTimePointIndexSeen,
-								lVolumeChannelID);
+			movePlayhead();
+			lEvictBeforeTimeIndex = mHighestTimePointIndexSeen - mHardMemoryHorizonInTimePointIndices;
+			if (!mVolumeTiers.isEmpty())
+				// time points read back from a tier stay while displayed or
+				// prefetched:
+				lEvictBeforeTimeIndex = Math.min(	lEvictBeforeTimeIndex,
+													mHighestTimePointIndexSeen + mTimeShift
+															- Math.max(	mVolumeCache.getPinRadius(),
+																		mPrefetcher.getReachBehind()));
 		}
+		// delta encoded against the previous time point while both are at hand:
+		final CompressedMemoryTier lCompressedMemoryTier = mCompressedMemoryTier;
+		if (lCompressedMemoryTier != null)
+			lCompressedMemoryTier.volumeArrived(pVolume);
+		mVolumeCache.put(pVolume);
+		mVolumeCache.evictBefore(lEvictBeforeTimeIndex);
+
+		if (mIsPlaying)
+			sendVolumeInternal(lVolumeChannelID);
 	}
 
-	private void sendVolumeInternal(int lVolumeChannelID)
+	private void movePlayhead()
 	{
-		synchronized (mLock)
-		{
-			final Volume lVolumeToSend = getVolumeToSend(lVolumeChannelID);
-
-			if (lVolumeToSend != null)
-			{
-				getRelaySink().sendVolume(lVolumeToSend);
-			}
-			else
-			{
-				System.err.println("Did not have any volume to send :(");
-			}
-
-			cleanUpOldVolumes(	mHighestTimePointIndexSeen,
-								lVolumeChannelID);
-		}
+		final long lPlayhead = mHighestTimePointIndexSeen + mTimeShift;
+		final long lNowNanos = System.nanoTime();
+		mVolumeCache.setPlayhead(lPlayhead);
+		mPrefetcher.playheadMoved(lPlayhead, lNowNanos);
+		final List<VolumeTierInterface> lVolumeTiers = mVolumeTiers;
+		if (!lVolumeTiers.isEmpty())
+			mPrefetcher.prefetch(lVolumeTiers, mAvailableChannels, lNowNanos);
 	}
 
-	private SwitchableSoftReference<Volume> wrapWithReference(final Volume pVolume)
+	/**
+	 * @return prefetcher reading time points back from the tiers ahead of the
+	 *         display
+	 */
+	public TimeShiftPrefetcher getPrefetcher()
 	{
-		final Runnable lCleaningRunnable = new Runnable()
-		{
-			@Override
-			public void run()
-			{
-				System.out.println("CLEANING!");
-				pVolume.makeAvailableToManager();
-			}
-		};
-		return mSwitchableSoftReferenceManager.wrapReference(	pVolume,
-																lCleaningRunnable);
+		return mPrefetcher;
 	}
 
-	private Volume getVolumeToSend(int pVolumeChannelID)
+	private ReentrantLock getChannelLock(int pChannelID)
 	{
-		synchronized (mLock)
+		ReentrantLock lChannelLock = mChannelLocks.get(pChannelID);
+		if (lChannelLock == null)
 		{
-			final TreeMap<Long, SwitchableSoftReference<Volume>> lTimePointIndexToVolumeMap = mChannelToVolumeListsMap.get(pVolumeChannelID);
-
-			if (lTimePointIndexToVolumeMap.isEmpty())
-				return null;
-
-			Entry<Long, SwitchableSoftReference<Volume>> lIndexVolumeEntry = lTimePointIndexToVolumeMap.floorEntry(mHighestTimePointIndexSeen + mTimeShift);
-			if (lIndexVolumeEntry == null)
-				lIndexVolumeEntry = lTimePointIndexToVolumeMap.ceilingEntry(mHighestTimePointIndexSeen + mTimeShift);
-
-			if (lIndexVolumeEntry == null)
-				return null;
-
-			final Volume lVolume = lIndexVolumeEntry.getValue().get();
-			if (lVolume == null)
-			{
-				lTimePointIndexToVolumeMap.remove(lIndexVolumeEntry.getKey());
-				return getVolumeToSend(pVolumeChannelID);
-			}
-			return lVolume;
+			final ReentrantLock lNewChannelLock = new ReentrantLock();
+			lChannelLock = mChannelLocks.putIfAbsent(	pChannelID,
+														lNewChannelLock);
+			if (lChannelLock == null)
+				lChannelLock = lNewChannelLock;
 		}
+		return lChannelLock;
 	}
 
-	private void cleanUpOldVolumes(	long pTimePointIndex,
-									int pChannelID)
+	private void sendVolumeInternal(int lVolumeChannelID)
 	{
-		synchronized (mLock)
+		// the volumes of a channel are forwarded one at a time, those of
+		// different channels concurrently:
+		final ReentrantLock lChannelLock = getChannelLock(lVolumeChannelID);
+		lChannelLock.lock();
+		Volume lVolumeToSend = null;
+		try
 		{
-			if (pTimePointIndex % mCleanUpPeriodInTimePoints != 0)
-				return;
-
-			final TreeMap<Long, SwitchableSoftReference<Volume>> lTimePointIndexToVolumeMap = mChannelToVolumeListsMap.get(pChannelID);
-			if (lTimePointIndexToVolumeMap.isEmpty())
-			{
-				mChannelToVolumeListsMap.remove(pChannelID);
-				return;
-			}
-			final Long lLastTimePoint = lTimePointIndexToVolumeMap.lastKey();
+			final long lTimeIndex = mHighestTimePointIndexSeen + mTimeShift;
+			lVolumeToSend = mVolumeCache.acquire(lVolumeChannelID, lTimeIndex);
+
+			// a closer time point in a tier is read back in the background,
+			// from the nearest tier holding it, the nearest cached one is shown
+			// meanwhile:
+			final long lTierTimeIndex = getTierFloorTimeIndex(	lVolumeChannelID,
+																lTimeIndex);
+			if (lTierTimeIndex >= 0 && (lVolumeToSend == null
+										|| lVolumeToSend.getTimeIndex() > lTimeIndex || lVolumeToSend.getTimeIndex() < lTierTimeIndex))
+				for (final VolumeTierInterface lVolumeTier : mVolumeTiers)
+					if (lVolumeTier.contains(lVolumeChannelID, lTierTimeIndex))
+					{
+						lVolumeTier.requestLoad(lVolumeChannelID, lTierTimeIndex);
+						break;
+					}
 
-			Long lTimePoint = lLastTimePoint;
-			while (lTimePoint != null && lTimePoint > lLastTimePoint - mSoftMemoryHorizonInTimePointIndices)
-			{
-				lTimePoint = lTimePointIndexToVolumeMap.lowerKey(lTimePoint);
-			}
-			while (lTimePoint != null && lTimePoint > lLastTimePoint - mHardMemoryHorizonInTimePointIndices)
+			if (lVolumeToSend != null)
 			{
-				final SwitchableSoftReference<Volume> lSwitchableSoftReference = lTimePointIndexToVolumeMap.get(lTimePoint);
-				if (lSwitchableSoftReference.isGone())
-				{
-					lTimePointIndexToVolumeMap.remove(lTimePoint);
-					continue;
-				}
-				lSwitchableSoftReference.soften();
-				lTimePoint = lTimePointIndexToVolumeMap.lowerKey(lTimePoint);
+				getRelaySink().sendVolume(lVolumeToSend);
 			}
-			while (lTimePoint != null)
+			else
 			{
-				final SwitchableSoftReference<Volume> lSwitchableSoftReference = lTimePointIndexToVolumeMap.get(lTimePoint);
-				final Volume lVolume = lSwitchableSoftReference.get();
-				if (lVolume != null)
-					lVolume.makeAvailableToManager();
-				lTimePointIndexToVolumeMap.remove(lTimePoint);
-				lTimePoint = lTimePointIndexToVolumeMap.lowerKey(lTimePoint);
+				System.err.println("Did not have any volume to send :(");
 			}
 		}
+		finally
+		{
+			if (lVolumeToSend != null)
+				mVolumeCache.release(lVolumeToSend);
+			lChannelLock.unlock();
+		}
 	}
 
 	@Override
@@ -255,29 +422,19 @@ public class TimeShiftingSink extends RelaySinkAdapter	implements
 	@Override
 	public void close()
 	{
-		synchronized (mLock)
-		{
-			for (final Map.Entry<Integer, TreeMap<Long, SwitchableSoftReference<Volume>>> lTimeLineForChannelEntry : mChannelToVolumeListsMap.entrySet())
-			{
-				final TreeMap<Long, SwitchableSoftReference<Volume>> lTimeLineTreeMap = lTimeLineForChannelEntry.getValue();
-
-				for (final Map.Entry<Long, SwitchableSoftReference<Volume>> lTimePointEntry : lTimeLineTreeMap.entrySet())
-				{
-					final SwitchableSoftReference<Volume> lVolumeSoftReference = lTimePointEntry.getValue();
-					final Volume lVolume = lVolumeSoftReference.get();
-					if (lVolume != null)
-						lVolume.close();
-					lVolumeSoftReference.soften();
-				}
-
-				lTimeLineTreeMap.clear();
-			}
-			mChannelToVolumeListsMap.clear();
-			mChannelToVolumeListsMap = null;
-
-			mAvailableChannels.clear();
-		}
-
+		final CompressedMemoryTier lCompressedMemoryTier = mCompressedMemoryTier;
+		final DiskSpillTier lDiskSpillTier = mDiskSpillTier;
+		setCompressedMemoryTier(null);
+		setDiskSpillTier(null);
+		// the compressed tier overflows to the disk tier, it goes first:
+		if (lCompressedMemoryTier != null)
+			lCompressedMemoryTier.close();
+		if (lDiskSpillTier != null)
+			lDiskSpillTier.close();
+
+		mSeekScheduler.close();
+		mVolumeCache.close();
+		mAvailableChannels.clear();
 	}
 
 	public void pause()
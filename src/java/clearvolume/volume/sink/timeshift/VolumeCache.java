@@ -0,0 +1,528 @@
+package clearvolume.volume.sink.timeshift;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import clearvolume.ClearVolumeCloseable;
+import clearvolume.volume.Volume;
+
+/**
+ * Volumes of each channel by time point index, within a budget in bytes of
+ * volume data. When over budget, the least recently used volumes are evicted
+ * first, except pinned ones: the most recent time points (pinned history) and
+ * the time points around the playhead. Pinned volumes are kept even if that
+ * means going over budget. Evicted volumes go back to their manager, after
+ * the eviction listeners were notified.
+ *
+ * Looking up a time point gives the volume at or before it, a hit if that
+ * volume is cached and a miss if it was evicted, in which case the nearest
+ * cached volume is given instead.
+ *
+ * Each channel has its own concurrent time line: lookups take no lock and
+ * don't wait for volumes being added or evicted. A volume acquired for
+ * display is only handed back to the listeners and its manager once
+ * released, even if evicted in the meantime.
+ */
+public class VolumeCache implements ClearVolumeCloseable
+{
+	private static final class Entry
+	{
+		private final Volume mVolume;
+		private final long mSizeInBytes;
+		private final AtomicInteger mReferences = new AtomicInteger(1);
+		private volatile boolean mCached;
+		private volatile boolean mUsed;
+
+		private Entry(Volume pVolume, long pSizeInBytes)
+		{
+			mVolume = pVolume;
+			mSizeInBytes = pSizeInBytes;
+			mCached = pVolume != null;
+		}
+
+		private boolean tryRetain()
+		{
+			int lReferences;
+			do
+			{
+				lReferences = mReferences.get();
+				if (lReferences == 0)
+					return false;
+			}
+			while (!mReferences.compareAndSet(lReferences, lReferences + 1));
+			return true;
+		}
+	}
+
+	// evicted time points stay in the time line, so that looking them up
+	// counts as a miss:
+	private static final Entry cEvicted = new Entry(null, 0);
+
+	private final ConcurrentHashMap<Integer, ConcurrentSkipListMap<Long, Entry>> mTimeLines = new ConcurrentHashMap<>();
+	// cached volumes, and evicted ones not released yet:
+	private final ConcurrentHashMap<Volume, Entry> mEntries = new ConcurrentHashMap<>();
+	// cached volumes, least recently used first, guarded by the cache. Lookups
+	// take no lock, the volumes they use are moved to the back when the next
+	// volume is added:
+	private final LinkedHashSet<Entry> mUseOrder = new LinkedHashSet<>();
+	private final ConcurrentLinkedQueue<Entry> mUsedEntries = new ConcurrentLinkedQueue<>();
+	private final CopyOnWriteArrayList<VolumeEvictionListener> mEvictionListeners = new CopyOnWriteArrayList<>();
+
+	private volatile long mBudgetInBytes;
+	private volatile long mUsedBytes;
+	private volatile int mNumberOfVolumes;
+	private volatile long mHighestTimeIndex = -1;
+	private volatile long mPinnedHistoryInTimePoints;
+	private volatile boolean mPlayheadSet = false;
+	private volatile long mPlayheadTimeIndex;
+	private volatile long mPinRadiusInTimePoints = 1;
+
+	private final AtomicLong mNumberOfHits = new AtomicLong();
+	private final AtomicLong mNumberOfMisses = new AtomicLong();
+	private final AtomicLong mNumberOfEvictions = new AtomicLong();
+
+	/**
+	 * @param pBudgetInBytes
+	 *            max bytes of volume data kept, pinned volumes aside
+	 * @param pPinnedHistoryInTimePoints
+	 *            number of most recent time points never evicted for the
+	 *            budget
+	 */
+	public VolumeCache(long pBudgetInBytes, long pPinnedHistoryInTimePoints)
+	{
+		super();
+		mBudgetInBytes = pBudgetInBytes;
+		mPinnedHistoryInTimePoints = pPinnedHistoryInTimePoints;
+	}
+
+	/**
+	 * Adds a volume, replacing the volume of the same channel and time point.
+	 *
+	 * @param pVolume
+	 *            volume
+	 */
+	public void put(Volume pVolume)
+	{
+		final List<Entry> lEvictedEntries = new ArrayList<>();
+		synchronized (this)
+		{
+			final ConcurrentSkipListMap<Long, Entry> lTimeLine = getTimeLine(pVolume.getChannelID());
+			applyUses();
+			final Entry lCachedEntry = mEntries.get(pVolume);
+			if (lCachedEntry != null && lCachedEntry.mCached)
+				moveToBack(lCachedEntry);
+			else
+			{
+				final Entry lEntry = new Entry(pVolume, getSizeInBytes(pVolume));
+				mEntries.put(pVolume, lEntry);
+				mUseOrder.add(lEntry);
+				final Entry lReplacedEntry = lTimeLine.put(	pVolume.getTimeIndex(),
+															lEntry);
+				if (lReplacedEntry != null && lReplacedEntry != cEvicted)
+					uncache(lReplacedEntry, lEvictedEntries);
+				mUsedBytes += lEntry.mSizeInBytes;
+				mNumberOfVolumes++;
+			}
+
+			mHighestTimeIndex = Math.max(	mHighestTimeIndex,
+											pVolume.getTimeIndex());
+			evictToBudget(lEvictedEntries);
+		}
+		evicted(lEvictedEntries);
+	}
+
+	private ConcurrentSkipListMap<Long, Entry> getTimeLine(int pChannelID)
+	{
+		ConcurrentSkipListMap<Long, Entry> lTimeLine = mTimeLines.get(pChannelID);
+		if (lTimeLine == null)
+		{
+			lTimeLine = new ConcurrentSkipListMap<>();
+			mTimeLines.put(pChannelID, lTimeLine);
+		}
+		return lTimeLine;
+	}
+
+	/**
+	 * @param pChannelID
+	 *            channel
+	 * @param pTimeIndex
+	 *            time point index
+	 * @return volume of the channel at or before the time point, or the
+	 *         nearest cached volume if that one was evicted, null if the
+	 *         channel has none. The volume may be evicted at any time, see
+	 *         acquire().
+	 */
+	public Volume get(int pChannelID, long pTimeIndex)
+	{
+		final Entry lEntry = lookUp(pChannelID, pTimeIndex, false);
+		return lEntry == null ? null : lEntry.mVolume;
+	}
+
+	/**
+	 * Same as get(), but the volume is not handed back to its manager until
+	 * released, so that it can be displayed while it is being evicted.
+	 *
+	 * @param pChannelID
+	 *            channel
+	 * @param pTimeIndex
+	 *            time point index
+	 * @return volume to release, or null if the channel has none
+	 */
+	public Volume acquire(int pChannelID, long pTimeIndex)
+	{
+		final Entry lEntry = lookUp(pChannelID, pTimeIndex, true);
+		return lEntry == null ? null : lEntry.mVolume;
+	}
+
+	/**
+	 * Releases a volume acquired from this cache.
+	 *
+	 * @param pVolume
+	 *            volume
+	 */
+	public void release(Volume pVolume)
+	{
+		final Entry lEntry = mEntries.get(pVolume);
+		if (lEntry != null)
+			release(lEntry);
+	}
+
+	private Entry lookUp(int pChannelID, long pTimeIndex, boolean pAcquire)
+	{
+		final ConcurrentSkipListMap<Long, Entry> lTimeLine = mTimeLines.get(pChannelID);
+		if (lTimeLine == null)
+		{
+			mNumberOfMisses.incrementAndGet();
+			return null;
+		}
+
+		final Map.Entry<Long, Entry> lFloorEntry = lTimeLine.floorEntry(pTimeIndex);
+		Entry lEntry = lFloorEntry == null ? null
+											: use(lFloorEntry.getValue(), pAcquire);
+		if (lEntry != null)
+		{
+			mNumberOfHits.incrementAndGet();
+			return lEntry;
+		}
+
+		mNumberOfMisses.incrementAndGet();
+		lEntry = useFirstCached(lTimeLine.headMap(pTimeIndex, true)
+											.descendingMap(),
+								pAcquire);
+		if (lEntry == null)
+			lEntry = useFirstCached(lTimeLine.tailMap(pTimeIndex, false),
+									pAcquire);
+		return lEntry;
+	}
+
+	private Entry useFirstCached(Map<Long, Entry> pTimeLine, boolean pAcquire)
+	{
+		for (final Entry lEntry : pTimeLine.values())
+			if (use(lEntry, pAcquire) != null)
+				return lEntry;
+		return null;
+	}
+
+	private Entry use(Entry pEntry, boolean pAcquire)
+	{
+		if (!pEntry.mCached || (pAcquire && !pEntry.tryRetain()))
+			return null;
+		if (!pEntry.mUsed)
+		{
+			pEntry.mUsed = true;
+			mUsedEntries.offer(pEntry);
+		}
+		return pEntry;
+	}
+
+	private void applyUses()
+	{
+		Entry lEntry;
+		while ((lEntry = mUsedEntries.poll()) != null)
+		{
+			lEntry.mUsed = false;
+			if (lEntry.mCached)
+				moveToBack(lEntry);
+		}
+	}
+
+	private void moveToBack(Entry pEntry)
+	{
+		mUseOrder.remove(pEntry);
+		mUseOrder.add(pEntry);
+	}
+
+	/**
+	 * @return true if the volume of the channel and time point is cached,
+	 *         without counting as a hit or miss nor as a use
+	 */
+	public boolean contains(int pChannelID, long pTimeIndex)
+	{
+		final ConcurrentSkipListMap<Long, Entry> lTimeLine = mTimeLines.get(pChannelID);
+		if (lTimeLine == null)
+			return false;
+		final Entry lEntry = lTimeLine.get(pTimeIndex);
+		return lEntry != null && lEntry.mCached;
+	}
+
+	/**
+	 * Evicts the volumes of all channels before a time point, pinned or not.
+	 *
+	 * @param pTimeIndex
+	 *            first time point index kept
+	 */
+	public void evictBefore(long pTimeIndex)
+	{
+		final List<Entry> lEvictedEntries = new ArrayList<>();
+		synchronized (this)
+		{
+			for (final ConcurrentSkipListMap<Long, Entry> lTimeLine : mTimeLines.values())
+			{
+				final Iterator<Entry> lIterator = lTimeLine.headMap(pTimeIndex)
+															.values()
+															.iterator();
+				while (lIterator.hasNext())
+				{
+					final Entry lEntry = lIterator.next();
+					lIterator.remove();
+					if (lEntry != cEvicted)
+						uncache(lEntry, lEvictedEntries);
+				}
+			}
+		}
+		evicted(lEvictedEntries);
+	}
+
+	private void evictToBudget(List<Entry> pEvictedEntries)
+	{
+		if (mUsedBytes <= mBudgetInBytes)
+			return;
+
+		// only pinned volumes are passed over:
+		final Iterator<Entry> lIterator = mUseOrder.iterator();
+		while (lIterator.hasNext() && mUsedBytes > mBudgetInBytes)
+		{
+			final Entry lEntry = lIterator.next();
+			final Volume lVolume = lEntry.mVolume;
+			if (isPinned(lVolume.getTimeIndex()))
+				continue;
+			lIterator.remove();
+			mTimeLines.get(lVolume.getChannelID()).replace(	lVolume.getTimeIndex(),
+															lEntry,
+															cEvicted);
+			uncache(lEntry, pEvictedEntries);
+		}
+	}
+
+	private void uncache(Entry pEntry, List<Entry> pEvictedEntries)
+	{
+		pEntry.mCached = false;
+		mUseOrder.remove(pEntry);
+		mUsedBytes -= pEntry.mSizeInBytes;
+		mNumberOfVolumes--;
+		mNumberOfEvictions.incrementAndGet();
+		pEvictedEntries.add(pEntry);
+	}
+
+	private boolean isPinned(long pTimeIndex)
+	{
+		if (pTimeIndex > mHighestTimeIndex - mPinnedHistoryInTimePoints)
+			return true;
+		return mPlayheadSet && Math.abs(pTimeIndex - mPlayheadTimeIndex) <= mPinRadiusInTimePoints;
+	}
+
+	private void evicted(List<Entry> pEvictedEntries)
+	{
+		for (final Entry lEntry : pEvictedEntries)
+			release(lEntry);
+	}
+
+	private void release(Entry pEntry)
+	{
+		if (pEntry.mReferences.decrementAndGet() != 0)
+			return;
+
+		final Volume lVolume = pEntry.mVolume;
+		mEntries.remove(lVolume, pEntry);
+		for (final VolumeEvictionListener lVolumeEvictionListener : mEvictionListeners)
+			lVolumeEvictionListener.volumeEvicted(this, lVolume);
+		if (lVolume.getManager() != null)
+			lVolume.makeAvailableToManager();
+	}
+
+	/**
+	 * Pins the time points around the playhead.
+	 *
+	 * @param pTimeIndex
+	 *            time point index being displayed
+	 */
+	public void setPlayhead(long pTimeIndex)
+	{
+		mPlayheadTimeIndex = pTimeIndex;
+		mPlayheadSet = true;
+	}
+
+	/**
+	 * @param pPinRadiusInTimePoints
+	 *            number of time points pinned on each side of the playhead
+	 */
+	public void setPinRadius(long pPinRadiusInTimePoints)
+	{
+		mPinRadiusInTimePoints = pPinRadiusInTimePoints;
+	}
+
+	public long getPinRadius()
+	{
+		return mPinRadiusInTimePoints;
+	}
+
+	public void setPinnedHistory(long pPinnedHistoryInTimePoints)
+	{
+		mPinnedHistoryInTimePoints = pPinnedHistoryInTimePoints;
+	}
+
+	public long getPinnedHistory()
+	{
+		return mPinnedHistoryInTimePoints;
+	}
+
+	/**
+	 * @param pBudgetInBytes
+	 *            max bytes of volume data kept, volumes are evicted right away
+	 *            if over the new budget
+	 */
+	public void setBudget(long pBudgetInBytes)
+	{
+		final List<Entry> lEvictedEntries = new ArrayList<>();
+		synchronized (this)
+		{
+			mBudgetInBytes = pBudgetInBytes;
+			applyUses();
+			evictToBudget(lEvictedEntries);
+		}
+		evicted(lEvictedEntries);
+	}
+
+	public long getBudget()
+	{
+		return mBudgetInBytes;
+	}
+
+	public long getUsedBytes()
+	{
+		return mUsedBytes;
+	}
+
+	public int getNumberOfVolumes()
+	{
+		return mNumberOfVolumes;
+	}
+
+	public int getNumberOfChannels()
+	{
+		return mTimeLines.size();
+	}
+
+	/**
+	 * @return highest time point index seen, -1 if none
+	 */
+	public long getHighestTimeIndex()
+	{
+		return mHighestTimeIndex;
+	}
+
+	/**
+	 * @return lowest time point index cached over all channels, -1 if none:
+	 *         how far back the history goes
+	 */
+	public long getOldestTimeIndex()
+	{
+		long lOldestTimeIndex = -1;
+		for (final ConcurrentSkipListMap<Long, Entry> lTimeLine : mTimeLines.values())
+			for (final Map.Entry<Long, Entry> lEntry : lTimeLine.entrySet())
+				if (lEntry.getValue().mCached)
+				{
+					if (lOldestTimeIndex < 0 || lEntry.getKey() < lOldestTimeIndex)
+						lOldestTimeIndex = lEntry.getKey();
+					break;
+				}
+		return lOldestTimeIndex;
+	}
+
+	public long getNumberOfHits()
+	{
+		return mNumberOfHits.get();
+	}
+
+	public long getNumberOfMisses()
+	{
+		return mNumberOfMisses.get();
+	}
+
+	public long getNumberOfEvictions()
+	{
+		return mNumberOfEvictions.get();
+	}
+
+	public double getHitRatio()
+	{
+		final long lNumberOfHits = mNumberOfHits.get();
+		final long lNumberOfLookups = lNumberOfHits + mNumberOfMisses.get();
+		return lNumberOfLookups == 0 ? 0 : (double) lNumberOfHits / lNumberOfLookups;
+	}
+
+	public void addEvictionListener(VolumeEvictionListener pVolumeEvictionListener)
+	{
+		mEvictionListeners.add(pVolumeEvictionListener);
+	}
+
+	public void removeEvictionListener(VolumeEvictionListener pVolumeEvictionListener)
+	{
+		mEvictionListeners.remove(pVolumeEvictionListener);
+	}
+
+	private static long getSizeInBytes(Volume pVolume)
+	{
+		return pVolume.getDataBuffer() != null	? pVolume.getDataBuffer()
+															.capacity()
+												: pVolume.getDataSizeInBytes();
+	}
+
+	/**
+	 * Evicts all volumes.
+	 */
+	@Override
+	public void close()
+	{
+		final List<Entry> lEvictedEntries = new ArrayList<>();
+		synchronized (this)
+		{
+			for (final Entry lEntry : mEntries.values())
+				if (lEntry.mCached)
+					uncache(lEntry, lEvictedEntries);
+			mTimeLines.clear();
+			mUsedEntries.clear();
+		}
+		evicted(lEvictedEntries);
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format(	"VolumeCache [mVolumes=%d, mUsed=%d bytes, mBudget=%d bytes, mHitRatio=%.2f]",
+								getNumberOfVolumes(),
+								getUsedBytes(),
+								getBudget(),
+								getHitRatio());
+	}
+
+}
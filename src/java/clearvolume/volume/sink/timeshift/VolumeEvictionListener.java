@@ -0,0 +1,12 @@
+package clearvolume.volume.sink.timeshift;
+
+import clearvolume.volume.Volume;
+
+/**
+ * Listener notified when a VolumeCache evicts a volume, called before the
+ * volume goes back to its manager and outside of the cache's lock.
+ */
+public interface VolumeEvictionListener
+{
+	void volumeEvicted(VolumeCache pVolumeCache, Volume pVolume);
+}
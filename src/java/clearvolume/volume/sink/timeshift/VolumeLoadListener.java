@@ -0,0 +1,12 @@
+package clearvolume.volume.sink.timeshift;
+
+import clearvolume.volume.Volume;
+
+/**
+ * Listener notified when a history tier has read back a volume, called from
+ * the tier's loading thread.
+ */
+public interface VolumeLoadListener
+{
+	void volumeLoaded(VolumeTierInterface pVolumeTier, Volume pVolume);
+}
@@ -0,0 +1,54 @@
+package clearvolume.volume.sink.timeshift;
+
+import clearvolume.ClearVolumeCloseable;
+
+/**
+ * Tier of the time shifting history below the VolumeCache, holding volumes in
+ * a form that must be read back before display, e.g. compressed or on disk.
+ * Volumes are read back in the background and handed to the volume load
+ * listener.
+ */
+public interface VolumeTierInterface extends ClearVolumeCloseable
+{
+	/**
+	 * @return true if the volume of the given channel and time point is held,
+	 *         or about to be
+	 */
+	public boolean contains(int pChannelID, long pTimeIndex);
+
+	/**
+	 * @return time point index of the volume held for the channel at or before
+	 *         the given time point, -1 if none
+	 */
+	public long getFloorTimeIndex(int pChannelID, long pTimeIndex);
+
+	/**
+	 * @return lowest time point index held over all channels, -1 if none
+	 */
+	public long getOldestTimeIndex();
+
+	/**
+	 * Asks for a volume to be read back, the volume load listener receives it.
+	 *
+	 * @param pChannelID
+	 *            channel
+	 * @param pTimeIndex
+	 *            time point index
+	 */
+	public void requestLoad(int pChannelID, long pTimeIndex);
+
+	/**
+	 * Replaces the time points to read back ahead of time, served in the given
+	 * order whenever no load is requested.
+	 *
+	 * @param pChannelIDs
+	 *            channel of each time point
+	 * @param pTimeIndices
+	 *            time point indices
+	 * @param pLength
+	 *            number of time points
+	 */
+	public void setPrefetches(int[] pChannelIDs, long[] pTimeIndices, int pLength);
+
+	public void setVolumeLoadListener(VolumeLoadListener pVolumeLoadListener);
+}
@@ -79,7 +79,7 @@ public class TimeShiftingSinkJPanel extends JPanel
 		add(lPastPresentPanel, "cell 0 0 6 1,grow");
 		lPastPresentPanel.setLayout(new BorderLayout(0, 0));
 
-		mPastLabel = new JLabel(" " + pTimeShiftingSink.getHardMemoryHorizon()
+		mPastLabel = new JLabel(" " + pTimeShiftingSink.getScrubBackDepth()
 								+ " time points past");
 		lPastPresentPanel.add(mPastLabel, BorderLayout.WEST);
 
@@ -205,6 +205,8 @@ public class TimeShiftingSinkJPanel extends JPanel
 				{
 					mPresentLabel.setText("present: timepoint " + pTimeShiftingSink.getNumberOfTimepoints()
 											+ "   ");
+					mPastLabel.setText(" " + pTimeShiftingSink.getScrubBackDepth()
+										+ " time points past");
 
 					try
 					{
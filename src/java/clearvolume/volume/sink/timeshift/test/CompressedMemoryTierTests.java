@@ -0,0 +1,281 @@
+package clearvolume.volume.sink.timeshift.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import clearvolume.volume.Volume;
+import clearvolume.volume.sink.timeshift.CompressedMemoryTier;
+import clearvolume.volume.sink.timeshift.DiskSpillTier;
+import clearvolume.volume.sink.timeshift.VolumeCache;
+import clearvolume.volume.sink.timeshift.VolumeLoadListener;
+import clearvolume.volume.sink.timeshift.VolumeTierInterface;
+import coremem.enums.NativeTypeEnum;
+
+public class CompressedMemoryTierTests
+{
+	private static final int cWidth = 32;
+	private static final int cNumberOfVoxels = cWidth * cWidth * cWidth;
+
+	@Test
+	public void testCompressAndDecompress() throws InterruptedException
+	{
+		final CompressedMemoryTier lCompressedMemoryTier = new CompressedMemoryTier(Long.MAX_VALUE,
+																					2,
+																					CompressedMemoryTier.cDefaultCompressionLevel);
+		assertTrue(lCompressedMemoryTier.start());
+
+		// evicted volumes are compressed:
+		final VolumeCache lVolumeCache = new VolumeCache(0, 0);
+		lVolumeCache.addEvictionListener(lCompressedMemoryTier);
+		for (int t = 0; t < 10; t += 2)
+			lVolumeCache.put(newVolume(0, t));
+		lVolumeCache.close();
+		waitForCompressions(lCompressedMemoryTier, 5);
+
+		assertEquals(5, lCompressedMemoryTier.getNumberOfVolumes());
+		assertEquals(0, lCompressedMemoryTier.getNumberOfDroppedVolumes());
+		assertEquals(-1, lCompressedMemoryTier.getFloorTimeIndex(1, 4));
+		assertEquals(4, lCompressedMemoryTier.getFloorTimeIndex(0, 5));
+		assertEquals(0, lCompressedMemoryTier.getOldestTimeIndex());
+		assertTrue(lCompressedMemoryTier.getCompressionRatio() > 2);
+		assertTrue(lCompressedMemoryTier.getUsedBytes() < 5 * 2 * cNumberOfVoxels / 2);
+
+		for (int t = 0; t < 10; t += 2)
+			checkVolume(lCompressedMemoryTier.decompress(0, t), 0, t);
+		assertNull(lCompressedMemoryTier.decompress(0, 3));
+		assertEquals(5, lCompressedMemoryTier.getDecompressionLatency()
+												.getCount());
+
+		final CountDownLatch lLoaded = new CountDownLatch(1);
+		final Volume[] lLoadedVolume = new Volume[1];
+		lCompressedMemoryTier.setVolumeLoadListener(new VolumeLoadListener()
+		{
+			@Override
+			public void volumeLoaded(	VolumeTierInterface pVolumeTier,
+										Volume pVolume)
+			{
+				lLoadedVolume[0] = pVolume;
+				lLoaded.countDown();
+			}
+		});
+		lCompressedMemoryTier.requestLoad(0, 6);
+		assertTrue(lLoaded.await(10, TimeUnit.SECONDS));
+		checkVolume(lLoadedVolume[0], 0, 6);
+		// blobs stay after decompression:
+		assertTrue(lCompressedMemoryTier.contains(0, 6));
+
+		lCompressedMemoryTier.close();
+	}
+
+	@Test
+	public void testOverflowToDisk() throws IOException,
+									InterruptedException
+	{
+		final File lDirectory = Files.createTempDirectory("CompressedMemoryTierTests")
+										.toFile();
+		lDirectory.deleteOnExit();
+		final DiskSpillTier lDiskSpillTier = new DiskSpillTier(	lDirectory,
+																Long.MAX_VALUE,
+																0);
+		assertTrue(lDiskSpillTier.start());
+
+		// room for about two compressed volumes:
+		final CompressedMemoryTier lCompressedMemoryTier = new CompressedMemoryTier(cNumberOfVoxels,
+																					1,
+																					CompressedMemoryTier.cDefaultCompressionLevel);
+		lCompressedMemoryTier.setOverflowTier(lDiskSpillTier);
+		assertTrue(lCompressedMemoryTier.start());
+
+		for (int t = 0; t < 8; t++)
+		{
+			assertTrue(lCompressedMemoryTier.compress(newVolume(0, t)));
+			waitForCompressions(lCompressedMemoryTier, t + 1);
+		}
+
+		assertTrue(lCompressedMemoryTier.getUsedBytes() <= cNumberOfVoxels);
+		assertTrue(lCompressedMemoryTier.contains(0, 7));
+		assertFalse(lCompressedMemoryTier.contains(0, 0));
+		assertEquals(8, lCompressedMemoryTier.getNumberOfVolumes() + lCompressedMemoryTier.getNumberOfOverflownVolumes());
+
+		// blobs are written to disk compressed, and read back from it:
+		for (int t = 0; t < 8; t++)
+			if (!lCompressedMemoryTier.contains(0, t))
+				checkVolume(lDiskSpillTier.read(0, t), 0, t);
+		assertTrue(lDiskSpillTier.getNumberOfSpilledBytes() < lCompressedMemoryTier.getNumberOfOverflownVolumes() * 2
+																* cNumberOfVoxels
+																/ 2);
+
+		lCompressedMemoryTier.close();
+		lDiskSpillTier.close();
+		assertTrue(lDirectory.delete());
+	}
+
+	@Test
+	public void testDeltaEncoding() throws IOException,
+									InterruptedException
+	{
+		final CompressedMemoryTier lCompressedMemoryTier = new CompressedMemoryTier(Long.MAX_VALUE,
+																					2,
+																					CompressedMemoryTier.cDefaultCompressionLevel);
+		lCompressedMemoryTier.setKeyFrameInterval(10);
+		assertTrue(lCompressedMemoryTier.start());
+
+		for (int t = 0; t < 20; t++)
+		{
+			assertTrue(lCompressedMemoryTier.volumeArrived(newSlowVolume(0, t)));
+			waitForCompressions(lCompressedMemoryTier, t + 1);
+		}
+		// already held when evicted from the cache:
+		assertFalse(lCompressedMemoryTier.compress(newSlowVolume(0, 5)));
+
+		assertEquals(20, lCompressedMemoryTier.getNumberOfVolumes());
+		assertEquals(18, lCompressedMemoryTier.getNumberOfDeltas());
+		final long lUsedBytes = lCompressedMemoryTier.getUsedBytes();
+		for (int t = 0; t < 20; t++)
+			checkSlowVolume(lCompressedMemoryTier.decompress(0, t), 0, t);
+
+		// key frames only take a lot more room:
+		final CompressedMemoryTier lKeyFrameTier = new CompressedMemoryTier(Long.MAX_VALUE,
+																			2,
+																			CompressedMemoryTier.cDefaultCompressionLevel);
+		assertTrue(lKeyFrameTier.start());
+		for (int t = 0; t < 20; t++)
+		{
+			assertFalse(lKeyFrameTier.volumeArrived(newSlowVolume(0, t)));
+			assertTrue(lKeyFrameTier.compress(newSlowVolume(0, t)));
+			waitForCompressions(lKeyFrameTier, t + 1);
+		}
+		assertTrue(lUsedBytes * 3 < lKeyFrameTier.getUsedBytes());
+		lKeyFrameTier.close();
+
+		// over budget, a whole group goes to disk, deltas applied:
+		final File lDirectory = Files.createTempDirectory("CompressedMemoryTierTests")
+										.toFile();
+		lDirectory.deleteOnExit();
+		final DiskSpillTier lDiskSpillTier = new DiskSpillTier(	lDirectory,
+																Long.MAX_VALUE,
+																0);
+		assertTrue(lDiskSpillTier.start());
+		lCompressedMemoryTier.setOverflowTier(lDiskSpillTier);
+		lCompressedMemoryTier.setBudget(lUsedBytes * 3 / 4);
+		assertTrue(lCompressedMemoryTier.volumeArrived(newSlowVolume(0, 20)));
+		waitForCompressions(lCompressedMemoryTier, 21);
+		for (int i = 0; i < 1000 && lCompressedMemoryTier.getNumberOfOverflownVolumes() < 10; i++)
+			Thread.sleep(10);
+
+		assertEquals(11, lCompressedMemoryTier.getNumberOfVolumes());
+		assertEquals(10, lCompressedMemoryTier.getNumberOfOverflownVolumes());
+		assertFalse(lCompressedMemoryTier.contains(0, 9));
+		assertEquals(10, lCompressedMemoryTier.getOldestTimeIndex());
+		for (int t = 0; t < 10; t++)
+			checkSlowVolume(lDiskSpillTier.read(0, t), 0, t);
+		for (int t = 10; t < 21; t++)
+			checkSlowVolume(lCompressedMemoryTier.decompress(0, t), 0, t);
+
+		lCompressedMemoryTier.close();
+		lDiskSpillTier.close();
+		assertTrue(lDirectory.delete());
+	}
+
+	private static void waitForCompressions(CompressedMemoryTier pCompressedMemoryTier,
+											int pNumberOfVolumes) throws InterruptedException
+	{
+		for (int i = 0; i < 1000 && pCompressedMemoryTier.getNumberOfCompressedVolumes() < pNumberOfVolumes; i++)
+			Thread.sleep(10);
+		// the blob is stored right after being counted:
+		Thread.sleep(10);
+	}
+
+	private static short getValue(int pIndex, long pTimeIndex)
+	{
+		// 12 bit camera-like data: a smooth background and a little noise
+		return (short) (1000 + (pIndex / cWidth) % cWidth
+						+ (pIndex * 7919) % 13
+						+ pTimeIndex);
+	}
+
+	private static short getSlowValue(int pIndex, long pTimeIndex)
+	{
+		// 64 voxels change from one time point to the next:
+		return (short) (getValue(pIndex, 0) + (pIndex < pTimeIndex * 64	? 1
+																		: 0));
+	}
+
+	private static void checkVolume(Volume pVolume,
+									int pChannelID,
+									long pTimeIndex)
+	{
+		checkVolume(pVolume, pChannelID, pTimeIndex, false);
+	}
+
+	private static void checkSlowVolume(Volume pVolume,
+										int pChannelID,
+										long pTimeIndex)
+	{
+		checkVolume(pVolume, pChannelID, pTimeIndex, true);
+	}
+
+	private static void checkVolume(Volume pVolume,
+									int pChannelID,
+									long pTimeIndex,
+									boolean pSlow)
+	{
+		assertNotNull(pVolume);
+		assertEquals(pChannelID, pVolume.getChannelID());
+		assertEquals(pTimeIndex, pVolume.getTimeIndex());
+		assertEquals(2, pVolume.getBytesPerVoxel());
+		final ShortBuffer lData = pVolume.getDataBuffer()
+											.duplicate()
+											.order(ByteOrder.nativeOrder())
+											.asShortBuffer();
+		assertEquals(cNumberOfVoxels, lData.remaining());
+		for (int i = 0; i < cNumberOfVoxels; i++)
+			assertEquals(pSlow ? getSlowValue(i, pTimeIndex)
+								: getValue(i, pTimeIndex), lData.get());
+	}
+
+	private static Volume newVolume(int pChannelID, long pTimeIndex)
+	{
+		return newVolume(pChannelID, pTimeIndex, false);
+	}
+
+	private static Volume newSlowVolume(int pChannelID, long pTimeIndex)
+	{
+		return newVolume(pChannelID, pTimeIndex, true);
+	}
+
+	private static Volume newVolume(int pChannelID,
+									long pTimeIndex,
+									boolean pSlow)
+	{
+		final Volume lVolume = new Volume(	NativeTypeEnum.UnsignedShort,
+											1,
+											cWidth,
+											cWidth,
+											cWidth);
+		lVolume.setChannelID(pChannelID);
+		lVolume.setTimeIndex(pTimeIndex);
+		final ShortBuffer lData = lVolume.getDataBuffer()
+											.duplicate()
+											.order(ByteOrder.nativeOrder())
+											.asShortBuffer();
+		for (int i = 0; i < cNumberOfVoxels; i++)
+			lData.put(pSlow ? getSlowValue(i, pTimeIndex)
+							: getValue(i, pTimeIndex));
+		return lVolume;
+	}
+
+}
@@ -0,0 +1,147 @@
+package clearvolume.volume.sink.timeshift.test;
+
+import static clearvolume.volume.sink.timeshift.test.TestVolumes.checkVolume;
+import static clearvolume.volume.sink.timeshift.test.TestVolumes.newVolume;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import clearvolume.volume.Volume;
+import clearvolume.volume.sink.timeshift.DiskSpillTier;
+import clearvolume.volume.sink.timeshift.VolumeCache;
+import clearvolume.volume.sink.timeshift.VolumeLoadListener;
+import clearvolume.volume.sink.timeshift.VolumeTierInterface;
+
+public class DiskSpillTierTests
+{
+
+	@Test
+	public void testSpillAndReadBack() throws IOException,
+										InterruptedException
+	{
+		final File lDirectory = Files.createTempDirectory("DiskSpillTierTests")
+										.toFile();
+		lDirectory.deleteOnExit();
+		final DiskSpillTier lDiskSpillTier = new DiskSpillTier(	lDirectory,
+																Long.MAX_VALUE,
+																1);
+		assertTrue(lDiskSpillTier.start());
+
+		// evicted volumes go to disk:
+		final VolumeCache lVolumeCache = new VolumeCache(0, 0);
+		lVolumeCache.addEvictionListener(lDiskSpillTier);
+		for (int t = 0; t < 10; t += 2)
+			lVolumeCache.put(newVolume(0, t));
+		lVolumeCache.close();
+		assertEquals(-1, lDiskSpillTier.getFloorTimeIndex(1, 4));
+		assertEquals(4, lDiskSpillTier.getFloorTimeIndex(0, 5));
+		assertEquals(0, lDiskSpillTier.getOldestTimeIndex());
+
+		// read back even before the spill thread is done:
+		for (int t = 0; t < 10; t += 2)
+			checkVolume(lDiskSpillTier.read(0, t), 0, t);
+		assertNull(lDiskSpillTier.read(0, 3));
+
+		// read back volumes are recycled once evicted:
+		final Volume lReadVolume = lDiskSpillTier.read(0, 2);
+		assertNotNull(lReadVolume.getManager());
+		final ByteBuffer lDataBuffer = lReadVolume.getDataBuffer();
+		lReadVolume.makeAvailableToManager();
+		final Volume lRecycledVolume = lDiskSpillTier.read(0, 4);
+		assertSame(lReadVolume, lRecycledVolume);
+		assertSame(lDataBuffer, lRecycledVolume.getDataBuffer());
+		checkVolume(lRecycledVolume, 0, 4);
+
+		assertEquals(5, lDiskSpillTier.getNumberOfSpilledVolumes());
+		assertEquals(0, lDiskSpillTier.getNumberOfDroppedSpills());
+		// the pattern compresses well:
+		assertTrue(lDiskSpillTier.getNumberOfSpilledBytes() < 5 * 1000);
+
+		final CountDownLatch lLoaded = new CountDownLatch(1);
+		final Volume[] lLoadedVolume = new Volume[1];
+		lDiskSpillTier.setVolumeLoadListener(new VolumeLoadListener()
+		{
+			@Override
+			public void volumeLoaded(	VolumeTierInterface pVolumeTier,
+										Volume pVolume)
+			{
+				lLoadedVolume[0] = pVolume;
+				lLoaded.countDown();
+			}
+		});
+		lDiskSpillTier.requestLoad(0, 6);
+		assertTrue(lLoaded.await(10, TimeUnit.SECONDS));
+		checkVolume(lLoadedVolume[0], 0, 6);
+
+		lDiskSpillTier.close();
+		assertEquals(0, lDirectory.list().length);
+		assertTrue(lDirectory.delete());
+	}
+
+	@Test
+	public void testDiskBudget() throws IOException
+	{
+		final File lDirectory = Files.createTempDirectory("DiskSpillTierTests")
+										.toFile();
+		lDirectory.deleteOnExit();
+		final DiskSpillTier lDiskSpillTier = new DiskSpillTier(	lDirectory,
+																3000,
+																0);
+		lDiskSpillTier.setSegmentLength(1);
+		assertTrue(lDiskSpillTier.start());
+
+		for (int t = 0; t < 8; t++)
+		{
+			assertTrue(lDiskSpillTier.spill(newVolume(0, t)));
+			// once on disk, the oldest segments go:
+			assertNotNull(lDiskSpillTier.read(0, t));
+		}
+		assertTrue(lDiskSpillTier.getNumberOfSegments() <= 3);
+		// mapped segments can be deleted on this platform:
+		assertEquals(0, lDiskSpillTier.getNumberOfUndeletedSegments());
+		assertTrue(lDiskSpillTier.getOldestTimeIndex() >= 5);
+		assertNull(lDiskSpillTier.read(0, 0));
+		checkVolume(lDiskSpillTier.read(0, 7), 0, 7);
+
+		lDiskSpillTier.close();
+		assertTrue(lDirectory.delete());
+	}
+
+	@Test
+	public void testSegmentsWithinBudget() throws IOException
+	{
+		final File lDirectory = Files.createTempDirectory("DiskSpillTierTests")
+										.toFile();
+		lDirectory.deleteOnExit();
+		// the default segment length is far beyond the budget:
+		final DiskSpillTier lDiskSpillTier = new DiskSpillTier(	lDirectory,
+																8000,
+																0);
+		assertTrue(lDiskSpillTier.start());
+
+		for (int t = 0; t < 20; t++)
+		{
+			assertTrue(lDiskSpillTier.spill(newVolume(0, t)));
+			assertNotNull(lDiskSpillTier.read(0, t));
+		}
+		assertTrue(lDiskSpillTier.getNumberOfSegments() > 1);
+		assertTrue(lDiskSpillTier.getOldestTimeIndex() > 0);
+		assertNull(lDiskSpillTier.read(0, 0));
+		checkVolume(lDiskSpillTier.read(0, 19), 0, 19);
+
+		lDiskSpillTier.close();
+		assertTrue(lDirectory.delete());
+	}
+
+}
@@ -0,0 +1,48 @@
+package clearvolume.volume.sink.timeshift.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.nio.ByteBuffer;
+
+import clearvolume.volume.Volume;
+import coremem.enums.NativeTypeEnum;
+
+/**
+ * Small volumes shared by the time-shift tests, filled with a pattern that
+ * depends on the time index so that they can be told apart once read back.
+ */
+class TestVolumes
+{
+	static final int cNumberOfVoxels = 1000;
+
+	static Volume newVolume(int pChannelID, long pTimeIndex)
+	{
+		final Volume lVolume = new Volume(	NativeTypeEnum.UnsignedByte,
+											1,
+											10,
+											10,
+											10);
+		lVolume.setChannelID(pChannelID);
+		lVolume.setTimeIndex(pTimeIndex);
+		final ByteBuffer lData = lVolume.getDataBuffer();
+		lData.rewind();
+		for (int i = 0; i < cNumberOfVoxels; i++)
+			lData.put((byte) (i % 10 + pTimeIndex));
+		lData.rewind();
+		return lVolume;
+	}
+
+	static void checkVolume(Volume pVolume, int pChannelID, long pTimeIndex)
+	{
+		assertNotNull(pVolume);
+		assertEquals(pChannelID, pVolume.getChannelID());
+		assertEquals(pTimeIndex, pVolume.getTimeIndex());
+		final ByteBuffer lData = pVolume.getDataBuffer();
+		lData.rewind();
+		assertEquals(cNumberOfVoxels, lData.remaining());
+		for (int i = 0; i < cNumberOfVoxels; i++)
+			assertEquals((byte) (i % 10 + pTimeIndex), lData.get());
+	}
+
+}
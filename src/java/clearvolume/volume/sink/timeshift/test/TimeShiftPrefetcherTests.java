@@ -0,0 +1,109 @@
+package clearvolume.volume.sink.timeshift.test;
+
+import static clearvolume.volume.sink.timeshift.test.TestVolumes.newVolume;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import clearvolume.volume.Volume;
+import clearvolume.volume.sink.timeshift.DiskSpillTier;
+import clearvolume.volume.sink.timeshift.TimeShiftPrefetcher;
+import clearvolume.volume.sink.timeshift.VolumeCache;
+import clearvolume.volume.sink.timeshift.VolumeLoadListener;
+import clearvolume.volume.sink.timeshift.VolumeTierInterface;
+
+public class TimeShiftPrefetcherTests
+{
+
+	@Test
+	public void testPrefetchAhead() throws IOException,
+									InterruptedException
+	{
+		final File lDirectory = Files.createTempDirectory("TimeShiftPrefetcherTests")
+										.toFile();
+		lDirectory.deleteOnExit();
+		final DiskSpillTier lDiskSpillTier = new DiskSpillTier(	lDirectory,
+																Long.MAX_VALUE,
+																0);
+		assertTrue(lDiskSpillTier.start());
+		for (int t = 0; t < 100; t++)
+		{
+			assertTrue(lDiskSpillTier.spill(newVolume(0, t)));
+			lDiskSpillTier.read(0, t);
+		}
+
+		final VolumeCache lVolumeCache = new VolumeCache(Long.MAX_VALUE, 0);
+		lVolumeCache.put(newVolume(0, 14));
+		final TimeShiftPrefetcher lPrefetcher = new TimeShiftPrefetcher(lVolumeCache);
+		lPrefetcher.setNumberOfTimePoints(4);
+
+		final TreeSet<Long> lPrefetched = new TreeSet<>();
+		final CountDownLatch[] lLatch = new CountDownLatch[]
+		{ new CountDownLatch(3) };
+		lDiskSpillTier.setVolumeLoadListener(new VolumeLoadListener()
+		{
+			@Override
+			public void volumeLoaded(	VolumeTierInterface pVolumeTier,
+										Volume pVolume)
+			{
+				synchronized (lPrefetched)
+				{
+					lPrefetched.add(pVolume.getTimeIndex());
+				}
+				lLatch[0].countDown();
+			}
+		});
+
+		// forward at 10 time points per second, 14 is cached already:
+		final long lMillis = 1000000L;
+		lPrefetcher.playheadMoved(10, 0);
+		lPrefetcher.playheadMoved(11, 100 * lMillis);
+		lPrefetcher.playheadMoved(12, 200 * lMillis);
+		assertEquals(10, lPrefetcher.getVelocity(200 * lMillis), 1e-6);
+		lPrefetcher.prefetch(	Arrays.<VolumeTierInterface> asList(lDiskSpillTier),
+								Arrays.asList(0),
+								200 * lMillis);
+		assertTrue(lLatch[0].await(10, TimeUnit.SECONDS));
+		synchronized (lPrefetched)
+		{
+			assertEquals(Arrays.asList(13L, 15L, 16L),
+							Arrays.asList(lPrefetched.toArray()));
+			lPrefetched.clear();
+		}
+		assertEquals(0, lPrefetcher.getReachBehind());
+
+		// backwards at 80 time points per second, after a pause: every 10th
+		// time point down to the oldest
+		lLatch[0] = new CountDownLatch(3);
+		lPrefetcher.playheadMoved(78, 1000 * lMillis);
+		lPrefetcher.playheadMoved(30, 1600 * lMillis);
+		assertEquals(-80, lPrefetcher.getVelocity(1600 * lMillis), 1e-6);
+		lPrefetcher.prefetch(	Arrays.<VolumeTierInterface> asList(lDiskSpillTier),
+								Arrays.asList(0),
+								1600 * lMillis);
+		assertTrue(lLatch[0].await(10, TimeUnit.SECONDS));
+		synchronized (lPrefetched)
+		{
+			assertEquals(Arrays.asList(0L, 10L, 20L),
+							Arrays.asList(lPrefetched.toArray()));
+		}
+		assertEquals(30, lPrefetcher.getReachBehind());
+		assertEquals(6, lDiskSpillTier.getNumberOfPrefetchedVolumes());
+
+		// standing still:
+		assertEquals(0, lPrefetcher.getVelocity(5000 * lMillis), 0);
+
+		lDiskSpillTier.close();
+		assertTrue(lDirectory.delete());
+	}
+
+}
@@ -1,6 +1,11 @@
 package clearvolume.volume.sink.timeshift.test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -74,6 +79,120 @@ public class TimeShiftingSinkTests
 
 		}
 
+		// history doesn't go beyond the hard horizon:
+		assertTrue(lTimeShiftingSink.getScrubBackDepth() <= lTimeShiftingSink.getHardMemoryHorizon());
+		assertTrue(lTimeShiftingSink.getVolumeCache().getNumberOfHits() > 0);
+		lTimeShiftingSink.close();
+		assertEquals(0, lTimeShiftingSink.getVolumeCache().getNumberOfVolumes());
+	}
+
+	@Test
+	public void testContention() throws InterruptedException
+	{
+		final int lNumberOfChannels = 4;
+		final int lNumberOfTimePoints = 250;
+		final AtomicInteger[] lRelaysInProgress = new AtomicInteger[lNumberOfChannels];
+		for (int c = 0; c < lNumberOfChannels; c++)
+			lRelaysInProgress[c] = new AtomicInteger();
+		final AtomicInteger lAllRelaysInProgress = new AtomicInteger();
+		final AtomicInteger lMaxRelaysInProgress = new AtomicInteger();
+		final AtomicInteger lNumberOfRelayedVolumes = new AtomicInteger();
+		final AtomicInteger lNumberOfOverlaps = new AtomicInteger();
+
+		// a slow renderer, 1 ms per upload:
+		final VolumeSinkInterface lVolumeSinkInterface = new VolumeSinkInterface()
+		{
+			@Override
+			public void sendVolume(Volume pVolume)
+			{
+				final AtomicInteger lChannelRelays = lRelaysInProgress[pVolume.getChannelID()];
+				if (lChannelRelays.incrementAndGet() > 1)
+					lNumberOfOverlaps.incrementAndGet();
+				final int lAllRelays = lAllRelaysInProgress.incrementAndGet();
+				int lMaxRelays;
+				while ((lMaxRelays = lMaxRelaysInProgress.get()) < lAllRelays)
+					lMaxRelaysInProgress.compareAndSet(lMaxRelays, lAllRelays);
+				try
+				{
+					Thread.sleep(1);
+				}
+				catch (final InterruptedException e)
+				{
+				}
+				lAllRelaysInProgress.decrementAndGet();
+				lChannelRelays.decrementAndGet();
+				lNumberOfRelayedVolumes.incrementAndGet();
+			}
+
+			@Override
+			public VolumeManager getManager()
+			{
+				return null;
+			}
+		};
+
+		final TimeShiftingSink lTimeShiftingSink = new TimeShiftingSink(50,
+																		100);
+		lTimeShiftingSink.setRelaySink(lVolumeSinkInterface);
+
+		// one acquisition thread per channel, as fast as possible:
+		final Thread[] lThreads = new Thread[lNumberOfChannels];
+		for (int c = 0; c < lNumberOfChannels; c++)
+		{
+			final int lChannel = c;
+			lThreads[c] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for (int t = 0; t < lNumberOfTimePoints; t++)
+					{
+						final Volume lVolume = new Volume(	NativeTypeEnum.UnsignedByte,
+															1,
+															10,
+															10,
+															10);
+						lVolume.setTimeIndex(t);
+						lVolume.setChannelID(lChannel);
+						lTimeShiftingSink.sendVolume(lVolume);
+					}
+				}
+			});
+		}
+
+		final long lStartNanos = System.nanoTime();
+		for (final Thread lThread : lThreads)
+			lThread.start();
+
+		// scrubbing meanwhile:
+		int lNumberOfSeeks = 0;
+		while (lThreads[0].isAlive())
+		{
+			lTimeShiftingSink.setTimeShiftNormalized(Math.random());
+			lNumberOfSeeks++;
+			Thread.sleep(0, 100000);
+		}
+		for (final Thread lThread : lThreads)
+			lThread.join();
+		final double lElapsedSeconds = (System.nanoTime() - lStartNanos) * 1e-9;
+
+		System.out.format(	"%d volumes in %.2f s: %.0f volumes/s, up to %d relays at once, %d seeks of which %d coalesced\n",
+							lNumberOfChannels * lNumberOfTimePoints,
+							lElapsedSeconds,
+							lNumberOfChannels * lNumberOfTimePoints
+									/ lElapsedSeconds,
+							lMaxRelaysInProgress.get(),
+							lNumberOfSeeks,
+							lTimeShiftingSink.getSeekScheduler()
+													.getNumberOfCoalescedSeeks());
+		System.out.println(lTimeShiftingSink.getSeekScheduler());
+
+		// channels are forwarded concurrently, each one volume at a time:
+		if (lNumberOfOverlaps.get() > 0)
+			fail("volumes of a channel were forwarded concurrently");
+		assertTrue(lMaxRelaysInProgress.get() > 1);
+		assertTrue(lNumberOfRelayedVolumes.get() >= lNumberOfChannels * lNumberOfTimePoints);
+		lTimeShiftingSink.close();
 	}
 
 }
@@ -0,0 +1,94 @@
+package clearvolume.volume.sink.timeshift.test;
+
+import static clearvolume.volume.sink.timeshift.test.TestVolumes.newVolume;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import clearvolume.volume.Volume;
+import clearvolume.volume.sink.timeshift.VolumeCache;
+import clearvolume.volume.sink.timeshift.VolumeEvictionListener;
+
+public class VolumeCacheTests
+{
+
+	@Test
+	public void testEvictionWithinBudget()
+	{
+		// room for 4 volumes of 1000 bytes, last 2 time points pinned:
+		final VolumeCache lVolumeCache = new VolumeCache(4000, 2);
+		final List<Long> lEvictedTimeIndices = new ArrayList<>();
+		lVolumeCache.addEvictionListener(new VolumeEvictionListener()
+		{
+			@Override
+			public void volumeEvicted(VolumeCache pVolumeCache, Volume pVolume)
+			{
+				lEvictedTimeIndices.add(pVolume.getTimeIndex());
+			}
+		});
+
+		final Volume[] lVolumes = new Volume[8];
+		for (int i = 0; i < 4; i++)
+			lVolumeCache.put(lVolumes[i] = newVolume(0, i));
+		assertEquals(4000, lVolumeCache.getUsedBytes());
+		assertEquals(0, lVolumeCache.getNumberOfEvictions());
+
+		// the playhead is on 1 alone, and 0 was looked up last:
+		lVolumeCache.setPinRadius(0);
+		lVolumeCache.setPlayhead(1);
+		assertSame(lVolumes[0], lVolumeCache.get(0, 0));
+		for (int i = 4; i < 8; i++)
+			lVolumeCache.put(lVolumes[i] = newVolume(0, i));
+
+		// 2 and 3 least recently used, then 0, then 4 and 5:
+		assertEquals(4, lVolumeCache.getNumberOfEvictions());
+		assertEquals(4, lEvictedTimeIndices.size());
+		assertEquals(Long.valueOf(2), lEvictedTimeIndices.get(0));
+		assertEquals(Long.valueOf(3), lEvictedTimeIndices.get(1));
+		assertEquals(Long.valueOf(0), lEvictedTimeIndices.get(2));
+		assertEquals(Long.valueOf(4), lEvictedTimeIndices.get(3));
+		assertEquals(4000, lVolumeCache.getUsedBytes());
+		assertEquals(1, lVolumeCache.getOldestTimeIndex());
+
+		// an evicted time point is a miss, the nearest volume before it comes
+		// instead:
+		final long lHits = lVolumeCache.getNumberOfHits();
+		assertSame(lVolumes[1], lVolumeCache.get(0, 3));
+		assertEquals(1, lVolumeCache.getNumberOfMisses());
+		assertSame(lVolumes[7], lVolumeCache.get(0, 100));
+		assertEquals(lHits + 1, lVolumeCache.getNumberOfHits());
+		// nothing before, the nearest after:
+		lVolumeCache.evictBefore(1);
+		assertSame(lVolumes[1], lVolumeCache.get(0, 0));
+
+		lVolumeCache.close();
+		assertEquals(0, lVolumeCache.getNumberOfVolumes());
+		assertEquals(0, lVolumeCache.getUsedBytes());
+	}
+
+	@Test
+	public void testPinnedOverBudget()
+	{
+		final VolumeCache lVolumeCache = new VolumeCache(1000, 3);
+		for (int i = 0; i < 3; i++)
+			for (int lChannel = 0; lChannel < 2; lChannel++)
+				lVolumeCache.put(newVolume(lChannel, i));
+
+		// all pinned as most recent:
+		assertEquals(6, lVolumeCache.getNumberOfVolumes());
+		assertEquals(0, lVolumeCache.getNumberOfEvictions());
+
+		lVolumeCache.setPinnedHistory(1);
+		lVolumeCache.setBudget(2000);
+		assertEquals(2, lVolumeCache.getNumberOfVolumes());
+		assertEquals(2, lVolumeCache.getOldestTimeIndex());
+		assertTrue(lVolumeCache.get(1, 2) != null);
+		assertEquals(1.0, lVolumeCache.getHitRatio(), 0);
+	}
+
+}
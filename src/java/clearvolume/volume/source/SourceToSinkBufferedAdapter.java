@@ -4,6 +4,7 @@ import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 
+import clearvolume.volume.LatestPerChannelVolumeQueue;
 import clearvolume.volume.Volume;
 import clearvolume.volume.VolumeManager;
 import clearvolume.volume.sink.VolumeSinkInterface;
@@ -24,6 +25,36 @@ public class SourceToSinkBufferedAdapter implements
 		mVolumeQueue = new ArrayBlockingQueue<Volume>(pMaxCapacity);
 	}
 
+	/**
+	 * Creates an adapter that optionally only keeps the latest volume of each
+	 * channel: volumes superseded before being requested are handed to the
+	 * given sink (or to their manager if null), so the source never falls
+	 * behind.
+	 *
+	 * @param pVolumeManager
+	 *            volume manager
+	 * @param pMaxCapacity
+	 *            max number of queued volumes, or of pending channels when
+	 *            keeping the latest per channel
+	 * @param pLatestPerChannel
+	 *            true to only keep the latest volume per channel
+	 * @param pSupersededVolumeSink
+	 *            sink receiving superseded volumes, can be null
+	 */
+	public SourceToSinkBufferedAdapter(	VolumeManager pVolumeManager,
+										int pMaxCapacity,
+										boolean pLatestPerChannel,
+										VolumeSinkInterface pSupersededVolumeSink)
+	{
+		super();
+		mVolumeManager = pVolumeManager;
+		if (pLatestPerChannel)
+			mVolumeQueue = new LatestPerChannelVolumeQueue(	pMaxCapacity,
+															pSupersededVolumeSink);
+		else
+			mVolumeQueue = new ArrayBlockingQueue<Volume>(pMaxCapacity);
+	}
+
 	@Override
 	public void sendVolume(Volume pVolume)
 	{
@@ -70,6 +101,14 @@ public class SourceToSinkBufferedAdapter implements
 		return lVolume;
 	}
 
+	/**
+	 * @return number of volumes waiting to be requested
+	 */
+	public int getQueueLength()
+	{
+		return mVolumeQueue.size();
+	}
+
 	@Override
 	public VolumeManager getManager()
 	{
@@ -0,0 +1,89 @@
+package clearvolume.volume.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import clearvolume.volume.LatestPerChannelVolumeQueue;
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeManager;
+import coremem.enums.NativeTypeEnum;
+
+public class LatestPerChannelVolumeQueueTests
+{
+
+	@Test
+	public void testConflation() throws InterruptedException
+	{
+		final VolumeManager lVolumeManager = new VolumeManager(10);
+		final LatestPerChannelVolumeQueue lQueue = new LatestPerChannelVolumeQueue(2);
+
+		// channel 0 comes again before the queue is drained:
+		final int[] lChannelIDs = new int[]
+		{ 0, 1, 0, 2 };
+		final Volume[] lVolumes = new Volume[lChannelIDs.length];
+		for (int i = 0; i < lVolumes.length; i++)
+		{
+			lVolumes[i] = lVolumeManager.requestAndWaitForVolume(	1,
+																	TimeUnit.MILLISECONDS,
+																	NativeTypeEnum.UnsignedByte,
+																	1,
+																	8,
+																	8,
+																	8);
+			lVolumes[i].setChannelID(lChannelIDs[i]);
+			lVolumes[i].setTimeIndex(i == 2 ? 2 : 1);
+		}
+		final Volume lVolume0a = lVolumes[0];
+		final Volume lVolume1 = lVolumes[1];
+		final Volume lVolume0b = lVolumes[2];
+
+		assertTrue(lQueue.offer(lVolume0a));
+		assertTrue(lQueue.offer(lVolume1));
+		assertTrue(lQueue.offer(lVolume0b));
+		assertFalse(lQueue.offer(lVolumes[3]));
+		assertEquals(2, lQueue.size());
+		assertEquals(1, lQueue.getNumberOfSupersededVolumes());
+
+		// the superseded volume went back to its manager:
+		assertSame(	lVolume0a,
+					lVolumeManager.requestAndWaitForNextAvailableVolume(	1,
+																			TimeUnit.MILLISECONDS));
+
+		// channel 0 keeps its place, but with its latest volume:
+		assertSame(lVolume0b, lQueue.take());
+		assertSame(lVolume1, lQueue.poll(1, TimeUnit.MILLISECONDS));
+		assertNull(lQueue.poll(1, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testStreams() throws InterruptedException
+	{
+		final VolumeManager lVolumeManager = new VolumeManager(10);
+		final LatestPerChannelVolumeQueue lQueue = new LatestPerChannelVolumeQueue(4);
+
+		// channel 0 of two streams:
+		final Volume[] lVolumes = new Volume[2];
+		for (int i = 0; i < lVolumes.length; i++)
+		{
+			lVolumes[i] = lVolumeManager.requestAndWaitForVolume(	1,
+																	TimeUnit.MILLISECONDS,
+																	NativeTypeEnum.UnsignedByte,
+																	1,
+																	8,
+																	8,
+																	8);
+			lVolumes[i].setStreamID(1 + i);
+			assertTrue(lQueue.offer(lVolumes[i]));
+		}
+		assertEquals(0, lQueue.getNumberOfSupersededVolumes());
+		assertSame(lVolumes[0], lQueue.take());
+		assertSame(lVolumes[1], lQueue.take());
+	}
+}
@@ -0,0 +1,66 @@
+package clearvolume.volume.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import clearvolume.volume.Volume;
+import clearvolume.volume.VolumeResampling;
+import coremem.enums.NativeTypeEnum;
+
+public class VolumeResamplingTests
+{
+
+	@Test
+	public void testExtract()
+	{
+		final Volume lVolume = new Volume(	NativeTypeEnum.UnsignedShort,
+											1,
+											8,
+											6,
+											4);
+		lVolume.setVoxelSizeInRealUnits("um", 1, 2, 3);
+		final ByteBuffer lDataBuffer = lVolume.getDataBuffer();
+		for (int z = 0; z < 4; z++)
+			for (int y = 0; y < 6; y++)
+				for (int x = 0; x < 8; x++)
+					lDataBuffer.putShort((short) (x + 10 * y + 100 * z));
+
+		// whole volume at level 1:
+		final Volume lDownsampled = VolumeResampling.extract(	lVolume,
+																null,
+																1,
+																new Volume());
+		assertArrayEquals(new long[]
+		{ 1, 4, 3, 2 }, lDownsampled.getDimensionsInVoxels());
+		assertEquals(2, lDownsampled.getVoxelWidthInRealUnits(), 0);
+		assertEquals(6, lDownsampled.getVoxelDepthInRealUnits(), 0);
+		assertEquals(24 * 2, lDownsampled.getDataBuffer().capacity());
+		assertEquals(2 + 20 + 200, getVoxel(lDownsampled, 1, 1, 1));
+
+		// second half along x at full resolution:
+		final Volume lCropped = VolumeResampling.extract(	lVolume,
+															new float[]
+															{ 0.5f,
+																0,
+																0,
+																1,
+																1,
+																0.25f },
+															0,
+															new Volume());
+		assertArrayEquals(new long[]
+		{ 1, 4, 6, 1 }, lCropped.getDimensionsInVoxels());
+		assertEquals(4 + 3 + 50, getVoxel(lCropped, 3, 5, 0));
+	}
+
+	private static int getVoxel(Volume pVolume, int pX, int pY, int pZ)
+	{
+		final int lIndex = (int) ((pZ * pVolume.getHeightInVoxels() + pY) * pVolume.getWidthInVoxels() + pX);
+		return pVolume.getDataBuffer().getShort(2 * lIndex);
+	}
+
+}